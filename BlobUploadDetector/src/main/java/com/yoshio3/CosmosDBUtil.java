@@ -1,5 +1,6 @@
 package com.yoshio3;
 
+import java.time.Duration;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -13,9 +14,13 @@ import com.azure.cosmos.models.PartitionKey;
 import com.azure.cosmos.models.SqlParameter;
 import com.azure.cosmos.models.SqlQuerySpec;
 import com.yoshio3.logging.BDLogger;
-import com.yoshio3.models.CosmosDBDocument;
-import com.yoshio3.models.CosmosDBDocumentStatus;
+import com.yoshio3.entities.CosmosDBDocument;
+import com.yoshio3.entities.CosmosDBDocumentStatus;
 
+// ファイルの処理状況 (ページ・チャンク毎のドキュメント) を Cosmos DB に登録・更新する
+// ・PDF-Summarizer にも同名のクラスがあるが、同じコンテナに対する別の操作 (一覧・変更フィード・削除) のみを持つため、
+//   共通のモジュール (VectorStore) には移さない (ドキュメントと状況の型は VectorStore の com.yoshio3.entities を共有する)
+// ・接続先は環境変数、ログは BDLogger (Azure Functions の ExecutionContext のロガー) を利用する
 public class CosmosDBUtil {
 
 	private static final String COSMOS_DB_ENDPOINT;
@@ -42,6 +47,15 @@ public class CosmosDBUtil {
 		container = database.getContainer(COSMOS_DB_CONTAINER_NAME);
 	}
 
+	// コンテナのメタデータを読み込み、接続 (TLS のハンドシェイク) とキャッシュを作成する
+	public void warmUp() {
+		container.read().block(Duration.ofSeconds(60));
+	}
+
+	public void close() {
+		client.close();
+	}
+
 	public boolean isRegisteredDocument(String fileName, final BDLogger logger) throws InterruptedException {
 		var executor = Executors.newSingleThreadExecutor();
 		var cdl = new CountDownLatch(1);
@@ -10,14 +10,19 @@ import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.sql.Connection;
 import java.sql.DriverManager;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.TreeMap;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
@@ -25,9 +30,11 @@ import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.text.PDFTextStripper;
 
 import com.azure.ai.openai.OpenAIClient;
-import com.azure.ai.openai.OpenAIClientBuilder;
+import com.azure.ai.openai.models.ChatCompletionsOptions;
+import com.azure.ai.openai.models.ChatMessage;
+import com.azure.ai.openai.models.ChatRole;
+import com.azure.ai.openai.models.EmbeddingItem;
 import com.azure.ai.openai.models.EmbeddingsOptions;
-import com.azure.core.credential.AzureKeyCredential;
 import com.documents4j.api.DocumentType;
 import com.documents4j.conversion.msoffice.MicrosoftPowerpointBridge;
 import com.documents4j.job.LocalConverter;
@@ -39,18 +46,30 @@ import com.microsoft.azure.functions.annotation.BlobOutput;
 import com.microsoft.azure.functions.annotation.BlobTrigger;
 import com.microsoft.azure.functions.annotation.FunctionName;
 import com.microsoft.azure.functions.annotation.StorageAccount;
+import com.microsoft.azure.functions.annotation.TimerTrigger;
+import com.microsoft.azure.functions.annotation.WarmupTrigger;
+import com.yoshio3.entities.CosmosDBDocumentStatus;
 import com.yoshio3.logging.BDLogger;
 import com.yoshio3.logging.LogContainer;
-import com.yoshio3.models.CosmosDBDocumentStatus;
+import com.yoshio3.vectorstore.EmbeddingSnapshot;
+import com.yoshio3.vectorstore.MinHasher;
+import com.yoshio3.vectorstore.ParentRecord;
+import com.yoshio3.vectorstore.SentenceWindowChunker;
+import com.yoshio3.vectorstore.ShadowTableReembedder;
+import com.yoshio3.vectorstore.PgNearDuplicateIndex;
+import com.yoshio3.vectorstore.PgPageDigestStore;
+import com.yoshio3.vectorstore.PgVectorStore;
+import com.yoshio3.vectorstore.VectorRecord;
+import com.yoshio3.vectorstore.VectorStore;
+import com.yoshio3.vectorstore.Vectors;
 
 public class Function {
 
-	// Azure OpenAI の API キー
-	private static final String OPENAI_API_KEY;
-	// Azure OpenAI のインスタンスの URL
-	private static final String OPENAI_URL;
 	// Azure OpenAI のEmbeddingのモデル名
+	// (PDF-Summarizer の再 Embedding で切り替えた場合は、進捗テーブルの activeModel を利用する)
 	private static final String OPENAI_EMBEDDING_MODEL_NAME;
+	// Azure OpenAI の Chat のモデル名 (ページの要約の作成で利用)
+	private static final String OPENAI_MODEL_NAME;
 
 	// Azure PostgreSQL の JDBC URL
 	private static final String POSTGRESQL_JDBC_URL;
@@ -60,31 +79,128 @@ public class Function {
 	private static final String POSTGRESQL_PASSWORD;
 	// Azure PostgreSQL のテーブル名
 	private static final String POSTGRESQL_TABLE_NAME;
+	// 仮想ディレクトリに置かれていないファイルのコレクション名
+	private static final String DEFAULT_COLLECTION = "default";
+	// PostgreSQL にまとめて登録するチャンク数
+	private static final int VECTOR_UPSERT_BATCH_SIZE;
+	// PostgreSQL のテーブルの構成 (inline, split) と embedding 列の型 (vector, halfvec)
+	private static final PgVectorStore.Layout VECTOR_STORE_LAYOUT;
+	private static final PgVectorStore.VectorType VECTOR_STORE_VECTOR_TYPE;
+	// チャンクと Embedding のスナップショット (snapshots コンテナ) を保存するか
+	private static final boolean EMBEDDING_SNAPSHOT_ENABLED;
+	// ほぼ同じテキストのチャンクを検出し、登録済みのチャンクに紐付けるか (Embedding を取得しない)
+	private static final boolean NEAR_DUPLICATE_DETECTION_ENABLED;
+	// 紐付ける MinHash の署名の一致率 (Jaccard 係数の推定値) の下限
+	private static final double NEAR_DUPLICATE_THRESHOLD;
+	// チャンクの分割方法
+	// page : ページ単位 (7500 文字を超える場合は分割)
+	// sentence-window : 数文ずつの子チャンクを登録し、ページ全体のテキストを親として保存する
+	private static final boolean SENTENCE_WINDOW_CHUNKING;
+	// 子チャンクにまとめる文の数と文字数の上限
+	private static final int CHILD_CHUNK_MAX_SENTENCES;
+	private static final int CHILD_CHUNK_MAX_LENGTH;
+	// ページ毎の短い要約 (ダイジェスト) を作成するか
+	// 登録時にはページのテキストをテーブル名_DIGEST に登録するだけで、要約はタイマー (GeneratePageDigests) で作成する
+	private static final boolean PAGE_DIGEST_ENABLED;
+	// 1 回のタイマーの実行で要約を作成するページ数と、1 分あたりの OpenAI の呼び出し回数の上限
+	private static final int PAGE_DIGEST_BATCH_SIZE;
+	private static final int PAGE_DIGEST_REQUESTS_PER_MINUTE;
+	// 要約の最大トークン数
+	private static final int PAGE_DIGEST_MAX_TOKENS;
+	// 要約を作成するためのプロンプト
+	private static final String PAGE_DIGEST_PROMPT = "次のページの内容を、検索結果の一覧で表示するための 2、3 文の短い要約にしてください。"
+			+ "ページに書かれていない内容は含めないでください。";
 	// １ページに含まれる文字数の上限（これを超える場合はページを分割して処理する）
 	private static final int MAX_SEPARATE_TOKEN_LENGTH = 7500;
 
 	// 処理する拡張子
 	private static final Optional<String> EXECUTE_EXTENSION_TYPES;
 
-	// Azure OpenAI のクライアント・インスタンス
+	// Azure OpenAI のクライアント・インスタンス (プロセス全体で共有)
 	private OpenAIClient client;
 	// Azure OpenAI の呼び出しリトライ回数
 	private static final int MAX_OPENAI_INVOCATION_RETRY_COUNT = 3;
+	// 1 回の Embedding の呼び出しにまとめるテキストの数の上限
+	private static final int MAX_EMBEDDING_INPUTS = 16;
 
-	// Azure Cosmos DB のクライアント・インスタンス
+	// Azure Cosmos DB のクライアント・インスタンス (プロセス全体で共有)
 	CosmosDBUtil cosmosDBUtil;
 
+	// PostgreSQL のコネクションの取得方法
+	private static final PgVectorStore.ConnectionFactory CONNECTION_FACTORY;
+
+	// チャンクを登録するベクトル・ストア (PostgreSQL)
+	private VectorStore vectorStore;
+
+	// ほぼ同じテキストのチャンクの索引 (NEAR_DUPLICATE_DETECTION_ENABLED が false の場合は null)
+	private PgNearDuplicateIndex nearDuplicateIndex;
+
+	// ページの要約 (PAGE_DIGEST_ENABLED が false の場合は null)
+	private PgPageDigestStore pageDigestStore;
+
+	// Embedding の取得と Cosmos DB のステータスの管理を行う単位
+	// (page : 分割したページ毎に 1 つのテキスト、sentence-window : ページ毎にページの子チャンク)
+	private record ChunkGroup(int pageNumber, List<String> texts) {}
+
+	// まとめて登録するチャンクと、ほぼ同じテキストのチャンクの紐付けに利用する署名 (1 ファイル分)
+	private static class UpsertBatch {
+		// 登録するチャンク
+		final List<VectorRecord> records = new ArrayList<>();
+		// 登録するチャンクのグループの Cosmos DB のドキュメント ID と、グループの中の紐付けに成功したか否か
+		final Map<String, Boolean> statusIds = new LinkedHashMap<>();
+		// このファイルで Embedding を取得したチャンクの MinHash の署名
+		final Map<UUID, int[]> signatures = new LinkedHashMap<>();
+		// このファイルのチャンクのうち、ベクトルと正規のチャンクの登録に成功したチャンクの署名
+		// (未登録のチャンクに紐付けると、登録に失敗した場合に紐付け先が無くなるため、紐付けはこのチャンクのみ)
+		final Map<UUID, int[]> committedSignatures = new LinkedHashMap<>();
+		// Embedding を取得するモデル (登録中に再 Embedding で切り替わった場合は、切り替え後のモデル)
+		String embeddingModel;
+		// 登録中にモデルが切り替わったか否か (スナップショットのチャンクのモデルが混在するため出力しない)
+		boolean modelSwitched;
+
+		UpsertBatch(String embeddingModel) {
+			this.embeddingModel = embeddingModel;
+		}
+	}
+
 	static {
-		OPENAI_API_KEY = System.getenv("AzureOpenaiApiKey");
-		OPENAI_URL = System.getenv("AzureOpenaiUrl");
 		OPENAI_EMBEDDING_MODEL_NAME = System.getenv("AzureOpenaiEmbeddingModelName");
+		OPENAI_MODEL_NAME = System.getenv("AzureOpenaiModelName");
 
 		POSTGRESQL_JDBC_URL = System.getenv("AzurePostgresqlJdbcurl");
 		POSTGRESQL_USER = System.getenv("AzurePostgresqlUser");
 		POSTGRESQL_PASSWORD = System.getenv("AzurePostgresqlPassword");
 		POSTGRESQL_TABLE_NAME = System.getenv("AzurePostgresqlDbTableName");
+		VECTOR_UPSERT_BATCH_SIZE = Optional.ofNullable(System.getenv("VectorUpsertBatchSize"))
+				.map(Integer::parseInt).orElse(16);
+		VECTOR_STORE_LAYOUT = Optional.ofNullable(System.getenv("VectorStoreLayout"))
+				.map(value -> PgVectorStore.Layout.valueOf(value.toUpperCase())).orElse(PgVectorStore.Layout.INLINE);
+		VECTOR_STORE_VECTOR_TYPE = Optional.ofNullable(System.getenv("VectorStoreVectorType"))
+				.map(value -> PgVectorStore.VectorType.valueOf(value.toUpperCase()))
+				.orElse(PgVectorStore.VectorType.VECTOR);
+		EMBEDDING_SNAPSHOT_ENABLED = Boolean.parseBoolean(System.getenv("EmbeddingSnapshotEnabled"));
+		NEAR_DUPLICATE_DETECTION_ENABLED = Boolean.parseBoolean(System.getenv("NearDuplicateDetectionEnabled"));
+		NEAR_DUPLICATE_THRESHOLD = Optional.ofNullable(System.getenv("NearDuplicateThreshold"))
+				.map(Double::parseDouble).orElse(PgNearDuplicateIndex.DEFAULT_THRESHOLD);
+
+		SENTENCE_WINDOW_CHUNKING = "sentence-window".equals(System.getenv("ChunkingMode"));
+		CHILD_CHUNK_MAX_SENTENCES = Optional.ofNullable(System.getenv("ChildChunkMaxSentences"))
+				.map(Integer::parseInt).orElse(SentenceWindowChunker.DEFAULT_MAX_SENTENCES);
+		CHILD_CHUNK_MAX_LENGTH = Optional.ofNullable(System.getenv("ChildChunkMaxLength"))
+				.map(Integer::parseInt).orElse(SentenceWindowChunker.DEFAULT_MAX_LENGTH);
+
+		PAGE_DIGEST_ENABLED = Boolean.parseBoolean(System.getenv("PageDigestEnabled"));
+		PAGE_DIGEST_BATCH_SIZE = Optional.ofNullable(System.getenv("PageDigestBatchSize"))
+				.map(Integer::parseInt).orElse(20);
+		PAGE_DIGEST_REQUESTS_PER_MINUTE = Optional.ofNullable(System.getenv("PageDigestRequestsPerMinute"))
+				.map(Integer::parseInt).orElse(20);
+		PAGE_DIGEST_MAX_TOKENS = Optional.ofNullable(System.getenv("PageDigestMaxTokens"))
+				.map(Integer::parseInt).orElse(200);
 
 		EXECUTE_EXTENSION_TYPES = Optional.ofNullable(System.getenv("ExecuteExtensionTypes"));
+
+		CONNECTION_FACTORY = () -> DriverManager.getConnection(POSTGRESQL_JDBC_URL, POSTGRESQL_USER,
+				POSTGRESQL_PASSWORD);
 	}
 	
 	private static File GetConvertTempDir() throws IOException {
@@ -95,12 +211,35 @@ public class Function {
 		return tempDir.toFile();
 	}
 
+	// Azure Functions は呼び出し毎にインスタンスを作成するため、クライアントは SharedClients から取得する
+	// プロセスで最初のインスタンスの場合は、フォント・キャッシュの作成と接続をバックグラウンドで開始する
 	public Function() {
-		client = new OpenAIClientBuilder()
-				.credential(new AzureKeyCredential(OPENAI_API_KEY))
-				.endpoint(OPENAI_URL)
-				.buildClient();
-		cosmosDBUtil = new CosmosDBUtil();
+		SharedClients.warmUpInBackground(CONNECTION_FACTORY);
+		client = SharedClients.openAIClient();
+		cosmosDBUtil = SharedClients.cosmosDBUtil();
+		var pgVectorStore = new PgVectorStore(CONNECTION_FACTORY, POSTGRESQL_TABLE_NAME);
+		pgVectorStore.setLayout(VECTOR_STORE_LAYOUT);
+		pgVectorStore.setVectorType(VECTOR_STORE_VECTOR_TYPE);
+		pgVectorStore.setParentDocuments(SENTENCE_WINDOW_CHUNKING);
+		vectorStore = pgVectorStore;
+		if (NEAR_DUPLICATE_DETECTION_ENABLED) {
+			nearDuplicateIndex = new PgNearDuplicateIndex(CONNECTION_FACTORY, POSTGRESQL_TABLE_NAME, pgVectorStore);
+			nearDuplicateIndex.setThreshold(NEAR_DUPLICATE_THRESHOLD);
+		}
+		if (PAGE_DIGEST_ENABLED) {
+			pageDigestStore = new PgPageDigestStore(CONNECTION_FACTORY, POSTGRESQL_TABLE_NAME);
+		}
+	}
+
+	// インスタンスを追加する前に呼び出される (Premium プランなどの事前ウォームアップ)
+	// クライアントの作成・フォント・キャッシュの作成・接続を、最初のファイルの処理の前に済ませておく
+	// (コンストラクタでバックグラウンドで開始したウォームアップの完了を待つ)
+	@FunctionName("Warmup")
+	public void warmup(@WarmupTrigger Object warmupContext, final ExecutionContext context) {
+		var logContainer = LogContainer.create(context);
+		logContainer.funcLogger().info("Function [Warmup] start");
+		SharedClients.warmUp(CONNECTION_FACTORY);
+		logContainer.funcLogger().info("Function [Warmup] end");
 	}
 
 	// 注意：applications.properties で "azure.blobstorage.container.name=pdfs" を変更した場合は
@@ -114,6 +253,7 @@ public class Function {
 			@BindingName("ext") String fileExt,
 			@BlobInput(name = "inputBlob", path = "docs/{blobName}.{ext}", dataType = "binary") byte[] inputBlob,
 			@BlobOutput(name = "outputFileContent", path = "docs/{blobName}.{ext}.pdf", dataType = "binary") OutputBinding<byte[]> outputFileContent,
+			@BlobOutput(name = "outputSnapshot", path = "snapshots/{blobName}.{ext}.vsnap", dataType = "binary") OutputBinding<byte[]> outputSnapshot,
 			final ExecutionContext context) throws UnsupportedEncodingException {
 		var logContainer = LogContainer.create(context);
 		var fileName = new StringBuilder()
@@ -128,7 +268,7 @@ public class Function {
 				.findFirst()
 				.isPresent()) {
 			if ("pdf".equals(fileExt)) {
-				analyzePdf(content, fileName, logContainer);
+				analyzePdf(content, fileName, outputSnapshot, logContainer);
 			} else if ("doc".equals(fileExt) || "docx".equals(fileExt)) {
 				convertPdfAndUpdateStorage(content, fileName, outputFileContent, DocumentType.MS_WORD, logContainer);
 			} else if ("xls".equals(fileExt) || "xlsx".equals(fileExt)) {
@@ -140,6 +280,62 @@ public class Function {
 		logContainer.funcLogger().info("Function [ProcessUploadedFile] end   / trigger file: " + encodedFileName);
 	}
 	
+	// 登録したファイルのページの要約を、PageDigestBatchSize ページずつ作成する (PageDigestSchedule の cron 式で実行)
+	// 検索の OpenAI の呼び出しと競合しないように、PageDigestRequestsPerMinute 回/分 以下で呼び出し、
+	// 失敗した場合 (Rate Limit など) は、次のタイマーの実行まで待つ
+	@FunctionName("GeneratePageDigests")
+	public void generatePageDigests(
+			@TimerTrigger(name = "timer", schedule = "%PageDigestSchedule%") String timerInfo,
+			final ExecutionContext context) throws InterruptedException {
+		if (pageDigestStore == null) {
+			return;
+		}
+		var logContainer = LogContainer.create(context);
+		logContainer.funcLogger().info("Function [GeneratePageDigests] start");
+		var pages = pageDigestStore.fetchPending(PAGE_DIGEST_BATCH_SIZE);
+		var interval = TimeUnit.MINUTES.toMillis(1) / Math.max(1, PAGE_DIGEST_REQUESTS_PER_MINUTE);
+		int completed = 0;
+		for (var page : pages) {
+			if (completed > 0) {
+				TimeUnit.MILLISECONDS.sleep(interval);
+			}
+			try {
+				pageDigestStore.complete(page.key(), invokePageDigest(page.text()), OPENAI_MODEL_NAME);
+				completed++;
+			} catch (Exception e) {
+				logContainer.funcLogger().severe("Error while creating page digest: " + page.fileName() + " ("
+						+ page.pageNumber() + ")", e);
+				if (pageDigestStore.fail(page.key(), MAX_OPENAI_INVOCATION_RETRY_COUNT)) {
+					logContainer.funcLogger().info("Page digest failed: " + page.fileName() + " ("
+							+ page.pageNumber() + ")");
+				}
+				break;
+			}
+		}
+		logContainer.funcLogger().info("Function [GeneratePageDigests] end / " + completed + " of " + pages.size()
+				+ " pages");
+	}
+
+	// OpenAI Chat を呼び出し、ページの要約を作成
+	private String invokePageDigest(String pageText) {
+		var text = (pageText.length() > MAX_SEPARATE_TOKEN_LENGTH)
+				? pageText.substring(0, MAX_SEPARATE_TOKEN_LENGTH)
+				: pageText;
+		List<ChatMessage> chatMessages = new ArrayList<>();
+		chatMessages.add(new ChatMessage(ChatRole.SYSTEM).setContent(PAGE_DIGEST_PROMPT));
+		chatMessages.add(new ChatMessage(ChatRole.USER).setContent(text));
+		var options = new ChatCompletionsOptions(chatMessages)
+				.setMaxTokens(PAGE_DIGEST_MAX_TOKENS)
+				.setTemperature(0.0);
+		var result = client.getChatCompletions(OPENAI_MODEL_NAME, options);
+		return result.getChoices().stream()
+				.map(choice -> choice.getMessage().getContent())
+				.filter(content -> content != null && !content.isBlank())
+				.findFirst()
+				.map(String::trim)
+				.orElseThrow(() -> new IllegalStateException("Empty page digest."));
+	}
+
 	private void convertPdfAndUpdateStorage(
 			byte[] content,
 			String fileName,
@@ -182,26 +378,41 @@ public class Function {
 		}
 	}
 
-	private void analyzePdf(byte[] content, String fileName, final LogContainer logContainer) {
+	private void analyzePdf(byte[] content, String fileName, OutputBinding<byte[]> outputSnapshot,
+			final LogContainer logContainer) {
 		try {
 			if (cosmosDBUtil.isRegisteredDocument(fileName, logContainer.cosmosLogger())) {
 				logContainer.funcLogger().info("Already registered file: " + fileName);
 				return;
 			}
 			var pageInfos = extractPDFtoTextByPage(logContainer.funcLogger(), content);
-			try (var connection = DriverManager.getConnection(
-					POSTGRESQL_JDBC_URL, POSTGRESQL_USER, POSTGRESQL_PASSWORD)) {
-				connection.setAutoCommit(false);
-				pageInfos.forEach(rethrow(pageInfo -> {
-					insertDataToPostgreSQL(
-							logContainer,
-							connection,
-							pageInfo.text(),
-							fileName,
-							pageInfo.pageNumber());
-				}));
-			} catch (Exception e) {
-				logContainer.funcLogger().severe("Error trigger PDF.", e);
+			var pages = toPages(pageInfos, fileName);
+			var chunkGroups = SENTENCE_WINDOW_CHUNKING ? splitIntoChildChunks(logContainer, pageInfos, pages)
+					: pageInfos.stream()
+							.map(pageInfo -> new ChunkGroup(pageInfo.pageNumber(), List.of(pageInfo.text())))
+							.toList();
+			// Embedding を取得したチャンクを VECTOR_UPSERT_BATCH_SIZE 件ずつ (グループ単位で) まとめて登録
+			var batch = new UpsertBatch(resolveEmbeddingModel(logContainer, OPENAI_EMBEDDING_MODEL_NAME));
+			var snapshotRecords = new ArrayList<VectorRecord>();
+			for (var group : chunkGroups) {
+				var records = createVectorRecords(logContainer, group, fileName, batch);
+				if (EMBEDDING_SNAPSHOT_ENABLED) {
+					snapshotRecords.addAll(records);
+				}
+				if (batch.records.size() >= VECTOR_UPSERT_BATCH_SIZE) {
+					upsertToVectorStore(logContainer, batch);
+				}
+			}
+			upsertToVectorStore(logContainer, batch);
+			if (pageDigestStore != null) {
+				enqueuePageDigests(logContainer, pages);
+			}
+			if (!snapshotRecords.isEmpty() && batch.modelSwitched) {
+				logContainer.funcLogger().info("Embedding snapshot skipped: the embedding model was switched.");
+			} else if (!snapshotRecords.isEmpty()) {
+				// データベースを作り直す場合に、Embedding を取得し直さずに再登録できるようにする (SnapshotLoader)
+				outputSnapshot.setValue(EmbeddingSnapshot.toBytes(batch.embeddingModel, snapshotRecords));
+				logContainer.funcLogger().info("Embedding snapshot: " + snapshotRecords.size() + " chunks");
 			}
 		} catch (Exception e) {
 			logContainer.funcLogger().severe("Error trigger PDF.", e);
@@ -247,81 +458,311 @@ public class Function {
 		return allPages;
 	}
 
-	// PostgreSQL に Vector データを挿入するサンプル
-	private void insertDataToPostgreSQL(
+	// ページ単位のテキスト (7500 文字を超えて分割したページは、1 つにまとめる)
+	private List<ParentRecord> toPages(List<PageInfo> pageInfos, String fileName) {
+		var pageTexts = pageInfos.stream().collect(Collectors.groupingBy(PageInfo::pageNumber, TreeMap::new,
+				Collectors.mapping(PageInfo::text, Collectors.joining())));
+		return pageTexts.entrySet().stream()
+				.map(entry -> new ParentRecord(fileName, entry.getKey(), entry.getValue()))
+				.toList();
+	}
+
+	// ページ全体のテキストを親として登録し、ページを数文ずつの子チャンクに分割する
+	// (検索では子チャンクで探し、OpenAI には親のテキストの中の子チャンクの前後だけを送信する)
+	// 子チャンクはページ毎にまとめ、Embedding の取得と Cosmos DB のステータスの管理はページ単位で行う
+	private List<ChunkGroup> splitIntoChildChunks(final LogContainer logContainer, List<PageInfo> pageInfos,
+			List<ParentRecord> parents) {
+		try {
+			vectorStore.upsertParents(parents);
+		} catch (Exception e) {
+			// 親を登録できなかった場合は、検索結果として子チャンクのテキストを利用する
+			logContainer.funcLogger().severe("Error while inserting parent pages to PostgreSQL.", e);
+		}
+		var chunker = new SentenceWindowChunker(CHILD_CHUNK_MAX_SENTENCES, CHILD_CHUNK_MAX_LENGTH);
+		var children = new TreeMap<Integer, List<String>>();
+		pageInfos.forEach(pageInfo -> children.computeIfAbsent(pageInfo.pageNumber(), pageNumber -> new ArrayList<>())
+				.addAll(chunker.chunk(pageInfo.text())));
+		logContainer.funcLogger().info("Split " + parents.size() + " pages into "
+				+ children.values().stream().mapToInt(List::size).sum() + " child chunks");
+		return children.entrySet().stream()
+				.filter(entry -> !entry.getValue().isEmpty())
+				.map(entry -> new ChunkGroup(entry.getKey(), entry.getValue()))
+				.toList();
+	}
+
+	// 要約を作成するページとして登録 (要約はタイマーで作成する、失敗した場合も検索はできるため登録済みとして扱う)
+	private void enqueuePageDigests(final LogContainer logContainer, List<ParentRecord> pages) {
+		var nonBlankPages = pages.stream().filter(page -> !page.text().isBlank()).toList();
+		try {
+			pageDigestStore.enqueue(nonBlankPages);
+			logContainer.funcLogger().info("Page digest queued: " + nonBlankPages.size() + " pages");
+		} catch (Exception e) {
+			logContainer.funcLogger().severe("Error while inserting pages for digest to PostgreSQL.", e);
+		}
+	}
+
+	// グループのチャンクのうち、ほぼ同じテキストのチャンクに紐付けなかったものの Embedding をまとめて取得し、
+	// 登録するチャンクとして batch に追加する (Cosmos DB のステータスはグループ単位で管理する)
+	// Embedding を取得できなかった場合は、グループを登録失敗として空のリストを返す
+	private List<VectorRecord> createVectorRecords(
+			final LogContainer logContainer,
+			ChunkGroup group,
+			String fileName,
+			UpsertBatch batch) throws InterruptedException {
+		// チャンクが 1 つのグループ (page) は、Cosmos DB のドキュメントの ID をチャンクの ID として利用する
+		UUID groupId = UUID.randomUUID();
+		String statusId = groupId.toString();
+		var single = group.texts().size() == 1;
+		cosmosDBUtil.createDocument(statusId, fileName,
+				CosmosDBDocumentStatus.PAGE_SEPARATE_FINISHED, group.pageNumber(), logContainer.cosmosLogger());
+
+		var texts = new ArrayList<String>();
+		var textSignatures = new ArrayList<int[]>();
+		var linkFailed = false;
+		for (var text : group.texts()) {
+			int[] signature = null;
+			if (nearDuplicateIndex != null) {
+				signature = nearDuplicateIndex.getMinHasher().signature(text);
+				var match = findLinkTarget(logContainer, signature, fileName, batch);
+				if (match.isPresent()) {
+					var id = single ? groupId : UUID.randomUUID();
+					linkFailed |= !linkNearDuplicate(logContainer, id, text, group.pageNumber(), fileName, signature,
+							match.get());
+					continue;
+				}
+			}
+			texts.add(text);
+			textSignatures.add(signature);
+		}
+		if (texts.isEmpty()) {
+			// 全てのチャンクを紐付けた場合
+			updateFinalStatus(logContainer, statusId, linkFailed ? CosmosDBDocumentStatus.FAILED_DB_INSERTION
+					: CosmosDBDocumentStatus.DUPLICATE_LINKED);
+			return List.of();
+		}
+
+		// OpenAI Text Embedding を呼び出しベクター配列を取得 (グループのチャンクをまとめて取得)
+		var embeddings = invokeTextEmbeddings(batch.embeddingModel, statusId, texts, logContainer);
+		cosmosDBUtil.updateStatus(statusId,
+				CosmosDBDocumentStatus.FINISH_OAI_INVOCATION, logContainer.cosmosLogger());
+		if (embeddings.size() != texts.size()) {
+			logContainer.funcLogger().severe("Embedding is empty: " + statusId, null);
+			updateFinalStatus(logContainer, statusId, CosmosDBDocumentStatus.FAILED_DB_INSERTION);
+			return List.of();
+		}
+		var records = new ArrayList<VectorRecord>(texts.size());
+		for (int i = 0; i < texts.size(); i++) {
+			var id = single ? groupId : UUID.randomUUID();
+			records.add(new VectorRecord(id, Vectors.fromList(embeddings.get(i)), texts.get(i), fileName,
+					group.pageNumber(), toCollection(fileName), Instant.now()));
+			if (textSignatures.get(i) != null) {
+				batch.signatures.put(id, textSignatures.get(i));
+			}
+		}
+		batch.records.addAll(records);
+		batch.statusIds.put(statusId, !linkFailed);
+		return records;
+	}
+
+	// ほぼ同じテキストのチャンクを探す
+	// 紐付け先がまだ登録前のチャンクの場合は先に登録し、登録に失敗した場合は他のファイルのチャンクから探す
+	// (登録前のチャンクに紐付けると、登録に失敗した場合に紐付け先が無くなるため)
+	private Optional<PgNearDuplicateIndex.Match> findLinkTarget(
 			final LogContainer logContainer,
-			Connection connection,
-			String originText,
+			int[] signature,
 			String fileName,
-			int pageNumber) throws InterruptedException {
-		UUID uuid = UUID.randomUUID();
-		String uuidString = uuid.toString();
+			UpsertBatch batch) throws InterruptedException {
+		var match = findNearDuplicate(signature, batch.signatures, fileName);
+		if (match.isPresent() && batch.signatures.containsKey(match.get().canonicalId())
+				&& !batch.committedSignatures.containsKey(match.get().canonicalId())) {
+			upsertToVectorStore(logContainer, batch);
+			if (!batch.committedSignatures.containsKey(match.get().canonicalId())) {
+				match = nearDuplicateIndex.findDuplicate(signature, toCollection(fileName));
+			}
+		}
+		return match;
+	}
+
+	// ほぼ同じテキストのチャンクを、このファイルのチャンク (未登録のものを含む)、登録済みのチャンクの順に探す
+	private Optional<PgNearDuplicateIndex.Match> findNearDuplicate(int[] signature, Map<UUID, int[]> signatures,
+			String fileName) {
+		PgNearDuplicateIndex.Match best = null;
+		for (var entry : signatures.entrySet()) {
+			var similarity = MinHasher.similarity(signature, entry.getValue());
+			if (similarity >= NEAR_DUPLICATE_THRESHOLD && (best == null || similarity > best.similarity())) {
+				best = new PgNearDuplicateIndex.Match(entry.getKey(), similarity);
+			}
+		}
+		if (best != null) {
+			return Optional.of(best);
+		}
+		return nearDuplicateIndex.findDuplicate(signature, toCollection(fileName));
+	}
+
+	// Embedding を取得せずに、正規のチャンクに紐付けて登録 (登録に失敗した場合は false)
+	private boolean linkNearDuplicate(
+			final LogContainer logContainer,
+			UUID id,
+			String text,
+			int pageNumber,
+			String fileName,
+			int[] signature,
+			PgNearDuplicateIndex.Match match) {
+		try {
+			nearDuplicateIndex.addDuplicate(new VectorRecord(id, null, text, fileName,
+					pageNumber, toCollection(fileName), Instant.now()), signature, match);
+			logContainer.funcLogger().info("Near-duplicate page " + pageNumber + " linked to "
+					+ match.canonicalId() + " (similarity: " + match.similarity() + ")");
+			return true;
+		} catch (Exception e) {
+			logContainer.funcLogger().severe("Error while inserting data to PostgreSQL.", e);
+			return false;
+		}
+	}
+
+	// 処理の結果のステータスを記録し、完了にする
+	private void updateFinalStatus(final LogContainer logContainer, String statusId, CosmosDBDocumentStatus status)
+			throws InterruptedException {
+		cosmosDBUtil.updateStatus(statusId, status, logContainer.cosmosLogger());
+		cosmosDBUtil.updateStatus(statusId, CosmosDBDocumentStatus.COMPLETED, logContainer.cosmosLogger());
+	}
+
+	// Blob の仮想ディレクトリ (先頭のディレクトリ名) をコレクション名として利用する
+	// 例 : "manuals/setup.pdf" -> "manuals" , "setup.pdf" -> "default"
+	private String toCollection(String fileName) {
+		var index = fileName.indexOf('/');
+		return (index > 0) ? fileName.substring(0, index) : DEFAULT_COLLECTION;
+	}
+
+	// ベクター配列をまとめて VectorStore (PostgreSQL) に登録し、グループ毎に Cosmos DB のステータスを更新
+	// 紐付け先として登録できたチャンクの署名を committedSignatures に追加する
+	private void upsertToVectorStore(final LogContainer logContainer, UpsertBatch batch) throws InterruptedException {
+		if (batch.records.isEmpty()) {
+			return;
+		}
+		var records = batch.records;
+		var signatures = batch.signatures;
+		var stored = true;
 		try {
-			cosmosDBUtil.createDocument(uuidString, fileName,
-					CosmosDBDocumentStatus.PAGE_SEPARATE_FINISHED, pageNumber, logContainer.cosmosLogger());
-
-			// OpenAI Text Embedding を呼び出しベクター配列を取得
-			List<Double> embedding = invokeTextEmbedding(uuidString, originText, logContainer);
-			cosmosDBUtil.updateStatus(uuidString,
-					CosmosDBDocumentStatus.FINISH_OAI_INVOCATION, logContainer.cosmosLogger());
-
-			// ベクター配列を PostgreSQL に挿入
-			var insertSql = "INSERT INTO " + POSTGRESQL_TABLE_NAME
-					+ " (id, embedding, origntext, fileName, pageNumber) VALUES (?, ?::vector, ?, ?, ?)";
-			try (var insertStatement = connection.prepareStatement(insertSql)) {
-				insertStatement.setObject(1, uuid);
-				insertStatement.setArray(2, connection.createArrayOf("double", embedding.toArray()));
-				insertStatement.setString(3, originText);
-				insertStatement.setString(4, fileName);
-				insertStatement.setInt(5, pageNumber);
-				insertStatement.executeUpdate();
-				connection.commit();
-				cosmosDBUtil.updateStatus(uuidString,
-						CosmosDBDocumentStatus.FINISH_DB_INSERTION, logContainer.cosmosLogger());
+			vectorStore.upsert(records);
+		} catch (Exception e) {
+			logContainer.funcLogger().severe("Error while inserting data to PostgreSQL.", e);
+			stored = false;
+		}
+		// 登録中に再 Embedding の切り替えが行われた場合は、切り替え後のモデルで Embedding を取得し直して登録し直す
+		// (切り替え前のテーブルに登録できたチャンクは、切り替えの前に再 Embedding される)
+		var currentModel = resolveEmbeddingModel(logContainer, batch.embeddingModel);
+		if (!currentModel.equals(batch.embeddingModel)) {
+			logContainer.funcLogger().info("Embedding model switched: " + batch.embeddingModel + " -> " + currentModel);
+			batch.embeddingModel = currentModel;
+			batch.modelSwitched = true;
+			stored = reembedAndUpsert(logContainer, batch);
+		}
+		if (nearDuplicateIndex != null && stored) {
+			// 以降にアップロードされるファイルのチャンクを紐付けられるように、正規のチャンクとして登録
+			// (失敗した場合も検索はできるため、登録済みとして扱う)
+			try {
+				nearDuplicateIndex.addCanonicals(records, signatures);
+				records.stream().filter(record -> signatures.containsKey(record.id()))
+						.forEach(record -> batch.committedSignatures.put(record.id(), signatures.get(record.id())));
+			} catch (Exception e) {
+				logContainer.funcLogger().severe("Error while inserting MinHash signatures to PostgreSQL.", e);
 			}
+		}
+		// 紐付け先として登録できなかったチャンクは、このファイルの以降のチャンクの紐付け先の候補から外す
+		records.stream().filter(record -> !batch.committedSignatures.containsKey(record.id()))
+				.forEach(record -> signatures.remove(record.id()));
+		for (var entry : batch.statusIds.entrySet()) {
+			// グループの中で紐付けに失敗したチャンクがある場合も、登録失敗とする
+			updateFinalStatus(logContainer, entry.getKey(), stored && entry.getValue()
+					? CosmosDBDocumentStatus.FINISH_DB_INSERTION : CosmosDBDocumentStatus.FAILED_DB_INSERTION);
+		}
+		batch.records.clear();
+		batch.statusIds.clear();
+	}
+
+	// テーブルのチャンクの Embedding のモデル (再 Embedding で切り替えていない場合、取得できない場合は defaultModel)
+	private String resolveEmbeddingModel(final LogContainer logContainer, String defaultModel) {
+		try {
+			return Optional.ofNullable(ShadowTableReembedder.readActiveModel(CONNECTION_FACTORY,
+					POSTGRESQL_TABLE_NAME)).orElse(defaultModel);
+		} catch (Exception e) {
+			logContainer.funcLogger().severe("Error while reading the embedding model from PostgreSQL.", e);
+			return defaultModel;
+		}
+	}
+
+	// batch のチャンクの Embedding を batch.embeddingModel で取得し直して登録 (登録に失敗した場合は false)
+	private boolean reembedAndUpsert(final LogContainer logContainer, UpsertBatch batch) throws InterruptedException {
+		var records = batch.records;
+		var texts = records.stream().map(VectorRecord::text).toList();
+		var embeddings = invokeTextEmbeddings(batch.embeddingModel, batch.statusIds.keySet().iterator().next(),
+				texts, logContainer);
+		if (embeddings.size() != records.size()) {
+			logContainer.funcLogger().severe("Embedding is empty: " + batch.statusIds.keySet(), null);
+			return false;
+		}
+		for (int i = 0; i < records.size(); i++) {
+			var record = records.get(i);
+			records.set(i, new VectorRecord(record.id(), Vectors.fromList(embeddings.get(i)), record.text(),
+					record.fileName(), record.pageNumber(), record.collection(), record.uploadedAt()));
+		}
+		try {
+			vectorStore.upsert(records);
+			return true;
 		} catch (Exception e) {
 			logContainer.funcLogger().severe("Error while inserting data to PostgreSQL.", e);
-			cosmosDBUtil.updateStatus(uuidString,
-					CosmosDBDocumentStatus.FAILED_DB_INSERTION, logContainer.cosmosLogger());
+			return false;
 		}
-		cosmosDBUtil.updateStatus(uuidString, CosmosDBDocumentStatus.COMPLETED, logContainer.cosmosLogger());
 	}
 
-	/**
-	 * テキスト・エンべディングの検証サンプル
-	 * @throws InterruptedException 
-	 */
-	private List<Double> invokeTextEmbedding(
+	// OpenAI Text Embedding を呼び出し、テキストの順にベクター配列を取得
+	// (MAX_EMBEDDING_INPUTS 件ずつまとめて 1 回で呼び出す、取得できなかった場合は空のリストを返す)
+	private List<List<Double>> invokeTextEmbeddings(
+			String embeddingModel,
 			String uuid,
-			String originalText,
+			List<String> texts,
 			final LogContainer logContainer) throws InterruptedException {
-		List<Double> embedding = new ArrayList<>();
-		var embeddingsOptions = new EmbeddingsOptions(Arrays.asList(originalText));
+		List<List<Double>> embeddings = new ArrayList<>(texts.size());
+		for (int start = 0; start < texts.size(); start += MAX_EMBEDDING_INPUTS) {
+			var inputs = new ArrayList<>(texts.subList(start, Math.min(texts.size(), start + MAX_EMBEDDING_INPUTS)));
+			var embeddingsOptions = new EmbeddingsOptions(inputs);
+			List<List<Double>> batchEmbeddings = null;
 
-		int retryCount = 0;
-		while (retryCount < MAX_OPENAI_INVOCATION_RETRY_COUNT) {
-			try {
-				// OpenAI API を呼び出し
-				var result = client.getEmbeddings(OPENAI_EMBEDDING_MODEL_NAME, embeddingsOptions);
-				// 利用状況を取得（使用したトークン数）
-				var usage = result.getUsage();
-				logContainer.funcLogger().info("Number of Prompt Token: " + usage.getPromptTokens()
-						+ "Number of Total Token: " + usage.getTotalTokens());
-				// ベクター配列を取得
-				var findFirst = result.getData().stream().findFirst();
-				if (findFirst.isPresent()) {
-					embedding.addAll(findFirst.get().getEmbedding());
+			int retryCount = 0;
+			while (retryCount < MAX_OPENAI_INVOCATION_RETRY_COUNT) {
+				try {
+					// OpenAI API を呼び出し
+					var result = client.getEmbeddings(embeddingModel, embeddingsOptions);
+					// 利用状況を取得（使用したトークン数）
+					var usage = result.getUsage();
+					logContainer.funcLogger().info("Number of Input: " + inputs.size()
+							+ " Number of Prompt Token: " + usage.getPromptTokens()
+							+ " Number of Total Token: " + usage.getTotalTokens());
+					// ベクター配列を入力の順に取得
+					var data = result.getData().stream()
+							.sorted(Comparator.comparingInt(EmbeddingItem::getIndex))
+							.map(EmbeddingItem::getEmbedding)
+							.toList();
+					if (data.size() == inputs.size()) {
+						batchEmbeddings = data;
+						SharedClients.recordFirstEmbedding(logContainer.funcLogger());
+					}
+					break;
+				} catch (Exception e) {
+					logContainer.funcLogger().severe("Error while invoking OpenAI.", e);
+					cosmosDBUtil.updateStatus(uuid,
+							CosmosDBDocumentStatus.RETRY_OAI_INVOCATION, logContainer.cosmosLogger());
+					retryCount++;
+					retrySleep();
 				}
-				break;
-			} catch (Exception e) {
-				logContainer.funcLogger().severe("Error while invoking OpenAI.", e);
-				cosmosDBUtil.updateStatus(uuid,
-						CosmosDBDocumentStatus.RETRY_OAI_INVOCATION, logContainer.cosmosLogger());
-				retryCount++;
-				retrySleep();
 			}
+			if (batchEmbeddings == null) {
+				return List.of();
+			}
+			embeddings.addAll(batchEmbeddings);
 		}
-		return embedding;
+		return embeddings;
 	}
 
 	// 入力文字列を7500文字前後で分割し、句読点で区切られた部分で分割を行います。
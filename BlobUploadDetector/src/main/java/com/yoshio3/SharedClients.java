@@ -0,0 +1,209 @@
+package com.yoshio3;
+
+import java.lang.management.ManagementFactory;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import org.apache.pdfbox.pdmodel.font.FontMappers;
+import org.crac.Context;
+import org.crac.Core;
+import org.crac.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.azure.ai.openai.OpenAIClient;
+import com.azure.ai.openai.OpenAIClientBuilder;
+import com.azure.ai.openai.models.EmbeddingsOptions;
+import com.azure.core.credential.AzureKeyCredential;
+import com.yoshio3.logging.BDLogger;
+import com.yoshio3.vectorstore.PgVectorStore;
+
+// Function のインスタンス間 (プロセス全体) で共有するクライアント
+// ・Azure Functions は呼び出し毎に Function のインスタンスを作成するため、クライアントは最初に利用する時に 1 度だけ作成する
+// ・warmUp() : フォント・キャッシュの作成 (PDFBox)、Cosmos DB・PostgreSQL・Azure OpenAI への接続 (TLS のハンドシェイク) を先に行う
+//   (スケール・アウト直後の最初のファイルの処理で、これらの時間がかからないようにする)
+// ・CRaC のチェックポイントの前に接続を閉じ、リストア後に作成し直す (CRaC に対応していない JVM では何もしない)
+// ・起動からの経過時間 (クライアントの作成・ウォームアップ・最初の Embedding) をログに出力する
+public final class SharedClients {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(SharedClients.class);
+
+	// ウォームアップで Embedding を 1 回呼び出すか (最初の呼び出しの接続を確立するため、トークンを消費する)
+	private static final boolean WARMUP_EMBEDDING_ENABLED = Boolean
+			.parseBoolean(System.getenv("WarmupEmbeddingEnabled"));
+
+	private static final Object LOCK = new Object();
+
+	private static volatile OpenAIClient openAIClient;
+
+	private static volatile CosmosDBUtil cosmosDBUtil;
+
+	// 実行中または完了したウォームアップ (リストア後は null に戻し、もう一度行う)
+	private static final AtomicReference<CompletableFuture<Void>> warmUp = new AtomicReference<>();
+
+	private static final AtomicBoolean firstEmbeddingRecorded = new AtomicBoolean();
+
+	// 処理毎の時間 (ミリ秒)
+	private static final Map<String, Long> timings = new LinkedHashMap<>();
+
+	// チェックポイントの前に接続を閉じる (GC されないように参照を保持する)
+	private static final Resource CRAC_RESOURCE = new Resource() {
+		@Override
+		public void beforeCheckpoint(Context<? extends Resource> context) {
+			reset();
+		}
+
+		@Override
+		public void afterRestore(Context<? extends Resource> context) {
+			warmUp.set(null);
+		}
+	};
+
+	static {
+		Core.getGlobalContext().register(CRAC_RESOURCE);
+	}
+
+	private SharedClients() {}
+
+	public static OpenAIClient openAIClient() {
+		var client = openAIClient;
+		if (client == null) {
+			synchronized (LOCK) {
+				client = openAIClient;
+				if (client == null) {
+					client = time("openai-client", () -> new OpenAIClientBuilder()
+							.credential(new AzureKeyCredential(System.getenv("AzureOpenaiApiKey")))
+							.endpoint(System.getenv("AzureOpenaiUrl"))
+							.buildClient());
+					openAIClient = client;
+				}
+			}
+		}
+		return client;
+	}
+
+	public static CosmosDBUtil cosmosDBUtil() {
+		var util = cosmosDBUtil;
+		if (util == null) {
+			synchronized (LOCK) {
+				util = cosmosDBUtil;
+				if (util == null) {
+					util = time("cosmos-client", CosmosDBUtil::new);
+					cosmosDBUtil = util;
+				}
+			}
+		}
+		return util;
+	}
+
+	// 最初の呼び出しの時にバックグラウンドでウォームアップする (2 回目以降は何もしない)
+	public static void warmUpInBackground(PgVectorStore.ConnectionFactory connectionFactory) {
+		startWarmUp(connectionFactory);
+	}
+
+	// ウォームアップが終わるまで待つ (既にバックグラウンドで開始している場合は、もう一度は行わずに完了を待つ)
+	public static void warmUp(PgVectorStore.ConnectionFactory connectionFactory) {
+		startWarmUp(connectionFactory).join();
+	}
+
+	private static CompletableFuture<Void> startWarmUp(PgVectorStore.ConnectionFactory connectionFactory) {
+		var future = new CompletableFuture<Void>();
+		if (!warmUp.compareAndSet(null, future)) {
+			var current = warmUp.get();
+			return current != null ? current : CompletableFuture.completedFuture(null);
+		}
+		var thread = new Thread(() -> {
+			try {
+				runWarmUp(connectionFactory);
+			} finally {
+				future.complete(null);
+			}
+		}, "shared-clients-warmup");
+		thread.setDaemon(true);
+		thread.start();
+		return future;
+	}
+
+	// ウォームアップ (失敗した場合も、通常の処理で作成し直すため例外は送出しない)
+	private static void runWarmUp(PgVectorStore.ConnectionFactory connectionFactory) {
+		var start = System.nanoTime();
+		// PDFBox はシステムのフォントを走査してキャッシュを作成する (最初の PDDocument.load() の前に行う)
+		step("font-cache", () -> FontMappers.instance().getFontBoxFont("Helvetica", null));
+		step("cosmos-connect", () -> cosmosDBUtil().warmUp());
+		step("jdbc-connect", () -> {
+			try (var connection = connectionFactory.getConnection();
+					var statement = connection.createStatement()) {
+				statement.execute("SELECT 1");
+			} catch (SQLException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		if (WARMUP_EMBEDDING_ENABLED) {
+			step("openai-connect", () -> openAIClient().getEmbeddings(System.getenv("AzureOpenaiEmbeddingModelName"),
+					new EmbeddingsOptions(Arrays.asList("warm up"))));
+		} else {
+			step("openai-client", SharedClients::openAIClient);
+		}
+		record("warmup", System.nanoTime() - start);
+		LOGGER.info("Warm-up finished: {}", timingSummary());
+	}
+
+	// 最初の Embedding を取得した時点で、JVM の起動からの経過時間をログに出力する
+	public static void recordFirstEmbedding(final BDLogger logger) {
+		if (!firstEmbeddingRecorded.compareAndSet(false, true)) {
+			return;
+		}
+		var sinceJvmStart = System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+		logger.info("Startup timing: JVM start to first embedding " + sinceJvmStart + " ms (" + timingSummary() + ")");
+	}
+
+	private static void reset() {
+		synchronized (LOCK) {
+			if (cosmosDBUtil != null) {
+				cosmosDBUtil.close();
+			}
+			cosmosDBUtil = null;
+			openAIClient = null;
+		}
+	}
+
+	private static void step(String name, Runnable action) {
+		var start = System.nanoTime();
+		try {
+			action.run();
+		} catch (RuntimeException e) {
+			LOGGER.warn("Warm-up step {} failed: {}", name, e.getMessage());
+		}
+		record(name, System.nanoTime() - start);
+	}
+
+	private static <T> T time(String name, Supplier<T> action) {
+		var start = System.nanoTime();
+		try {
+			return action.get();
+		} finally {
+			record(name, System.nanoTime() - start);
+		}
+	}
+
+	private static void record(String name, long nanos) {
+		synchronized (timings) {
+			timings.putIfAbsent(name, nanos / 1_000_000);
+		}
+	}
+
+	private static String timingSummary() {
+		synchronized (timings) {
+			return timings.entrySet().stream()
+					.map(entry -> entry.getKey() + "=" + entry.getValue() + "ms")
+					.collect(Collectors.joining(", "));
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package com.yoshio3;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.FontMappers;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.pdfbox.text.PDFTextStripper;
+
+import com.azure.ai.openai.OpenAIClientBuilder;
+import com.azure.ai.openai.models.EmbeddingsOptions;
+import com.azure.core.credential.AzureKeyCredential;
+import com.azure.cosmos.CosmosClientBuilder;
+import com.yoshio3.vectorstore.EmbeddingSnapshot;
+import com.yoshio3.vectorstore.MinHasher;
+import com.yoshio3.vectorstore.SentenceWindowChunker;
+import com.yoshio3.vectorstore.VectorRecord;
+
+// AppCDS のアーカイブを作成するための学習用の実行 (pom.xml の appcds プロファイルから実行する)
+// ・外部のサービスには接続せずに、ファイルの処理で利用するクラス (PDFBox・OpenAI と Cosmos DB のクライアント・
+//   ベクトル・ストア) を読み込む
+// ・-XX:DumpLoadedClassList で読み込んだクラスの一覧を出力し、そのうち JDK のクラスから -Xshare:dump でアーカイブを作成する
+public class StartupTrainer {
+
+	public static void main(String[] args) throws IOException {
+		var start = System.nanoTime();
+		FontMappers.instance().getFontBoxFont("Helvetica", null);
+
+		// 1 ページの PDF を作成してテキストを抽出
+		byte[] pdf;
+		try (var document = new PDDocument(); var output = new ByteArrayOutputStream()) {
+			var page = new PDPage();
+			document.addPage(page);
+			try (var contents = new PDPageContentStream(document, page)) {
+				contents.beginText();
+				contents.setFont(PDType1Font.HELVETICA, 12);
+				contents.newLineAtOffset(72, 720);
+				contents.showText("Startup training. This page is parsed to load the PDFBox classes.");
+				contents.endText();
+			}
+			document.save(output);
+			pdf = output.toByteArray();
+		}
+		String text;
+		try (var document = PDDocument.load(pdf)) {
+			text = new PDFTextStripper().getText(document);
+		}
+
+		// チャンクの分割・MinHash・スナップショット
+		List<VectorRecord> records = new ArrayList<>();
+		for (var chunk : new SentenceWindowChunker().chunk(text)) {
+			new MinHasher().signature(chunk);
+			records.add(new VectorRecord(UUID.randomUUID(), new float[8], chunk, "training.pdf", 1, "default",
+					Instant.now()));
+		}
+		EmbeddingSnapshot.wrap(EmbeddingSnapshot.toBytes("training", records));
+
+		// クライアントの作成 (接続はしない)
+		new OpenAIClientBuilder()
+				.credential(new AzureKeyCredential("training"))
+				.endpoint("https://localhost")
+				.buildClient();
+		new EmbeddingsOptions(List.of(text));
+		new CosmosClientBuilder()
+				.endpoint("https://localhost:8081")
+				.key("training");
+
+		System.out.printf("Startup training finished in %d ms%n", (System.nanoTime() - start) / 1_000_000);
+	}
+}
@@ -1,3 +0,0 @@
-package com.yoshio3.models;
-
-public record CosmosDBDocument(String id, String fileName, CosmosDBDocumentStatus status, int pageNumber){}
@@ -0,0 +1,163 @@
+package com.yoshio3;
+
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.yoshio3.entities.DeletionProgress;
+import com.yoshio3.entities.DeletionProgress.State;
+import com.yoshio3.vectorstore.PgNearDuplicateIndex;
+import com.yoshio3.vectorstore.PgPageDigestStore;
+import com.yoshio3.vectorstore.VectorStore;
+
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+// 登録済みのファイルを PostgreSQL と Cosmos DB から削除する
+// ・PostgreSQL (VectorStore) は 1 回の DELETE ... WHERE filename = ANY(?) で削除し、全件削除の場合は TRUNCATE する
+// ・Cosmos DB はバルク操作で削除する
+// ・検索結果に削除中のファイルが表示されないように PostgreSQL から先に削除する
+//   (Cosmos DB の削除に失敗した場合は、ファイルが一覧に残るため再実行できる)
+// ・削除はバックグラウンドで実行し、進捗は jobId で取得する
+// ・ほぼ同じテキストのチャンクを紐付けている場合は、削除する正規のチャンクに紐付いたチャンクを先に昇格する
+@Component
+public class ContentDeletionService {
+
+    private final Logger LOGGER = LoggerFactory.getLogger(ContentDeletionService.class);
+
+    // 進捗を保持しておく削除の件数
+    private static final int MAX_RETAINED_JOBS = 20;
+
+    @Autowired
+    private VectorStore vectorStore;
+
+    @Autowired(required = false)
+    private PgNearDuplicateIndex nearDuplicateIndex;
+
+    @Autowired(required = false)
+    private PgPageDigestStore pageDigestStore;
+
+    @Autowired
+    private CosmosDBUtil cosmosDBUtil;
+
+    @Autowired
+    private FileCatalogService fileCatalogService;
+
+    private final Map<String, DeletionJob> jobs = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, DeletionJob> eldest) {
+            return size() > MAX_RETAINED_JOBS;
+        }
+    };
+
+    private static class DeletionJob {
+        private final String jobId = UUID.randomUUID().toString();
+        private final List<String> fileNames;
+        private final Instant startedAt = Instant.now();
+        private final AtomicLong postgresqlDeletedRows = new AtomicLong();
+        private final AtomicLong cosmosFoundCount = new AtomicLong();
+        private final AtomicLong cosmosDeletedCount = new AtomicLong();
+        private final AtomicLong cosmosFailedCount = new AtomicLong();
+        private volatile State state = State.DELETING_POSTGRESQL;
+        private volatile String errorMessage;
+        private volatile Instant finishedAt;
+
+        private DeletionJob(List<String> fileNames) {
+            this.fileNames = fileNames;
+        }
+
+        private DeletionProgress toProgress() {
+            return new DeletionProgress(jobId, state, fileNames, postgresqlDeletedRows.get(), cosmosFoundCount.get(),
+                    cosmosDeletedCount.get(), cosmosFailedCount.get(), errorMessage, startedAt, finishedAt);
+        }
+    }
+
+    // 指定したファイルの削除を開始 (fileNames が null の場合は全件削除)
+    public DeletionProgress startDeletion(List<String> fileNames) {
+        var job = new DeletionJob(fileNames == null ? null : List.copyOf(fileNames));
+        synchronized (jobs) {
+            jobs.put(job.jobId, job);
+        }
+        LOGGER.info("Deletion started. [jobId={}, files={}]", job.jobId,
+                job.fileNames == null ? "ALL" : job.fileNames);
+
+        Mono.fromRunnable(() -> deleteFromPostgreSQL(job))
+                .subscribeOn(Schedulers.boundedElastic())
+                .then(Mono.defer(() -> deleteFromCosmosDB(job)))
+                .subscribe(unused -> {
+                }, e -> {
+                    LOGGER.error("Deletion failed. [jobId={}]", job.jobId, e);
+                    job.errorMessage = e.getMessage();
+                    job.state = State.FAILED;
+                    job.finishedAt = Instant.now();
+                }, () -> {
+                    job.state = (job.cosmosFailedCount.get() > 0) ? State.FAILED : State.COMPLETED;
+                    job.finishedAt = Instant.now();
+                    LOGGER.info("Deletion finished. {}", job.toProgress());
+                });
+        return job.toProgress();
+    }
+
+    public Optional<DeletionProgress> getProgress(String jobId) {
+        synchronized (jobs) {
+            return Optional.ofNullable(jobs.get(jobId)).map(DeletionJob::toProgress);
+        }
+    }
+
+    private void deleteFromPostgreSQL(DeletionJob job) {
+        if (job.fileNames == null) {
+            vectorStore.deleteAll();
+            if (nearDuplicateIndex != null) {
+                nearDuplicateIndex.deleteAll();
+            }
+            if (pageDigestStore != null) {
+                pageDigestStore.deleteAll();
+            }
+            LOGGER.info("Deleted all documents from the vector store. [jobId={}]", job.jobId);
+            return;
+        }
+        if (nearDuplicateIndex != null) {
+            var promoted = nearDuplicateIndex.promoteDuplicates(job.fileNames);
+            if (promoted > 0) {
+                LOGGER.info("Promoted {} near-duplicate chunks. [jobId={}]", promoted, job.jobId);
+            }
+        }
+        job.postgresqlDeletedRows.set(vectorStore.deleteByFileNames(job.fileNames));
+        if (nearDuplicateIndex != null) {
+            nearDuplicateIndex.deleteByFileNames(job.fileNames);
+        }
+        if (pageDigestStore != null) {
+            pageDigestStore.deleteByFileNames(job.fileNames);
+        }
+        LOGGER.info("Deleted {} rows from the vector store. [jobId={}]", job.postgresqlDeletedRows.get(),
+                job.jobId);
+    }
+
+    private Mono<Void> deleteFromCosmosDB(DeletionJob job) {
+        job.state = State.DELETING_COSMOSDB;
+        var ids = cosmosDBUtil.findDocumentIds(job.fileNames)
+                .doOnNext(id -> job.cosmosFoundCount.incrementAndGet());
+        return cosmosDBUtil.deleteDocumentsInBulk(ids)
+                .doOnNext(deleted -> (deleted ? job.cosmosDeletedCount : job.cosmosFailedCount).incrementAndGet())
+                .then(Mono.fromRunnable(() -> {
+                    // 削除に失敗したドキュメントがある場合は、再実行できるように一覧に残す
+                    if (job.cosmosFailedCount.get() > 0) {
+                        return;
+                    }
+                    if (job.fileNames == null) {
+                        fileCatalogService.clear();
+                    } else {
+                        fileCatalogService.removeFiles(job.fileNames);
+                    }
+                }));
+    }
+}
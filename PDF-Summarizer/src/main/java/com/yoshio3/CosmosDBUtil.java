@@ -16,17 +16,27 @@ import org.springframework.stereotype.Component;
 import com.azure.cosmos.CosmosAsyncClient;
 import com.azure.cosmos.CosmosAsyncContainer;
 import com.azure.cosmos.CosmosClientBuilder;
+import com.azure.cosmos.models.CosmosBulkOperations;
+import com.azure.cosmos.models.CosmosChangeFeedRequestOptions;
 import com.azure.cosmos.models.CosmosQueryRequestOptions;
+import com.azure.cosmos.models.FeedRange;
+import com.azure.cosmos.models.FeedResponse;
 import com.azure.cosmos.models.PartitionKey;
 import com.azure.cosmos.models.SqlParameter;
 import com.azure.cosmos.models.SqlQuerySpec;
-import com.azure.cosmos.util.CosmosPagedFlux;
+import com.yoshio3.entities.CosmosDBChangeFeedDocument;
 import com.yoshio3.entities.CosmosDBDocument;
+import com.yoshio3.entities.CosmosDBDocumentPage;
+import com.yoshio3.entities.CosmosDBDocumentStatus;
 
 import jakarta.annotation.PostConstruct;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+// ファイルの処理状況 (BlobUploadDetector が登録したドキュメント) の一覧・変更フィードの取得・削除を行う
+// ・BlobUploadDetector にも同名のクラスがあるが、同じコンテナに対する別の操作 (登録・状況の更新) のみを持つため、
+//   共通のモジュール (VectorStore) には移さない (ドキュメントと状況の型は VectorStore の com.yoshio3.entities を共有する)
+// ・接続先は application.properties、クライアントの作成は Spring のライフサイクル (@PostConstruct) で行う
 @Component
 public class CosmosDBUtil {
 
@@ -44,17 +54,28 @@ public class CosmosDBUtil {
     @Value("${azure.cosmos.db.container.name}")
     private String COSMOS_DB_CONTAINER_NAME;
 
-    private static final String RETRIVE_REGISTERED_DOCUMENTS_QUERY = "SELECT * FROM c WHERE c.status = 'COMPLETED' ORDER BY c.fileName ASC, c.pageNumber ASC";
+    // 一覧画面で 1 回のリクエストで Cosmos DB から取得する件数 (取得した分から順にブラウザに送信する)
+    @Value("${admin.list.fetch.size:20}")
+    private int LIST_FETCH_SIZE;
 
-    private static final String RETRIVE_FAILED_DOCUMENTS_QUERY = "SELECT * FROM c WHERE c.status != 'COMPLETED' ORDER BY c.fileName ASC, c.pageNumber ASC";
+    private static final String RETRIVE_REGISTERED_DOCUMENTS_CONDITION = "c.status = 'COMPLETED'";
+
+    private static final String RETRIVE_FAILED_DOCUMENTS_CONDITION = "c.status != 'COMPLETED'";
+
+    private static final String DOCUMENTS_ORDER = " ORDER BY c.fileName ASC, c.pageNumber ASC";
 
     private static final String ALL_FILE_NAME_QUERY = "SELECT c.fileName FROM c GROUP BY c.fileName";
 
+    private static final String ALL_DOCUMENT_ID_QUERY = "SELECT c.id FROM c";
+
+    private static final String DOCUMENT_ID_BY_FILE_NAMES_QUERY = "SELECT c.id FROM c WHERE ARRAY_CONTAINS(@fileNames, c.fileName)";
+
     private CosmosAsyncContainer container = null;
     private CosmosAsyncClient client = null;
 
+    // AOT 処理 (Spring Framework 6.0.9) では private の初期化メソッドを呼び出せないため public にする
     @PostConstruct
-    private void init() {
+    public void init() {
         client = new CosmosClientBuilder()
                 .endpoint(COSMOS_DB_ENDPOINT)
                 .key(COSMOS_DB_KEY)
@@ -63,24 +84,76 @@ public class CosmosDBUtil {
         container = database.getContainer(COSMOS_DB_CONTAINER_NAME);
     }
 
-    // DB に登録が成功しているドキュメントを取得
-    public Mono<List<CosmosDBDocument>> getAllRegisteredDocuments() {
-        CosmosQueryRequestOptions options = new CosmosQueryRequestOptions();
-        options.setQueryMetricsEnabled(true);
-        SqlQuerySpec querySpec = new SqlQuerySpec(RETRIVE_REGISTERED_DOCUMENTS_QUERY);
+    // DB に登録が成功しているドキュメントを 1 ページ分取得
+    // fileName を指定した場合は、ファイル名が前方一致するドキュメントのみ取得
+    public Flux<CosmosDBDocumentPage> getRegisteredDocumentsPage(String fileName, String continuationToken,
+            int pageSize) {
+        return getDocumentsPage(RETRIVE_REGISTERED_DOCUMENTS_CONDITION, null, fileName, continuationToken, pageSize);
+    }
 
-        CosmosPagedFlux<CosmosDBDocument> queryItems = container.queryItems(querySpec, options, CosmosDBDocument.class);
-        return queryItems.byPage().flatMap(page -> Flux.fromIterable(page.getResults())).collectList();
+    // DB の登録に失敗しているドキュメントを 1 ページ分取得
+    // status, fileName を指定した場合は、状況が一致し、ファイル名が前方一致するドキュメントのみ取得
+    public Flux<CosmosDBDocumentPage> getFailedDocumentsPage(CosmosDBDocumentStatus status, String fileName,
+            String continuationToken, int pageSize) {
+        return getDocumentsPage(RETRIVE_FAILED_DOCUMENTS_CONDITION, status, fileName, continuationToken, pageSize);
     }
 
-    // DB の登録に失敗しているドキュメントを取得
-    public Mono<List<CosmosDBDocument>> getAllFailedDocuments() {
+    // continuationToken で指定されたページから pageSize 件のドキュメントを、LIST_FETCH_SIZE 件ずつ取得
+    // 取得した分は continuationToken を設定せずに順に返し、最後に次のページの continuationToken だけを設定したものを返す
+    // (ドキュメントが 0 件のページでも、continuationToken があれば次のページを取得できる)
+    private Flux<CosmosDBDocumentPage> getDocumentsPage(String condition, CosmosDBDocumentStatus status,
+            String fileName, String continuationToken, int pageSize) {
         CosmosQueryRequestOptions options = new CosmosQueryRequestOptions();
         options.setQueryMetricsEnabled(true);
-        SqlQuerySpec querySpec = new SqlQuerySpec(RETRIVE_FAILED_DOCUMENTS_QUERY);
 
-        CosmosPagedFlux<CosmosDBDocument> queryItems = container.queryItems(querySpec, options, CosmosDBDocument.class);
-        return queryItems.byPage().flatMap(page -> Flux.fromIterable(page.getResults())).collectList();
+        var query = new StringBuilder("SELECT * FROM c WHERE ").append(condition);
+        var parameters = new ArrayList<SqlParameter>();
+        if (status != null) {
+            query.append(" AND c.status = @status");
+            parameters.add(new SqlParameter("@status", status.name()));
+        }
+        if (fileName != null && !fileName.isBlank()) {
+            query.append(" AND STARTSWITH(c.fileName, @fileName)");
+            parameters.add(new SqlParameter("@fileName", fileName));
+        }
+        query.append(DOCUMENTS_ORDER);
+        SqlQuerySpec querySpec = new SqlQuerySpec(query.toString(), parameters);
+
+        return Flux.defer(() -> {
+            var nextToken = new AtomicReference<String>();
+            return fetchDocuments(querySpec, options, continuationToken, pageSize)
+                    .map(page -> {
+                        LOGGER.debug("Documents page: {} items, Request Charge: {}", page.getResults().size(),
+                                page.getRequestCharge());
+                        nextToken.set(page.getContinuationToken());
+                        return new CosmosDBDocumentPage(page.getResults(), null);
+                    })
+                    .concatWith(Mono.fromSupplier(() -> new CosmosDBDocumentPage(List.of(), nextToken.get())));
+        });
+    }
+
+    // continuationToken の位置から、remaining 件になるか最後のドキュメントまで LIST_FETCH_SIZE 件ずつ取得
+    private Flux<FeedResponse<CosmosDBDocument>> fetchDocuments(SqlQuerySpec querySpec,
+            CosmosQueryRequestOptions options, String continuationToken, int remaining) {
+        return container.queryItems(querySpec, options, CosmosDBDocument.class)
+                .byPage(continuationToken, Math.min(remaining, LIST_FETCH_SIZE))
+                .next()
+                .flatMapMany(page -> {
+                    var rest = remaining - page.getResults().size();
+                    var next = page.getContinuationToken();
+                    return (next == null || rest <= 0) ? Flux.just(page)
+                            : Flux.just(page).concatWith(fetchDocuments(querySpec, options, next, rest));
+                });
+    }
+
+    // 変更フィードを先頭 (continuationToken が null の場合)、または前回の続きから現時点まで取得
+    // 各ページの continuationToken を次回の取得位置として保存する (削除されたドキュメントは含まれない)
+    public Flux<FeedResponse<CosmosDBChangeFeedDocument>> readChangeFeed(String continuationToken, int pageSize) {
+        var options = (continuationToken == null)
+                ? CosmosChangeFeedRequestOptions.createForProcessingFromBeginning(FeedRange.forFullRange())
+                : CosmosChangeFeedRequestOptions.createForProcessingFromContinuation(continuationToken);
+        options.setMaxItemCount(pageSize);
+        return container.queryChangeFeed(options, CosmosDBChangeFeedDocument.class).byPage(pageSize);
     }
 
     // ファイル名の一覧を取得
@@ -91,11 +164,15 @@ public class CosmosDBUtil {
 
     	var executor = Executors.newSingleThreadExecutor();
     	var  cdl = new CountDownLatch(1);
-    	var result = new AtomicReference<List<String>>();
+    	var result = new AtomicReference<List<String>>(new ArrayList<String>());
     	executor.execute(() -> {
     		container.queryItems(querySpec, options, CosmosDBDocument.class).byPage().subscribe(res -> {
+    			// 複数ページに分かれる場合があるため、全ページの結果を追加
     			List<String> fileNames = res.getResults().stream().map(doc -> doc.fileName()).collect(Collectors.toList());
-    			result.set(fileNames);
+    			result.updateAndGet(list -> {
+    				list.addAll(fileNames);
+    				return list;
+    			});
     		}, e -> {
     			LOGGER.error("Cosmos DB query Failed.", e);
     		}, () -> {
@@ -106,54 +183,28 @@ public class CosmosDBUtil {
         return result.get();
     }
     
-    public void deleteDocuments(List<String> fileNames) throws InterruptedException {
-    	if (fileNames == null || fileNames.isEmpty()) {
-    		return;
-    	}
+    // 指定したファイルのドキュメントの ID を取得 (fileNames が null の場合は全てのドキュメント)
+    public Flux<String> findDocumentIds(List<String> fileNames) {
         CosmosQueryRequestOptions options = new CosmosQueryRequestOptions();
         options.setQueryMetricsEnabled(true);
+        var querySpec = (fileNames == null)
+                ? new SqlQuerySpec(ALL_DOCUMENT_ID_QUERY)
+                : new SqlQuerySpec(DOCUMENT_ID_BY_FILE_NAMES_QUERY, new SqlParameter("@fileNames", fileNames));
+        return container.queryItems(querySpec, options, CosmosDBDocument.class).map(CosmosDBDocument::id);
+    }
 
-    	var executor = Executors.newSingleThreadExecutor();
-
-    	var selectCdl = new CountDownLatch(fileNames.size());
-    	var selectResult = new AtomicReference<List<String>>(new ArrayList<String>());
-    	executor.execute(() -> {
-            for (var fileName : fileNames) {
-        		var querySpec = new SqlQuerySpec("SELECT c.id FROM c WHERE c.fileName = @fileName", new SqlParameter("@fileName", fileName));
-        		container.queryItems(querySpec, options, CosmosDBDocument.class).byPage().subscribe(res -> {
-        			var results = res.getResults();
-        			if (results != null && !results.isEmpty()) {
-        				selectResult.updateAndGet(list -> {
-        					list.addAll(results.stream().map(doc -> doc.id()).collect(Collectors.toList()));
-        					return list;
-        				});
-        			}
-        		}, e -> {
-        			LOGGER.error("Cosmos DB query Failed.", e);
-        		}, () -> {
-        			selectCdl.countDown();
-        		});
-        	}
-    	});
-    	selectCdl.await(60000, TimeUnit.MILLISECONDS);
-    	var deleteIds = selectResult.get();
-    	if (deleteIds == null || deleteIds.isEmpty()) {
-    		return;
-    	}
-
-    	var deleteCdl = new CountDownLatch(deleteIds.size());
-    	executor.execute(() -> {
-    		for (var deleteId : deleteIds) {
-    			container.deleteItem(deleteId, new PartitionKey(deleteId)).subscribe(res -> {
-    				var statusCode = res.getStatusCode();
-    				LOGGER.info("delete documents[id={},statusCode={}]", deleteId, statusCode);
-    			}, e -> {
-        			LOGGER.error("Cosmos DB delete Failed.", e);
-    			}, () -> {
-    				deleteCdl.countDown();
-    			});
-    		}
-    	});
-    	deleteCdl.await(60000, TimeUnit.MILLISECONDS);
+    // バルク操作でドキュメントを削除 (パーティション・キーは ID)
+    // 既に削除されている (404) ドキュメントは削除済みとして扱う
+    public Flux<Boolean> deleteDocumentsInBulk(Flux<String> ids) {
+        var operations = ids.map(id -> CosmosBulkOperations.getDeleteItemOperation(id, new PartitionKey(id)));
+        return container.executeBulkOperations(operations).map(result -> {
+            var response = result.getResponse();
+            if (response != null && (response.isSuccessStatusCode() || response.getStatusCode() == 404)) {
+                return true;
+            }
+            LOGGER.error("Cosmos DB bulk delete Failed. [id={}]", result.getOperation().getId(),
+                    result.getException());
+            return false;
+        });
     }
 }
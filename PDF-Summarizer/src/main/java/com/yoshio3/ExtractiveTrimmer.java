@@ -0,0 +1,188 @@
+package com.yoshio3;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+// OpenAI に送信する前に、ドキュメントのテキストから検索キーワードに関連する文だけを抜き出す
+// ・テキストを文に分割し、検索キーワードとの関連度を BM25 で計算
+//   (日本語は単語に分割できないため、文字の bi-gram を単語として扱う)
+// ・関連度の高い文とその前後の文を、トークン数の上限に収まるまで元の順番で抜き出す
+@Component
+public class ExtractiveTrimmer {
+
+    private final Logger LOGGER = LoggerFactory.getLogger(ExtractiveTrimmer.class);
+
+    private static final double BM25_K1 = 1.2;
+    private static final double BM25_B = 0.75;
+
+    // 抜き出した文が連続していない箇所に挿入する文字列
+    private static final String GAP_MARKER = " … ";
+
+    @Value("${search.trim.enabled:true}")
+    private boolean TRIM_ENABLED;
+
+    // 1 つのドキュメントから OpenAI に送信するテキストのトークン数の上限
+    @Value("${search.trim.token.budget:1500}")
+    private int TOKEN_BUDGET;
+
+    // 関連度の高い文と一緒に抜き出す前後の文の数
+    @Value("${search.trim.neighbor.sentences:1}")
+    private int NEIGHBOR_SENTENCES;
+
+    public String trim(String text, String query) {
+        if (!TRIM_ENABLED || text == null || TokenEstimator.estimate(text) <= TOKEN_BUDGET) {
+            return text;
+        }
+        var sentences = splitSentences(text);
+        var scores = score(sentences, tokenize(query));
+
+        // 関連度の高い順に文の番号を並べる
+        List<Integer> ranking = new ArrayList<>();
+        for (int i = 0; i < sentences.size(); i++) {
+            if (scores[i] > 0) {
+                ranking.add(i);
+            }
+        }
+        if (ranking.isEmpty()) {
+            // 検索キーワードを含む文が無い場合は先頭から切り出す
+            return TokenEstimator.truncate(text, TOKEN_BUDGET);
+        }
+        ranking.sort((a, b) -> Double.compare(scores[b], scores[a]));
+
+        var selected = new TreeSet<Integer>();
+        var remaining = TOKEN_BUDGET;
+        for (var index : ranking) {
+            var from = Math.max(0, index - NEIGHBOR_SENTENCES);
+            var to = Math.min(sentences.size() - 1, index + NEIGHBOR_SENTENCES);
+            // 関連度の高い文を優先し、前後の文は上限に収まる場合のみ追加する
+            remaining = select(sentences, selected, index, remaining);
+            for (int i = from; i <= to && remaining > 0; i++) {
+                remaining = select(sentences, selected, i, remaining);
+            }
+            if (remaining <= 0) {
+                break;
+            }
+        }
+        if (selected.isEmpty()) {
+            return TokenEstimator.truncate(sentences.get(ranking.get(0)), TOKEN_BUDGET);
+        }
+
+        var trimmed = new StringBuilder();
+        int previous = -1;
+        for (var index : selected) {
+            if (previous >= 0 && index != previous + 1) {
+                trimmed.append(GAP_MARKER);
+            }
+            trimmed.append(sentences.get(index));
+            previous = index;
+        }
+        LOGGER.debug("Trimmed {} sentences to {} (tokens: {} -> {})", sentences.size(), selected.size(),
+                TokenEstimator.estimate(text), TokenEstimator.estimate(trimmed.toString()));
+        return trimmed.toString();
+    }
+
+    private int select(List<String> sentences, TreeSet<Integer> selected, int index, int remaining) {
+        if (selected.contains(index)) {
+            return remaining;
+        }
+        var tokens = TokenEstimator.estimate(sentences.get(index));
+        if (tokens > remaining) {
+            return remaining;
+        }
+        selected.add(index);
+        return remaining - tokens;
+    }
+
+    // 区切り文字 (。？！など) でテキストを文に分割 (区切り文字は文に含める)
+    static List<String> splitSentences(String text) {
+        List<String> sentences = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (isPunctuation(text.charAt(i))) {
+                sentences.add(text.substring(start, i + 1));
+                start = i + 1;
+            }
+        }
+        if (start < text.length()) {
+            sentences.add(text.substring(start));
+        }
+        return sentences;
+    }
+
+    // 文毎に BM25 のスコアを計算 (IDF はドキュメント内の文を母集団として計算)
+    private double[] score(List<String> sentences, List<String> queryTerms) {
+        List<Map<String, Integer>> termFrequencies = new ArrayList<>();
+        Map<String, Integer> documentFrequencies = new HashMap<>();
+        double totalLength = 0;
+        for (var sentence : sentences) {
+            Map<String, Integer> frequencies = new HashMap<>();
+            var terms = tokenize(sentence);
+            terms.forEach(term -> frequencies.merge(term, 1, Integer::sum));
+            frequencies.keySet().forEach(term -> documentFrequencies.merge(term, 1, Integer::sum));
+            termFrequencies.add(frequencies);
+            totalLength += terms.size();
+        }
+        var averageLength = Math.max(1d, totalLength / sentences.size());
+
+        var scores = new double[sentences.size()];
+        for (int i = 0; i < sentences.size(); i++) {
+            var frequencies = termFrequencies.get(i);
+            var length = frequencies.values().stream().mapToInt(Integer::intValue).sum();
+            for (var term : queryTerms) {
+                var frequency = frequencies.getOrDefault(term, 0);
+                if (frequency == 0) {
+                    continue;
+                }
+                var documentFrequency = documentFrequencies.get(term);
+                var idf = Math.log(1 + (sentences.size() - documentFrequency + 0.5) / (documentFrequency + 0.5));
+                scores[i] += idf * frequency * (BM25_K1 + 1)
+                        / (frequency + BM25_K1 * (1 - BM25_B + BM25_B * length / averageLength));
+            }
+        }
+        return scores;
+    }
+
+    // 英数字は単語単位、それ以外 (日本語など) は文字の bi-gram 単位に分割
+    static List<String> tokenize(String text) {
+        List<String> terms = new ArrayList<>();
+        var word = new StringBuilder();
+        char previous = 0;
+        for (int i = 0; i < text.length(); i++) {
+            var c = Character.toLowerCase(text.charAt(i));
+            if (Character.isLetterOrDigit(c) && c < 0x80) {
+                word.append(c);
+                previous = 0;
+                continue;
+            }
+            if (word.length() > 0) {
+                terms.add(word.toString());
+                word.setLength(0);
+            }
+            if (Character.isLetterOrDigit(c)) {
+                if (previous != 0) {
+                    terms.add(new String(new char[] { previous, c }));
+                }
+                previous = c;
+            } else {
+                previous = 0;
+            }
+        }
+        if (word.length() > 0) {
+            terms.add(word.toString());
+        }
+        return terms;
+    }
+
+    private static boolean isPunctuation(char c) {
+        return c == '.' || c == '。' || c == ';' || c == '；' || c == '!' || c == '！' || c == '?'
+                || c == '？';
+    }
+}
@@ -0,0 +1,282 @@
+package com.yoshio3;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.google.gson.Gson;
+import com.yoshio3.entities.CosmosDBChangeFeedDocument;
+import com.yoshio3.entities.CosmosDBDocumentStatus;
+import com.yoshio3.entities.FileCatalogSummary;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+// Cosmos DB の変更フィードから、ファイル毎の集計 (チャンク数・状況毎のチャンク数・最終更新時刻) をメモリ上に保持する
+// ・一覧の表示はチャンク数ではなくファイル数に比例した時間で行える
+// ・集計と変更フィードの取得位置 (continuationToken) はチェックポイントとしてファイルに保存し、
+//   再起動後は続きから取得する (チェックポイントは変更を取得した場合のみ保存し、
+//   チャンク毎の状況は処理中 (COMPLETED 以外) のチャンクのみ、COMPLETED のチャンクは ID のみ保存する)
+// ・変更フィードには削除が含まれないため、削除した場合は removeFiles() で集計から取り除く
+@Component
+public class FileCatalogService {
+
+    private final Logger LOGGER = LoggerFactory.getLogger(FileCatalogService.class);
+
+    private static final Gson GSON = new Gson();
+
+    @Value("${catalog.enabled:true}")
+    private boolean CATALOG_ENABLED;
+
+    // 変更フィードを取得する間隔 (秒)
+    @Value("${catalog.poll.interval.seconds:10}")
+    private long POLL_INTERVAL_SECONDS;
+
+    // 変更フィードの 1 ページの件数
+    @Value("${catalog.page.size:1000}")
+    private int PAGE_SIZE;
+
+    // チェックポイントを保存するファイル
+    @Value("${catalog.checkpoint.path:catalog-checkpoint.json}")
+    private String CHECKPOINT_PATH;
+
+    @Autowired
+    private CosmosDBUtil cosmosDBUtil;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final Map<String, FileEntry> files = new ConcurrentHashMap<>();
+
+    private volatile String continuationToken;
+
+    // 変更フィードを現時点まで一度でも取得し終えたか (取得し終えるまでは一覧を表示できない)
+    private volatile boolean ready;
+
+    private Disposable pollingTask;
+
+    // ファイル毎の集計
+    // 処理中のチャンクのみチャンク ID 毎の状況を保持し、状況が変わった場合に件数を入れ替える
+    // COMPLETED になったチャンクは ID のみ保持する (更新やチェックポイント以降の再取得で同じチャンクが届いた場合に、
+    // チャンク数と件数を重複して数えないため)
+    private static class FileEntry {
+        private int chunkCount;
+        private final EnumMap<CosmosDBDocumentStatus, Integer> statusCounts = new EnumMap<>(
+                CosmosDBDocumentStatus.class);
+        private final Map<String, CosmosDBDocumentStatus> inProgress = new HashMap<>();
+        private final Set<String> completed = new HashSet<>();
+        private long lastUpdated;
+
+        private FileEntry() {}
+
+        private FileEntry(FileState state) {
+            chunkCount = state.chunkCount();
+            statusCounts.putAll(state.statusCounts());
+            if (state.inProgress() != null) {
+                inProgress.putAll(state.inProgress());
+            }
+            completed.addAll(state.completed());
+            lastUpdated = state.lastUpdated();
+        }
+
+        private synchronized void update(String id, CosmosDBDocumentStatus status, long timestamp) {
+            CosmosDBDocumentStatus previous = null;
+            if (inProgress.containsKey(id)) {
+                previous = inProgress.remove(id);
+            } else if (completed.remove(id)) {
+                previous = CosmosDBDocumentStatus.COMPLETED;
+            } else {
+                chunkCount++;
+            }
+            if (previous != null) {
+                statusCounts.computeIfPresent(previous, (key, count) -> count > 1 ? count - 1 : null);
+            }
+            if (status != null) {
+                statusCounts.merge(status, 1, Integer::sum);
+            }
+            if (status == CosmosDBDocumentStatus.COMPLETED) {
+                completed.add(id);
+            } else {
+                inProgress.put(id, status);
+            }
+            lastUpdated = Math.max(lastUpdated, timestamp);
+        }
+
+        private synchronized FileCatalogSummary toSummary(String fileName) {
+            return new FileCatalogSummary(fileName, chunkCount, new EnumMap<>(statusCounts),
+                    Instant.ofEpochSecond(lastUpdated));
+        }
+
+        private synchronized FileState toState(String fileName) {
+            return new FileState(fileName, chunkCount, new EnumMap<>(statusCounts), new HashMap<>(inProgress),
+                    new ArrayList<>(completed), lastUpdated);
+        }
+    }
+
+    // チェックポイントとして保存する内容
+    private record FileState(String fileName, int chunkCount, Map<CosmosDBDocumentStatus, Integer> statusCounts,
+            Map<String, CosmosDBDocumentStatus> inProgress, List<String> completed, long lastUpdated) {}
+
+    private record Checkpoint(String continuationToken, List<FileState> files) {}
+
+    @PostConstruct
+    public void init() {
+        if (!CATALOG_ENABLED) {
+            return;
+        }
+        loadCheckpoint();
+        Gauge.builder("catalog.files", files, Map::size)
+                .description("Number of files held by the file catalog")
+                .register(meterRegistry);
+
+        pollingTask = Flux.interval(Duration.ZERO, Duration.ofSeconds(POLL_INTERVAL_SECONDS), Schedulers.single())
+                .onBackpressureDrop()
+                .concatMap(tick -> poll()
+                        .onErrorResume(e -> {
+                            LOGGER.error("Change feed polling failed.", e);
+                            return Mono.empty();
+                        }), 1)
+                .subscribe();
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (pollingTask != null) {
+            pollingTask.dispose();
+        }
+    }
+
+    public boolean isReady() {
+        return CATALOG_ENABLED && ready;
+    }
+
+    // ファイル名の昇順でファイル毎の集計を取得
+    public List<FileCatalogSummary> listFiles() {
+        List<FileCatalogSummary> summaries = new ArrayList<>(files.size());
+        files.forEach((fileName, entry) -> summaries.add(entry.toSummary(fileName)));
+        summaries.sort(Comparator.comparing(FileCatalogSummary::fileName));
+        return summaries;
+    }
+
+    // 削除したファイルを集計から取り除く
+    public void removeFiles(Collection<String> fileNames) {
+        if (!CATALOG_ENABLED || fileNames == null || fileNames.isEmpty()) {
+            return;
+        }
+        fileNames.forEach(files::remove);
+        saveCheckpoint();
+    }
+
+    // 全件削除した場合に集計を破棄 (変更フィードの取得位置はそのまま利用する)
+    public void clear() {
+        if (!CATALOG_ENABLED) {
+            return;
+        }
+        files.clear();
+        saveCheckpoint();
+    }
+
+    // 前回の続きから現時点までの変更フィードを取得し、集計に反映
+    private Mono<Void> poll() {
+        return cosmosDBUtil.readChangeFeed(continuationToken, PAGE_SIZE)
+                .doOnNext(page -> {
+                    page.getResults().forEach(this::apply);
+                    if (page.getContinuationToken() != null) {
+                        continuationToken = page.getContinuationToken();
+                    }
+                    if (!page.getResults().isEmpty()) {
+                        LOGGER.debug("Change feed: {} documents, Request Charge: {}", page.getResults().size(),
+                                page.getRequestCharge());
+                    }
+                })
+                .filter(page -> !page.getResults().isEmpty())
+                .count()
+                .doOnNext(changedPages -> {
+                    // 変更が無い場合は保存しない (再起動後は前回保存した位置から取得し直す)
+                    if (changedPages > 0) {
+                        saveCheckpoint();
+                    }
+                    if (!ready) {
+                        LOGGER.info("File catalog is ready. ({} files)", files.size());
+                        ready = true;
+                    }
+                })
+                .then();
+    }
+
+    private void apply(CosmosDBChangeFeedDocument doc) {
+        if (doc.fileName() == null) {
+            return;
+        }
+        files.computeIfAbsent(doc.fileName(), key -> new FileEntry())
+                .update(doc.id(), doc.status(), doc.timestamp());
+    }
+
+    private synchronized void saveCheckpoint() {
+        List<FileState> states = new ArrayList<>(files.size());
+        files.forEach((fileName, entry) -> states.add(entry.toState(fileName)));
+        var checkpoint = new Checkpoint(continuationToken, states);
+        var path = Path.of(CHECKPOINT_PATH);
+        try {
+            // 書き込み途中で停止しても前回のチェックポイントが壊れないように、一時ファイルから置き換える
+            var temporary = path.resolveSibling(path.getFileName() + ".tmp");
+            Files.writeString(temporary, GSON.toJson(checkpoint), StandardCharsets.UTF_8);
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOGGER.error("Failed to save the catalog checkpoint: {}", path, e);
+        }
+    }
+
+    private void loadCheckpoint() {
+        var path = Path.of(CHECKPOINT_PATH);
+        if (!Files.exists(path)) {
+            return;
+        }
+        try {
+            var checkpoint = GSON.fromJson(Files.readString(path, StandardCharsets.UTF_8), Checkpoint.class);
+            if (checkpoint == null || checkpoint.files() == null) {
+                return;
+            }
+            for (var state : checkpoint.files()) {
+                if (state.statusCounts() == null || state.completed() == null) {
+                    // 以前の形式 (チャンク毎の状況のみ、COMPLETED のチャンクの ID が無い) のチェックポイント
+                    throw new IllegalStateException("Unsupported checkpoint format.");
+                }
+                files.put(state.fileName(), new FileEntry(state));
+            }
+            continuationToken = checkpoint.continuationToken();
+            LOGGER.info("Loaded the catalog checkpoint: {} files", files.size());
+        } catch (IOException | RuntimeException e) {
+            // 読み込めない場合は変更フィードの先頭から作り直す
+            LOGGER.error("Failed to load the catalog checkpoint: {}", path, e);
+            files.clear();
+            continuationToken = null;
+        }
+    }
+}
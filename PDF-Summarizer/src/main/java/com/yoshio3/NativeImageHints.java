@@ -0,0 +1,80 @@
+package com.yoshio3;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import org.springframework.aot.hint.BindingReflectionHintsRegistrar;
+import org.springframework.aot.hint.MemberCategory;
+import org.springframework.aot.hint.RuntimeHints;
+import org.springframework.aot.hint.RuntimeHintsRegistrar;
+import org.springframework.aot.hint.TypeReference;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.util.ClassUtils;
+
+import com.yoshio3.entities.BusyInHTML;
+import com.yoshio3.entities.CosmosDBChangeFeedDocument;
+import com.yoshio3.entities.CosmosDBDocument;
+import com.yoshio3.entities.CosmosDBDocumentPage;
+import com.yoshio3.entities.CreateAreaInHTML;
+import com.yoshio3.entities.CreateLinkInHTML;
+import com.yoshio3.entities.CreateMessageInHTML;
+import com.yoshio3.entities.DeletionProgress;
+import com.yoshio3.entities.SearchRequestMessage;
+import com.yoshio3.models.DeleteFileNameItem;
+
+// Native Image (pom.xml の native プロファイル) で、リフレクションでアクセスするクラスを登録する
+// (Spring の AOT 処理で、Controller の引数・戻り値や Bean は自動で登録されるため、それ以外のクラスを登録する)
+// ・Gson で JSON に変換するクラス (SSE のイベント・ブローカーのメッセージ・カタログのチェックポイント)
+// ・Cosmos DB (Jackson) で読み込むドキュメント
+// ・Thymeleaf のテンプレートで参照するクラス
+// ・Azure OpenAI のクライアント (モデルのクラスと、REST の呼び出しを定義したインタフェースの Proxy)
+public class NativeImageHints implements RuntimeHintsRegistrar {
+
+    private static final String OPENAI_MODELS_PATTERN = "classpath*:com/azure/ai/openai/models/*.class";
+
+    private static final String[] OPENAI_SERVICE_INTERFACES = {
+            "com.azure.ai.openai.implementation.OpenAIClientImpl$OpenAIClientService",
+            "com.azure.ai.openai.implementation.NonAzureOpenAIClientImpl$NonAzureOpenAIClientService" };
+
+    @Override
+    public void registerHints(RuntimeHints hints, ClassLoader classLoader) {
+        var bindingRegistrar = new BindingReflectionHintsRegistrar();
+        bindingRegistrar.registerReflectionHints(hints.reflection(),
+                CreateMessageInHTML.class, CreateAreaInHTML.class, CreateLinkInHTML.class, BusyInHTML.class,
+                SearchRequestMessage.class,
+                CosmosDBDocument.class, CosmosDBChangeFeedDocument.class,
+                CosmosDBDocumentPage.class, DeletionProgress.class, DeleteFileNameItem.class);
+
+        // FileCatalogService のチェックポイント (private な record)
+        for (var name : new String[] { "com.yoshio3.FileCatalogService$Checkpoint",
+                "com.yoshio3.FileCatalogService$FileState" }) {
+            hints.reflection().registerType(TypeReference.of(name), MemberCategory.DECLARED_FIELDS,
+                    MemberCategory.INVOKE_DECLARED_CONSTRUCTORS, MemberCategory.INVOKE_DECLARED_METHODS);
+        }
+
+        for (var name : findOpenAIModels(classLoader)) {
+            hints.reflection().registerType(TypeReference.of(name), MemberCategory.DECLARED_FIELDS,
+                    MemberCategory.INVOKE_DECLARED_CONSTRUCTORS, MemberCategory.INVOKE_DECLARED_METHODS);
+        }
+        for (var name : OPENAI_SERVICE_INTERFACES) {
+            hints.reflection().registerType(TypeReference.of(name), MemberCategory.INTROSPECT_PUBLIC_METHODS);
+            hints.proxies().registerJdkProxy(TypeReference.of(name));
+        }
+    }
+
+    // Azure OpenAI のモデルのクラス名 (ビルド時に jar から取得する)
+    private static String[] findOpenAIModels(ClassLoader classLoader) {
+        try {
+            var resources = new PathMatchingResourcePatternResolver(classLoader).getResources(OPENAI_MODELS_PATTERN);
+            var names = new String[resources.length];
+            for (int i = 0; i < resources.length; i++) {
+                var fileName = resources[i].getFilename();
+                names[i] = "com.azure.ai.openai.models."
+                        + fileName.substring(0, fileName.length() - ClassUtils.CLASS_FILE_SUFFIX.length());
+            }
+            return names;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.yoshio3;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.yoshio3.entities.DocumentSummarizer;
+import com.yoshio3.vectorstore.ParentRecord;
+import com.yoshio3.vectorstore.PgPageDigestStore;
+
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+// BlobUploadDetector がファイルの登録後に作成したページの要約 (ダイジェスト) を取得する
+// 検索結果のページの要約を、OpenAI による要約を待たずにクライアントに送信するために利用する
+// ・要約の取得に時間がかかる場合や失敗した場合は、要約を送信せずに検索を続ける
+// ・要約を作成していないページ (登録直後など) は、OpenAI による要約のみを送信する
+@Component
+public class PageDigestService {
+
+    private final Logger LOGGER = LoggerFactory.getLogger(PageDigestService.class);
+
+    // BlobUploadDetector の PageDigestEnabled を true にしている場合は true にする
+    @Value("${search.page.digest.enabled:false}")
+    private boolean PAGE_DIGEST_ENABLED;
+
+    // 要約の取得を待つ時間
+    @Value("${search.page.digest.timeout.ms:300}")
+    private long TIMEOUT_MS;
+
+    @Autowired(required = false)
+    private PgPageDigestStore pageDigestStore;
+
+    // 検索結果のページの要約 (要約が無いページは含まない)
+    public Mono<Map<ParentRecord.Key, String>> findDigests(List<DocumentSummarizer> docSummaries) {
+        if (!PAGE_DIGEST_ENABLED || pageDigestStore == null || docSummaries.isEmpty()) {
+            return Mono.just(Map.of());
+        }
+        var keys = docSummaries.stream().map(PageDigestService::toKey).distinct().toList();
+        return Mono.fromCallable(() -> pageDigestStore.fetchDigests(keys))
+                .subscribeOn(Schedulers.boundedElastic())
+                .timeout(Duration.ofMillis(TIMEOUT_MS))
+                .onErrorResume(error -> {
+                    LOGGER.warn("Page digest lookup skipped: {}", error.toString());
+                    return Mono.just(Map.of());
+                });
+    }
+
+    public static ParentRecord.Key toKey(DocumentSummarizer docSummary) {
+        return new ParentRecord.Key(docSummary.filename(), docSummary.pageNumber());
+    }
+}
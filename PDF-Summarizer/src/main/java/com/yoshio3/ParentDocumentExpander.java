@@ -0,0 +1,175 @@
+package com.yoshio3;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.yoshio3.entities.DocumentSummarizer;
+import com.yoshio3.vectorstore.ParentRecord;
+import com.yoshio3.vectorstore.SentenceWindowChunker;
+import com.yoshio3.vectorstore.VectorStore;
+import com.yoshio3.vectorstore.VectorStoreException;
+
+// 子チャンク (数文ずつの小さなチャンク) の検索結果を親 (ページ) 単位にまとめ、
+// 親のテキストの中で、ヒットした子チャンクとその前後の文だけを OpenAI に送信するテキストにする
+// ・同じページの子チャンクが複数ヒットした場合は、1 件の結果にまとめる (順位は最上位の子チャンク)
+// ・ヒットした子チャンクの文を優先し、前後の文はトークン数の上限に収まる場合のみ追加する
+// ・親が登録されていない場合 (スナップショットから再登録した場合など) は、子チャンクのテキストを利用する
+@Component
+public class ParentDocumentExpander {
+
+    private final Logger LOGGER = LoggerFactory.getLogger(ParentDocumentExpander.class);
+
+    // 抜き出した文が連続していない箇所に挿入する文字列
+    private static final String GAP_MARKER = " … ";
+
+    // BlobUploadDetector の ChunkingMode を sentence-window にしている場合は true にする
+    @Value("${vector.store.parent.documents:false}")
+    private boolean PARENT_DOCUMENTS_ENABLED;
+
+    // ヒットした子チャンクと一緒に送信する前後の文の数
+    @Value("${search.parent.window.neighbor.sentences:2}")
+    private int NEIGHBOR_SENTENCES;
+
+    // 1 つのページから OpenAI に送信するテキストのトークン数の上限
+    @Value("${search.parent.window.token.budget:800}")
+    private int TOKEN_BUDGET;
+
+    @Autowired
+    private VectorStore vectorStore;
+
+    public boolean isEnabled() {
+        return PARENT_DOCUMENTS_ENABLED;
+    }
+
+    // selected (絞り込んだ結果) をページ単位にまとめ、candidates (検索の候補) のうち同じページの子チャンクを含む範囲を取得する
+    public List<DocumentSummarizer> expand(List<DocumentSummarizer> selected, List<DocumentSummarizer> candidates) {
+        Map<ParentRecord.Key, List<DocumentSummarizer>> children = new LinkedHashMap<>();
+        for (var docSummary : selected) {
+            children.putIfAbsent(toKey(docSummary), new ArrayList<>());
+        }
+        for (var candidate : candidates) {
+            var matched = children.get(toKey(candidate));
+            if (matched != null) {
+                matched.add(candidate);
+            }
+        }
+        Set<UUID> missing = new HashSet<>();
+        children.values().forEach(matched -> matched.stream()
+                .filter(child -> child.origntext() == null)
+                .forEach(child -> missing.add(child.id())));
+
+        Map<UUID, String> childTexts;
+        Map<ParentRecord.Key, String> parentTexts;
+        try {
+            childTexts = vectorStore.fetchTexts(missing);
+            parentTexts = vectorStore.fetchParentTexts(children.keySet());
+        } catch (VectorStoreException e) {
+            LOGGER.error("Connection failure: {}", e.getMessage());
+            return List.of();
+        }
+
+        List<DocumentSummarizer> result = new ArrayList<>(children.size());
+        for (var entry : children.entrySet()) {
+            var texts = entry.getValue().stream()
+                    .map(child -> child.origntext() != null ? child.origntext() : childTexts.get(child.id()))
+                    .filter(text -> text != null)
+                    .toList();
+            if (texts.isEmpty()) {
+                // テキストを取得する前に削除された場合
+                continue;
+            }
+            var top = entry.getValue().get(0);
+            var parentText = parentTexts.get(entry.getKey());
+            var text = parentText == null ? fallback(texts) : window(parentText, texts);
+            result.add(new DocumentSummarizer(top.id(), top.embedding(), text, top.filename(), top.pageNumber()));
+            LOGGER.debug("Expanded {} children of {} page {} (tokens: {})", texts.size(), top.filename(),
+                    top.pageNumber(), TokenEstimator.estimate(text));
+        }
+        return result;
+    }
+
+    // 親のテキストの中から、子チャンクの文とその前後の文を元の順番で抜き出す
+    String window(String parentText, List<String> childTexts) {
+        var sentences = SentenceWindowChunker.splitSentences(parentText);
+        var starts = new int[sentences.size()];
+        int offset = 0;
+        for (int i = 0; i < sentences.size(); i++) {
+            starts[i] = offset;
+            offset += sentences.get(i).length();
+        }
+
+        var selected = new TreeSet<Integer>();
+        var remaining = TOKEN_BUDGET;
+        for (var childText : childTexts) {
+            var index = parentText.indexOf(childText);
+            if (index < 0) {
+                continue;
+            }
+            var first = sentenceAt(starts, index);
+            var last = sentenceAt(starts, index + childText.length() - 1);
+            for (int i = first; i <= last; i++) {
+                remaining = select(sentences, selected, i, remaining);
+            }
+            for (int distance = 1; distance <= NEIGHBOR_SENTENCES && remaining > 0; distance++) {
+                remaining = select(sentences, selected, first - distance, remaining);
+                remaining = select(sentences, selected, last + distance, remaining);
+            }
+            if (remaining <= 0) {
+                break;
+            }
+        }
+        if (selected.isEmpty()) {
+            return fallback(childTexts);
+        }
+
+        var window = new StringBuilder();
+        int previous = -1;
+        for (var index : selected) {
+            if (previous >= 0 && index != previous + 1) {
+                window.append(GAP_MARKER);
+            }
+            window.append(sentences.get(index));
+            previous = index;
+        }
+        return window.toString();
+    }
+
+    private String fallback(List<String> childTexts) {
+        return TokenEstimator.truncate(String.join(GAP_MARKER, childTexts), TOKEN_BUDGET);
+    }
+
+    private int select(List<String> sentences, TreeSet<Integer> selected, int index, int remaining) {
+        if (index < 0 || index >= sentences.size() || selected.contains(index)) {
+            return remaining;
+        }
+        var tokens = TokenEstimator.estimate(sentences.get(index));
+        if (tokens > remaining) {
+            return remaining;
+        }
+        selected.add(index);
+        return remaining - tokens;
+    }
+
+    // offset を含む文の番号
+    private static int sentenceAt(int[] starts, int offset) {
+        var index = Arrays.binarySearch(starts, offset);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    private static ParentRecord.Key toKey(DocumentSummarizer docSummary) {
+        return new ParentRecord.Key(docSummary.filename(), docSummary.pageNumber());
+    }
+}
@@ -0,0 +1,59 @@
+package com.yoshio3;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.yoshio3.entities.DocumentSummarizer;
+
+// 検索結果の複数のドキュメントを、1 回の Chat Completion で回答するための 1 つのプロンプトにまとめる
+// 各ドキュメントには番号 (チャンク ID) を付与し、回答の中で [1] のように引用させる
+@Component
+public class PromptPacker {
+
+    private final Logger LOGGER = LoggerFactory.getLogger(PromptPacker.class);
+
+    // プロンプトに含めるドキュメントのトークン数の上限
+    @Value("${search.answer.packed.token.budget:6000}")
+    private int TOKEN_BUDGET;
+
+    public record PackedPrompt(String prompt, List<DocumentSummarizer> chunks) {}
+
+    // 検索順位の高いものから順に、トークン数の上限に収まるだけドキュメントを追加する
+    // (チャンク ID は chunks の 1 始まりのインデックス)
+    public PackedPrompt pack(List<DocumentSummarizer> docSummaries, String inputText) {
+        var instruction = String.format(
+                "上記のドキュメントの中から \"%s\" に関して説明している箇所を抜き出して回答してください。"
+                        + "回答には、根拠としたドキュメントの番号を [1] のように必ず記載してください。",
+                inputText);
+        var remaining = TOKEN_BUDGET - TokenEstimator.estimate(instruction);
+
+        var prompt = new StringBuilder();
+        List<DocumentSummarizer> chunks = new ArrayList<>();
+        for (var docSummary : docSummaries) {
+            var header = String.format("[%d] (%s : %d ページ目)%n\"\"\" ", chunks.size() + 1,
+                    docSummary.filename(), docSummary.pageNumber());
+            var footer = " \"\"\"\n\n";
+            var overhead = TokenEstimator.estimate(header) + TokenEstimator.estimate(footer);
+            var text = docSummary.origntext();
+            if (overhead + TokenEstimator.estimate(text) > remaining) {
+                // 最上位のドキュメントだけは、上限に収まるように切り詰めて含める
+                if (!chunks.isEmpty()) {
+                    break;
+                }
+                text = TokenEstimator.truncate(text, Math.max(0, remaining - overhead));
+            }
+            prompt.append(header).append(text).append(footer);
+            remaining -= overhead + TokenEstimator.estimate(text);
+            chunks.add(docSummary);
+        }
+        prompt.append(instruction);
+        LOGGER.debug("Packed {} of {} documents (remaining budget: {})", chunks.size(), docSummaries.size(),
+                remaining);
+        return new PackedPrompt(prompt.toString(), chunks);
+    }
+}
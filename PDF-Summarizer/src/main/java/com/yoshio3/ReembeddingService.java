@@ -0,0 +1,231 @@
+package com.yoshio3;
+
+import java.sql.DriverManager;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.azure.ai.openai.models.EmbeddingItem;
+import com.azure.ai.openai.models.EmbeddingsOptions;
+import com.yoshio3.resilience.ResilientOpenAIClient;
+import com.yoshio3.vectorstore.PgVectorStore;
+import com.yoshio3.vectorstore.ShadowTableReembedder;
+import com.yoshio3.vectorstore.Vectors;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.retry.Retry;
+
+// Embedding のモデルを変更するため、登録済みのチャンクをバックグラウンドで再 Embedding する
+// ・シャドウ・テーブルへの登録・インデックスの作成・テーブル名の入れ替えは ShadowTableReembedder が行う
+// ・テーブル名を入れ替えると同時に、検索キーワードの Embedding に利用するモデルを切り替える
+//   (切り替え中に開始した検索は、切り替え後のモデルでやり直す)
+// ・切り替えを確認するまでは検索の前後に進捗テーブルを確認し、他のレプリカが切り替えた場合も検索時点のモデルを利用する
+// ・進捗は /reembeddingProgress で取得し、再起動した場合は続きから実行する
+// ・複数のレプリカで起動した場合は、アドバイザリ・ロックを取得した 1 つだけが再 Embedding を実行する
+//   (実行中のレプリカが停止した場合は、他のレプリカがロックを取得して続きから実行する)
+//   他のレプリカは進捗テーブルを reembedding.poll.interval.ms 毎に確認し、実行中のレプリカが停止した場合に引き継ぐ
+@Component
+public class ReembeddingService {
+
+    private final Logger LOGGER = LoggerFactory.getLogger(ReembeddingService.class);
+
+    // 切り替え中に開始した検索をやり直す回数
+    private static final int MAX_MODEL_SWITCH_RETRIES = 5;
+
+    @Value("${reembedding.enabled:false}")
+    private boolean REEMBEDDING_ENABLED;
+
+    // 新しい Embedding のモデル (Azure OpenAI のデプロイメント名)
+    @Value("${reembedding.target.model.name:}")
+    private String TARGET_MODEL_NAME;
+
+    // 新しいモデルの次元数
+    @Value("${reembedding.target.dimensions:1536}")
+    private int TARGET_DIMENSIONS;
+
+    // 1 回の Embedding の呼び出しで送信するチャンク数
+    @Value("${reembedding.batch.size:32}")
+    private int BATCH_SIZE;
+
+    // 1 分あたりのバッチ数の上限 (OpenAI の呼び出しと PostgreSQL への書き込みを抑える)
+    @Value("${reembedding.batches.per.minute:60}")
+    private int BATCHES_PER_MINUTE;
+
+    // 追加分の反映がこの件数以下になったら、書き込みを止めてテーブル名を入れ替える
+    @Value("${reembedding.catch.up.threshold:100}")
+    private int CATCH_UP_THRESHOLD;
+
+    // 進捗テーブルを確認する間隔 (ロックの取得を再試行し、他のレプリカが切り替えたことを検知する)
+    @Value("${reembedding.poll.interval.ms:5000}")
+    private long POLL_INTERVAL_MS;
+
+    @Value("${azure.postgresql.jdbcurl}")
+    private String POSTGRESQL_JDBC_URL;
+
+    @Value("${azure.postgresql.user}")
+    private String POSTGRESQL_USER;
+
+    @Value("${azure.postgresql.password}")
+    private String POSTGRESQL_PASSWORD;
+
+    @Value("${azure.postgresql.db.table.name}")
+    private String POSTGRESQL_TABLE_NAME;
+
+    @Value("${vector.store.layout:inline}")
+    private String VECTOR_STORE_LAYOUT;
+
+    @Value("${vector.store.vector.type:vector}")
+    private String VECTOR_STORE_VECTOR_TYPE;
+
+    @Value("${vector.store.distance:l2}")
+    private String VECTOR_STORE_DISTANCE;
+
+    @Autowired
+    private ResilientOpenAIClient client;
+
+    private ShadowTableReembedder reembedder;
+
+    // 検索に利用する Embedding のモデル (null の場合は azure.openai.embedding.model.name)
+    private volatile String activeEmbeddingModel;
+
+    // モデルを切り替える度に 2 回増やす (奇数の間は切り替え中)
+    private final AtomicLong modelVersion = new AtomicLong();
+
+    private volatile boolean stopRequested;
+
+    private Disposable task;
+
+    // 検索中にモデルが切り替わったことを示す (検索をやり直すため)
+    private static class ModelSwitchedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    @PostConstruct
+    public void init() {
+        if (!REEMBEDDING_ENABLED) {
+            return;
+        }
+        if (TARGET_MODEL_NAME == null || TARGET_MODEL_NAME.isBlank()) {
+            LOGGER.warn("reembedding.target.model.name is not set. Re-embedding is disabled.");
+            return;
+        }
+        reembedder = new ShadowTableReembedder(
+                () -> DriverManager.getConnection(POSTGRESQL_JDBC_URL, POSTGRESQL_USER, POSTGRESQL_PASSWORD),
+                POSTGRESQL_TABLE_NAME, TARGET_MODEL_NAME,
+                PgVectorStore.Layout.valueOf(VECTOR_STORE_LAYOUT.toUpperCase()),
+                PgVectorStore.VectorType.valueOf(VECTOR_STORE_VECTOR_TYPE.toUpperCase()), TARGET_DIMENSIONS);
+        reembedder.setBatchSize(BATCH_SIZE);
+        reembedder.setBatchesPerMinute(BATCHES_PER_MINUTE);
+        reembedder.setCatchUpThreshold(CATCH_UP_THRESHOLD);
+        reembedder.setDistance(PgVectorStore.Distance.valueOf(VECTOR_STORE_DISTANCE.toUpperCase()));
+
+        task = Mono.fromRunnable(this::runOrFollow)
+                .subscribeOn(Schedulers.boundedElastic())
+                // OpenAI のスロットリングなどで失敗した場合は、間隔を空けて続きから再開する
+                .retryWhen(Retry.backoff(10, Duration.ofSeconds(30))
+                        .filter(error -> !stopRequested)
+                        .doBeforeRetry(signal -> LOGGER.warn("Re-embedding failed. Retrying.", signal.failure())))
+                .subscribe(null, error -> LOGGER.error("Re-embedding stopped.", error));
+    }
+
+    // 切り替えが終わるまで、ロックを取得できた場合は再 Embedding を実行し、取得できない場合は進捗を確認する
+    private void runOrFollow() {
+        while (!stopRequested) {
+            var progress = reembedder.getProgress();
+            if (progress != null && progress.phase() == ShadowTableReembedder.Phase.DONE
+                    && TARGET_MODEL_NAME.equals(progress.targetModel())) {
+                // 切り替え済み (他のレプリカが切り替えた場合を含む) の場合は、
+                // azure.openai.embedding.model.name を変更するまで新しいモデルで検索する
+                if (activeEmbeddingModel == null) {
+                    switchModel(() -> {});
+                    LOGGER.info("Re-embedding finished. Search uses {} now.", TARGET_MODEL_NAME);
+                }
+                return;
+            }
+            if (reembedder.run(this::embed, this::switchModel, () -> stopRequested)) {
+                LOGGER.info("Re-embedding {} with {} reached {}.", POSTGRESQL_TABLE_NAME, TARGET_MODEL_NAME,
+                        reembedder.getProgress().phase());
+                continue;
+            }
+            try {
+                Thread.sleep(POLL_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        stopRequested = true;
+        if (task != null) {
+            task.dispose();
+        }
+    }
+
+    public Optional<ShadowTableReembedder.Progress> getProgress() {
+        return reembedder == null ? Optional.empty() : Optional.ofNullable(reembedder.getProgress());
+    }
+
+    // 検索に利用する Embedding のモデル (null の場合はデフォルト) で処理する
+    // 処理中にモデルが切り替わった場合は、新しいモデルでやり直す
+    public <T> Mono<T> withEmbeddingModel(Function<String, Mono<T>> search) {
+        return Mono.defer(() -> {
+            var version = modelVersion.get();
+            return resolveModel().flatMap(model -> search.apply(model.orElse(null))
+                    .flatMap(result -> resolveModel().flatMap(current -> (version & 1) == 0
+                            && modelVersion.get() == version && current.equals(model)
+                            ? Mono.just(result)
+                            : Mono.error(new ModelSwitchedException()))));
+        }).retryWhen(Retry.fixedDelay(MAX_MODEL_SWITCH_RETRIES, Duration.ofMillis(100))
+                .filter(ModelSwitchedException.class::isInstance));
+    }
+
+    // 検索に利用する Embedding のモデル (切り替え前は空)
+    // このレプリカが切り替えを確認するまでは、他のレプリカが切り替えた場合に備えて進捗テーブルを確認する
+    // (確認した後は、azure.openai.embedding.model.name を変更するまで新しいモデルで検索する)
+    private Mono<Optional<String>> resolveModel() {
+        var model = activeEmbeddingModel;
+        if (reembedder == null || model != null) {
+            return Mono.just(Optional.ofNullable(model));
+        }
+        return Mono.fromCallable(() -> {
+            if (reembedder.isCutOver()) {
+                activeEmbeddingModel = TARGET_MODEL_NAME;
+            }
+            return Optional.ofNullable(activeEmbeddingModel);
+        }).subscribeOn(Schedulers.boundedElastic());
+    }
+
+    private void switchModel(Runnable cutover) {
+        modelVersion.incrementAndGet();
+        try {
+            cutover.run();
+            activeEmbeddingModel = TARGET_MODEL_NAME;
+        } finally {
+            modelVersion.incrementAndGet();
+        }
+    }
+
+    private List<float[]> embed(List<String> texts) {
+        var embeddings = client.getEmbeddings(TARGET_MODEL_NAME, new EmbeddingsOptions(texts)).block();
+        return embeddings.getData().stream()
+                .sorted(Comparator.comparingInt(EmbeddingItem::getIndex))
+                .map(item -> Vectors.fromList(item.getEmbedding()))
+                .toList();
+    }
+}
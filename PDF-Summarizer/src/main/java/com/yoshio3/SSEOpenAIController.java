@@ -1,24 +1,25 @@
 package com.yoshio3;
 
-import java.sql.DriverManager;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.SQLException;
-import java.time.Duration;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.codec.ServerSentEvent;
 import org.springframework.stereotype.Component;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
@@ -26,11 +27,12 @@ import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.ModelAttribute;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.server.ResponseStatusException;
+import org.thymeleaf.spring6.context.webflux.ReactiveDataDriverContextVariable;
 
-import com.azure.ai.openai.OpenAIAsyncClient;
-import com.azure.ai.openai.OpenAIClientBuilder;
 import com.azure.ai.openai.models.ChatChoice;
 import com.azure.ai.openai.models.ChatCompletions;
 import com.azure.ai.openai.models.ChatCompletionsOptions;
@@ -38,21 +40,32 @@ import com.azure.ai.openai.models.ChatMessage;
 import com.azure.ai.openai.models.ChatMessageDelta;
 import com.azure.ai.openai.models.ChatRole;
 import com.azure.ai.openai.models.EmbeddingsOptions;
-import com.azure.core.credential.AzureKeyCredential;
 import com.azure.cosmos.implementation.guava25.collect.Streams;
-import com.google.gson.Gson;
+import com.yoshio3.broker.SessionBroker;
+import com.yoshio3.resilience.ResilientOpenAIClient;
+import com.yoshio3.entities.CosmosDBDocumentStatus;
 import com.yoshio3.entities.CreateAreaInHTML;
 import com.yoshio3.entities.CreateLinkInHTML;
 import com.yoshio3.entities.CreateMessageInHTML;
+import com.yoshio3.entities.DeletionProgress;
 import com.yoshio3.entities.DocumentSummarizer;
+import com.yoshio3.entities.FileCatalogSummary;
+import com.yoshio3.entities.SearchRequestMessage;
+import com.yoshio3.entities.SearchScope;
 import com.yoshio3.models.DeleteFileNameForm;
 import com.yoshio3.models.DeleteFileNameItem;
+import com.yoshio3.vectorstore.ParentRecord;
+import com.yoshio3.vectorstore.SearchFilter;
+import com.yoshio3.vectorstore.ShadowTableReembedder;
+import com.yoshio3.vectorstore.VectorStore;
+import com.yoshio3.vectorstore.VectorStoreException;
+import com.yoshio3.vectorstore.Vectors;
 
 import jakarta.annotation.PostConstruct;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
-import reactor.core.publisher.Sinks;
 import reactor.core.publisher.Sinks.EmitResult;
+import reactor.core.scheduler.Schedulers;
 
 @Controller
 @Component
@@ -60,42 +73,40 @@ public class SSEOpenAIController {
 
     private final Logger LOGGER = LoggerFactory.getLogger(SSEOpenAIController.class);
 
-    // Azure OpenAI Instance URL
-    @Value("${azure.openai.url}")
-    private String OPENAI_URL;
-
-    // Azure OpenAI API Key
-    @Value("${azure.openai.api.key}")
-    private String OPENAI_API_KEY;
+    @Value("${azure.blobstorage.name}")
+    private String BLOB_STORAGE_NAME;
 
-    // Name of Model
-    @Value("${azure.openai.model.name}")
-    private String OPENAI_MODEL_NAME;
+    @Value("${azure.blobstorage.container.name}")
+    private String BLOB_STORAGE_CONTAINER_NAME;
 
-    // Name of Embedding Model
-    @Value("${azure.openai.embedding.model.name}")
-    private String OPENAI_EMBEDDING_MODEL_NAME;
+    // Maximum number of results to be returned by the search process
+    private static final int MAX_RESULT = 5;
 
-    @Value("${azure.postgresql.jdbcurl}")
-    private String POSTGRESQL_JDBC_URL;
+    // Number of candidates fetched from the Vector DB before diversification (MMR)
+    @Value("${search.diversify.candidate.count:20}")
+    private int CANDIDATE_COUNT;
 
-    @Value("${azure.postgresql.user}")
-    private String POSTGRESQL_USER;
+    // Answering mode
+    // per-hit : summarize each search result with its own chat completion
+    // packed : pack the ranked results into one prompt and stream a single answer with citations
+    @Value("${search.answer.mode:per-hit}")
+    private String ANSWER_MODE;
 
-    @Value("${azure.postgresql.password}")
-    private String POSTGRESQL_PASSWORD;
+    // Number of documents shown on one page of the admin listings
+    @Value("${admin.list.page.size:100}")
+    private int LIST_PAGE_SIZE;
 
-    @Value("${azure.postgresql.db.table.name}")
-    private String POSTGRESQL_TABLE_NAME;
+    @Value("${admin.list.max.page.size:1000}")
+    private int LIST_MAX_PAGE_SIZE;
 
-    @Value("${azure.blobstorage.name}")
-    private String BLOB_STORAGE_NAME;
+    // 回答の中の引用 (例 : [1])
+    private static final Pattern CITATION_PATTERN = Pattern.compile("\\[(\\d{1,6})\\]");
 
-    @Value("${azure.blobstorage.container.name}")
-    private String BLOB_STORAGE_CONTAINER_NAME;
+    // 引用 ([番号]) の最大の長さ (トークンの境界で切れた引用を見つけるために、検索済みの末尾をこの長さだけ残す)
+    private static final int MAX_CITATION_LENGTH = 8;
 
-    // Maximum number of results to be returned by the search process
-    private static final int MAX_RESULT = 5;
+    private static final DateTimeFormatter LAST_UPDATED_FORMATTER = DateTimeFormatter
+            .ofPattern("yyyy/MM/dd HH:mm:ss").withZone(ZoneId.systemDefault());
 
     private final static String SYSTEM_DEFINITION = """
                 このシステムは、ドキュメントを管理するためのシステムです。
@@ -103,24 +114,70 @@ public class SSEOpenAIController {
                 要約してその内容をユーザに提供します。
             """;
 
-    // クライアントからのリクエストを受け付けるためのSinks (1対1 で送受信するためのSinks)
-    private static Map<UUID, Sinks.Many<String>> userSinks;
+    @Autowired
+    private CosmosDBUtil cosmosDBUtil;
 
-    // Static Initializer
-    static {
-        userSinks = new ConcurrentHashMap<>();
-    }
+    @Autowired
+    private FileCatalogService fileCatalogService;
 
     @Autowired
-    private CosmosDBUtil cosmosDBUtil;
+    private ContentDeletionService contentDeletionService;
 
-    private OpenAIAsyncClient client;
+    @Autowired
+    private SearchResultDiversifier diversifier;
+
+    @Autowired
+    private SummaryStreamGovernor governor;
+
+    @Autowired
+    private SseEventEmitter eventEmitter;
+
+    @Autowired
+    private PromptPacker promptPacker;
+
+    @Autowired
+    private ExtractiveTrimmer trimmer;
+
+    @Autowired
+    private SearchMetrics searchMetrics;
+
+    @Autowired
+    private SearchAdmissionController admission;
+
+    @Autowired
+    private ReembeddingService reembeddingService;
+
+    @Autowired
+    private ParentDocumentExpander parentExpander;
+
+    @Autowired
+    private PageDigestService pageDigestService;
+
+    // ドキュメントを検索するためのベクトル・ストア
+    @Autowired
+    private VectorStore vectorStore;
+
+    // クライアントからのリクエストを受け付けるためのセッション (1対1 で送受信するためのセッション)
+    @Autowired
+    private SseSessionRegistry sessionRegistry;
+
+    // 検索のリクエストを、SSE のセッションを保持しているノードに配信するためのブローカー
+    @Autowired
+    private SessionBroker sessionBroker;
+
+    // Azure OpenAI のクライアント (タイムアウト・サーキット・ブレーカー・ヘッジ・リクエスト付き)
+    @Autowired
+    private ResilientOpenAIClient client;
 
     @PostConstruct
     public void init() {
-        client = new OpenAIClientBuilder().endpoint(OPENAI_URL)
-                .credential(new AzureKeyCredential(OPENAI_API_KEY))
-                .buildAsyncClient();
+        // 他のノード (または自ノード) で受け付けた検索のリクエストを受け取る
+        // (1 件の検索の開始に失敗しても、購読を終了せずに以降の検索を受け付ける)
+        sessionBroker.messages().subscribe(this::startSearchSafely,
+                error -> LOGGER.error("Session broker failure.", error));
+        // クライアントが他のノードに接続した場合は、このノードのセッションを破棄する
+        sessionBroker.released().subscribe(sessionRegistry::close,
+                error -> LOGGER.error("Session broker failure.", error));
     }
 
     // Return index.html
@@ -135,27 +192,113 @@ public class SSEOpenAIController {
     // content (1-to-many) like a chat
     @GetMapping(path = "/openai-gpt4-sse-stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
     @ResponseBody
-    public Flux<String> sseStream(@RequestParam UUID userId) {
-        Sinks.Many<String> userSink = getUserSink(userId);
-        if (userSink == null) {
-            userSink = createUserSink(userId);
-        }
+    public Flux<ServerSentEvent<String>> sseStream(@RequestParam UUID userId,
+            @RequestHeader(name = "Last-Event-ID", required = false) Long lastEventId) {
         LOGGER.trace("USER ID IS ADDED: {}}", userId);
-        return userSink.asFlux().delayElements(Duration.ofMillis(10));
+        // 新しい検索を受け付けた場合は、実行中の検索 (OpenAI の呼び出し) をキャンセルして切り替える
+        // 検索は接続とは独立して実行するため、クライアントが切断・再接続しても継続する
+        // (セッションが破棄された場合はキャンセルされる)
+        // EventSource が再接続した場合は、Last-Event-ID 以降のイベントを再送する
+        // 接続する前に、このノードをセッションの所有者として配信する (以降の検索はこのノードだけで実行する)
+        return sessionBroker.claim(userId)
+                .onErrorResume(error -> {
+                    LOGGER.error("Session claim failure: {}", userId, error);
+                    return Mono.empty();
+                })
+                .thenMany(Flux.defer(() -> sessionRegistry.connect(userId, lastEventId)));
     }
 
     @PostMapping("/openai-gpt4-sse-submit")
     @ResponseBody
-    public void openaiGpt4Sse(@RequestBody String inputText, @RequestParam UUID userId) {
-        var userSink = getUserSink(userId);
+    public Mono<Void> openaiGpt4Sse(@RequestBody String inputText, @RequestParam UUID userId,
+            @RequestParam(value = "fileName", required = false) List<String> fileNames,
+            @RequestParam(value = "collection", required = false) String collection,
+            @RequestParam(value = "uploadedFrom", required = false) String uploadedFrom,
+            @RequestParam(value = "uploadedTo", required = false) String uploadedTo) {
         LOGGER.debug("InputText --------------: {}", inputText);
+        // 絞り込み条件の形式を確認してから受け付ける
+        var scope = new SearchScope(fileNames, collection, uploadedFrom, uploadedTo);
+        toSearchFilter(scope);
+        // SSE のセッションを保持しているノードで検索を実行するため、ブローカーに配信
+        return sessionBroker.publish(new SearchRequestMessage(userId, inputText, scope, System.currentTimeMillis()));
+    }
+
+    private void startSearchSafely(SearchRequestMessage message) {
+        try {
+            startSearch(message);
+        } catch (RuntimeException e) {
+            LOGGER.error("Search start failure: {}", message.userId(), e);
+        }
+    }
+
+    // ブローカーから受け取った検索のリクエストを処理する
+    private void startSearch(SearchRequestMessage message) {
+        var userId = message.userId();
+        var inputText = message.inputText();
+        // 複数ノードに配信された場合は、最後にクライアントが接続したノード (セッションの所有者) だけで処理する
+        // (再接続中の検索も処理し、結果はクライアントが再接続するまでセッションに保持する)
+        if (!sessionBroker.isOwner(userId)) {
+            return;
+        }
         // ユーザからの入力を受け取り、PostgreSQL の Vector DB からドキュメントを検索
-        findMostSimilarString(inputText).subscribe(findMostSimilarString -> {
+        // OpenAI に送信する前に、検索キーワードに関連する文だけを抜き出してトークン数を削減
+        var searchResults = findMostSimilarString(inputText, toSearchFilter(message.scope()))
+                .map(docSummaries -> docSummaries.stream()
+                        .map(docSummary -> trimDocument(docSummary, inputText))
+                        .toList());
+        Flux<String> submission;
+        if ("packed".equals(ANSWER_MODE)) {
+            // 検索結果をまとめて 1 回の OpenAI の呼び出しで回答を作成し結果をクライアントに送信
+            submission = searchResults.flatMapMany(docSummaries -> docSummaries.isEmpty() ? Flux.empty()
+                    : governor.limit(0, requestOpenAIToGetPackedAnswerAndSendMessageToClient(docSummaries, inputText)));
+        } else {
+            // 全ての検索結果のリンクと、登録時に作成したページの要約を先にクライアントに送信
             // ドキュメントの検索結果を元に、OpenAI による要約を実施し結果をクライアントに送信
-            findMostSimilarString.forEach(docSummary -> {
-                requestOpenAIToGetSummaryAndSendMessageToClient(docSummary, inputText, userSink);
-            });
-        });
+            // (検索順位の高いものから順に、同時実行数を制限して実行)
+            submission = searchResults.flatMapMany(docSummaries -> pageDigestService.findDigests(docSummaries)
+                    .flatMapMany(digests -> Flux.concat(
+                            Flux.fromIterable(docSummaries)
+                                    .concatMapIterable(docSummary -> createResultEvents(docSummary, digests)),
+                            Flux.fromIterable(docSummaries)
+                                    .index()
+                                    .flatMap(rankedDocSummary -> governor.limit(rankedDocSummary.getT1().intValue(),
+                                            requestOpenAIToGetSummaryAndSendMessageToClient(
+                                                    rankedDocSummary.getT2(), inputText)),
+                                            governor.getMaxConcurrentPerUser()))));
+        }
+        // 同時実行数に空きが無く、期限までに開始できない場合は busy イベントだけを送信する
+        submission = admission.admit(userId, message.publishedAt(), submission);
+        var result = sessionRegistry.submit(userId, submission);
+        searchMetrics.recordEmitResult(result);
+        showDetailErrorReasonForSSE(result, userId.toString(), inputText);
+    }
+
+    // 検索対象の絞り込み条件を作成 (登録日の範囲は、開始日の 0 時から終了日の翌日の 0 時まで)
+    private SearchFilter toSearchFilter(SearchScope scope) {
+        if (scope == null) {
+            return SearchFilter.NONE;
+        }
+        var fileNames = (scope.fileNames() == null) ? List.<String>of()
+                : scope.fileNames().stream().map(String::trim).filter(name -> !name.isEmpty()).toList();
+        try {
+            var uploadedFrom = isBlank(scope.uploadedFrom()) ? null
+                    : LocalDate.parse(scope.uploadedFrom()).atStartOfDay(ZoneId.systemDefault()).toInstant();
+            var uploadedTo = isBlank(scope.uploadedTo()) ? null
+                    : LocalDate.parse(scope.uploadedTo()).plusDays(1).atStartOfDay(ZoneId.systemDefault()).toInstant();
+            return new SearchFilter(fileNames, scope.collection(), uploadedFrom, uploadedTo);
+        } catch (DateTimeParseException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid upload date: " + e.getParsedString());
+        }
+    }
+
+    private static boolean isBlank(String value) {
+        return value == null || value.isBlank();
+    }
+
+    // ドキュメントのテキストを、検索キーワードに関連する部分だけに切り詰める
+    private DocumentSummarizer trimDocument(DocumentSummarizer docSummary, String inputText) {
+        return new DocumentSummarizer(docSummary.id(), docSummary.embedding(),
+                trimmer.trim(docSummary.origntext(), inputText), docSummary.filename(), docSummary.pageNumber());
     }
 
     // チャットに送信するメッセージを作成
@@ -165,180 +308,242 @@ public class SSEOpenAIController {
                 docSummary.origntext(), inputText);
     }
 
-    // OpenAI に送信し検索結果のドキュメントの要約を作成し、クライアントに Stream で送信する
-    private void requestOpenAIToGetSummaryAndSendMessageToClient(DocumentSummarizer docSummary, String inputText, Sinks.Many<String> userSink) {
+    // OpenAI に送信し検索結果のドキュメントの要約を作成し、クライアントに Stream で送信するイベントを作成する
+    private Flux<String> requestOpenAIToGetSummaryAndSendMessageToClient(DocumentSummarizer docSummary, String inputText) {
         LOGGER.debug("Origin --------------: {}", docSummary.origntext());
 
         var input = createChatMessages(docSummary, inputText);
-        LOGGER.debug("User Sink: {}", userSink);
         LOGGER.debug(input);
         var chatMessages = createMessages(input);
-        LOGGER.debug("OpenAI Model : {}", OPENAI_MODEL_NAME);
+        LOGGER.debug("OpenAI Model : {}", client.getChatModelName());
 
         // OpenAI にリクエストを送信し、結果をクライアントに送信する
-        client.getChatCompletionsStream(OPENAI_MODEL_NAME, new ChatCompletionsOptions(chatMessages))
-                .doOnSubscribe(subscription -> {
-                    // HTML の中で、リンクと結果の文字列を表示するための DIV エリアを作成する為のリクエスト・イベントを送信
-                    sendCreateAreaEvent(userSink, docSummary);
-                    // HTML の中で、リンクを表示する為のリクエスト・イベントを送信
-                    sendCreateLinkEvent(userSink, docSummary);
-                })
-                .subscribe(chatCompletions -> {
-                    // OpenAI からの結果をクライアントに Streaming で送信
-                    sendChatCompletionMessages(userSink, docSummary, chatCompletions, inputText);
-                }, error -> {
+        var tokens = searchMetrics.timeCompletion("per-hit", input,
+                client.getChatCompletionsStream(new ChatCompletionsOptions(chatMessages))
+                        .concatMapIterable(this::getChatCompletionMessages))
+                .doOnComplete(() -> LOGGER.debug("Completed"))
+                .doOnCancel(() -> LOGGER.debug("Cancelled: {}", docSummary.id()));
+
+        // OpenAI からの結果をクライアントに Streaming で送信
+        // (結果を表示する DIV エリアとリンクは createResultEvents で先に送信している)
+        var documentID = docSummary.id().toString();
+        return eventEmitter.coalesceMessages(documentID, tokens)
+                .onErrorResume(error -> {
                     LOGGER.error("Error Occurred: {}", error.getMessage());
-                    userSink.tryEmitError(error);
-                }, () -> {
-                    LOGGER.debug("Completed");
+                    return Flux.empty();
                 });
     }
 
-    // HTML の中で、リンクと結果の文字列を表示するための DIV エリアを作成する為のリクエスト・イベントを送信する
-    private void sendCreateAreaEvent(Sinks.Many<String> userSink, DocumentSummarizer docSummary) {
+    // HTML の中で、リンクと結果の文字列を表示するための DIV エリアを作成する為のリクエスト・イベントを作成する
+    // HTML の中で、リンクを表示する為のリクエスト・イベントを作成する
+    // ページの要約を作成済みの場合は、要約を表示する為のイベントも作成する
+    private List<String> createResultEvents(DocumentSummarizer docSummary, Map<ParentRecord.Key, String> digests) {
         var documentID = docSummary.id().toString();
+        List<String> events = new ArrayList<>();
+        events.add(createAreaEvent(documentID));
+        events.add(createLinkEvent(documentID, docSummary));
+        var digest = digests.get(PageDigestService.toKey(docSummary));
+        if (digest != null) {
+            events.add(eventEmitter.encode(new CreateMessageInHTML("digest", documentID, digest)));
+        }
+        return events;
+    }
+
+    // 検索結果をまとめた 1 つのプロンプトを OpenAI に送信し、回答をクライアントに Stream で送信するイベントを作成する
+    // 回答の中で引用されたドキュメントのリンクを、引用が現れた時点でクライアントに送信する
+    private Flux<String> requestOpenAIToGetPackedAnswerAndSendMessageToClient(List<DocumentSummarizer> docSummaries,
+            String inputText) {
+        var packedPrompt = promptPacker.pack(docSummaries, inputText);
+        var chunks = packedPrompt.chunks();
+        LOGGER.debug(packedPrompt.prompt());
+        var chatMessages = createMessages(packedPrompt.prompt());
+        var answerID = UUID.randomUUID().toString();
+
+        var tokens = searchMetrics.timeCompletion("packed", packedPrompt.prompt(),
+                client.getChatCompletionsStream(new ChatCompletionsOptions(chatMessages))
+                        .concatMapIterable(this::getChatCompletionMessages))
+                .doOnComplete(() -> LOGGER.debug("Completed"))
+                .doOnCancel(() -> LOGGER.debug("Cancelled: {}", answerID));
+
+        // 回答のうち、まだ引用を検索していない部分 (回答全体は保持しない)
+        var unscanned = new StringBuilder();
+        var cited = new BitSet();
+        return Flux.concat(
+                Flux.just(createAreaEvent(answerID)),
+                tokens.publish(sharedTokens -> Flux.merge(
+                        eventEmitter.coalesceMessages(answerID, sharedTokens),
+                        // エラーは coalesceMessages が truncated イベントにするため、引用の検出では無視する
+                        sharedTokens.onErrorResume(error -> Flux.empty()).concatMapIterable(token -> {
+                            unscanned.append(token);
+                            return createCitedLinkEvents(answerID, unscanned, chunks, cited);
+                        }))),
+                // 引用が 1 件も無かった場合は、回答に利用した全てのドキュメントのリンクを送信
+                Flux.defer(() -> cited.isEmpty()
+                        ? Flux.fromIterable(chunks).map(docSummary -> createLinkEvent(answerID, docSummary))
+                        : Flux.empty()))
+                .onErrorResume(error -> {
+                    LOGGER.error("Error Occurred: {}", error.getMessage());
+                    return Flux.empty();
+                });
+    }
+
+    // 回答の中で新たに引用されたドキュメントのリンクを作成
+    // 検索した部分は unscanned から削除し、途中で切れている可能性がある末尾だけを次のトークンと一緒に検索する
+    // (トークン毎に回答全体を検索し直さない)
+    private List<String> createCitedLinkEvents(String answerID, StringBuilder unscanned,
+            List<DocumentSummarizer> chunks, BitSet cited) {
+        List<String> events = new ArrayList<>();
+        var matcher = CITATION_PATTERN.matcher(unscanned);
+        var scannedTo = 0;
+        while (matcher.find()) {
+            scannedTo = matcher.end();
+            var chunkId = Integer.parseInt(matcher.group(1));
+            if (chunkId >= 1 && chunkId <= chunks.size() && !cited.get(chunkId)) {
+                cited.set(chunkId);
+                events.add(createLinkEvent(answerID, chunks.get(chunkId - 1)));
+            }
+        }
+        unscanned.delete(0, Math.max(scannedTo, unscanned.length() - (MAX_CITATION_LENGTH - 1)));
+        return events;
+    }
+
+    // HTML の中で、リンクと結果の文字列を表示するための DIV エリアを作成する為のリクエスト・イベントを作成する
+    private String createAreaEvent(String documentID) {
         var createArea = new CreateAreaInHTML("create", documentID);
-        var gson = new Gson();
-        var jsonCreateArea = gson.toJson(createArea);
+        var jsonCreateArea = eventEmitter.encode(createArea);
         LOGGER.debug("jsonCreateArea: {}", jsonCreateArea);
-        userSink.tryEmitNext(jsonCreateArea);
-        // wait few mill seconds
-        intervalToSendClient();
+        return jsonCreateArea;
     }
 
-    // HTML の中で、リンクを表示する為のリクエスト・イベントを送信する
-    private void sendCreateLinkEvent(Sinks.Many<String> userSink, DocumentSummarizer docSummary) {
+    // HTML の中で、リンクを表示する為のリクエスト・イベントを作成する
+    private String createLinkEvent(String documentID, DocumentSummarizer docSummary) {
         var fileName = docSummary.filename();
         var pageNumber = docSummary.pageNumber();
-        var documentID = docSummary.id().toString();
         // Create URL for Blob Storage
         var URL = "https://" + BLOB_STORAGE_NAME + ".blob.core.windows.net/"
                 + BLOB_STORAGE_CONTAINER_NAME + "/" + fileName + "#page="
                 + docSummary.pageNumber();
 
         var createLinkRecord = new CreateLinkInHTML("createLink", documentID, URL, pageNumber, fileName);
-        var gson = new Gson();
-        var jsonLink = gson.toJson(createLinkRecord);
+        var jsonLink = eventEmitter.encode(createLinkRecord);
         LOGGER.debug("JSON Create Link: {}", jsonLink);
-        userSink.tryEmitNext(jsonLink);
-        // wait few mill seconds
-        intervalToSendClient();
+        return jsonLink;
     }
 
-    // HTML の中で、メッセージを１文字づつ表示する為のリクエスト・イベントを送信する
-    private void sendChatCompletionMessages(Sinks.Many<String> userSink, DocumentSummarizer docSummary,
-            ChatCompletions chatCompletions, String inputText) {
-        var documentID = docSummary.id().toString();
-
-        chatCompletions.getChoices().stream().map(ChatChoice::getDelta)
+    // OpenAI から返された差分の文字列を取り出す (HTML の中でメッセージを表示する為に利用)
+    private List<String> getChatCompletionMessages(ChatCompletions chatCompletions) {
+        return chatCompletions.getChoices().stream().map(ChatChoice::getDelta)
                 .map(ChatMessageDelta::getContent)
                 .filter(content -> content != null)
-                .forEach(content -> {
-                    if (content.contains(" ")) {
-                        content = content.replace(" ", "<SPECIAL_WHITE_SPACE>");
-                    }
-                    LOGGER.debug(content);
-                    var createMessage = new CreateMessageInHTML("addMessage", documentID, content);
-                    var gson = new Gson();
-                    var jsonMessage = gson.toJson(createMessage);
-                    LOGGER.debug("JSON Message: {}", jsonMessage);
-                    var result = userSink.tryEmitNext(jsonMessage);
-                    showDetailErrorReasonForSSE(result, content, inputText);
-                    // wait few mill seconds
-                    intervalToSendClient();
-                });
+                .toList();
     }
 
     @GetMapping("/listAllRegisteredContents")
-    public String listAllRegisteredContents(Model model) {
-        // CosmosDB から全てのドキュメントを取得し、Web ページに表示するため、Model に追加
-        // 将来的にはページング処理を実装する必要ある
-        model.addAttribute("list", cosmosDBUtil.getAllRegisteredDocuments());
+    public String listAllRegisteredContents(Model model,
+            @RequestParam(required = false) String fileName,
+            @RequestParam(required = false) String continuationToken,
+            @RequestParam(required = false) Integer pageSize) {
+        // CosmosDB からドキュメントを 1 ページ分取得し、Web ページに表示するため、Model に追加
+        // (取得した行から順にブラウザに送信し、次のページのリンクは最後に送信する continuationToken から作成する)
+        var pages = cosmosDBUtil.getRegisteredDocumentsPage(fileName, continuationToken, toPageSize(pageSize));
+        model.addAttribute("pages", new ReactiveDataDriverContextVariable(pages, 1));
+        model.addAttribute("fileName", fileName);
+        model.addAttribute("pageSize", toPageSize(pageSize));
         return "listAllRegisteredContents";
     }
 
     @GetMapping("/listAllFailedContents")
-    public String listAllFailedContents(Model model) {
-        // CosmosDB から全てのドキュメントを取得し、Web ページに表示するため、Model に追加
-        // 将来的にはページング処理を実装する必要ある
-        model.addAttribute("list", cosmosDBUtil.getAllFailedDocuments());
+    public String listAllFailedContents(Model model,
+            @RequestParam(required = false) CosmosDBDocumentStatus status,
+            @RequestParam(required = false) String fileName,
+            @RequestParam(required = false) String continuationToken,
+            @RequestParam(required = false) Integer pageSize) {
+        // CosmosDB からドキュメントを 1 ページ分取得し、Web ページに表示するため、Model に追加
+        // (取得した行から順にブラウザに送信し、次のページのリンクは最後に送信する continuationToken から作成する)
+        var pages = cosmosDBUtil.getFailedDocumentsPage(status, fileName, continuationToken, toPageSize(pageSize));
+        model.addAttribute("pages", new ReactiveDataDriverContextVariable(pages, 1));
+        model.addAttribute("statuses", Arrays.stream(CosmosDBDocumentStatus.values())
+                .filter(value -> value != CosmosDBDocumentStatus.COMPLETED)
+                .toList());
+        model.addAttribute("status", status);
+        model.addAttribute("fileName", fileName);
+        model.addAttribute("pageSize", toPageSize(pageSize));
         return "listAllFailedContents";
     }
 
+    // 1 ページに表示する件数 (未指定の場合はデフォルト値、上限を超える場合は上限値)
+    private int toPageSize(Integer pageSize) {
+        if (pageSize == null || pageSize <= 0) {
+            return LIST_PAGE_SIZE;
+        }
+        return Math.min(pageSize, LIST_MAX_PAGE_SIZE);
+    }
+
     @GetMapping("/deleteContents")
-    public String deleteContents(Model model) {
-        // CosmosDB から全てのドキュメントを取得し、Web ページに表示するため、Model に追加
-        // 将来的にはページング処理を実装する必要ある
+    public String deleteContents(Model model, @RequestParam(value = "jobId", required = false) String jobId) {
+        // ファイルの一覧は変更フィードから作成したカタログから取得し、Web ページに表示するため、Model に追加
+        // カタログの作成が終わっていない場合のみ、CosmosDB から全てのファイル名を取得する
     	try {
-        	var list = cosmosDBUtil.getDocumentFileNames();
-        	model.addAttribute("list", (list == null || list.isEmpty()) ?
-        			new ArrayList<DeleteFileNameItem>() :
-        				Streams.mapWithIndex(list.stream(),
-        						(fileName, index) -> new DeleteFileNameItem((int)index, fileName)).collect(Collectors.toList()));
+    		List<DeleteFileNameItem> items;
+    		if (fileCatalogService.isReady()) {
+    			items = Streams.mapWithIndex(fileCatalogService.listFiles().stream(),
+    					(summary, index) -> toDeleteFileNameItem((int)index, summary)).collect(Collectors.toList());
+    		} else {
+    			var list = cosmosDBUtil.getDocumentFileNames();
+    			items = (list == null || list.isEmpty()) ?
+    					new ArrayList<DeleteFileNameItem>() :
+    						Streams.mapWithIndex(list.stream(),
+    								(fileName, index) -> new DeleteFileNameItem((int)index, fileName)).collect(Collectors.toList());
+    		}
+        	model.addAttribute("list", items);
         	model.addAttribute("deleteFileNames", new ArrayList<String>());
+        	// 削除を実行した場合は、その進捗を表示
+        	if (jobId != null) {
+        		contentDeletionService.getProgress(jobId).ifPresent(progress -> model.addAttribute("progress", progress));
+        	}
     	} catch (Exception e) {
     		throw new IllegalStateException(e);
     	}
         return "deleteContents";
     }
     
+    private DeleteFileNameItem toDeleteFileNameItem(int index, FileCatalogSummary summary) {
+    	var statusSummary = summary.statusCounts().entrySet().stream()
+    			.map(entry -> entry.getKey().name() + ": " + entry.getValue())
+    			.collect(Collectors.joining(", "));
+    	var lastUpdated = LAST_UPDATED_FORMATTER.format(summary.lastUpdated());
+    	return new DeleteFileNameItem(index, summary.fileName(), summary.chunkCount(), statusSummary, lastUpdated);
+    }
+
     @PostMapping("executeDeleteContents")
     public String executeDeleteContents(Model model, @ModelAttribute DeleteFileNameForm form) {
-		try {
-			if (form.isAllDelete()) {
-				// TODO:
-			} else if (form.getDeleteFileNames() != null && !form.getDeleteFileNames().isEmpty()) {
-				cosmosDBUtil.deleteDocuments(form.getDeleteFileNames());
-				deleteDocumentsFromPgsql(form.getDeleteFileNames());
-			}
-		} catch (Exception e) {
-    		throw new IllegalStateException(e);
+    	DeletionProgress progress;
+		if (form.isAllDelete()) {
+			progress = contentDeletionService.startDeletion(null);
+		} else if (form.getDeleteFileNames() != null && !form.getDeleteFileNames().isEmpty()) {
+			progress = contentDeletionService.startDeletion(form.getDeleteFileNames());
+		} else {
+	    	return "redirect:/deleteContents";
 		}
-    	return "redirect:/deleteContents";
-    }
-    
-    private void deleteDocumentsFromPgsql(List<String> fileNames) throws SQLException {
-    	if (fileNames == null || fileNames.isEmpty()) {
-    		return;
-    	}
-        try (var connection = DriverManager.getConnection(POSTGRESQL_JDBC_URL,
-                POSTGRESQL_USER, POSTGRESQL_PASSWORD)) {
-        	connection.setAutoCommit(false);
-        	try {
-                String querySql = "DELETE FROM " + POSTGRESQL_TABLE_NAME + " WHERE filename = ?;";
-            	try (var queryStatement = connection.prepareStatement(querySql)) {
-                    for (var fileName : fileNames) {
-                		queryStatement.setString(1, fileName);
-                		queryStatement.addBatch();
-                    }
-                    var updateCounts = queryStatement.executeBatch();
-                    var resultStr = Arrays.stream(updateCounts)
-                    		.mapToObj(i -> String.valueOf(0))
-                    		.collect(Collectors.joining(", "));
-                    LOGGER.info("Delete result. [{}]", resultStr);
-            	}
-                connection.commit();
-        	} catch (SQLException e) {
-            	LOGGER.error("Delete failure.", e);
-            	connection.rollback();
-        	}
-        } catch (SQLException e) {
-        	LOGGER.error("Connection failure.", e);
-        }
+    	return "redirect:/deleteContents?jobId=" + progress.jobId();
     }
 
-    // Create Sinks for accessed User
-    private Sinks.Many<String> createUserSink(UUID userId) {
-        Sinks.Many<String> userSink = Sinks.many().multicast().directBestEffort();
-        userSinks.put(userId, userSink);
-        LOGGER.debug("User ID: {} User Sink: {} is Added.", userId, userSink);
-        return userSink;
+    // 削除の進捗を取得
+    @GetMapping("/deleteContentsProgress")
+    @ResponseBody
+    public Mono<DeletionProgress> deleteContentsProgress(@RequestParam("jobId") String jobId) {
+    	return Mono.justOrEmpty(contentDeletionService.getProgress(jobId));
     }
 
-    // Get User Sinks
-    private Sinks.Many<String> getUserSink(UUID userId) {
-        return userSinks.get(userId);
+    // 再 Embedding の進捗を取得
+    @GetMapping("/reembeddingProgress")
+    @ResponseBody
+    public Mono<ShadowTableReembedder.Progress> reembeddingProgress() {
+    	return Mono.fromCallable(() -> reembeddingService.getProgress())
+    			.subscribeOn(Schedulers.boundedElastic())
+    			.flatMap(Mono::justOrEmpty);
     }
+    
 
     /**
      * Crete ChatMessage list
@@ -370,51 +575,71 @@ public class SSEOpenAIController {
 
     // 現時点では、Spring Data JPA を利用できない
     // 理由：Spring Data JPA では Native Query を利用したとしても、
-    // PostgreSQL の vector 型を扱うことができなかったため JDBC を利用
-    public Mono<List<DocumentSummarizer>> findMostSimilarString(String inputData) {
+    // PostgreSQL の vector 型を扱うことができなかったため、VectorStore (JDBC) を利用
+    public Mono<List<DocumentSummarizer>> findMostSimilarString(String inputData, SearchFilter filter) {
         EmbeddingsOptions embeddingsOptions = new EmbeddingsOptions(Arrays.asList(inputData));
 
-        return client.getEmbeddings(OPENAI_EMBEDDING_MODEL_NAME, embeddingsOptions)
-                .flatMap(embeddings -> {
+        // 再 Embedding でテーブルを切り替えた場合は、切り替え後のモデルで検索キーワードの Embedding を取得する
+        return reembeddingService.withEmbeddingModel(embeddingModel -> searchMetrics.timeEmbedding(
+                embeddingModel == null ? client.getEmbeddings(embeddingsOptions)
+                        : client.getEmbeddings(embeddingModel, embeddingsOptions))
+                .publishOn(Schedulers.boundedElastic())
+                .map(embeddings -> {
                     List<DocumentSummarizer> docSummaryList = new ArrayList<>();
-                    List<Double> embedding = embeddings.getData().stream().findFirst().get().getEmbedding();
-
-                    try (var connection = DriverManager.getConnection(POSTGRESQL_JDBC_URL,
-                            POSTGRESQL_USER, POSTGRESQL_PASSWORD)) {
-                        String array = embedding.toString();
-                        LOGGER.debug("Embedding: \n{}", array);
+                    var embedding = Vectors.fromList(embeddings.getData().stream().findFirst().get().getEmbedding());
+                    try {
                         // Vector での検索 (LIMIT を変更し複数件取得可能だが、非同期 Non-Blocking の場合には回答が混ざる)
-
-                        String querySql = "SELECT id,origntext,filename,pageNumber FROM " + POSTGRESQL_TABLE_NAME
-                                + " ORDER BY embedding <-> ?::vector LIMIT " + MAX_RESULT + ";";
-
-                        PreparedStatement queryStatement = connection.prepareStatement(querySql);
-                        queryStatement.setString(1, array);
-                        ResultSet resultSet = queryStatement.executeQuery();
-                        LOGGER.debug("resultSet: {}", resultSet);
-                        while (resultSet.next()) {
-                            DocumentSummarizer documentSummarizer = new DocumentSummarizer(
-                                    UUID.fromString(resultSet.getString("id")),
-                                    null,
-                                    resultSet.getString("origntext"),
-                                    resultSet.getString("filename"),
-                                    resultSet.getInt("pageNumber"));
+                        // 重複する結果を除外するため、MAX_RESULT より多めに候補を取得し MMR で絞り込む
+                        var queryStart = System.nanoTime();
+                        // 絞り込み条件を指定した場合は、条件に一致する行数に応じて VectorStore が検索方法を選択する
+                        var hits = vectorStore.search(embedding, Math.max(CANDIDATE_COUNT, MAX_RESULT), filter);
+                        searchMetrics.recordVectorQuery(System.nanoTime() - queryStart, hits.size());
+                        for (var hit : hits) {
+                            DocumentSummarizer documentSummarizer = new DocumentSummarizer(hit.id(), hit.embedding(),
+                                    hit.text(), hit.fileName(), hit.pageNumber());
                             docSummaryList.add(documentSummarizer);
-                            LOGGER.debug("DocumentSummarizer: {}", documentSummarizer);
+                            LOGGER.debug("DocumentSummarizer: {} {} page {}", documentSummarizer.id(),
+                                    documentSummarizer.filename(), documentSummarizer.pageNumber());
                         }
-                    } catch (SQLException e) {
+                    } catch (VectorStoreException e) {
                         LOGGER.error("Connection failure: {}", e.getMessage());
                     }
-                    return Mono.just(docSummaryList);
-                });
+                    // LLM を呼び出す前に、類似した結果を除外して MAX_RESULT 件に絞り込む
+                    var selected = diversifier.diversify(embedding, docSummaryList, MAX_RESULT);
+                    if (parentExpander.isEnabled()) {
+                        // 子チャンクをページ単位にまとめ、ページの中でヒットした箇所の前後だけを送信する
+                        return parentExpander.expand(selected, docSummaryList);
+                    }
+                    // テキストは絞り込んだ結果の分だけ取得する
+                    return withTexts(selected);
+                }));
     }
 
-    private void intervalToSendClient() {
+    private List<DocumentSummarizer> withTexts(List<DocumentSummarizer> docSummaryList) {
+        var missing = docSummaryList.stream()
+                .filter(docSummary -> docSummary.origntext() == null)
+                .map(DocumentSummarizer::id)
+                .toList();
+        if (missing.isEmpty()) {
+            return docSummaryList;
+        }
+        Map<UUID, String> texts;
         try {
-            TimeUnit.MILLISECONDS.sleep(20);
-        } catch (InterruptedException e) {
-            LOGGER.error("Error Occurred: {}", e.getMessage());
-            Thread.currentThread().interrupt();
+            texts = vectorStore.fetchTexts(missing);
+        } catch (VectorStoreException e) {
+            LOGGER.error("Connection failure: {}", e.getMessage());
+            return List.of();
+        }
+        List<DocumentSummarizer> result = new ArrayList<>(docSummaryList.size());
+        for (var docSummary : docSummaryList) {
+            var text = docSummary.origntext() != null ? docSummary.origntext() : texts.get(docSummary.id());
+            if (text == null) {
+                // テキストを取得する前に削除された場合
+                continue;
+            }
+            result.add(new DocumentSummarizer(docSummary.id(), docSummary.embedding(), text, docSummary.filename(),
+                    docSummary.pageNumber()));
         }
+        return result;
     }
 }
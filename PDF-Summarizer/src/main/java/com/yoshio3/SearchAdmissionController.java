@@ -0,0 +1,319 @@
+package com.yoshio3;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.yoshio3.entities.BusyInHTML;
+import com.yoshio3.resilience.LatencyTracker;
+import com.yoshio3.resilience.ResilientOpenAIClient;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import reactor.core.Disposable;
+import reactor.core.Disposables;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+import reactor.core.scheduler.Schedulers;
+
+// 検索 (Embedding・Vector 検索・Chat Completion Stream) の受け付けを制御する
+// ・全ユーザ合計とユーザ毎の同時実行数を制限し、空きが無い場合は上限のあるキューで到着順に待つ
+// ・待ち時間の見込み (キューの順番 × 直近の検索時間 / 同時実行数) が期限 (受け付けてから一定時間) を超える場合や、
+//   キューが一杯の場合は、待たずに busy イベントをクライアントに送信する (期限を過ぎても開始できない場合も同様)
+// ・全体の同時実行数は、OpenAI の最初のトークンまでの時間が目標を超えた場合は減らし、
+//   目標以内で上限まで実行している場合は 1 ずつ増やす (AIMD)
+//   前回の見直し以降に記録した時間だけで判断する (同じ記録で繰り返し減らさない、記録が無い場合は変更しない)
+// 全員を遅くするよりも、受け付けた検索を速く返すことを優先する
+@Component
+public class SearchAdmissionController {
+
+    private final Logger LOGGER = LoggerFactory.getLogger(SearchAdmissionController.class);
+
+    private static final String BUSY_EVENT_TYPE = "busy";
+
+    // 同時実行数を減らす場合の割合
+    private static final double DECREASE_FACTOR = 0.75;
+
+    @Value("${search.admission.enabled:true}")
+    private boolean ADMISSION_ENABLED;
+
+    // 全ユーザ合計の検索の同時実行数の上限と下限 (この範囲で OpenAI のレイテンシに合わせて変更する)
+    @Value("${search.admission.max.concurrent.global:8}")
+    private int MAX_CONCURRENT_GLOBAL;
+
+    @Value("${search.admission.min.concurrent.global:2}")
+    private int MIN_CONCURRENT_GLOBAL;
+
+    // ユーザ毎の検索の同時実行数 (待っている検索も含む)
+    @Value("${search.admission.max.concurrent.per.user:1}")
+    private int MAX_CONCURRENT_PER_USER;
+
+    // 空きを待つ検索の数
+    @Value("${search.admission.queue.size:32}")
+    private int QUEUE_SIZE;
+
+    // 受け付けてから検索を開始するまでの期限
+    @Value("${search.admission.max.wait.ms:3000}")
+    private long MAX_WAIT_MS;
+
+    // OpenAI の Chat Completion Stream の最初のトークンまでの時間の目標とそのパーセンタイル
+    @Value("${search.admission.target.latency.ms:2000}")
+    private long TARGET_LATENCY_MS;
+
+    @Value("${search.admission.latency.percentile:0.9}")
+    private double LATENCY_PERCENTILE;
+
+    // 同時実行数を見直す間隔
+    @Value("${search.admission.adjust.interval.ms:5000}")
+    private long ADJUST_INTERVAL_MS;
+
+    @Autowired
+    private ResilientOpenAIClient client;
+
+    @Autowired
+    private SseEventEmitter eventEmitter;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    // 待ち時間の見込みに利用する、検索の開始から終了までの時間
+    private final LatencyTracker serviceTime = new LatencyTracker(200);
+
+    // 空きを待つ検索 (到着順)
+    private final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+
+    // ユーザ毎の実行中・待っている検索の数
+    private final Map<UUID, Integer> userCounts = new HashMap<>();
+
+    private int limit;
+    private int inFlight = 0;
+
+    // 前回の見直しの時点で、OpenAI のレイテンシを記録していた数
+    private long lastLatencyCount = 0;
+
+    private Disposable adjustTask;
+
+    @PostConstruct
+    public void init() {
+        limit = MAX_CONCURRENT_GLOBAL;
+        Gauge.builder("search.admission.limit", this, SearchAdmissionController::getLimit)
+                .description("Current number of searches allowed to run concurrently")
+                .register(meterRegistry);
+        Gauge.builder("search.admission.in.flight", this, SearchAdmissionController::getInFlight)
+                .description("Number of searches being executed")
+                .register(meterRegistry);
+        Gauge.builder("search.admission.queued", this, SearchAdmissionController::getQueued)
+                .description("Number of searches waiting for admission")
+                .register(meterRegistry);
+        if (ADMISSION_ENABLED) {
+            adjustTask = Schedulers.parallel().schedulePeriodically(this::adjustLimit,
+                    ADJUST_INTERVAL_MS, ADJUST_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (adjustTask != null) {
+            adjustTask.dispose();
+        }
+    }
+
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized int getQueued() {
+        return waiters.size();
+    }
+
+    // 受け付けた場合は search を購読し、受け付けなかった場合は busy イベントだけを返す
+    // submittedAt は検索のリクエストを受け付けた時刻 (ブローカーで配信されるまでの時間も期限に含める)
+    public Flux<String> admit(UUID userId, long submittedAt, Flux<String> search) {
+        if (!ADMISSION_ENABLED) {
+            return search;
+        }
+        return Flux.usingWhen(acquire(userId, submittedAt),
+                permit -> permit.admitted() ? search : Flux.just(busyEvent(permit)),
+                permit -> release(permit),
+                (permit, error) -> release(permit),
+                permit -> release(permit));
+    }
+
+    private Mono<Permit> acquire(UUID userId, long submittedAt) {
+        return Mono.create(sink -> {
+            var deadline = submittedAt + MAX_WAIT_MS;
+            Waiter waiter = null;
+            Permit permit = null;
+            synchronized (this) {
+                var now = System.currentTimeMillis();
+                var estimatedWait = estimateWait(waiters.size());
+                if (userCounts.getOrDefault(userId, 0) >= MAX_CONCURRENT_PER_USER) {
+                    permit = Permit.rejected(userId, "user_limit", estimatedWait);
+                } else if (inFlight < limit && waiters.isEmpty()) {
+                    inFlight++;
+                    addUserCount(userId, 1);
+                    permit = Permit.admitted(userId);
+                } else if (waiters.size() >= QUEUE_SIZE) {
+                    permit = Permit.rejected(userId, "queue_full", estimatedWait);
+                } else if (now + estimatedWait > deadline) {
+                    permit = Permit.rejected(userId, "deadline", estimatedWait);
+                } else {
+                    waiter = new Waiter(userId, sink, new AtomicInteger(Waiter.WAITING), Permit.admitted(userId),
+                            Disposables.swap());
+                    waiters.addLast(waiter);
+                    addUserCount(userId, 1);
+                }
+            }
+            if (waiter == null) {
+                if (!permit.admitted()) {
+                    onRejected(permit);
+                }
+                sink.success(permit);
+                return;
+            }
+            var queued = waiter;
+            LOGGER.debug("Search queued (user={}, waiting={})", userId, getQueued());
+            // 期限までに開始できない場合は busy イベントを送信する
+            queued.timeout().update(Schedulers.parallel().schedule(() -> expire(queued),
+                    Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS));
+            sink.onCancel(() -> {
+                queued.timeout().dispose();
+                if (queued.state().compareAndSet(Waiter.WAITING, Waiter.CANCELLED)) {
+                    synchronized (this) {
+                        waiters.remove(queued);
+                        addUserCount(queued.userId(), -1);
+                    }
+                } else if (queued.state().get() == Waiter.GRANTED) {
+                    // 許可を渡した直後にキャンセルされた場合は返却する
+                    release(queued.permit());
+                }
+            });
+        });
+    }
+
+    private void expire(Waiter waiter) {
+        if (!waiter.state().compareAndSet(Waiter.WAITING, Waiter.EXPIRED)) {
+            return;
+        }
+        long estimatedWait;
+        synchronized (this) {
+            waiters.remove(waiter);
+            addUserCount(waiter.userId(), -1);
+            estimatedWait = estimateWait(waiters.size());
+        }
+        var permit = Permit.rejected(waiter.userId(), "timeout", estimatedWait);
+        onRejected(permit);
+        waiter.sink().success(permit);
+    }
+
+    private Mono<Void> release(Permit permit) {
+        if (!permit.admitted() || !permit.released().compareAndSet(false, true)) {
+            return Mono.empty();
+        }
+        serviceTime.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - permit.startedAt().get()));
+        List<Waiter> granted;
+        synchronized (this) {
+            inFlight--;
+            addUserCount(permit.userId(), -1);
+            granted = grantWaiters();
+        }
+        granted.forEach(waiter -> waiter.sink().success(waiter.permit()));
+        return Mono.empty();
+    }
+
+    // 空きの数だけ、待っている検索を到着順に開始する (synchronized の中で呼び出す)
+    private List<Waiter> grantWaiters() {
+        List<Waiter> granted = new ArrayList<>();
+        while (inFlight < limit && !waiters.isEmpty()) {
+            var waiter = waiters.pollFirst();
+            if (waiter.state().compareAndSet(Waiter.WAITING, Waiter.GRANTED)) {
+                waiter.timeout().dispose();
+                waiter.permit().startedAt().set(System.nanoTime());
+                inFlight++;
+                granted.add(waiter);
+            }
+        }
+        return granted;
+    }
+
+    // OpenAI の最初のトークンまでの時間に合わせて、全体の同時実行数を変更する
+    private void adjustLimit() {
+        // 2 つの呼び出しの間に記録したものは次の見直しに含めない (同じ記録で 2 回判断しないため)
+        var latency = client.getChatLatencyPercentileSince(LATENCY_PERCENTILE, lastLatencyCount);
+        lastLatencyCount = client.getChatLatencyCount();
+        List<Waiter> granted;
+        synchronized (this) {
+            var previous = limit;
+            if (latency > TARGET_LATENCY_MS) {
+                limit = Math.max(MIN_CONCURRENT_GLOBAL, (int) Math.floor(limit * DECREASE_FACTOR));
+            } else if (latency >= 0 && (inFlight >= limit || !waiters.isEmpty())) {
+                limit = Math.min(MAX_CONCURRENT_GLOBAL, limit + 1);
+            }
+            if (limit != previous) {
+                LOGGER.info("Search admission limit changed: {} -> {} (OpenAI latency p{}: {} ms)", previous, limit,
+                        Math.round(LATENCY_PERCENTILE * 100), latency);
+            }
+            granted = grantWaiters();
+        }
+        granted.forEach(waiter -> waiter.sink().success(waiter.permit()));
+    }
+
+    // position 番目に待つ検索が開始するまでの時間の見込み (検索時間の記録が無い場合は 0)
+    private long estimateWait(int position) {
+        var median = serviceTime.percentile(0.5, 0);
+        return (position + 1) * median / Math.max(1, limit);
+    }
+
+    private void addUserCount(UUID userId, int delta) {
+        userCounts.merge(userId, delta, (count, change) -> count + change > 0 ? count + change : null);
+    }
+
+    private void onRejected(Permit permit) {
+        LOGGER.debug("Search rejected (user={}, reason={})", permit.userId(), permit.reason());
+        meterRegistry.counter("search.admission.rejected", "reason", permit.reason()).increment();
+    }
+
+    private String busyEvent(Permit permit) {
+        return eventEmitter.encode(new BusyInHTML(BUSY_EVENT_TYPE, permit.reason(),
+                Math.max(permit.retryAfterMs(), 1000)));
+    }
+
+    private record Permit(UUID userId, boolean admitted, String reason, long retryAfterMs, AtomicLong startedAt,
+            AtomicBoolean released) {
+        static Permit admitted(UUID userId) {
+            return new Permit(userId, true, null, 0, new AtomicLong(System.nanoTime()), new AtomicBoolean(false));
+        }
+
+        static Permit rejected(UUID userId, String reason, long retryAfterMs) {
+            return new Permit(userId, false, reason, retryAfterMs, new AtomicLong(), new AtomicBoolean(true));
+        }
+    }
+
+    private record Waiter(UUID userId, MonoSink<Permit> sink, AtomicInteger state, Permit permit,
+            Disposable.Swap timeout) {
+        static final int WAITING = 0;
+        static final int GRANTED = 1;
+        static final int CANCELLED = 2;
+        static final int EXPIRED = 3;
+    }
+}
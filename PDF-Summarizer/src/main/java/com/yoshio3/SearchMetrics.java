@@ -0,0 +1,81 @@
+package com.yoshio3;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
+import reactor.core.publisher.Sinks.EmitResult;
+
+// 検索処理のメトリクス (Actuator の /actuator/prometheus で公開)
+// ・検索キーワードの Embedding の取得時間
+// ・Vector 検索の実行時間と取得した行数
+// ・OpenAI の Chat Completion Stream の最初のトークンまでの時間 (TTFT) と、終了までの時間
+// ・プロンプトのトークン数 (推定値) と、受信したトークン (差分) の数
+// ・SSE のセッションへの登録に失敗した回数 (EmitResult 毎)
+@Component
+public class SearchMetrics {
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    public <T> Mono<T> timeEmbedding(Mono<T> embedding) {
+        return Mono.defer(() -> {
+            var sample = Timer.start(meterRegistry);
+            return embedding.doFinally(signal -> sample.stop(meterRegistry.timer("search.embedding.latency",
+                    "outcome", outcome(signal))));
+        });
+    }
+
+    public void recordVectorQuery(long elapsedNanos, int rows) {
+        meterRegistry.timer("search.vector.query.latency").record(elapsedNanos, TimeUnit.NANOSECONDS);
+        DistributionSummary.builder("search.vector.query.rows")
+                .description("Number of candidate rows returned by the vector query")
+                .register(meterRegistry)
+                .record(rows);
+    }
+
+    // Chat Completion Stream の TTFT・終了までの時間・トークン数を記録
+    // mode は回答の作成方法 (per-hit, packed)
+    public Flux<String> timeCompletion(String mode, String prompt, Flux<String> tokens) {
+        return Flux.defer(() -> {
+            meterRegistry.counter("search.prompt.tokens", "mode", mode).increment(TokenEstimator.estimate(prompt));
+            var start = System.nanoTime();
+            var firstToken = new AtomicBoolean(true);
+            var completionTokens = meterRegistry.counter("search.completion.tokens", "mode", mode);
+            return tokens
+                    .doOnNext(token -> {
+                        if (firstToken.compareAndSet(true, false)) {
+                            meterRegistry.timer("search.completion.ttft", "mode", mode)
+                                    .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                        }
+                        completionTokens.increment();
+                    })
+                    .doFinally(signal -> meterRegistry.timer("search.completion.duration",
+                            "mode", mode, "outcome", outcome(signal))
+                            .record(System.nanoTime() - start, TimeUnit.NANOSECONDS));
+        });
+    }
+
+    public void recordEmitResult(EmitResult result) {
+        if (result.isFailure()) {
+            meterRegistry.counter("sse.emit.failures", "result", result.name()).increment();
+        }
+    }
+
+    private static String outcome(SignalType signal) {
+        return switch (signal) {
+            case ON_COMPLETE -> "success";
+            case ON_ERROR -> "error";
+            case CANCEL -> "cancelled";
+            default -> signal.name().toLowerCase();
+        };
+    }
+}
@@ -0,0 +1,77 @@
+package com.yoshio3;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.yoshio3.entities.DocumentSummarizer;
+import com.yoshio3.vectorstore.Vectors;
+
+// ベクトル検索の候補から、内容が重複する結果を取り除き、多様性のある上位 k 件を選択する
+// (Maximal Marginal Relevance : MMR)
+// 同じページの隣接チャンクや、同じファイルの連続したページに対して何度も要約を依頼しないようにするため
+@Component
+public class SearchResultDiversifier {
+
+    private final Logger LOGGER = LoggerFactory.getLogger(SearchResultDiversifier.class);
+
+    // 関連度と多様性の重み (1.0 に近いほど関連度を優先、0.0 に近いほど多様性を優先)
+    @Value("${search.diversify.mmr.lambda:0.7}")
+    private double MMR_LAMBDA;
+
+    // 同じファイル名・ページ番号のチャンクを 1 件にまとめるか否か
+    @Value("${search.diversify.collapse.same.page:true}")
+    private boolean COLLAPSE_SAME_PAGE;
+
+    // 候補の中から MMR で maxResult 件を選択する
+    // candidates はクエリとの距離が近い順に並んでいる事を前提とする
+    public List<DocumentSummarizer> diversify(float[] query, List<DocumentSummarizer> candidates,
+            int maxResult) {
+        if (candidates.size() <= 1) {
+            return candidates;
+        }
+        var remaining = new ArrayList<DocumentSummarizer>();
+        var relevance = new ArrayList<Double>();
+        Set<String> seenPages = new HashSet<>();
+        for (var candidate : candidates) {
+            // 同一ページのチャンクは、より上位のものだけを残す
+            if (COLLAPSE_SAME_PAGE && !seenPages.add(candidate.filename() + "#" + candidate.pageNumber())) {
+                LOGGER.debug("Collapsed: {} page {}", candidate.filename(), candidate.pageNumber());
+                continue;
+            }
+            remaining.add(candidate);
+            relevance.add(candidate.embedding() == null ? 0d : Vectors.cosineSimilarity(query, candidate.embedding()));
+        }
+
+        List<DocumentSummarizer> selected = new ArrayList<>();
+        while (selected.size() < maxResult && !remaining.isEmpty()) {
+            int bestIndex = 0;
+            double bestScore = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < remaining.size(); i++) {
+                var candidate = remaining.get(i);
+                double redundancy = 0d;
+                for (var chosen : selected) {
+                    if (candidate.embedding() != null && chosen.embedding() != null) {
+                        redundancy = Math.max(redundancy,
+                                Vectors.cosineSimilarity(candidate.embedding(), chosen.embedding()));
+                    }
+                }
+                double score = MMR_LAMBDA * relevance.get(i) - (1 - MMR_LAMBDA) * redundancy;
+                if (score > bestScore) {
+                    bestScore = score;
+                    bestIndex = i;
+                }
+            }
+            selected.add(remaining.remove(bestIndex));
+            relevance.remove(bestIndex);
+        }
+        LOGGER.debug("Diversified {} candidates to {} results", candidates.size(), selected.size());
+        return selected;
+    }
+}
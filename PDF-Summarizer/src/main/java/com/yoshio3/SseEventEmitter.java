@@ -0,0 +1,62 @@
+package com.yoshio3;
+
+import java.time.Duration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.google.gson.Gson;
+import com.yoshio3.entities.CreateMessageInHTML;
+
+import reactor.core.publisher.Flux;
+
+// クライアントに送信する SSE のイベントを作成する
+// OpenAI から 1 トークンずつ返される文字列を、一定時間または一定数ごとにまとめて 1 つのイベントとして送信する
+@Component
+public class SseEventEmitter {
+
+    private final Logger LOGGER = LoggerFactory.getLogger(SseEventEmitter.class);
+
+    // Gson はスレッドセーフなため、全てのイベントで共有する
+    private static final Gson GSON = new Gson();
+
+    // トークンをまとめる時間 (ミリ秒)
+    @Value("${sse.coalesce.window.ms:50}")
+    private long COALESCE_WINDOW_MS;
+
+    // 1 つのイベントにまとめるトークンの最大数
+    @Value("${sse.coalesce.max.tokens:32}")
+    private int COALESCE_MAX_TOKENS;
+
+    // OpenAI の Stream に 1 回で要求するトークンの数 (要求した分を処理してから、次のトークンを要求する)
+    @Value("${sse.token.request.size:256}")
+    private int TOKEN_REQUEST_SIZE;
+
+    // イベントを JSON 文字列に変換
+    public String encode(Object event) {
+        return GSON.toJson(event);
+    }
+
+    // ドキュメント毎のトークンの Stream を、まとめた addMessage イベントの Stream に変換する
+    // ・OpenAI の Stream には TOKEN_REQUEST_SIZE 件ずつ要求する (無制限には要求しない)
+    //   クライアントへの送信は SseSession が保持したイベントから行うため、送信の遅れは OpenAI の Stream には伝えない
+    // ・途中でエラーになった場合は、回答が途中で終わったことを示す truncated イベントを送信して終了する
+    public Flux<String> coalesceMessages(String documentID, Flux<String> tokens) {
+        return tokens
+                .limitRate(TOKEN_REQUEST_SIZE)
+                .bufferTimeout(COALESCE_MAX_TOKENS, Duration.ofMillis(COALESCE_WINDOW_MS))
+                .map(contents -> String.join("", contents))
+                .map(content -> {
+                    if (content.contains(" ")) {
+                        content = content.replace(" ", "<SPECIAL_WHITE_SPACE>");
+                    }
+                    return encode(new CreateMessageInHTML("addMessage", documentID, content));
+                })
+                .onErrorResume(error -> {
+                    LOGGER.error("Message stream truncated: {} {}", documentID, error.toString());
+                    return Flux.just(encode(new CreateMessageInHTML("truncated", documentID, "")));
+                });
+    }
+}
@@ -0,0 +1,190 @@
+package com.yoshio3;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.codec.ServerSentEvent;
+
+import reactor.core.Disposable;
+import reactor.core.Disposables;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.core.publisher.Sinks.EmitResult;
+
+// ユーザ (ブラウザのタブ) 毎の SSE のセッション
+// ・検索 1 回分のイベントの Stream を受け付け、接続とは独立して実行する (新しい検索を受け付けた場合は実行中の検索をキャンセル)
+// ・実行結果のイベントに連番の ID を付与して保持し、接続中のクライアントは保持しているイベントを順に送信する
+//   (EventSource が再接続しても検索は継続し、Last-Event-ID 以降のイベントを再送する)
+// ・Last-Event-ID を指定しない接続には、まだどの接続にも送信していないイベントから送信する
+public class SseSession {
+
+    private final Logger LOGGER = LoggerFactory.getLogger(SseSession.class);
+
+    private final UUID userId;
+
+    private final int replayBufferSize;
+
+    // 実行中の検索 (新しい検索を受け付けた場合、セッションを終了する場合にキャンセル)
+    private Disposable generation;
+
+    private boolean closed = false;
+
+    // 送信用に保持しているイベント (古いものから順に破棄)
+    private final Deque<ServerSentEvent<String>> replayBuffer = new ArrayDeque<>();
+
+    private long lastEventId = 0;
+
+    // いずれかの接続に送信した最後のイベントの ID
+    private long deliveredEventId = 0;
+
+    // イベントを保持したことを接続に通知するための Sinks (通知を受けた接続は保持しているイベントを読み進める)
+    private final Sinks.Many<Long> recorded = Sinks.many().multicast().directBestEffort();
+
+    private final AtomicInteger connections = new AtomicInteger();
+
+    // 現在の接続を終了させるための Sinks (同じユーザが再接続した場合は古い接続を終了する)
+    private Sinks.Empty<Void> currentConnection = Sinks.empty();
+
+    private volatile long lastAccessTime = System.currentTimeMillis();
+
+    SseSession(UUID userId, int replayBufferSize) {
+        this.userId = userId;
+        this.replayBufferSize = replayBufferSize;
+    }
+
+    public UUID getUserId() {
+        return userId;
+    }
+
+    // 検索 1 回分のイベントの Stream を登録し、クライアントの接続の有無に関わらず実行する
+    public EmitResult submit(Flux<String> events) {
+        touch();
+        var current = Disposables.swap();
+        Disposable previous;
+        synchronized (this) {
+            if (closed) {
+                return EmitResult.FAIL_TERMINATED;
+            }
+            previous = generation;
+            generation = current;
+        }
+        if (previous != null) {
+            previous.dispose();
+        }
+        // セッションを終了した場合は current が破棄済みのため、購読もすぐにキャンセルされる
+        current.update(events.subscribe(this::record, error -> {
+            LOGGER.error("Search failure: {}", userId, error);
+            touch();
+        }, this::touch));
+        return EmitResult.OK;
+    }
+
+    // クライアントの接続
+    // lastEventId が指定された場合は、保持しているイベントのうちそれ以降のものから送信する
+    // onGap には保持しているイベントから破棄され、送信できずに失われたイベントの数が通知される
+    Flux<ServerSentEvent<String>> connect(Long lastEventId, LongConsumer onGap) {
+        Sinks.Empty<Void> connection = Sinks.empty();
+        Sinks.Empty<Void> previous;
+        synchronized (this) {
+            previous = currentConnection;
+            currentConnection = connection;
+        }
+        previous.tryEmitEmpty();
+
+        return Flux.defer(() -> {
+            AtomicLong cursor;
+            synchronized (this) {
+                cursor = new AtomicLong(lastEventId != null ? Math.min(lastEventId, this.lastEventId)
+                        : deliveredEventId);
+            }
+            // 先に通知を購読してから保持しているイベントを読み進める (購読前に保持したイベントも送信するため)
+            return recorded.asFlux()
+                    .onBackpressureLatest()
+                    .mergeWith(Mono.just(0L))
+                    .concatMapIterable(signal -> eventsAfter(cursor, onGap));
+        })
+                .takeUntilOther(connection.asMono())
+                .doOnSubscribe(subscription -> {
+                    connections.incrementAndGet();
+                    touch();
+                })
+                .doFinally(signal -> {
+                    connections.decrementAndGet();
+                    touch();
+                });
+    }
+
+    // 接続中のクライアントが無く、指定時間以上アクセスが無いか否か
+    boolean isIdle(long idleTimeoutMillis) {
+        return connections.get() == 0 && System.currentTimeMillis() - lastAccessTime > idleTimeoutMillis;
+    }
+
+    boolean isConnected() {
+        return connections.get() > 0;
+    }
+
+    // セッションの終了 (実行中の検索もキャンセル)
+    void close() {
+        Sinks.Empty<Void> connection;
+        Disposable current;
+        synchronized (this) {
+            closed = true;
+            connection = currentConnection;
+            current = generation;
+            replayBuffer.clear();
+        }
+        if (current != null) {
+            current.dispose();
+        }
+        connection.tryEmitEmpty();
+        recorded.tryEmitComplete();
+    }
+
+    private void record(String data) {
+        long eventId;
+        synchronized (this) {
+            eventId = ++lastEventId;
+            replayBuffer.addLast(ServerSentEvent.builder(data).id(String.valueOf(eventId)).build());
+            while (replayBuffer.size() > replayBufferSize) {
+                replayBuffer.removeFirst();
+            }
+        }
+        touch();
+        // 前の検索の最後のイベントと同時に通知する場合があるため、失敗した場合は再試行する
+        recorded.emitNext(eventId, (signal, result) -> result == EmitResult.FAIL_NON_SERIALIZED);
+    }
+
+    // cursor より後のイベントを取得し、cursor を最後のイベントまで進める
+    private synchronized List<ServerSentEvent<String>> eventsAfter(AtomicLong cursor, LongConsumer onGap) {
+        var events = new ArrayList<ServerSentEvent<String>>();
+        var eventId = cursor.get();
+        if (eventId >= lastEventId) {
+            return events;
+        }
+        var oldest = replayBuffer.isEmpty() ? lastEventId + 1 : Long.parseLong(replayBuffer.peekFirst().id());
+        if (oldest > eventId + 1) {
+            onGap.accept(oldest - eventId - 1);
+        }
+        for (var event : replayBuffer) {
+            if (Long.parseLong(event.id()) > eventId) {
+                events.add(event);
+            }
+        }
+        cursor.set(lastEventId);
+        deliveredEventId = Math.max(deliveredEventId, lastEventId);
+        return events;
+    }
+
+    void touch() {
+        lastAccessTime = System.currentTimeMillis();
+    }
+}
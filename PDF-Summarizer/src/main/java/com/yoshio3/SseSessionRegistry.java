@@ -0,0 +1,140 @@
+package com.yoshio3;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.stereotype.Component;
+
+import com.yoshio3.broker.SessionBroker;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Sinks.EmitResult;
+import reactor.core.scheduler.Schedulers;
+
+// ユーザ毎の SSE のセッションを管理する
+// 一定時間接続が無いセッションは破棄し、セッション数と送信できなかったイベント数をメトリクスとして公開する
+@Component
+public class SseSessionRegistry {
+
+    private final Logger LOGGER = LoggerFactory.getLogger(SseSessionRegistry.class);
+
+    // 接続が無い状態でセッションを保持する時間 (秒)
+    @Value("${sse.session.idle.timeout.seconds:300}")
+    private long IDLE_TIMEOUT_SECONDS;
+
+    // 接続に送信するため・Last-Event-ID による再送のために保持するイベント数
+    @Value("${sse.session.replay.buffer.size:512}")
+    private int REPLAY_BUFFER_SIZE;
+
+    private final Map<UUID, SseSession> sessions = new ConcurrentHashMap<>();
+
+    private final AtomicLong droppedEvents = new AtomicLong();
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    // セッションを破棄した場合に、このノードが所有者である記録を削除する
+    @Autowired
+    private SessionBroker sessionBroker;
+
+    private Disposable evictionTask;
+
+    @PostConstruct
+    public void init() {
+        Gauge.builder("sse.sessions.active", sessions, Map::size)
+                .description("Number of SSE sessions held by this node")
+                .register(meterRegistry);
+        Gauge.builder("sse.sessions.connected", sessions,
+                map -> map.values().stream().filter(SseSession::isConnected).count())
+                .description("Number of SSE sessions with a connected client")
+                .register(meterRegistry);
+        FunctionCounter.builder("sse.events.dropped", droppedEvents, AtomicLong::get)
+                .description("Number of SSE events or submissions that could not be delivered")
+                .register(meterRegistry);
+
+        var interval = Math.max(1, IDLE_TIMEOUT_SECONDS / 2);
+        evictionTask = Schedulers.parallel().schedulePeriodically(this::evictIdleSessions,
+                interval, interval, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (evictionTask != null) {
+            evictionTask.dispose();
+        }
+        sessions.values().forEach(SseSession::close);
+        sessions.clear();
+    }
+
+    // クライアントの接続 (Last-Event-ID が指定された場合は、それ以降のイベントを再送)
+    public Flux<ServerSentEvent<String>> connect(UUID userId, Long lastEventId) {
+        LOGGER.debug("User ID: {} connected. (Last-Event-ID: {})", userId, lastEventId);
+        return getOrCreate(userId).connect(lastEventId, droppedEvents::addAndGet);
+    }
+
+    // 検索 1 回分のイベントの Stream をユーザのセッションに登録する
+    public EmitResult submit(UUID userId, Flux<String> events) {
+        var result = getOrCreate(userId).submit(events);
+        if (result.isFailure()) {
+            droppedEvents.incrementAndGet();
+        }
+        return result;
+    }
+
+    // クライアントが他のノードに接続した場合、このノードのセッションを破棄する (実行中の検索もキャンセル)
+    public void close(UUID userId) {
+        var session = sessions.remove(userId);
+        if (session != null) {
+            LOGGER.debug("User ID: {} Session is Closed.", userId);
+            session.close();
+        }
+    }
+
+    public Optional<SseSession> find(UUID userId) {
+        return Optional.ofNullable(sessions.get(userId));
+    }
+
+    // 取得と同時にアクセス時刻を更新し、接続・登録する前に evictIdleSessions で破棄されないようにする
+    private SseSession getOrCreate(UUID userId) {
+        return sessions.compute(userId, (key, session) -> {
+            if (session == null) {
+                LOGGER.debug("User ID: {} Session is Added.", key);
+                return new SseSession(key, REPLAY_BUFFER_SIZE);
+            }
+            session.touch();
+            return session;
+        });
+    }
+
+    // 一定時間接続が無いセッションを破棄
+    // (判定と削除は computeIfPresent でまとめて行い、同時に再接続した場合は getOrCreate と競合させない)
+    private void evictIdleSessions() {
+        var idleTimeoutMillis = TimeUnit.SECONDS.toMillis(IDLE_TIMEOUT_SECONDS);
+        for (var userId : sessions.keySet()) {
+            sessions.computeIfPresent(userId, (key, session) -> {
+                if (!session.isIdle(idleTimeoutMillis)) {
+                    return session;
+                }
+                LOGGER.debug("User ID: {} Session is Evicted.", key);
+                session.close();
+                sessionBroker.release(key);
+                return null;
+            });
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.yoshio3;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+
+// OpenAI の Chat Completion Stream の同時実行数を制御する
+// ・全ユーザ合計の同時実行数を制限し、空きが無い場合は検索順位の高いものから順に実行する
+// ・ユーザ毎の同時実行数を制限する (検索順位の高いものから順に開始)
+// 同じユーザから新しい検索が来た場合や、SSE の接続が切れた場合のキャンセルは、
+// SSE の Stream (switchMap) の購読解除により行われ、その際に実行許可も返却される
+@Component
+public class SummaryStreamGovernor {
+
+    private final Logger LOGGER = LoggerFactory.getLogger(SummaryStreamGovernor.class);
+
+    // 全ユーザ合計の Chat Completion Stream の同時実行数
+    @Value("${search.summary.max.concurrent.global:16}")
+    private int MAX_CONCURRENT_GLOBAL;
+
+    // ユーザ毎の Chat Completion Stream の同時実行数
+    @Value("${search.summary.max.concurrent.per.user:2}")
+    private int MAX_CONCURRENT_PER_USER;
+
+    // 実行許可待ちのキュー (検索順位 → 到着順)
+    private final PriorityQueue<Waiter> waiters = new PriorityQueue<>(
+            Comparator.comparingInt(Waiter::rank).thenComparingLong(Waiter::sequence));
+
+    private int inFlight = 0;
+    private long sequence = 0;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @PostConstruct
+    public void init() {
+        Gauge.builder("search.completions.in.flight", this, SummaryStreamGovernor::getInFlight)
+                .description("Number of Chat Completion Streams being executed")
+                .register(meterRegistry);
+        Gauge.builder("search.completions.queued", this, SummaryStreamGovernor::getQueued)
+                .description("Number of Chat Completion Streams waiting for a permit")
+                .register(meterRegistry);
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized int getQueued() {
+        return waiters.size();
+    }
+
+    public int getMaxConcurrentPerUser() {
+        return MAX_CONCURRENT_PER_USER;
+    }
+
+    // 実行許可を取得してから source を購読し、終了・エラー・キャンセル時に許可を返却する
+    // rank は検索順位 (0 が最上位)
+    public <T> Flux<T> limit(int rank, Flux<T> source) {
+        return Flux.usingWhen(acquire(rank),
+                permit -> source,
+                permit -> release(permit),
+                (permit, error) -> release(permit),
+                permit -> release(permit));
+    }
+
+    private Mono<Permit> acquire(int rank) {
+        return Mono.create(sink -> {
+            Waiter waiter;
+            synchronized (this) {
+                if (inFlight < MAX_CONCURRENT_GLOBAL) {
+                    inFlight++;
+                    waiter = null;
+                } else {
+                    waiter = new Waiter(rank, sequence++, sink, new AtomicInteger(Waiter.WAITING), new Permit());
+                    waiters.add(waiter);
+                }
+            }
+            if (waiter == null) {
+                sink.success(new Permit());
+                return;
+            }
+            LOGGER.debug("Summary queued (rank={}, waiting={})", rank, waiters.size());
+            sink.onCancel(() -> {
+                if (waiter.state().compareAndSet(Waiter.WAITING, Waiter.CANCELLED)) {
+                    synchronized (this) {
+                        waiters.remove(waiter);
+                    }
+                } else {
+                    // 許可を渡した直後にキャンセルされた場合は返却する
+                    release(waiter.permit());
+                }
+            });
+        });
+    }
+
+    private Mono<Void> release(Permit permit) {
+        if (permit.released().compareAndSet(false, true)) {
+            Waiter next;
+            synchronized (this) {
+                do {
+                    next = waiters.poll();
+                } while (next != null && !next.state().compareAndSet(Waiter.WAITING, Waiter.GRANTED));
+                if (next == null) {
+                    inFlight--;
+                }
+            }
+            if (next != null) {
+                next.sink().success(next.permit());
+            }
+        }
+        return Mono.empty();
+    }
+
+    private record Permit(AtomicBoolean released) {
+        Permit() {
+            this(new AtomicBoolean(false));
+        }
+    }
+
+    private record Waiter(int rank, long sequence, MonoSink<Permit> sink, AtomicInteger state, Permit permit) {
+        static final int WAITING = 0;
+        static final int GRANTED = 1;
+        static final int CANCELLED = 2;
+    }
+}
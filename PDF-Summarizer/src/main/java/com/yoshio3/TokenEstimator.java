@@ -0,0 +1,44 @@
+package com.yoshio3;
+
+// OpenAI に送信するテキストのトークン数を概算する
+// (英数字は約 4 文字で 1 トークン、日本語などのそれ以外の文字は 1 文字で約 1 トークンとして計算)
+public final class TokenEstimator {
+
+    private TokenEstimator() {}
+
+    public static int estimate(String text) {
+        if (text == null || text.isEmpty()) {
+            return 0;
+        }
+        int ascii = 0;
+        int others = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) < 0x80) {
+                ascii++;
+            } else {
+                others++;
+            }
+        }
+        return (ascii + 3) / 4 + others;
+    }
+
+    // 指定したトークン数に収まるように、先頭から文字列を切り出す
+    public static String truncate(String text, int maxTokens) {
+        if (estimate(text) <= maxTokens) {
+            return text;
+        }
+        int ascii = 0;
+        int others = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) < 0x80) {
+                ascii++;
+            } else {
+                others++;
+            }
+            if ((ascii + 3) / 4 + others > maxTokens) {
+                return text.substring(0, i);
+            }
+        }
+        return text;
+    }
+}
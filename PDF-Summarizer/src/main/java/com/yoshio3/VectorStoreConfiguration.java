@@ -0,0 +1,84 @@
+package com.yoshio3;
+
+import java.sql.DriverManager;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import com.yoshio3.vectorstore.InMemoryVectorStore;
+import com.yoshio3.vectorstore.PgNearDuplicateIndex;
+import com.yoshio3.vectorstore.PgPageDigestStore;
+import com.yoshio3.vectorstore.PgVectorStore;
+import com.yoshio3.vectorstore.VectorStore;
+
+// 検索・削除で利用するベクトル・ストアの設定
+// postgresql : PostgreSQL (pgvector) のテーブル
+// memory : メモリ上のストア (PostgreSQL を用意せずに負荷試験を行う場合に利用)
+@Configuration
+public class VectorStoreConfiguration {
+
+    @Bean
+    @ConditionalOnProperty(name = "vector.store", havingValue = "postgresql", matchIfMissing = true)
+    public VectorStore pgVectorStore(@Value("${azure.postgresql.jdbcurl}") String jdbcUrl,
+            @Value("${azure.postgresql.user}") String user,
+            @Value("${azure.postgresql.password}") String password,
+            @Value("${azure.postgresql.db.table.name}") String tableName,
+            @Value("${search.filter.exact.scan.max.rows:20000}") long exactScanMaxRows,
+            @Value("${vector.store.layout:inline}") String layout,
+            @Value("${vector.store.vector.type:vector}") String vectorType,
+            @Value("${vector.store.distance:l2}") String distance,
+            @Value("${vector.store.parent.documents:false}") boolean parentDocuments,
+            @Value("${vector.store.quantization:none}") String quantization,
+            @Value("${vector.store.quantization.truncated.dimensions:256}") int truncatedDimensions,
+            @Value("${vector.store.quantization.oversampling:4}") int oversampling,
+            @Value("${near.duplicate.detection.enabled:false}") boolean nearDuplicates) {
+        var vectorStore = PgVectorStore.create(jdbcUrl, user, password, tableName);
+        vectorStore.setExactScanMaxRows(exactScanMaxRows);
+        vectorStore.setLayout(PgVectorStore.Layout.valueOf(layout.toUpperCase()));
+        vectorStore.setVectorType(PgVectorStore.VectorType.valueOf(vectorType.toUpperCase()));
+        vectorStore.setDistance(PgVectorStore.Distance.valueOf(distance.toUpperCase()));
+        vectorStore.setParentDocuments(parentDocuments);
+        vectorStore.setQuantization(PgVectorStore.Quantization.valueOf(quantization.toUpperCase()));
+        vectorStore.setTruncatedDimensions(truncatedDimensions);
+        vectorStore.setOversampling(oversampling);
+        vectorStore.setNearDuplicates(nearDuplicates);
+        return vectorStore;
+    }
+
+    // BlobUploadDetector が紐付けたほぼ同じテキストのチャンク (ファイルの削除時に利用、絞り込み検索は PgVectorStore が行う)
+    @Bean
+    @ConditionalOnProperty(name = "near.duplicate.detection.enabled", havingValue = "true")
+    public PgNearDuplicateIndex nearDuplicateIndex(VectorStore vectorStore,
+            @Value("${azure.postgresql.jdbcurl}") String jdbcUrl,
+            @Value("${azure.postgresql.user}") String user,
+            @Value("${azure.postgresql.password}") String password,
+            @Value("${azure.postgresql.db.table.name}") String tableName) {
+        if (!(vectorStore instanceof PgVectorStore pgVectorStore)) {
+            throw new IllegalStateException("near.duplicate.detection.enabled requires vector.store=postgresql.");
+        }
+        return new PgNearDuplicateIndex(() -> DriverManager.getConnection(jdbcUrl, user, password), tableName,
+                pgVectorStore);
+    }
+
+    // BlobUploadDetector が作成したページの要約 (検索結果と一緒に送信する・ファイルの削除時に削除する)
+    @Bean
+    @ConditionalOnProperty(name = "search.page.digest.enabled", havingValue = "true")
+    public PgPageDigestStore pageDigestStore(VectorStore vectorStore,
+            @Value("${azure.postgresql.jdbcurl}") String jdbcUrl,
+            @Value("${azure.postgresql.user}") String user,
+            @Value("${azure.postgresql.password}") String password,
+            @Value("${azure.postgresql.db.table.name}") String tableName) {
+        if (!(vectorStore instanceof PgVectorStore)) {
+            throw new IllegalStateException("search.page.digest.enabled requires vector.store=postgresql.");
+        }
+        return new PgPageDigestStore(() -> DriverManager.getConnection(jdbcUrl, user, password), tableName);
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "vector.store", havingValue = "memory")
+    public VectorStore inMemoryVectorStore() {
+        return new InMemoryVectorStore();
+    }
+}
@@ -0,0 +1,59 @@
+package com.yoshio3.broker;
+
+import java.time.Duration;
+import java.util.UUID;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import com.yoshio3.entities.SearchRequestMessage;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+// 単一ノードで動作させる場合のブローカー (同じ JVM 内でのみ配信)
+@Component
+@ConditionalOnProperty(name = "sse.session.broker", havingValue = "memory", matchIfMissing = true)
+public class InMemorySessionBroker implements SessionBroker {
+
+    private final Sinks.Many<SearchRequestMessage> sink = Sinks.many().multicast().directBestEffort();
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Override
+    public Mono<Void> publish(SearchRequestMessage message) {
+        return Mono.fromRunnable(
+                () -> sink.emitNext(message, Sinks.EmitFailureHandler.busyLooping(Duration.ofMillis(100))));
+    }
+
+    @Override
+    public Flux<SearchRequestMessage> messages() {
+        return sink.asFlux()
+                .doOnNext(message -> meterRegistry.timer("sse.broker.lag", "broker", "memory")
+                        .record(Duration.ofMillis(System.currentTimeMillis() - message.publishedAt())));
+    }
+
+    // 単一ノードのため、常にこのノードが所有者
+    @Override
+    public Mono<Void> claim(UUID userId) {
+        return Mono.empty();
+    }
+
+    @Override
+    public boolean isOwner(UUID userId) {
+        return true;
+    }
+
+    @Override
+    public Flux<UUID> released() {
+        return Flux.never();
+    }
+
+    @Override
+    public void release(UUID userId) {
+    }
+}
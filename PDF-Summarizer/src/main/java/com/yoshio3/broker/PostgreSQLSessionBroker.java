@@ -0,0 +1,220 @@
+package com.yoshio3.broker;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.postgresql.PGConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import com.google.gson.Gson;
+import com.yoshio3.entities.SearchRequestMessage;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.core.scheduler.Schedulers;
+
+// PostgreSQL の LISTEN/NOTIFY を利用して、全ノードに検索のリクエストを配信するブローカー
+// 検索結果のイベント (トークン) ではなく検索のリクエストを配信し、
+// SSE のセッションを保持しているノードで OpenAI の呼び出しを行う
+// ・クライアントが接続したノードは、ユーザのセッションの所有者を チャネル名_owner に配信する
+// ・NOTIFY はコミット順に全ノードに届くため、検索のリクエストの時点で最後に所有者を配信したノードだけが検索を実行する
+//   (再接続中に検索を受け付けた場合も元のノードだけが実行し、他のノードに再接続した時点で元のノードのセッションを破棄する)
+@Component
+@ConditionalOnProperty(name = "sse.session.broker", havingValue = "postgresql")
+public class PostgreSQLSessionBroker implements SessionBroker {
+
+    private final Logger LOGGER = LoggerFactory.getLogger(PostgreSQLSessionBroker.class);
+
+    private static final Gson GSON = new Gson();
+
+    // NOTIFY で送信できるペイロードの上限 (バイト)
+    private static final int MAX_PAYLOAD_BYTES = 7999;
+
+    // セッションの所有者を配信するチャネルのサフィックス
+    private static final String OWNER_CHANNEL_SUFFIX = "_owner";
+
+    @Value("${azure.postgresql.jdbcurl}")
+    private String POSTGRESQL_JDBC_URL;
+
+    @Value("${azure.postgresql.user}")
+    private String POSTGRESQL_USER;
+
+    @Value("${azure.postgresql.password}")
+    private String POSTGRESQL_PASSWORD;
+
+    // LISTEN/NOTIFY のチャネル名
+    @Value("${sse.session.broker.channel:sse_session}")
+    private String CHANNEL_NAME;
+
+    // 通知を待機する時間 (ミリ秒)
+    @Value("${sse.session.broker.poll.ms:500}")
+    private int POLL_MILLIS;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final Sinks.Many<SearchRequestMessage> sink = Sinks.many().multicast().directBestEffort();
+
+    private final Sinks.Many<UUID> released = Sinks.many().multicast().directBestEffort();
+
+    // 所有者の配信でこのノードを識別する ID
+    private final String nodeId = UUID.randomUUID().toString();
+
+    // このノードが所有者になっているユーザ (他のノードが所有者を配信した場合、セッションを破棄した場合に削除)
+    private final Set<UUID> ownedUsers = ConcurrentHashMap.newKeySet();
+
+    private Thread listenerThread;
+
+    private volatile boolean running;
+
+    @PostConstruct
+    public void init() {
+        running = true;
+        listenerThread = new Thread(this::listen, "session-broker-listener");
+        listenerThread.setDaemon(true);
+        listenerThread.start();
+    }
+
+    @PreDestroy
+    public void destroy() {
+        running = false;
+        if (listenerThread != null) {
+            listenerThread.interrupt();
+        }
+        sink.tryEmitComplete();
+        released.tryEmitComplete();
+    }
+
+    @Override
+    public Mono<Void> publish(SearchRequestMessage message) {
+        var payload = GSON.toJson(message);
+        if (payload.getBytes(StandardCharsets.UTF_8).length > MAX_PAYLOAD_BYTES) {
+            return Mono.error(new IllegalArgumentException(
+                    "Search request is too large to publish: " + message.userId()));
+        }
+        // JDBC の呼び出しはブロックするため、Netty のイベント・ループではなく boundedElastic で実行する
+        return Mono.<Void>fromRunnable(() -> sendNotification(CHANNEL_NAME, payload))
+                .doOnSuccess(result -> meterRegistry.counter("sse.broker.published", "broker", "postgresql")
+                        .increment())
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    @Override
+    public Mono<Void> claim(UUID userId) {
+        return Mono.<Void>fromRunnable(() -> sendNotification(CHANNEL_NAME + OWNER_CHANNEL_SUFFIX,
+                userId + ":" + nodeId))
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    @Override
+    public boolean isOwner(UUID userId) {
+        return ownedUsers.contains(userId);
+    }
+
+    @Override
+    public Flux<UUID> released() {
+        return released.asFlux();
+    }
+
+    @Override
+    public void release(UUID userId) {
+        ownedUsers.remove(userId);
+    }
+
+    private void sendNotification(String channel, String payload) {
+        try (var connection = DriverManager.getConnection(POSTGRESQL_JDBC_URL,
+                POSTGRESQL_USER, POSTGRESQL_PASSWORD);
+                var statement = connection.prepareStatement("SELECT pg_notify(?, ?)")) {
+            statement.setString(1, channel);
+            statement.setString(2, payload);
+            statement.execute();
+        } catch (SQLException e) {
+            LOGGER.error("Publish failure.", e);
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public Flux<SearchRequestMessage> messages() {
+        return sink.asFlux();
+    }
+
+    // 専用のコネクションで LISTEN し、通知を受け取る (切断された場合は再接続)
+    private void listen() {
+        while (running) {
+            try (var connection = DriverManager.getConnection(POSTGRESQL_JDBC_URL,
+                    POSTGRESQL_USER, POSTGRESQL_PASSWORD)) {
+                try (var statement = connection.createStatement()) {
+                    statement.execute("LISTEN " + CHANNEL_NAME);
+                    statement.execute("LISTEN " + CHANNEL_NAME + OWNER_CHANNEL_SUFFIX);
+                }
+                LOGGER.info("Listening channel: {}", CHANNEL_NAME);
+                receive(connection);
+            } catch (SQLException e) {
+                LOGGER.error("Connection failure.", e);
+                sleepBeforeReconnect();
+            }
+        }
+    }
+
+    private void receive(Connection connection) throws SQLException {
+        var pgConnection = connection.unwrap(PGConnection.class);
+        while (running) {
+            var notifications = pgConnection.getNotifications(POLL_MILLIS);
+            if (notifications == null) {
+                continue;
+            }
+            for (var notification : notifications) {
+                try {
+                    // チャネル名は LISTEN で小文字になる
+                    if (notification.getName().equalsIgnoreCase(CHANNEL_NAME + OWNER_CHANNEL_SUFFIX)) {
+                        updateOwner(notification.getParameter());
+                        continue;
+                    }
+                    var message = GSON.fromJson(notification.getParameter(), SearchRequestMessage.class);
+                    meterRegistry.timer("sse.broker.lag", "broker", "postgresql")
+                            .record(Duration.ofMillis(System.currentTimeMillis() - message.publishedAt()));
+                    sink.emitNext(message, Sinks.EmitFailureHandler.busyLooping(Duration.ofMillis(100)));
+                } catch (RuntimeException e) {
+                    LOGGER.error("Invalid notification: {}", notification.getParameter(), e);
+                }
+            }
+        }
+    }
+
+    // 所有者の配信 (ユーザ ID:ノード ID) を受け取り、他のノードに移った場合はこのノードのセッションを破棄させる
+    private void updateOwner(String payload) {
+        var separator = payload.indexOf(':');
+        var userId = UUID.fromString(payload.substring(0, separator));
+        if (nodeId.equals(payload.substring(separator + 1))) {
+            ownedUsers.add(userId);
+        } else if (ownedUsers.remove(userId)) {
+            LOGGER.debug("User ID: {} Session moved to another node.", userId);
+            released.emitNext(userId, Sinks.EmitFailureHandler.busyLooping(Duration.ofMillis(100)));
+        }
+    }
+
+    private void sleepBeforeReconnect() {
+        try {
+            TimeUnit.SECONDS.sleep(5);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
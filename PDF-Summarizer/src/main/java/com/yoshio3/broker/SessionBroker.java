@@ -0,0 +1,32 @@
+package com.yoshio3.broker;
+
+import java.util.UUID;
+
+import com.yoshio3.entities.SearchRequestMessage;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+// 検索のリクエストを、SSE のセッションを保持しているノードに配信するためのブローカー
+// (/openai-gpt4-sse-submit と /openai-gpt4-sse-stream が別のインスタンスで受け付けられても処理できるようにする)
+public interface SessionBroker {
+
+    // 検索のリクエストを全ノードに配信する (配信には I/O を伴う場合があるため、購読した時点で配信する)
+    Mono<Void> publish(SearchRequestMessage message);
+
+    // 配信された検索のリクエストを受け取る
+    Flux<SearchRequestMessage> messages();
+
+    // クライアントが接続したノードを、ユーザのセッションの所有者として全ノードに配信する
+    // (検索のリクエストと同じ順序で全ノードに届くため、検索のリクエスト毎に所有者は 1 ノードに決まる)
+    Mono<Void> claim(UUID userId);
+
+    // 検索のリクエストを受け取った時点で、このノードがユーザのセッションの所有者か否か
+    boolean isOwner(UUID userId);
+
+    // 他のノードに所有者が移ったユーザ (このノードのセッションにはクライアントが接続しないため破棄する)
+    Flux<UUID> released();
+
+    // このノードでセッションを破棄したユーザの所有者の記録を削除する
+    void release(UUID userId);
+}
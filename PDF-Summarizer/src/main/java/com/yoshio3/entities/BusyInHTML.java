@@ -0,0 +1,4 @@
+package com.yoshio3.entities;
+
+// 混雑のため検索を受け付けなかったことを通知するイベント (retryAfterMs は再実行までの目安の時間)
+public record BusyInHTML(String type, String reason, long retryAfterMs) {}
@@ -0,0 +1,7 @@
+package com.yoshio3.entities;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+// 変更フィードから取得するドキュメント (timestamp は Cosmos DB の最終更新時刻 _ts [秒])
+public record CosmosDBChangeFeedDocument(String id, String fileName, CosmosDBDocumentStatus status, int pageNumber,
+        @JsonProperty("_ts") long timestamp) {}
@@ -0,0 +1,8 @@
+package com.yoshio3.entities;
+
+import java.util.List;
+
+// 一覧画面の 1 ページのうち、Cosmos DB から 1 回のリクエストで取得したドキュメント
+// ページの最後には、ドキュメントを含まず次のページを取得するための continuationToken (最後のページの場合は null) だけを設定する
+// (Cosmos DB は件数が 0 件でも continuationToken を返す場合があるため、行とは別に保持する)
+public record CosmosDBDocumentPage(List<CosmosDBDocument> documents, String continuationToken) {}
@@ -0,0 +1,22 @@
+package com.yoshio3.entities;
+
+import java.time.Instant;
+import java.util.List;
+
+// ファイル削除の進捗 (fileNames が null の場合は全件削除)
+public record DeletionProgress(String jobId, State state, List<String> fileNames, long postgresqlDeletedRows,
+        long cosmosFoundCount, long cosmosDeletedCount, long cosmosFailedCount, String errorMessage,
+        Instant startedAt, Instant finishedAt) {
+
+    public enum State {
+        DELETING_POSTGRESQL, DELETING_COSMOSDB, COMPLETED, FAILED
+    }
+
+    public boolean isAllDelete() {
+        return fileNames == null;
+    }
+
+    public boolean isRunning() {
+        return state == State.DELETING_POSTGRESQL || state == State.DELETING_COSMOSDB;
+    }
+}
@@ -3,4 +3,4 @@ package com.yoshio3.entities;
 import java.io.Serializable;
 import java.util.UUID;
 
-public record DocumentSummarizer(UUID id, Double[] embedding, String origntext, String filename, int pageNumber) implements Serializable {}
\ No newline at end of file
+public record DocumentSummarizer(UUID id, float[] embedding, String origntext, String filename, int pageNumber) implements Serializable {}
@@ -0,0 +1,8 @@
+package com.yoshio3.entities;
+
+import java.time.Instant;
+import java.util.Map;
+
+// ファイル毎の集計 (チャンク数・状況毎のチャンク数・最終更新時刻)
+public record FileCatalogSummary(String fileName, int chunkCount, Map<CosmosDBDocumentStatus, Integer> statusCounts,
+        Instant lastUpdated) {}
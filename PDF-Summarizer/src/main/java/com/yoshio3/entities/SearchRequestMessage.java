@@ -0,0 +1,5 @@
+package com.yoshio3.entities;
+
+import java.util.UUID;
+
+public record SearchRequestMessage(UUID userId, String inputText, SearchScope scope, long publishedAt) {}
@@ -0,0 +1,6 @@
+package com.yoshio3.entities;
+
+import java.util.List;
+
+// 検索対象の絞り込み条件 (ファイル名・コレクション・登録日 [yyyy-MM-dd] の範囲)
+public record SearchScope(List<String> fileNames, String collection, String uploadedFrom, String uploadedTo) {}
@@ -3,10 +3,19 @@ package com.yoshio3.models;
 public class DeleteFileNameItem {
 	private int fileId;
 	private String fileName;
+	private Integer chunkCount;
+	private String statusSummary;
+	private String lastUpdated;
 	public DeleteFileNameItem(int fileId, String fileName) {
 		this.fileId = fileId;
 		this.fileName = fileName;
 	}
+	public DeleteFileNameItem(int fileId, String fileName, Integer chunkCount, String statusSummary, String lastUpdated) {
+		this(fileId, fileName);
+		this.chunkCount = chunkCount;
+		this.statusSummary = statusSummary;
+		this.lastUpdated = lastUpdated;
+	}
 	public int getFileId() {
 		return fileId;
 	}
@@ -19,4 +28,22 @@ public class DeleteFileNameItem {
 	public void setFileName(String fileName) {
 		this.fileName = fileName;
 	}
+	public Integer getChunkCount() {
+		return chunkCount;
+	}
+	public void setChunkCount(Integer chunkCount) {
+		this.chunkCount = chunkCount;
+	}
+	public String getStatusSummary() {
+		return statusSummary;
+	}
+	public void setStatusSummary(String statusSummary) {
+		this.statusSummary = statusSummary;
+	}
+	public String getLastUpdated() {
+		return lastUpdated;
+	}
+	public void setLastUpdated(String lastUpdated) {
+		this.lastUpdated = lastUpdated;
+	}
 }
@@ -0,0 +1,75 @@
+package com.yoshio3.resilience;
+
+// 連続して失敗したエンドポイントへの呼び出しを一定時間止めるためのサーキット・ブレーカー
+// CLOSED : 通常 → 連続して一定回数失敗すると OPEN
+// OPEN : 呼び出しを行わない → 一定時間経過すると HALF_OPEN
+// HALF_OPEN : 1 回だけ試行し、成功すると CLOSED、失敗すると再び OPEN
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openMillis;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures = 0;
+    private long openedAt = 0;
+    private boolean trialInProgress = false;
+
+    public CircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    // 呼び出しを行って良いか否か
+    public synchronized boolean tryAcquire() {
+        if (state == State.OPEN && System.currentTimeMillis() - openedAt >= openMillis) {
+            state = State.HALF_OPEN;
+            trialInProgress = false;
+        }
+        if (state == State.HALF_OPEN) {
+            if (trialInProgress) {
+                return false;
+            }
+            trialInProgress = true;
+            return true;
+        }
+        return state == State.CLOSED;
+    }
+
+    // 状態を変えずに、呼び出しを行える状態か否か (OPEN で一定時間経過した場合は、試行を行える状態として扱う)
+    // 実際に呼び出す場合は tryAcquire() で試行の権利を取得する
+    public synchronized boolean isCallPermitted() {
+        return switch (state) {
+            case CLOSED -> true;
+            case OPEN -> System.currentTimeMillis() - openedAt >= openMillis;
+            case HALF_OPEN -> !trialInProgress;
+        };
+    }
+
+    public synchronized void onSuccess() {
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+        trialInProgress = false;
+    }
+
+    public synchronized void onFailure() {
+        consecutiveFailures++;
+        trialInProgress = false;
+        if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+    }
+
+    // 試行がキャンセルされた場合 (ヘッジの敗者など) は結果として扱わない
+    public synchronized void onCancel() {
+        trialInProgress = false;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+}
@@ -0,0 +1,67 @@
+package com.yoshio3.resilience;
+
+import java.util.Arrays;
+
+// 直近の呼び出しのレイテンシを保持し、パーセンタイル値を計算する
+public class LatencyTracker {
+
+    private final long[] samples;
+
+    private int count = 0;
+    private int next = 0;
+
+    // これまでに記録した数 (ウィンドウから外れたものも含む)
+    private long total = 0;
+
+    public LatencyTracker(int windowSize) {
+        this.samples = new long[windowSize];
+    }
+
+    public synchronized void record(long latencyMillis) {
+        samples[next] = latencyMillis;
+        next = (next + 1) % samples.length;
+        count = Math.min(count + 1, samples.length);
+        total++;
+    }
+
+    public synchronized long total() {
+        return total;
+    }
+
+    // 応答を待たずにキャンセルした呼び出し (ヘッジの敗者など) の経過時間を記録する
+    // 実際のレイテンシは経過時間以上であるため、中央値を超えている場合のみ経過時間を記録する
+    // (中央値以下の経過時間は情報が少なく、記録するとパーセンタイル値を小さく見積もってしまう)
+    public synchronized void recordCensored(long elapsedMillis) {
+        if (count == 0 || elapsedMillis > percentile(0.5, 0)) {
+            record(elapsedMillis);
+        }
+    }
+
+    // 指定したパーセンタイル (0.0 - 1.0) のレイテンシ (サンプルが無い場合は defaultMillis)
+    public synchronized long percentile(double percentile, long defaultMillis) {
+        if (count == 0) {
+            return defaultMillis;
+        }
+        return percentileOf(Arrays.copyOf(samples, count), percentile);
+    }
+
+    // total() が sinceTotal の時点より後に記録したレイテンシのパーセンタイル値 (ウィンドウに残っているもののみ)
+    // 記録が無い場合は defaultMillis
+    public synchronized long percentileSince(double percentile, long sinceTotal, long defaultMillis) {
+        var recent = (int) Math.min(count, Math.max(0, total - sinceTotal));
+        if (recent == 0) {
+            return defaultMillis;
+        }
+        var values = new long[recent];
+        for (int i = 0; i < recent; i++) {
+            values[i] = samples[Math.floorMod(next - recent + i, samples.length)];
+        }
+        return percentileOf(values, percentile);
+    }
+
+    private static long percentileOf(long[] values, double percentile) {
+        Arrays.sort(values);
+        var index = (int) Math.ceil(percentile * values.length) - 1;
+        return values[Math.max(0, Math.min(values.length - 1, index))];
+    }
+}
@@ -0,0 +1,274 @@
+package com.yoshio3.resilience;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.azure.ai.openai.OpenAIAsyncClient;
+import com.azure.ai.openai.OpenAIClientBuilder;
+import com.azure.ai.openai.models.ChatCompletions;
+import com.azure.ai.openai.models.ChatCompletionsOptions;
+import com.azure.ai.openai.models.Embeddings;
+import com.azure.ai.openai.models.EmbeddingsOptions;
+import com.azure.core.credential.AzureKeyCredential;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+// 検索処理で利用する Azure OpenAI の呼び出し (Embedding, Chat Completion Stream) を安定させるためのクライアント
+// ・タイムアウト (Chat Completion Stream は最初のトークンまでの時間と、トークン間の時間)
+// ・エンドポイント毎のサーキット・ブレーカー (連続して失敗したエンドポイントは一定時間呼び出さない)
+// ・ヘッジ・リクエスト (プライマリの応答が直近のレイテンシのパーセンタイル値を超えた場合、
+//   セカンダリのデプロイメントにも同じリクエストを送信し、先に応答した方を利用する)
+@Component
+public class ResilientOpenAIClient {
+
+    private final Logger LOGGER = LoggerFactory.getLogger(ResilientOpenAIClient.class);
+
+    // Azure OpenAI Instance URL
+    @Value("${azure.openai.url}")
+    private String OPENAI_URL;
+
+    // Azure OpenAI API Key
+    @Value("${azure.openai.api.key}")
+    private String OPENAI_API_KEY;
+
+    // Name of Model
+    @Value("${azure.openai.model.name}")
+    private String OPENAI_MODEL_NAME;
+
+    // Name of Embedding Model
+    @Value("${azure.openai.embedding.model.name}")
+    private String OPENAI_EMBEDDING_MODEL_NAME;
+
+    // Secondary Azure OpenAI Instance (hedged requests are disabled when the URL is empty)
+    @Value("${azure.openai.secondary.url:}")
+    private String SECONDARY_OPENAI_URL;
+
+    @Value("${azure.openai.secondary.api.key:}")
+    private String SECONDARY_OPENAI_API_KEY;
+
+    @Value("${azure.openai.secondary.model.name:}")
+    private String SECONDARY_OPENAI_MODEL_NAME;
+
+    @Value("${azure.openai.secondary.embedding.model.name:}")
+    private String SECONDARY_OPENAI_EMBEDDING_MODEL_NAME;
+
+    // Embedding の応答、または Chat Completion Stream の最初のトークンまでのタイムアウト
+    @Value("${resilience.openai.timeout.ms:30000}")
+    private long TIMEOUT_MS;
+
+    // Chat Completion Stream のトークン間のタイムアウト
+    @Value("${resilience.openai.stream.idle.timeout.ms:30000}")
+    private long STREAM_IDLE_TIMEOUT_MS;
+
+    // ヘッジ・リクエストを送信するまでの待ち時間として利用するレイテンシのパーセンタイル
+    @Value("${resilience.openai.hedge.percentile:0.95}")
+    private double HEDGE_PERCENTILE;
+
+    // ヘッジ・リクエストを送信するまでの最小の待ち時間
+    @Value("${resilience.openai.hedge.min.delay.ms:200}")
+    private long HEDGE_MIN_DELAY_MS;
+
+    // サーキット・ブレーカーを OPEN にする連続失敗回数
+    @Value("${resilience.openai.breaker.failure.threshold:5}")
+    private int BREAKER_FAILURE_THRESHOLD;
+
+    // サーキット・ブレーカーを OPEN にしておく時間
+    @Value("${resilience.openai.breaker.open.ms:30000}")
+    private long BREAKER_OPEN_MS;
+
+    // パーセンタイルの計算に利用する直近の呼び出し数
+    @Value("${resilience.openai.latency.window:200}")
+    private int LATENCY_WINDOW;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private Endpoint primary;
+
+    private Endpoint secondary;
+
+    private record Endpoint(String name, OpenAIAsyncClient client, String chatModel, String embeddingModel,
+            LatencyTracker chatLatency, LatencyTracker embeddingLatency, CircuitBreaker breaker) {}
+
+    @PostConstruct
+    public void init() {
+        primary = createEndpoint("primary", OPENAI_URL, OPENAI_API_KEY, OPENAI_MODEL_NAME,
+                OPENAI_EMBEDDING_MODEL_NAME);
+        if (SECONDARY_OPENAI_URL != null && !SECONDARY_OPENAI_URL.isBlank()) {
+            secondary = createEndpoint("secondary", SECONDARY_OPENAI_URL, SECONDARY_OPENAI_API_KEY,
+                    SECONDARY_OPENAI_MODEL_NAME.isBlank() ? OPENAI_MODEL_NAME : SECONDARY_OPENAI_MODEL_NAME,
+                    SECONDARY_OPENAI_EMBEDDING_MODEL_NAME.isBlank() ? OPENAI_EMBEDDING_MODEL_NAME
+                            : SECONDARY_OPENAI_EMBEDDING_MODEL_NAME);
+        }
+    }
+
+    public String getChatModelName() {
+        return OPENAI_MODEL_NAME;
+    }
+
+    // プライマリの Chat Completion Stream の最初のトークンまでの時間を記録した数 (累計)
+    public long getChatLatencyCount() {
+        return primary.chatLatency().total();
+    }
+
+    // プライマリの Chat Completion Stream の最初のトークンまでの時間のうち、
+    // 記録した数が sinceCount の時点より後に記録したもののパーセンタイル値 (記録が無い場合は -1)
+    public long getChatLatencyPercentileSince(double percentile, long sinceCount) {
+        return primary.chatLatency().percentileSince(percentile, sinceCount, -1);
+    }
+
+    public Mono<Embeddings> getEmbeddings(EmbeddingsOptions embeddingsOptions) {
+        return hedge(endpoint -> guard(endpoint, "embeddings", endpoint.embeddingLatency(),
+                endpoint.client().getEmbeddings(endpoint.embeddingModel(), embeddingsOptions)),
+                Endpoint::embeddingLatency);
+    }
+
+    // モデル (デプロイメント名) を指定して Embedding を取得 (再 Embedding で利用、プライマリのみに送信する)
+    public Mono<Embeddings> getEmbeddings(String embeddingModel, EmbeddingsOptions embeddingsOptions) {
+        return guard(primary, "embeddings", primary.embeddingLatency(),
+                primary.client().getEmbeddings(embeddingModel, embeddingsOptions));
+    }
+
+    public Flux<ChatCompletions> getChatCompletionsStream(ChatCompletionsOptions chatCompletionsOptions) {
+        return hedgeStream(endpoint -> guardStream(endpoint, endpoint.client()
+                .getChatCompletionsStream(endpoint.chatModel(), chatCompletionsOptions)));
+    }
+
+    private Endpoint createEndpoint(String name, String url, String apiKey, String chatModel,
+            String embeddingModel) {
+        var client = new OpenAIClientBuilder().endpoint(url)
+                .credential(new AzureKeyCredential(apiKey))
+                .buildAsyncClient();
+        var endpoint = new Endpoint(name, client, chatModel, embeddingModel,
+                new LatencyTracker(LATENCY_WINDOW), new LatencyTracker(LATENCY_WINDOW),
+                new CircuitBreaker(BREAKER_FAILURE_THRESHOLD, BREAKER_OPEN_MS));
+        Gauge.builder("openai.circuit.open", endpoint,
+                e -> e.breaker().getState() == CircuitBreaker.State.CLOSED ? 0 : 1)
+                .tag("endpoint", name)
+                .description("1 when the circuit breaker of the endpoint is not closed")
+                .register(meterRegistry);
+        return endpoint;
+    }
+
+    // プライマリを呼び出し、応答が遅い場合や失敗した場合はセカンダリにも同じリクエストを送信する
+    private <T> Mono<T> hedge(Function<Endpoint, Mono<T>> call, Function<Endpoint, LatencyTracker> latency) {
+        if (secondary == null) {
+            return call.apply(primary);
+        }
+        return Mono.defer(() -> {
+            // OPEN の間はセカンダリのみを呼び出す (一定時間経過後はプライマリの tryAcquire() で HALF_OPEN の試行を行う)
+            if (!primary.breaker().isCallPermitted()) {
+                return call.apply(secondary);
+            }
+            Sinks.Empty<Void> primaryFailed = Sinks.empty();
+            var primaryCall = call.apply(primary).doOnError(error -> primaryFailed.tryEmitEmpty());
+            var secondaryCall = call.apply(secondary)
+                    .delaySubscription(hedgeTrigger(latency.apply(primary), primaryFailed));
+            return Mono.firstWithValue(primaryCall, secondaryCall);
+        });
+    }
+
+    private <T> Flux<T> hedgeStream(Function<Endpoint, Flux<T>> call) {
+        if (secondary == null) {
+            return call.apply(primary);
+        }
+        return Flux.defer(() -> {
+            // OPEN の間はセカンダリのみを呼び出す (一定時間経過後はプライマリの tryAcquire() で HALF_OPEN の試行を行う)
+            if (!primary.breaker().isCallPermitted()) {
+                return call.apply(secondary);
+            }
+            Sinks.Empty<Void> primaryFailed = Sinks.empty();
+            var primaryCall = call.apply(primary).doOnError(error -> primaryFailed.tryEmitEmpty());
+            var secondaryCall = call.apply(secondary)
+                    .delaySubscription(hedgeTrigger(primary.chatLatency(), primaryFailed));
+            // 最初のトークンを返した方を利用し、もう一方はキャンセルする
+            return Flux.firstWithValue(primaryCall, secondaryCall);
+        });
+    }
+
+    // ヘッジ・リクエストを送信するタイミング (プライマリのレイテンシのパーセンタイル値の経過、またはプライマリの失敗)
+    private Mono<Long> hedgeTrigger(LatencyTracker latency, Sinks.Empty<Void> primaryFailed) {
+        var delay = Math.max(HEDGE_MIN_DELAY_MS, latency.percentile(HEDGE_PERCENTILE, TIMEOUT_MS));
+        return Mono.firstWithSignal(Mono.delay(Duration.ofMillis(delay)), primaryFailed.asMono().then(Mono.just(0L)))
+                .doOnNext(signal -> {
+                    LOGGER.debug("Send hedged request (delay: {} ms)", delay);
+                    meterRegistry.counter("openai.hedged.requests").increment();
+                });
+    }
+
+    // タイムアウト・サーキット・ブレーカー・レイテンシの記録
+    private <T> Mono<T> guard(Endpoint endpoint, String operation, LatencyTracker latency, Mono<T> call) {
+        return Mono.defer(() -> {
+            if (!endpoint.breaker().tryAcquire()) {
+                return Mono.error(new IllegalStateException("Circuit is open: " + endpoint.name()));
+            }
+            var start = System.nanoTime();
+            return call.timeout(Duration.ofMillis(TIMEOUT_MS))
+                    .doOnSuccess(result -> {
+                        recordLatency(endpoint, operation, latency, start);
+                        endpoint.breaker().onSuccess();
+                    })
+                    .doOnError(error -> onFailure(endpoint, operation, error))
+                    .doOnCancel(() -> {
+                        latency.recordCensored(elapsedMillis(start));
+                        endpoint.breaker().onCancel();
+                    });
+        });
+    }
+
+    private <T> Flux<T> guardStream(Endpoint endpoint, Flux<T> call) {
+        return Flux.defer(() -> {
+            if (!endpoint.breaker().tryAcquire()) {
+                return Flux.error(new IllegalStateException("Circuit is open: " + endpoint.name()));
+            }
+            var start = System.nanoTime();
+            var firstToken = new AtomicBoolean(true);
+            return call.timeout(Mono.delay(Duration.ofMillis(TIMEOUT_MS)),
+                    item -> Mono.delay(Duration.ofMillis(STREAM_IDLE_TIMEOUT_MS)))
+                    .doOnNext(item -> {
+                        // 最初のトークンまでの時間をレイテンシとして記録
+                        if (firstToken.compareAndSet(true, false)) {
+                            recordLatency(endpoint, "chat", endpoint.chatLatency(), start);
+                            endpoint.breaker().onSuccess();
+                        }
+                    })
+                    .doOnError(error -> onFailure(endpoint, "chat", error))
+                    .doOnCancel(() -> {
+                        if (firstToken.get()) {
+                            endpoint.chatLatency().recordCensored(elapsedMillis(start));
+                            endpoint.breaker().onCancel();
+                        }
+                    });
+        });
+    }
+
+    private void recordLatency(Endpoint endpoint, String operation, LatencyTracker latency, long start) {
+        var elapsed = System.nanoTime() - start;
+        latency.record(TimeUnit.NANOSECONDS.toMillis(elapsed));
+        meterRegistry.timer("openai.latency", "endpoint", endpoint.name(), "operation", operation)
+                .record(elapsed, TimeUnit.NANOSECONDS);
+    }
+
+    private static long elapsedMillis(long start) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    private void onFailure(Endpoint endpoint, String operation, Throwable error) {
+        LOGGER.error("OpenAI {} failed on {} endpoint: {}", operation, endpoint.name(), error.getMessage());
+        endpoint.breaker().onFailure();
+        meterRegistry.counter("openai.failures", "endpoint", endpoint.name(), "operation", operation).increment();
+    }
+}
@@ -0,0 +1,47 @@
+package com.yoshio3;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+class ExtractiveTrimmerTest {
+
+    private static final String TEXT = "りんごは赤い。空は青い。ばななは黄色い。海は広い。";
+
+    private static ExtractiveTrimmer trimmer(int tokenBudget, int neighborSentences) {
+        var trimmer = new ExtractiveTrimmer();
+        ReflectionTestUtils.setField(trimmer, "TRIM_ENABLED", true);
+        ReflectionTestUtils.setField(trimmer, "TOKEN_BUDGET", tokenBudget);
+        ReflectionTestUtils.setField(trimmer, "NEIGHBOR_SENTENCES", neighborSentences);
+        return trimmer;
+    }
+
+    @Test
+    void keepsTextWithinBudget() {
+        assertEquals(TEXT, trimmer(100, 1).trim(TEXT, "ばなな"));
+    }
+
+    @Test
+    void extractsRelevantSentenceWithNeighbors() {
+        assertEquals("空は青い。ばななは黄色い。海は広い。", trimmer(20, 1).trim(TEXT, "ばなな"));
+        assertEquals("ばななは黄色い。", trimmer(20, 0).trim(TEXT, "ばなな"));
+    }
+
+    @Test
+    void marksGapsBetweenSentences() {
+        assertEquals("りんごは赤い。 … 海は広い。", trimmer(15, 0).trim(TEXT, "りんご広い"));
+    }
+
+    @Test
+    void truncatesWhenNoSentenceMatches() {
+        assertEquals("りんごは赤", trimmer(5, 1).trim(TEXT, "xyz"));
+    }
+
+    @Test
+    void tokenizesWordsAndBigrams() {
+        assertEquals(List.of("azure", "の検", "検索"), ExtractiveTrimmer.tokenize("Azure の検索"));
+    }
+}
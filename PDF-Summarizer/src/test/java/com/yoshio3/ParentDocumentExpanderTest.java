@@ -0,0 +1,40 @@
+package com.yoshio3;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+class ParentDocumentExpanderTest {
+
+    private static final String PARENT_TEXT = "あ。い。う。え。お。";
+
+    private static ParentDocumentExpander expander(int neighborSentences, int tokenBudget) {
+        var expander = new ParentDocumentExpander();
+        ReflectionTestUtils.setField(expander, "NEIGHBOR_SENTENCES", neighborSentences);
+        ReflectionTestUtils.setField(expander, "TOKEN_BUDGET", tokenBudget);
+        return expander;
+    }
+
+    @Test
+    void includesNeighborSentences() {
+        assertEquals("い。う。え。", expander(1, 800).window(PARENT_TEXT, List.of("う。")));
+    }
+
+    @Test
+    void marksGapsBetweenSentences() {
+        assertEquals("あ。 … お。", expander(0, 800).window(PARENT_TEXT, List.of("お。", "あ。")));
+    }
+
+    @Test
+    void prefersChildSentencesWithinBudget() {
+        assertEquals("う。", expander(2, 2).window(PARENT_TEXT, List.of("う。")));
+    }
+
+    @Test
+    void fallsBackToChildTextsWhenNotInParent() {
+        assertEquals("か。 … き。", expander(1, 800).window(PARENT_TEXT, List.of("か。", "き。")));
+    }
+}
@@ -0,0 +1,56 @@
+package com.yoshio3;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.yoshio3.entities.DocumentSummarizer;
+
+class SearchResultDiversifierTest {
+
+    private static final float[] QUERY = { 1f, 0f };
+
+    private static final DocumentSummarizer RELEVANT = candidate("a.pdf", 1, 1f, 0f);
+
+    private static final DocumentSummarizer NEAR_DUPLICATE = candidate("a.pdf", 2, 0.99f, 0.141f);
+
+    private static final DocumentSummarizer DIVERSE = candidate("b.pdf", 1, 0.7071f, 0.7071f);
+
+    private static DocumentSummarizer candidate(String fileName, int pageNumber, float x, float y) {
+        return new DocumentSummarizer(UUID.randomUUID(), new float[] { x, y }, "text", fileName, pageNumber);
+    }
+
+    private static SearchResultDiversifier diversifier(double lambda, boolean collapseSamePage) {
+        var diversifier = new SearchResultDiversifier();
+        ReflectionTestUtils.setField(diversifier, "MMR_LAMBDA", lambda);
+        ReflectionTestUtils.setField(diversifier, "COLLAPSE_SAME_PAGE", collapseSamePage);
+        return diversifier;
+    }
+
+    @Test
+    void prefersDiverseResults() {
+        var selected = diversifier(0.3, true).diversify(QUERY, List.of(RELEVANT, NEAR_DUPLICATE, DIVERSE), 2);
+
+        assertEquals(List.of(RELEVANT, DIVERSE), selected);
+    }
+
+    @Test
+    void keepsRelevanceOrderWithoutDiversity() {
+        var selected = diversifier(1.0, true).diversify(QUERY, List.of(RELEVANT, NEAR_DUPLICATE, DIVERSE), 2);
+
+        assertEquals(List.of(RELEVANT, NEAR_DUPLICATE), selected);
+    }
+
+    @Test
+    void collapsesChunksOfSamePage() {
+        var samePage = candidate("a.pdf", 1, 0.9f, 0.1f);
+
+        assertEquals(List.of(RELEVANT, DIVERSE),
+                diversifier(1.0, true).diversify(QUERY, List.of(RELEVANT, samePage, DIVERSE), 3));
+        assertEquals(3, diversifier(1.0, false).diversify(QUERY, List.of(RELEVANT, samePage, DIVERSE), 3).size());
+    }
+}
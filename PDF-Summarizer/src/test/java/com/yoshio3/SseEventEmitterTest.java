@@ -0,0 +1,49 @@
+package com.yoshio3;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import reactor.core.publisher.Flux;
+
+class SseEventEmitterTest {
+
+    private static SseEventEmitter emitter(int tokenRequestSize) {
+        var emitter = new SseEventEmitter();
+        ReflectionTestUtils.setField(emitter, "COALESCE_WINDOW_MS", 1000L);
+        ReflectionTestUtils.setField(emitter, "COALESCE_MAX_TOKENS", 2);
+        ReflectionTestUtils.setField(emitter, "TOKEN_REQUEST_SIZE", tokenRequestSize);
+        return emitter;
+    }
+
+    @Test
+    void coalescesTokens() {
+        var events = emitter(16).coalesceMessages("doc", Flux.just("a", "b", "c")).collectList().block();
+
+        assertEquals(2, events.size());
+        assertTrue(events.get(0).contains("\"content\":\"ab\""));
+        assertTrue(events.get(1).contains("\"content\":\"c\""));
+    }
+
+    @Test
+    void emitsTruncatedEventOnError() {
+        var tokens = Flux.just("a", "b").concatWith(Flux.error(new IllegalStateException("closed")));
+        var events = emitter(16).coalesceMessages("doc", tokens).collectList().block();
+
+        assertTrue(events.get(events.size() - 1).contains("\"type\":\"truncated\""));
+    }
+
+    @Test
+    void requestsTokensInBoundedBatches() {
+        var maxRequest = new AtomicLong();
+        var tokens = Flux.range(0, 100).map(String::valueOf)
+                .doOnRequest(request -> maxRequest.accumulateAndGet(request, Math::max));
+        emitter(8).coalesceMessages("doc", tokens).blockLast();
+
+        assertEquals(8, maxRequest.get());
+    }
+}
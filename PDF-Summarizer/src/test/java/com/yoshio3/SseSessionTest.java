@@ -0,0 +1,77 @@
+package com.yoshio3;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.http.codec.ServerSentEvent;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Sinks;
+
+class SseSessionTest {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+
+    private final SseSession session = new SseSession(UUID.randomUUID(), 16);
+
+    @Test
+    void deliversEventsSubmittedBeforeConnecting() {
+        session.submit(Flux.just("a", "b"));
+
+        var events = session.connect(null, gap -> {}).take(2).collectList().block(TIMEOUT);
+
+        assertEquals(List.of("a", "b"), data(events));
+        assertEquals(List.of("1", "2"), events.stream().map(ServerSentEvent::id).toList());
+    }
+
+    @Test
+    void generationSurvivesReconnect() {
+        Sinks.Many<String> tokens = Sinks.many().unicast().onBackpressureBuffer();
+        var cancelled = new AtomicBoolean();
+        session.submit(tokens.asFlux().doOnCancel(() -> cancelled.set(true)));
+
+        var first = session.connect(null, gap -> {});
+        tokens.tryEmitNext("a");
+        assertEquals(List.of("a"), data(first.take(1).collectList().block(TIMEOUT)));
+
+        // 切断中に作成したイベントは、再接続時に Last-Event-ID 以降のイベントとして送信する
+        tokens.tryEmitNext("b");
+        var second = session.connect(1L, gap -> {});
+        tokens.tryEmitNext("c");
+
+        assertEquals(List.of("b", "c"), data(second.take(2).collectList().block(TIMEOUT)));
+        assertEquals(false, cancelled.get());
+    }
+
+    @Test
+    void newSubmissionCancelsRunningGeneration() {
+        var cancelled = new AtomicBoolean();
+        session.submit(Flux.<String>never().doOnCancel(() -> cancelled.set(true)));
+
+        session.submit(Flux.just("next"));
+
+        assertEquals(true, cancelled.get());
+        assertEquals(List.of("next"), data(session.connect(null, gap -> {}).take(1).collectList().block(TIMEOUT)));
+    }
+
+    @Test
+    void reportsEventsDroppedFromReplayBuffer() {
+        var small = new SseSession(UUID.randomUUID(), 2);
+        small.submit(Flux.just("a", "b", "c", "d"));
+        var gaps = new long[1];
+
+        var events = small.connect(0L, gap -> gaps[0] += gap).take(2).collectList().block(TIMEOUT);
+
+        assertEquals(List.of("c", "d"), data(events));
+        assertEquals(2, gaps[0]);
+    }
+
+    private static List<String> data(List<ServerSentEvent<String>> events) {
+        return events.stream().map(ServerSentEvent::data).toList();
+    }
+}
@@ -0,0 +1,24 @@
+package com.yoshio3;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+class TokenEstimatorTest {
+
+    @Test
+    void estimatesAsciiAndOtherCharacters() {
+        assertEquals(0, TokenEstimator.estimate(null));
+        assertEquals(1, TokenEstimator.estimate("abcd"));
+        assertEquals(2, TokenEstimator.estimate("abcde"));
+        assertEquals(2, TokenEstimator.estimate("日本"));
+        assertEquals(3, TokenEstimator.estimate("ab日本"));
+    }
+
+    @Test
+    void truncatesToTokenBudget() {
+        assertEquals("日本語", TokenEstimator.truncate("日本語です", 3));
+        assertEquals("abcdefgh", TokenEstimator.truncate("abcdefghij", 2));
+        assertEquals("abc", TokenEstimator.truncate("abc", 3));
+    }
+}
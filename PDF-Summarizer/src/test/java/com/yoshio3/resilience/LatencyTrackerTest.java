@@ -0,0 +1,76 @@
+package com.yoshio3.resilience;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+class LatencyTrackerTest {
+
+    @Test
+    void returnsDefaultWithoutSamples() {
+        assertEquals(500, new LatencyTracker(10).percentile(0.95, 500));
+    }
+
+    @Test
+    void calculatesPercentile() {
+        var tracker = new LatencyTracker(100);
+        for (var latency = 1; latency <= 100; latency++) {
+            tracker.record(latency);
+        }
+
+        assertEquals(50, tracker.percentile(0.5, 0));
+        assertEquals(95, tracker.percentile(0.95, 0));
+        assertEquals(100, tracker.percentile(1.0, 0));
+    }
+
+    @Test
+    void keepsOnlyRecentSamples() {
+        var tracker = new LatencyTracker(3);
+        tracker.record(1000);
+        tracker.record(10);
+        tracker.record(20);
+        tracker.record(30);
+
+        assertEquals(30, tracker.percentile(1.0, 0));
+    }
+
+    @Test
+    void evaluatesOnlySamplesSinceGivenTotal() {
+        var tracker = new LatencyTracker(10);
+        tracker.record(5000);
+        tracker.record(6000);
+        var since = tracker.total();
+
+        assertEquals(-1, tracker.percentileSince(0.9, since, -1));
+
+        tracker.record(100);
+        tracker.record(200);
+
+        assertEquals(4, tracker.total());
+        assertEquals(200, tracker.percentileSince(0.9, since, -1));
+        assertEquals(6000, tracker.percentile(0.9, -1));
+    }
+
+    @Test
+    void samplesSinceAreLimitedToWindow() {
+        var tracker = new LatencyTracker(2);
+        for (var latency = 1; latency <= 5; latency++) {
+            tracker.record(latency * 100);
+        }
+
+        assertEquals(400, tracker.percentileSince(0.0, 0, -1));
+    }
+
+    @Test
+    void recordsCensoredSampleAboveMedian() {
+        var tracker = new LatencyTracker(10);
+        tracker.record(100);
+        tracker.record(200);
+
+        tracker.recordCensored(50);
+        assertEquals(200, tracker.percentile(1.0, 0));
+
+        tracker.recordCensored(900);
+        assertEquals(900, tracker.percentile(1.0, 0));
+    }
+}
@@ -7,6 +7,7 @@ public enum CosmosDBDocumentStatus {
     FINISH_OAI_INVOCATION("finish_oai_invocation"),
     FINISH_DB_INSERTION("finish_db_insertion"),
     FAILED_DB_INSERTION("failed_db_insertion"),
+    DUPLICATE_LINKED("duplicate_linked"),
     COMPLETED("completed");
   
     private final String status;  
@@ -0,0 +1,286 @@
+package com.yoshio3.vectorstore;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+
+// 1 ファイル分のチャンクと embedding を保存するスナップショット (.vsnap)
+// データベースを作り直す場合に、PDF の解析と Embedding の取得をやり直さずに、スナップショットから再登録する
+//
+// 形式 (リトル・エンディアン、列毎に連続して保存するため、メモリ・マップしたまま参照できる)
+//   0 : "VSNP" / 4 : バージョン / 8 : チャンク数 (n) / 12 : 次元数 (d)
+//   16 : 各セクションの開始位置 (long) : メタデータ, id, ページ番号, ハッシュ, テキストの位置, テキスト, ベクトル
+//   72 : ファイルのサイズ (long)
+//   メタデータ : モデル名・ファイル名・コレクション (int の長さ + UTF-8)、登録日時 (エポック・ミリ秒)
+//   id : 16 バイト × n / ページ番号 : int × n / ハッシュ : テキストの SHA-256 (32 バイト) × n
+//   テキストの位置 : long × (n + 1) (テキストのセクション内の位置) / テキスト : UTF-8
+//   ベクトル : float × d × n (64 バイト境界に配置)
+public class EmbeddingSnapshot implements Iterable<VectorRecord> {
+
+    public static final String FILE_EXTENSION = ".vsnap";
+
+    private static final int MAGIC = 0x504E5356; // "VSNP" (リトル・エンディアン)
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 80;
+
+    private static final int HASH_SIZE = 32;
+
+    private static final int VECTOR_ALIGNMENT = 64;
+
+    // 登録日時が無い場合の値
+    private static final long NO_UPLOADED_AT = Long.MIN_VALUE;
+
+    private final ByteBuffer buffer;
+
+    private final int chunkCount;
+
+    private final int dimensions;
+
+    private final long idsOffset;
+
+    private final long pagesOffset;
+
+    private final long hashesOffset;
+
+    private final long textOffsetsOffset;
+
+    private final long textsOffset;
+
+    private final long vectorsOffset;
+
+    private final String modelId;
+
+    private final String fileName;
+
+    private final String collection;
+
+    private final Instant uploadedAt;
+
+    private EmbeddingSnapshot(ByteBuffer buffer) {
+        this.buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new VectorStoreException("Not an embedding snapshot.");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new VectorStoreException("Unsupported snapshot version: " + buffer.getInt(4));
+        }
+        if (buffer.getLong(72) != buffer.capacity()) {
+            throw new VectorStoreException("Truncated snapshot.");
+        }
+        chunkCount = buffer.getInt(8);
+        dimensions = buffer.getInt(12);
+        var metadata = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN).position((int) buffer.getLong(16));
+        idsOffset = buffer.getLong(24);
+        pagesOffset = buffer.getLong(32);
+        hashesOffset = buffer.getLong(40);
+        textOffsetsOffset = buffer.getLong(48);
+        textsOffset = buffer.getLong(56);
+        vectorsOffset = buffer.getLong(64);
+        modelId = readString(metadata);
+        fileName = readString(metadata);
+        collection = readString(metadata);
+        var uploadedAtMillis = metadata.getLong();
+        uploadedAt = uploadedAtMillis == NO_UPLOADED_AT ? null : Instant.ofEpochMilli(uploadedAtMillis);
+    }
+
+    // ファイルをメモリ・マップして開く (ファイルを閉じてもマップした領域は参照できる)
+    public static EmbeddingSnapshot open(Path path) throws IOException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new EmbeddingSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    public static EmbeddingSnapshot wrap(byte[] bytes) {
+        return new EmbeddingSnapshot(ByteBuffer.wrap(bytes));
+    }
+
+    // 1 ファイル分のチャンクをスナップショットに変換 (ファイル名・コレクション・登録日時は先頭のチャンクの値)
+    public static byte[] toBytes(String modelId, List<VectorRecord> records) {
+        if (records.isEmpty()) {
+            throw new IllegalArgumentException("No records.");
+        }
+        var first = records.get(0);
+        var n = records.size();
+        var d = first.embedding().length;
+        var texts = new byte[n][];
+        long textsLength = 0;
+        for (int i = 0; i < n; i++) {
+            if (records.get(i).embedding().length != d) {
+                throw new IllegalArgumentException("Embeddings must have the same dimensions.");
+            }
+            texts[i] = records.get(i).text() == null ? new byte[0]
+                    : records.get(i).text().getBytes(StandardCharsets.UTF_8);
+            textsLength += texts[i].length;
+        }
+        var model = utf8(modelId);
+        var file = utf8(first.fileName());
+        var coll = utf8(first.collection());
+
+        long metadataOffset = HEADER_SIZE;
+        long idsOffset = metadataOffset + 4 + model.length + 4 + file.length + 4 + coll.length + 8;
+        long pagesOffset = idsOffset + 16L * n;
+        long hashesOffset = pagesOffset + 4L * n;
+        long textOffsetsOffset = hashesOffset + (long) HASH_SIZE * n;
+        long textsOffset = textOffsetsOffset + 8L * (n + 1);
+        long vectorsOffset = align(textsOffset + textsLength, VECTOR_ALIGNMENT);
+        long size = vectorsOffset + 4L * d * n;
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Snapshot too large: " + size + " bytes");
+        }
+
+        var buffer = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(n).putInt(d)
+                .putLong(metadataOffset).putLong(idsOffset).putLong(pagesOffset).putLong(hashesOffset)
+                .putLong(textOffsetsOffset).putLong(textsOffset).putLong(vectorsOffset).putLong(size);
+        buffer.putInt(model.length).put(model).putInt(file.length).put(file).putInt(coll.length).put(coll)
+                .putLong(first.uploadedAt() == null ? NO_UPLOADED_AT : first.uploadedAt().toEpochMilli());
+
+        var digest = sha256();
+        long textPosition = 0;
+        for (int i = 0; i < n; i++) {
+            var record = records.get(i);
+            buffer.putLong((int) (idsOffset + 16L * i), record.id().getMostSignificantBits());
+            buffer.putLong((int) (idsOffset + 16L * i + 8), record.id().getLeastSignificantBits());
+            buffer.putInt((int) (pagesOffset + 4L * i), record.pageNumber());
+            buffer.put((int) (hashesOffset + (long) HASH_SIZE * i), digest.digest(texts[i]));
+            buffer.putLong((int) (textOffsetsOffset + 8L * i), textPosition);
+            buffer.put((int) (textsOffset + textPosition), texts[i]);
+            textPosition += texts[i].length;
+            var vectors = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN)
+                    .position((int) (vectorsOffset + 4L * d * i)).asFloatBuffer();
+            vectors.put(record.embedding());
+        }
+        buffer.putLong((int) (textOffsetsOffset + 8L * n), textPosition);
+        return buffer.array();
+    }
+
+    public int size() {
+        return chunkCount;
+    }
+
+    public int dimensions() {
+        return dimensions;
+    }
+
+    public String modelId() {
+        return modelId;
+    }
+
+    public String fileName() {
+        return fileName;
+    }
+
+    public String collection() {
+        return collection;
+    }
+
+    public Instant uploadedAt() {
+        return uploadedAt;
+    }
+
+    public UUID id(int index) {
+        var position = (int) (idsOffset + 16L * checkIndex(index));
+        return new UUID(buffer.getLong(position), buffer.getLong(position + 8));
+    }
+
+    public int pageNumber(int index) {
+        return buffer.getInt((int) (pagesOffset + 4L * checkIndex(index)));
+    }
+
+    // テキストの SHA-256
+    public byte[] contentHash(int index) {
+        var hash = new byte[HASH_SIZE];
+        buffer.get((int) (hashesOffset + (long) HASH_SIZE * checkIndex(index)), hash);
+        return hash;
+    }
+
+    public String text(int index) {
+        var start = buffer.getLong((int) (textOffsetsOffset + 8L * checkIndex(index)));
+        var end = buffer.getLong((int) (textOffsetsOffset + 8L * (index + 1)));
+        var bytes = new byte[(int) (end - start)];
+        buffer.get((int) (textsOffset + start), bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // コピーせずにベクトルを参照する
+    public FloatBuffer vectorBuffer(int index) {
+        return buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN)
+                .position((int) (vectorsOffset + 4L * dimensions * checkIndex(index)))
+                .limit((int) (vectorsOffset + 4L * dimensions * (index + 1)))
+                .slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+    }
+
+    public float[] vector(int index) {
+        var vector = new float[dimensions];
+        vectorBuffer(index).get(vector);
+        return vector;
+    }
+
+    public VectorRecord record(int index) {
+        return new VectorRecord(id(index), vector(index), text(index), fileName, pageNumber(index), collection,
+                uploadedAt);
+    }
+
+    @Override
+    public Iterator<VectorRecord> iterator() {
+        return new Iterator<>() {
+            private int index;
+
+            @Override
+            public boolean hasNext() {
+                return index < chunkCount;
+            }
+
+            @Override
+            public VectorRecord next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return record(index++);
+            }
+        };
+    }
+
+    private int checkIndex(int index) {
+        if (index < 0 || index >= chunkCount) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        return index;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        var bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] utf8(String value) {
+        return value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static long align(long position, int alignment) {
+        return (position + alignment - 1) / alignment * alignment;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
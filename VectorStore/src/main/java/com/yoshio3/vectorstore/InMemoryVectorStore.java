@@ -0,0 +1,113 @@
+package com.yoshio3.vectorstore;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+// メモリ上に保持し、全件との距離を計算して検索するストア
+// PostgreSQL を用意せずに負荷試験やベンチマークを行う場合や、検索結果の正解 (厳密な top-k) の作成に利用する
+public class InMemoryVectorStore implements VectorStore {
+
+    private final Map<UUID, VectorRecord> records = new ConcurrentHashMap<>();
+
+    private final Map<ParentRecord.Key, String> parents = new ConcurrentHashMap<>();
+
+    @Override
+    public void upsert(List<VectorRecord> records) {
+        if (records == null) {
+            return;
+        }
+        records.forEach(record -> this.records.put(record.id(), record));
+    }
+
+    @Override
+    public List<VectorHit> search(float[] query, int topK, SearchFilter filter) {
+        if (topK <= 0) {
+            return List.of();
+        }
+        // 距離が遠い順のヒープに topK 件だけ保持する
+        var heap = new PriorityQueue<VectorHit>(topK + 1,
+                Comparator.comparingDouble(VectorHit::distance).reversed());
+        for (var record : records.values()) {
+            if (filter != null && !filter.matches(record)) {
+                continue;
+            }
+            var distance = Vectors.l2Distance(query, record.embedding());
+            if (heap.size() < topK || distance < heap.peek().distance()) {
+                heap.add(new VectorHit(record.id(), record.embedding(), record.text(), record.fileName(),
+                        record.pageNumber(), distance));
+                if (heap.size() > topK) {
+                    heap.poll();
+                }
+            }
+        }
+        var hits = new ArrayList<>(heap);
+        hits.sort(Comparator.comparingDouble(VectorHit::distance));
+        return hits;
+    }
+
+    @Override
+    public Map<UUID, String> fetchTexts(Collection<UUID> ids) {
+        Map<UUID, String> texts = new HashMap<>();
+        for (var id : ids) {
+            var record = records.get(id);
+            if (record != null) {
+                texts.put(id, record.text());
+            }
+        }
+        return texts;
+    }
+
+    @Override
+    public void upsertParents(List<ParentRecord> parents) {
+        if (parents == null) {
+            return;
+        }
+        parents.forEach(parent -> this.parents.put(parent.key(), parent.text()));
+    }
+
+    @Override
+    public Map<ParentRecord.Key, String> fetchParentTexts(Collection<ParentRecord.Key> keys) {
+        Map<ParentRecord.Key, String> texts = new HashMap<>();
+        for (var key : keys) {
+            var text = parents.get(key);
+            if (text != null) {
+                texts.put(key, text);
+            }
+        }
+        return texts;
+    }
+
+    @Override
+    public int deleteByFileNames(Collection<String> fileNames) {
+        if (fileNames == null || fileNames.isEmpty()) {
+            return 0;
+        }
+        var before = records.size();
+        records.values().removeIf(record -> fileNames.contains(record.fileName()));
+        parents.keySet().removeIf(key -> fileNames.contains(key.fileName()));
+        return before - records.size();
+    }
+
+    @Override
+    public void deleteAll() {
+        records.clear();
+        parents.clear();
+    }
+
+    @Override
+    public void scan(int fetchSize, Consumer<VectorRecord> consumer) {
+        List.copyOf(records.values()).forEach(consumer);
+    }
+
+    public int size() {
+        return records.size();
+    }
+}
@@ -0,0 +1,135 @@
+package com.yoshio3.vectorstore;
+
+import java.nio.ByteBuffer;
+import java.text.Normalizer;
+import java.util.Arrays;
+import java.util.Random;
+
+// テキストの MinHash (ほぼ同じテキストを検出するための署名)
+// ・日本語は単語の区切りが無いため、正規化したテキストの文字の N-gram (シングル) の集合を利用する
+// ・2 つの署名で一致する値の割合は、シングルの集合の Jaccard 係数の推定値になる
+// ・LSH : 署名を bands 個に分け、いずれかのバンドの値が全て一致するものを候補とする
+//   (128 個のハッシュを 16 バンド × 8 行に分けた場合、Jaccard 係数が約 0.7 を超えると候補になりやすい)
+public class MinHasher {
+
+    public static final int DEFAULT_HASHES = 128;
+
+    public static final int DEFAULT_BANDS = 16;
+
+    public static final int DEFAULT_SHINGLE_SIZE = 5;
+
+    // ハッシュ関数の係数 (署名を比較できるように、固定のシードから作成する)
+    private static final long SEED = 0x5DEECE66DL;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final int hashes;
+
+    private final int bands;
+
+    private final int shingleSize;
+
+    private final long[] multipliers;
+
+    private final long[] increments;
+
+    public MinHasher() {
+        this(DEFAULT_HASHES, DEFAULT_BANDS, DEFAULT_SHINGLE_SIZE);
+    }
+
+    public MinHasher(int hashes, int bands, int shingleSize) {
+        if (hashes % bands != 0) {
+            throw new IllegalArgumentException("hashes must be a multiple of bands.");
+        }
+        this.hashes = hashes;
+        this.bands = bands;
+        this.shingleSize = shingleSize;
+        this.multipliers = new long[hashes];
+        this.increments = new long[hashes];
+        var random = new Random(SEED);
+        for (int i = 0; i < hashes; i++) {
+            multipliers[i] = random.nextLong() | 1;
+            increments[i] = random.nextLong();
+        }
+    }
+
+    public int bands() {
+        return bands;
+    }
+
+    public int[] signature(String text) {
+        var normalized = normalize(text);
+        var signature = new int[hashes];
+        Arrays.fill(signature, Integer.MAX_VALUE);
+        var count = Math.max(1, normalized.length() - shingleSize + 1);
+        for (int start = 0; start < count; start++) {
+            var shingle = shingleHash(normalized, start, Math.min(normalized.length(), start + shingleSize));
+            for (int i = 0; i < hashes; i++) {
+                // multiply-shift ハッシュの上位 31 bit
+                var value = (int) ((multipliers[i] * shingle + increments[i]) >>> 33);
+                if (value < signature[i]) {
+                    signature[i] = value;
+                }
+            }
+        }
+        return signature;
+    }
+
+    // バンド毎のキー (LSH のバケット)
+    public long[] bandKeys(int[] signature) {
+        var rows = hashes / bands;
+        var keys = new long[bands];
+        for (int band = 0; band < bands; band++) {
+            var hash = FNV_OFFSET ^ band;
+            for (int row = 0; row < rows; row++) {
+                hash = (hash ^ signature[band * rows + row]) * FNV_PRIME;
+            }
+            keys[band] = hash;
+        }
+        return keys;
+    }
+
+    // 一致する値の割合 (Jaccard 係数の推定値)
+    public static double similarity(int[] a, int[] b) {
+        if (a.length != b.length) {
+            return 0;
+        }
+        int same = 0;
+        for (int i = 0; i < a.length; i++) {
+            if (a[i] == b[i]) {
+                same++;
+            }
+        }
+        return (double) same / a.length;
+    }
+
+    public static byte[] toBytes(int[] signature) {
+        var buffer = ByteBuffer.allocate(signature.length * Integer.BYTES);
+        buffer.asIntBuffer().put(signature);
+        return buffer.array();
+    }
+
+    public static int[] fromBytes(byte[] bytes) {
+        var signature = new int[bytes.length / Integer.BYTES];
+        ByteBuffer.wrap(bytes).asIntBuffer().get(signature);
+        return signature;
+    }
+
+    // 全角・半角と大文字・小文字、空白の違いを無視する
+    private static String normalize(String text) {
+        if (text == null) {
+            return "";
+        }
+        return Normalizer.normalize(text, Normalizer.Form.NFKC).toLowerCase().replaceAll("\\s+", " ").trim();
+    }
+
+    private static long shingleHash(String text, int start, int end) {
+        var hash = FNV_OFFSET;
+        for (int i = start; i < end; i++) {
+            hash = (hash ^ text.charAt(i)) * FNV_PRIME;
+        }
+        return hash;
+    }
+}
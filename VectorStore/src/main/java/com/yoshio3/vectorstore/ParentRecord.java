@@ -0,0 +1,12 @@
+package com.yoshio3.vectorstore;
+
+// 子チャンクの親 (ページ全体のテキスト)
+// 子チャンク (文単位の小さなチャンク) は、同じファイル名・ページ番号の親を参照する
+public record ParentRecord(String fileName, int pageNumber, String text) {
+
+    public record Key(String fileName, int pageNumber) {}
+
+    public Key key() {
+        return new Key(fileName, pageNumber);
+    }
+}
@@ -0,0 +1,322 @@
+package com.yoshio3.vectorstore;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+
+// ほぼ同じテキストのチャンク (同じマニュアルの改訂版のページなど) を、登録済みのチャンク (正規のチャンク) に紐付ける
+// ・MinHash の署名をテーブル名_MINHASH に、LSH のバケットをテーブル名_LSH に保存する (LSH は正規のチャンクのみ)
+// ・紐付けたチャンクは Embedding を取得せず、ベクトルのテーブルにも登録しない (テキストはテーブル名_MINHASH に保存する)
+// ・同じコレクションのチャンクのみ紐付ける (コレクションで絞り込んだ検索で見つからなくならないように)
+// ・正規のチャンクのファイルを削除する場合は、残るファイルの重複チャンクを 1 件選んで正規のチャンクに昇格する
+//   (Embedding は削除する正規のチャンクのものを再利用し、登録日時は昇格するチャンクのファイルの登録日時を引き継ぐ)
+// ・絞り込み条件を指定した検索では、紐付いたチャンクにも条件を適用する (PgVectorStore#setNearDuplicates)
+public class PgNearDuplicateIndex {
+
+    public static final String MINHASH_SUFFIX = "_MINHASH";
+
+    public static final String LSH_SUFFIX = "_LSH";
+
+    public static final double DEFAULT_THRESHOLD = 0.9;
+
+    // LSH で取得する候補の上限
+    private static final int MAX_CANDIDATES = 50;
+
+    // 紐付ける正規のチャンクと、署名の一致率
+    public record Match(UUID canonicalId, double similarity) {}
+
+    private final PgVectorStore.ConnectionFactory connectionFactory;
+
+    private final String minHashTableName;
+
+    private final String lshTableName;
+
+    private final PgVectorStore vectorStore;
+
+    private final MinHasher minHasher;
+
+    private double threshold = DEFAULT_THRESHOLD;
+
+    public PgNearDuplicateIndex(PgVectorStore.ConnectionFactory connectionFactory, String tableName,
+            PgVectorStore vectorStore) {
+        this(connectionFactory, tableName, vectorStore, new MinHasher());
+    }
+
+    public PgNearDuplicateIndex(PgVectorStore.ConnectionFactory connectionFactory, String tableName,
+            PgVectorStore vectorStore, MinHasher minHasher) {
+        this.connectionFactory = connectionFactory;
+        this.minHashTableName = tableName + MINHASH_SUFFIX;
+        this.lshTableName = tableName + LSH_SUFFIX;
+        this.vectorStore = vectorStore;
+        this.minHasher = minHasher;
+    }
+
+    public void setThreshold(double threshold) {
+        this.threshold = threshold;
+    }
+
+    public MinHasher getMinHasher() {
+        return minHasher;
+    }
+
+    public void createTables() {
+        try (var connection = connectionFactory.getConnection();
+                var statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS " + minHashTableName + " (id uuid PRIMARY KEY,"
+                    + " fileName varchar, pageNumber integer, collection varchar, canonicalId uuid,"
+                    + " similarity real, origntext text, signature bytea NOT NULL, uploadedAt timestamptz)");
+            // uploadedAt を追加する前に作成したテーブル
+            statement.execute("ALTER TABLE " + minHashTableName + " ADD COLUMN IF NOT EXISTS uploadedAt timestamptz");
+            statement.execute("CREATE INDEX IF NOT EXISTS " + minHashTableName + "_canonical_idx ON "
+                    + minHashTableName + " (canonicalId)");
+            statement.execute("CREATE INDEX IF NOT EXISTS " + minHashTableName + "_filename_idx ON "
+                    + minHashTableName + " (fileName)");
+            statement.execute("CREATE TABLE IF NOT EXISTS " + lshTableName + " (band smallint, bucket bigint,"
+                    + " id uuid, PRIMARY KEY (band, bucket, id))");
+        } catch (SQLException e) {
+            throw new VectorStoreException("Create table failure.", e);
+        }
+    }
+
+    // LSH で候補を取得し、署名の一致率が threshold 以上で最も高い正規のチャンクを返す
+    public Optional<Match> findDuplicate(int[] signature, String collection) {
+        var keys = minHasher.bandKeys(signature);
+        var bands = new Short[keys.length];
+        var buckets = new Long[keys.length];
+        for (int band = 0; band < keys.length; band++) {
+            bands[band] = (short) band;
+            buckets[band] = keys[band];
+        }
+        var candidateSql = "SELECT DISTINCT m.id, m.signature FROM " + lshTableName + " l"
+                + " JOIN unnest(?::smallint[], ?::bigint[]) AS k(band, bucket)"
+                + " ON l.band = k.band AND l.bucket = k.bucket"
+                + " JOIN " + minHashTableName + " m ON m.id = l.id"
+                + " WHERE m.canonicalId IS NULL AND m.collection IS NOT DISTINCT FROM ? LIMIT " + MAX_CANDIDATES;
+        try (var connection = connectionFactory.getConnection();
+                var statement = connection.prepareStatement(candidateSql)) {
+            statement.setArray(1, connection.createArrayOf("int2", bands));
+            statement.setArray(2, connection.createArrayOf("int8", buckets));
+            statement.setString(3, collection);
+            Match best = null;
+            try (var resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    var similarity = MinHasher.similarity(signature,
+                            MinHasher.fromBytes(resultSet.getBytes("signature")));
+                    if (similarity >= threshold && (best == null || similarity > best.similarity())) {
+                        best = new Match(UUID.fromString(resultSet.getString("id")), similarity);
+                    }
+                }
+            }
+            return Optional.ofNullable(best);
+        } catch (SQLException e) {
+            throw new VectorStoreException("Near-duplicate lookup failure.", e);
+        }
+    }
+
+    // ベクトルのテーブルに登録したチャンクを、正規のチャンクとして登録する
+    public void addCanonicals(List<VectorRecord> records, Map<UUID, int[]> signatures) {
+        if (records == null || records.isEmpty()) {
+            return;
+        }
+        try (var connection = connectionFactory.getConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                for (var record : records) {
+                    var signature = signatures.get(record.id());
+                    if (signature != null) {
+                        insertCanonical(connection, record, signature);
+                    }
+                }
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new VectorStoreException("Near-duplicate insert failure.", e);
+        }
+    }
+
+    // 正規のチャンクに紐付けて登録する (record の embedding は利用しない)
+    public void addDuplicate(VectorRecord record, int[] signature, Match match) {
+        var insertSql = "INSERT INTO " + minHashTableName + " (id, fileName, pageNumber, collection, canonicalId,"
+                + " similarity, origntext, signature, uploadedAt) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)"
+                + " ON CONFLICT (id) DO NOTHING";
+        try (var connection = connectionFactory.getConnection();
+                var statement = connection.prepareStatement(insertSql)) {
+            statement.setObject(1, record.id());
+            statement.setString(2, record.fileName());
+            statement.setInt(3, record.pageNumber());
+            statement.setString(4, record.collection());
+            statement.setObject(5, match.canonicalId());
+            statement.setFloat(6, (float) match.similarity());
+            statement.setString(7, record.text());
+            statement.setBytes(8, MinHasher.toBytes(signature));
+            statement.setTimestamp(9, toTimestamp(record.uploadedAt()));
+            statement.executeUpdate();
+        } catch (SQLException e) {
+            throw new VectorStoreException("Near-duplicate insert failure.", e);
+        }
+    }
+
+    // 削除するファイルの正規のチャンク毎に、残るファイルの重複チャンクを 1 件正規のチャンクに昇格する
+    // ベクトルのテーブルから削除する前に呼び出す (昇格したチャンクの件数を返す)
+    public int promoteDuplicates(Collection<String> deletedFileNames) {
+        if (deletedFileNames == null || deletedFileNames.isEmpty()) {
+            return 0;
+        }
+        var survivorSql = "SELECT DISTINCT ON (d.canonicalId) d.id, d.canonicalId, d.fileName, d.pageNumber,"
+                + " d.collection, d.origntext, d.signature, d.uploadedAt FROM " + minHashTableName + " d"
+                + " JOIN " + minHashTableName + " c ON c.id = d.canonicalId"
+                + " WHERE c.fileName = ANY(?) AND NOT d.fileName = ANY(?) ORDER BY d.canonicalId, d.id";
+        Map<UUID, VectorRecord> survivors = new HashMap<>();
+        Map<UUID, int[]> signatures = new HashMap<>();
+        try (var connection = connectionFactory.getConnection();
+                var statement = connection.prepareStatement(survivorSql)) {
+            var array = connection.createArrayOf("varchar", deletedFileNames.toArray());
+            statement.setArray(1, array);
+            statement.setArray(2, array);
+            try (var resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    var id = UUID.fromString(resultSet.getString("id"));
+                    var uploadedAt = resultSet.getTimestamp("uploadedAt");
+                    survivors.put(UUID.fromString(resultSet.getString("canonicalId")),
+                            new VectorRecord(id, null, resultSet.getString("origntext"),
+                                    resultSet.getString("fileName"), resultSet.getInt("pageNumber"),
+                                    resultSet.getString("collection"),
+                                    uploadedAt == null ? null : uploadedAt.toInstant()));
+                    signatures.put(id, MinHasher.fromBytes(resultSet.getBytes("signature")));
+                }
+            }
+        } catch (SQLException e) {
+            throw new VectorStoreException("Near-duplicate lookup failure.", e);
+        }
+        if (survivors.isEmpty()) {
+            return 0;
+        }
+
+        // 正規のチャンクの Embedding を再利用して、ベクトルのテーブルに登録する
+        List<VectorRecord> promoted = new ArrayList<>(survivors.size());
+        Map<UUID, UUID> replacedBy = new HashMap<>();
+        for (var canonical : vectorStore.findByIds(survivors.keySet())) {
+            var survivor = survivors.get(canonical.id());
+            // uploadedAt を保存する前に紐付けたチャンクは、正規のチャンクの登録日時を引き継ぐ
+            var uploadedAt = survivor.uploadedAt() != null ? survivor.uploadedAt() : canonical.uploadedAt();
+            promoted.add(new VectorRecord(survivor.id(), canonical.embedding(), survivor.text(),
+                    survivor.fileName(), survivor.pageNumber(), survivor.collection(), uploadedAt));
+            replacedBy.put(canonical.id(), survivor.id());
+        }
+        vectorStore.upsert(promoted);
+
+        var promoteSql = "UPDATE " + minHashTableName
+                + " SET canonicalId = NULL, similarity = NULL, origntext = NULL WHERE id = ?";
+        var repointSql = "UPDATE " + minHashTableName + " SET canonicalId = ? WHERE canonicalId = ? AND id <> ?";
+        try (var connection = connectionFactory.getConnection()) {
+            connection.setAutoCommit(false);
+            try (var promote = connection.prepareStatement(promoteSql);
+                    var repoint = connection.prepareStatement(repointSql)) {
+                for (var entry : replacedBy.entrySet()) {
+                    promote.setObject(1, entry.getValue());
+                    promote.addBatch();
+                    repoint.setObject(1, entry.getValue());
+                    repoint.setObject(2, entry.getKey());
+                    repoint.setObject(3, entry.getValue());
+                    repoint.addBatch();
+                }
+                promote.executeBatch();
+                repoint.executeBatch();
+                for (var record : promoted) {
+                    insertBuckets(connection, record.id(), signatures.get(record.id()));
+                }
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new VectorStoreException("Near-duplicate promotion failure.", e);
+        }
+        return promoted.size();
+    }
+
+    public int deleteByFileNames(Collection<String> fileNames) {
+        if (fileNames == null || fileNames.isEmpty()) {
+            return 0;
+        }
+        var deleteLshSql = "DELETE FROM " + lshTableName + " WHERE id IN (SELECT id FROM " + minHashTableName
+                + " WHERE fileName = ANY(?))";
+        var deleteSql = "DELETE FROM " + minHashTableName + " WHERE fileName = ANY(?)";
+        try (var connection = connectionFactory.getConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                var array = connection.createArrayOf("varchar", fileNames.toArray());
+                try (var statement = connection.prepareStatement(deleteLshSql)) {
+                    statement.setArray(1, array);
+                    statement.executeUpdate();
+                }
+                int deleted;
+                try (var statement = connection.prepareStatement(deleteSql)) {
+                    statement.setArray(1, array);
+                    deleted = statement.executeUpdate();
+                }
+                connection.commit();
+                return deleted;
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new VectorStoreException("Delete failure.", e);
+        }
+    }
+
+    public void deleteAll() {
+        try (var connection = connectionFactory.getConnection();
+                var statement = connection.createStatement()) {
+            statement.execute("TRUNCATE TABLE " + minHashTableName + ", " + lshTableName);
+        } catch (SQLException e) {
+            throw new VectorStoreException("Truncate failure.", e);
+        }
+    }
+
+    private void insertCanonical(Connection connection, VectorRecord record, int[] signature) throws SQLException {
+        var insertSql = "INSERT INTO " + minHashTableName + " (id, fileName, pageNumber, collection, signature,"
+                + " uploadedAt) VALUES (?, ?, ?, ?, ?, ?) ON CONFLICT (id) DO UPDATE SET signature = EXCLUDED.signature";
+        try (var statement = connection.prepareStatement(insertSql)) {
+            statement.setObject(1, record.id());
+            statement.setString(2, record.fileName());
+            statement.setInt(3, record.pageNumber());
+            statement.setString(4, record.collection());
+            statement.setBytes(5, MinHasher.toBytes(signature));
+            statement.setTimestamp(6, toTimestamp(record.uploadedAt()));
+            statement.executeUpdate();
+        }
+        insertBuckets(connection, record.id(), signature);
+    }
+
+    private static Timestamp toTimestamp(Instant instant) {
+        return Timestamp.from(instant == null ? Instant.now() : instant);
+    }
+
+    private void insertBuckets(Connection connection, UUID id, int[] signature) throws SQLException {
+        var insertSql = "INSERT INTO " + lshTableName + " (band, bucket, id) VALUES (?, ?, ?) ON CONFLICT DO NOTHING";
+        var keys = minHasher.bandKeys(signature);
+        try (var statement = connection.prepareStatement(insertSql)) {
+            for (int band = 0; band < keys.length; band++) {
+                statement.setShort(1, (short) band);
+                statement.setLong(2, keys[band]);
+                statement.setObject(3, id);
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+    }
+}
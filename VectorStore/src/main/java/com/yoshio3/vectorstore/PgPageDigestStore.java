@@ -0,0 +1,171 @@
+package com.yoshio3.vectorstore;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// ページ毎の短い要約 (ダイジェスト) をテーブル名_DIGEST に保存する
+// ・ファイルの登録時にページのテキストを PENDING として登録し、バッチ (BlobUploadDetector のタイマー) で要約を作成する
+// ・要約を作成したページは COMPLETED にし、元のテキストは削除する
+// ・要約の作成に失敗した場合は後ろに回し、maxAttempts 回失敗した場合は FAILED にする
+// ・検索では COMPLETED のページの要約だけを取得する (OpenAI の要約より先にクライアントに送信する)
+public class PgPageDigestStore {
+
+    public static final String DIGEST_SUFFIX = "_DIGEST";
+
+    public enum Status {
+        PENDING, COMPLETED, FAILED
+    }
+
+    private final PgVectorStore.ConnectionFactory connectionFactory;
+
+    private final String digestTableName;
+
+    public PgPageDigestStore(PgVectorStore.ConnectionFactory connectionFactory, String tableName) {
+        this.connectionFactory = connectionFactory;
+        this.digestTableName = tableName + DIGEST_SUFFIX;
+    }
+
+    public void createTable() {
+        try (var connection = connectionFactory.getConnection();
+                var statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS " + digestTableName + " (fileName varchar,"
+                    + " pageNumber integer, status varchar(16) NOT NULL, sourcetext text, digest text,"
+                    + " model varchar(256), attempts integer NOT NULL DEFAULT 0,"
+                    + " updatedAt timestamptz NOT NULL DEFAULT now(), PRIMARY KEY (fileName, pageNumber))");
+            statement.execute("CREATE INDEX IF NOT EXISTS " + digestTableName + "_pending_idx ON "
+                    + digestTableName + " (updatedAt) WHERE status = 'PENDING'");
+        } catch (SQLException e) {
+            throw new VectorStoreException("Create table failure.", e);
+        }
+    }
+
+    // 要約を作成するページを登録する (同じページを登録し直した場合は、要約を作成し直す)
+    public void enqueue(List<ParentRecord> pages) {
+        if (pages == null || pages.isEmpty()) {
+            return;
+        }
+        var upsertSql = "INSERT INTO " + digestTableName + " (fileName, pageNumber, status, sourcetext)"
+                + " VALUES (?, ?, 'PENDING', ?) ON CONFLICT (fileName, pageNumber) DO UPDATE SET"
+                + " status = 'PENDING', sourcetext = EXCLUDED.sourcetext, digest = NULL, model = NULL,"
+                + " attempts = 0, updatedAt = now()";
+        try (var connection = connectionFactory.getConnection();
+                var statement = connection.prepareStatement(upsertSql)) {
+            for (var page : pages) {
+                statement.setString(1, page.fileName());
+                statement.setInt(2, page.pageNumber());
+                statement.setString(3, page.text());
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        } catch (SQLException e) {
+            throw new VectorStoreException("Digest enqueue failure.", e);
+        }
+    }
+
+    // 要約を作成していないページを登録順 (失敗したページは最後) に取得する
+    public List<ParentRecord> fetchPending(int limit) {
+        var fetchSql = "SELECT fileName, pageNumber, sourcetext FROM " + digestTableName
+                + " WHERE status = 'PENDING' ORDER BY updatedAt LIMIT ?";
+        try (var connection = connectionFactory.getConnection();
+                var statement = connection.prepareStatement(fetchSql)) {
+            statement.setInt(1, limit);
+            List<ParentRecord> pages = new ArrayList<>();
+            try (var resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    pages.add(new ParentRecord(resultSet.getString("fileName"), resultSet.getInt("pageNumber"),
+                            resultSet.getString("sourcetext")));
+                }
+            }
+            return pages;
+        } catch (SQLException e) {
+            throw new VectorStoreException("Digest fetch failure.", e);
+        }
+    }
+
+    public void complete(ParentRecord.Key key, String digest, String model) {
+        var updateSql = "UPDATE " + digestTableName + " SET status = 'COMPLETED', digest = ?, model = ?,"
+                + " sourcetext = NULL, updatedAt = now() WHERE fileName = ? AND pageNumber = ? AND status = 'PENDING'";
+        try (var connection = connectionFactory.getConnection();
+                var statement = connection.prepareStatement(updateSql)) {
+            statement.setString(1, digest);
+            statement.setString(2, model);
+            statement.setString(3, key.fileName());
+            statement.setInt(4, key.pageNumber());
+            statement.executeUpdate();
+        } catch (SQLException e) {
+            throw new VectorStoreException("Digest update failure.", e);
+        }
+    }
+
+    // 失敗した回数を記録し、maxAttempts 回失敗した場合は FAILED にする (FAILED になった場合は true)
+    public boolean fail(ParentRecord.Key key, int maxAttempts) {
+        var updateSql = "UPDATE " + digestTableName + " SET attempts = attempts + 1,"
+                + " status = CASE WHEN attempts + 1 >= ? THEN 'FAILED' ELSE 'PENDING' END, updatedAt = now()"
+                + " WHERE fileName = ? AND pageNumber = ? AND status = 'PENDING' RETURNING status";
+        try (var connection = connectionFactory.getConnection();
+                var statement = connection.prepareStatement(updateSql)) {
+            statement.setInt(1, maxAttempts);
+            statement.setString(2, key.fileName());
+            statement.setInt(3, key.pageNumber());
+            try (var resultSet = statement.executeQuery()) {
+                return resultSet.next() && Status.FAILED.name().equals(resultSet.getString("status"));
+            }
+        } catch (SQLException e) {
+            throw new VectorStoreException("Digest update failure.", e);
+        }
+    }
+
+    // 要約を作成したページの要約を取得する (要約が無いページは含まない)
+    public Map<ParentRecord.Key, String> fetchDigests(Collection<ParentRecord.Key> keys) {
+        Map<ParentRecord.Key, String> digests = new HashMap<>();
+        if (keys == null || keys.isEmpty()) {
+            return digests;
+        }
+        var fetchSql = "SELECT d.fileName, d.pageNumber, d.digest FROM " + digestTableName + " d"
+                + " JOIN unnest(?::varchar[], ?::integer[]) AS k(fileName, pageNumber)"
+                + " ON d.fileName = k.fileName AND d.pageNumber = k.pageNumber WHERE d.status = 'COMPLETED'";
+        try (var connection = connectionFactory.getConnection();
+                var statement = connection.prepareStatement(fetchSql)) {
+            statement.setArray(1, connection.createArrayOf("varchar",
+                    keys.stream().map(ParentRecord.Key::fileName).toArray()));
+            statement.setArray(2, connection.createArrayOf("integer",
+                    keys.stream().map(ParentRecord.Key::pageNumber).toArray()));
+            try (var resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    digests.put(new ParentRecord.Key(resultSet.getString("fileName"), resultSet.getInt("pageNumber")),
+                            resultSet.getString("digest"));
+                }
+            }
+            return digests;
+        } catch (SQLException e) {
+            throw new VectorStoreException("Digest fetch failure.", e);
+        }
+    }
+
+    public int deleteByFileNames(Collection<String> fileNames) {
+        if (fileNames == null || fileNames.isEmpty()) {
+            return 0;
+        }
+        var deleteSql = "DELETE FROM " + digestTableName + " WHERE fileName = ANY(?)";
+        try (var connection = connectionFactory.getConnection();
+                var statement = connection.prepareStatement(deleteSql)) {
+            statement.setArray(1, connection.createArrayOf("varchar", fileNames.toArray()));
+            return statement.executeUpdate();
+        } catch (SQLException e) {
+            throw new VectorStoreException("Delete failure.", e);
+        }
+    }
+
+    public void deleteAll() {
+        try (var connection = connectionFactory.getConnection();
+                var statement = connection.createStatement()) {
+            statement.execute("TRUNCATE TABLE " + digestTableName);
+        } catch (SQLException e) {
+            throw new VectorStoreException("Truncate failure.", e);
+        }
+    }
+}
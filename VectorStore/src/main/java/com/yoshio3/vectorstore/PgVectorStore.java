@@ -0,0 +1,882 @@
+package com.yoshio3.vectorstore;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+import org.postgresql.PGConnection;
+
+// PostgreSQL (pgvector) のテーブルに保存するストア
+// テーブルの構成 (Layout)
+// ・INLINE : 1 つのテーブルにテキストも保存する
+//   (id uuid, embedding VECTOR(1536), origntext varchar(8192), fileName varchar(2048),
+//    pageNumber integer, collection varchar(256), uploadedAt timestamptz, PRIMARY KEY (id))
+// ・SPLIT : 検索で参照する列だけのテーブルと、テキストのテーブル (テーブル名_TEXT) に分けて保存する
+//   (id uuid, embedding VECTOR(1536) または HALFVEC(1536), fileName varchar(2048), pageNumber integer,
+//    collection varchar(256), uploadedAt timestamptz, PRIMARY KEY (id))
+//   (id uuid, origntext varchar(8192), PRIMARY KEY (id))
+//   検索するテーブルが小さくなるため、インデックスとテーブルを共有バッファ (メモリ) に載せやすくなる
+// どちらの構成でも、検索ではテキストを取得しない (絞り込んだ結果のテキストだけを fetchTexts() で取得する)
+//
+// 絞り込み条件を指定した検索は、条件に一致する行数の推定値 (EXPLAIN) から実行方法を選択する
+// ・EXACT : 一致する行が少ない場合は、条件で絞り込んだ行 (B-Tree インデックスを利用) の距離を全て計算する
+// ・ITERATIVE_INDEX : 一致する行が多い場合は HNSW インデックスを利用し、
+//   件数が足りなくなった場合は続けて探索する (pgvector 0.8.0 以降の hnsw.iterative_scan)
+// ・INDEX_OVERFETCH : iterative_scan を利用できない場合は、一致する割合に応じて hnsw.ef_search を増やす
+// インデックスを利用した検索で topK 件に満たない場合は EXACT で再検索し、結果が欠けないようにする
+//
+// 量子化 (Quantization) を指定した場合は、embedding を圧縮した値の式インデックスで候補を
+// topK × oversampling 件取得し、元の embedding との距離で並べ替えて topK 件を返す (EXACT 以外)
+// ・BINARY : binary_quantize(embedding)::bit(1536) のハミング距離 (インデックスのサイズは約 1/32)
+// ・TRUNCATED : subvector(embedding, 1, N) の L2 距離 (インデックスのサイズは N / 1536)
+// 式インデックスを利用するため、登録する値は変わらない (インデックスの作成方法は README を参照、pgvector 0.7.0 以降)
+//
+// 子チャンク (文単位の小さなチャンク) を登録する場合は、親 (ページ全体のテキスト) をテーブル名_PARENT に保存する
+//   (fileName varchar(2048), pageNumber integer, origntext text, PRIMARY KEY (fileName, pageNumber))
+//
+// ほぼ同じテキストのチャンクを紐付けている場合 (PgNearDuplicateIndex) は、絞り込み条件を指定した検索で
+// 紐付いたチャンク (テーブル名_MINHASH) が条件に一致する正規のチャンクも検索し、紐付いたチャンクとして返す
+public class PgVectorStore implements VectorStore {
+
+    // 検索で参照する列 (SPLIT の場合はテキスト以外の全ての列)
+    private static final String VECTOR_COLUMNS = "id, embedding, fileName, pageNumber, collection, uploadedAt";
+
+    // 検索結果として取得する列
+    private static final String HIT_COLUMNS = "id, embedding, fileName, pageNumber";
+
+    private static final String TEXT_TABLE_SUFFIX = "_TEXT";
+
+    private static final String PARENT_TABLE_SUFFIX = "_PARENT";
+
+    // EXACT で検索する、条件に一致する行数の推定値の上限
+    private static final long DEFAULT_EXACT_SCAN_MAX_ROWS = 20000;
+
+    // INDEX_OVERFETCH で利用する hnsw.ef_search の上限 (pgvector の上限値)
+    private static final int MAX_EF_SEARCH = 1000;
+
+    // テーブルの行数の推定値を再取得するまでの時間
+    private static final long TABLE_ROWS_CACHE_MILLIS = 60_000;
+
+    private static final Pattern PLAN_ROWS_PATTERN = Pattern.compile("\"Plan Rows\":\\s*([0-9.eE+]+)");
+
+    public enum Plan {
+        INDEX, EXACT, ITERATIVE_INDEX, INDEX_OVERFETCH
+    }
+
+    public enum Quantization {
+        NONE, BINARY, TRUNCATED
+    }
+
+    public enum Layout {
+        INLINE, SPLIT
+    }
+
+    // embedding 列の型 (HALFVEC は pgvector 0.7.0 以降、ベクトルのサイズが半分になる)
+    public enum VectorType {
+        VECTOR("vector"), HALFVEC("halfvec");
+
+        private final String sqlType;
+
+        VectorType(String sqlType) {
+            this.sqlType = sqlType;
+        }
+
+        public String sqlType() {
+            return sqlType;
+        }
+    }
+
+    // 距離の種類 (HNSW インデックスの演算子クラスと一致させる必要がある)
+    // OpenAI の Embedding は長さが 1 に正規化されているため、いずれも検索結果の順位は同じになる
+    public enum Distance {
+        L2("<->", "l2_ops"), COSINE("<=>", "cosine_ops"), INNER_PRODUCT("<#>", "ip_ops");
+
+        private final String operator;
+
+        private final String operatorClassSuffix;
+
+        Distance(String operator, String operatorClassSuffix) {
+            this.operator = operator;
+            this.operatorClassSuffix = operatorClassSuffix;
+        }
+
+        public String operator() {
+            return operator;
+        }
+
+        // インデックスの演算子クラス (vector_l2_ops, halfvec_cosine_ops など)
+        public String operatorClass(VectorType vectorType) {
+            return vectorType.sqlType() + "_" + operatorClassSuffix;
+        }
+    }
+
+    // コネクションの取得方法 (DriverManager・コネクション・プールなど)
+    @FunctionalInterface
+    public interface ConnectionFactory {
+        Connection getConnection() throws SQLException;
+    }
+
+    // WHERE 句とそのパラメータ
+    private record Where(String sql, List<Object> parameters) {
+        boolean isEmpty() {
+            return sql.isEmpty();
+        }
+    }
+
+    private final ConnectionFactory connectionFactory;
+
+    private final String tableName;
+
+    private long exactScanMaxRows = DEFAULT_EXACT_SCAN_MAX_ROWS;
+
+    private Layout layout = Layout.INLINE;
+
+    private VectorType vectorType = VectorType.VECTOR;
+
+    private Distance distance = Distance.L2;
+
+    // 親のテーブルを利用するか (ファイルを削除する場合に、親も削除する)
+    private boolean parentDocuments;
+
+    private Quantization quantization = Quantization.NONE;
+
+    // embedding の次元数 (BINARY の bit の長さ)
+    private int dimensions = 1536;
+
+    // TRUNCATED で利用する先頭からの次元数
+    private int truncatedDimensions = 256;
+
+    // 量子化した値で取得する候補の件数 (topK の何倍か)
+    private int oversampling = 4;
+
+    // ほぼ同じテキストのチャンクを紐付けているか (絞り込み条件を紐付いたチャンクにも適用する)
+    private boolean nearDuplicates;
+
+    private volatile Boolean iterativeScanSupported;
+
+    private volatile long tableRows = -1;
+
+    private volatile long tableRowsCheckedAt;
+
+    public PgVectorStore(ConnectionFactory connectionFactory, String tableName) {
+        this.connectionFactory = connectionFactory;
+        this.tableName = tableName;
+    }
+
+    public static PgVectorStore create(String jdbcUrl, String user, String password, String tableName) {
+        return new PgVectorStore(() -> DriverManager.getConnection(jdbcUrl, user, password), tableName);
+    }
+
+    public void setExactScanMaxRows(long exactScanMaxRows) {
+        this.exactScanMaxRows = exactScanMaxRows;
+    }
+
+    public void setLayout(Layout layout) {
+        this.layout = layout;
+    }
+
+    public void setVectorType(VectorType vectorType) {
+        this.vectorType = vectorType;
+    }
+
+    public void setDistance(Distance distance) {
+        this.distance = distance;
+    }
+
+    public void setParentDocuments(boolean parentDocuments) {
+        this.parentDocuments = parentDocuments;
+    }
+
+    public void setNearDuplicates(boolean nearDuplicates) {
+        this.nearDuplicates = nearDuplicates;
+    }
+
+    public void setQuantization(Quantization quantization) {
+        this.quantization = quantization;
+    }
+
+    public void setDimensions(int dimensions) {
+        this.dimensions = dimensions;
+    }
+
+    public void setTruncatedDimensions(int truncatedDimensions) {
+        this.truncatedDimensions = truncatedDimensions;
+    }
+
+    public void setOversampling(int oversampling) {
+        this.oversampling = Math.max(1, oversampling);
+    }
+
+    // テキストのテーブル名 (SPLIT)
+    public static String textTableName(String tableName) {
+        return tableName + TEXT_TABLE_SUFFIX;
+    }
+
+    // 親のテーブル名
+    public static String parentTableName(String tableName) {
+        return tableName + PARENT_TABLE_SUFFIX;
+    }
+
+    private String getTextTableName() {
+        return layout == Layout.SPLIT ? textTableName(tableName) : tableName;
+    }
+
+    @Override
+    public void upsert(List<VectorRecord> records) {
+        if (records == null || records.isEmpty()) {
+            return;
+        }
+        var inline = layout == Layout.INLINE;
+        var upsertSql = "INSERT INTO " + tableName + " (" + VECTOR_COLUMNS + (inline ? ", origntext" : "")
+                + ") VALUES (?, ?::" + vectorType.sqlType() + ", ?, ?, ?, ?" + (inline ? ", ?" : "") + ")"
+                + onConflictUpdate(inline);
+        var upsertTextSql = "INSERT INTO " + getTextTableName() + " (id, origntext) VALUES (?, ?)"
+                + " ON CONFLICT (id) DO UPDATE SET origntext = EXCLUDED.origntext";
+        try (var connection = connectionFactory.getConnection()) {
+            connection.setAutoCommit(false);
+            try (var statement = connection.prepareStatement(upsertSql)) {
+                for (var record : records) {
+                    statement.setObject(1, record.id());
+                    statement.setString(2, Vectors.toLiteral(record.embedding()));
+                    statement.setString(3, record.fileName());
+                    statement.setInt(4, record.pageNumber());
+                    statement.setString(5, record.collection());
+                    statement.setTimestamp(6, Timestamp.from(
+                            record.uploadedAt() == null ? Instant.now() : record.uploadedAt()));
+                    if (inline) {
+                        statement.setString(7, record.text());
+                    }
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+                if (!inline) {
+                    try (var textStatement = connection.prepareStatement(upsertTextSql)) {
+                        for (var record : records) {
+                            textStatement.setObject(1, record.id());
+                            textStatement.setString(2, record.text());
+                            textStatement.addBatch();
+                        }
+                        textStatement.executeBatch();
+                    }
+                }
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new VectorStoreException("Upsert failure.", e);
+        }
+    }
+
+    @Override
+    public List<VectorHit> search(float[] query, int topK, SearchFilter filter) {
+        var where = toWhere(filter);
+        try (var connection = connectionFactory.getConnection()) {
+            var plan = choosePlan(connection, where, topK);
+            var hits = search(connection, plan, query, topK, where);
+            if (plan != Plan.INDEX && plan != Plan.EXACT && hits.size() < topK) {
+                // インデックスの探索で件数が足りなかった場合は、絞り込んだ行の距離を全て計算する
+                hits = search(connection, Plan.EXACT, query, topK, where);
+            }
+            return resolveNearDuplicates(connection, hits, filter);
+        } catch (SQLException e) {
+            throw new VectorStoreException("Search failure.", e);
+        }
+    }
+
+    // インデックスを利用せずに、全ての距離を計算して検索する (検索結果の正解の作成に利用する)
+    public List<VectorHit> searchExact(float[] query, int topK, SearchFilter filter) {
+        try (var connection = connectionFactory.getConnection()) {
+            var hits = search(connection, Plan.EXACT, query, topK, toWhere(filter));
+            return resolveNearDuplicates(connection, hits, filter);
+        } catch (SQLException e) {
+            throw new VectorStoreException("Search failure.", e);
+        }
+    }
+
+    @Override
+    public Map<UUID, String> fetchTexts(Collection<UUID> ids) {
+        Map<UUID, String> texts = new HashMap<>();
+        if (ids == null || ids.isEmpty()) {
+            return texts;
+        }
+        try (var connection = connectionFactory.getConnection();
+                var statement = connection.prepareStatement(
+                        "SELECT id, origntext FROM " + getTextTableName() + " WHERE id = ANY(?)")) {
+            statement.setArray(1, connection.createArrayOf("uuid", ids.toArray()));
+            try (var resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    texts.put(UUID.fromString(resultSet.getString("id")), resultSet.getString("origntext"));
+                }
+            }
+            return texts;
+        } catch (SQLException e) {
+            throw new VectorStoreException("Fetch texts failure.", e);
+        }
+    }
+
+    @Override
+    public void upsertParents(List<ParentRecord> parents) {
+        if (parents == null || parents.isEmpty()) {
+            return;
+        }
+        var upsertSql = "INSERT INTO " + parentTableName(tableName) + " (fileName, pageNumber, origntext)"
+                + " VALUES (?, ?, ?) ON CONFLICT (fileName, pageNumber) DO UPDATE SET origntext = EXCLUDED.origntext";
+        try (var connection = connectionFactory.getConnection();
+                var statement = connection.prepareStatement(upsertSql)) {
+            for (var parent : parents) {
+                statement.setString(1, parent.fileName());
+                statement.setInt(2, parent.pageNumber());
+                statement.setString(3, parent.text());
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        } catch (SQLException e) {
+            throw new VectorStoreException("Upsert failure.", e);
+        }
+    }
+
+    @Override
+    public Map<ParentRecord.Key, String> fetchParentTexts(Collection<ParentRecord.Key> keys) {
+        Map<ParentRecord.Key, String> texts = new HashMap<>();
+        if (keys == null || keys.isEmpty()) {
+            return texts;
+        }
+        var fetchSql = "SELECT p.fileName, p.pageNumber, p.origntext FROM " + parentTableName(tableName) + " p"
+                + " JOIN unnest(?::varchar[], ?::integer[]) AS k(fileName, pageNumber)"
+                + " ON p.fileName = k.fileName AND p.pageNumber = k.pageNumber";
+        try (var connection = connectionFactory.getConnection();
+                var statement = connection.prepareStatement(fetchSql)) {
+            statement.setArray(1, connection.createArrayOf("varchar",
+                    keys.stream().map(ParentRecord.Key::fileName).toArray()));
+            statement.setArray(2, connection.createArrayOf("integer",
+                    keys.stream().map(ParentRecord.Key::pageNumber).toArray()));
+            try (var resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    texts.put(new ParentRecord.Key(resultSet.getString("fileName"), resultSet.getInt("pageNumber")),
+                            resultSet.getString("origntext"));
+                }
+            }
+            return texts;
+        } catch (SQLException e) {
+            throw new VectorStoreException("Fetch texts failure.", e);
+        }
+    }
+
+    // 絞り込み条件に対して選択される実行方法 (確認用)
+    public Plan explain(SearchFilter filter, int topK) {
+        try (var connection = connectionFactory.getConnection()) {
+            return choosePlan(connection, toWhere(filter), topK);
+        } catch (SQLException e) {
+            throw new VectorStoreException("Explain failure.", e);
+        }
+    }
+
+    private Plan choosePlan(Connection connection, Where where, int topK) throws SQLException {
+        if (where.isEmpty()) {
+            return Plan.INDEX;
+        }
+        if (estimateRows(connection, where) <= Math.max(exactScanMaxRows, topK)) {
+            return Plan.EXACT;
+        }
+        return isIterativeScanSupported(connection) ? Plan.ITERATIVE_INDEX : Plan.INDEX_OVERFETCH;
+    }
+
+    private List<VectorHit> search(Connection connection, Plan plan, float[] query, int topK, Where where)
+            throws SQLException {
+        var quantized = plan != Plan.EXACT && quantization != Quantization.NONE;
+        var candidates = quantized ? Math.min(MAX_EF_SEARCH, topK * oversampling) : topK;
+        String querySql;
+        if (quantized) {
+            // 量子化した値のインデックスで候補を取得し、元の embedding との距離で並べ替える
+            querySql = "SELECT " + HIT_COLUMNS + ", embedding " + distance.operator() + " ?::" + vectorType.sqlType() + " AS distance FROM"
+                    + " (SELECT " + HIT_COLUMNS + " FROM " + tableName + where.sql() + " ORDER BY "
+                    + compactExpression("embedding") + " " + compactOperator() + " "
+                    + compactExpression("?::" + vectorType.sqlType()) + " LIMIT ?) candidates"
+                    + " ORDER BY distance LIMIT ?";
+        } else if (plan == Plan.EXACT) {
+            // MATERIALIZED により、先に条件で絞り込んでから距離を計算する (HNSW インデックスを利用しない)
+            querySql = "WITH filtered AS MATERIALIZED (SELECT " + HIT_COLUMNS + " FROM " + tableName + where.sql()
+                    + ") SELECT " + HIT_COLUMNS + ", embedding " + distance.operator() + " ?::" + vectorType.sqlType() + " AS distance"
+                    + " FROM filtered ORDER BY distance LIMIT ?";
+        } else {
+            querySql = "SELECT " + HIT_COLUMNS + ", embedding " + distance.operator() + " ?::" + vectorType.sqlType() + " AS distance FROM "
+                    + tableName + where.sql() + " ORDER BY embedding " + distance.operator() + " ?::" + vectorType.sqlType() + " LIMIT ?";
+        }
+        var vector = Vectors.toLiteral(query);
+        var autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try {
+            // SET LOCAL はトランザクション内だけで有効
+            try (var statement = connection.createStatement()) {
+                if (plan == Plan.ITERATIVE_INDEX) {
+                    statement.execute("SET LOCAL hnsw.iterative_scan = strict_order");
+                } else if (plan == Plan.INDEX_OVERFETCH) {
+                    statement.execute("SET LOCAL hnsw.ef_search = "
+                            + Math.max(candidates, overfetchEfSearch(connection, where, candidates)));
+                }
+                if (quantized && plan != Plan.INDEX_OVERFETCH && candidates > 40) {
+                    // HNSW インデックスから取得できる件数は hnsw.ef_search (デフォルト 40) 件まで
+                    statement.execute("SET LOCAL hnsw.ef_search = " + candidates);
+                }
+            }
+            List<VectorHit> hits = new ArrayList<>(topK);
+            try (var statement = connection.prepareStatement(querySql)) {
+                int index = 1;
+                if (quantized) {
+                    statement.setString(index++, vector);
+                    index = bind(connection, statement, index, where.parameters());
+                    statement.setString(index++, vector);
+                    statement.setInt(index++, candidates);
+                } else if (plan == Plan.EXACT) {
+                    index = bind(connection, statement, index, where.parameters());
+                    statement.setString(index++, vector);
+                } else {
+                    statement.setString(index++, vector);
+                    index = bind(connection, statement, index, where.parameters());
+                    statement.setString(index++, vector);
+                }
+                statement.setInt(index, topK);
+                try (var resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        hits.add(new VectorHit(UUID.fromString(resultSet.getString("id")),
+                                Vectors.parseLiteral(resultSet.getString("embedding")),
+                                null,
+                                resultSet.getString("filename"),
+                                resultSet.getInt("pageNumber"),
+                                resultSet.getDouble("distance")));
+                    }
+                }
+            }
+            connection.commit();
+            return hits;
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    // 量子化した値を求める式 (インデックスの式と一致させる必要がある)
+    private String compactExpression(String vector) {
+        return switch (quantization) {
+            case BINARY -> "binary_quantize(" + vector + ")::bit(" + dimensions + ")";
+            case TRUNCATED -> "subvector(" + vector + ", 1, " + truncatedDimensions + ")::" + vectorType.sqlType()
+                    + "(" + truncatedDimensions + ")";
+            case NONE -> vector;
+        };
+    }
+
+    private String compactOperator() {
+        return quantization == Quantization.BINARY ? "<~>" : "<->";
+    }
+
+    // 一致する割合が低いほど多くの候補を探索する (topK / 一致する割合 の 2 倍)
+    private int overfetchEfSearch(Connection connection, Where where, int topK) throws SQLException {
+        var total = Math.max(1, getTableRows(connection));
+        var selectivity = Math.min(1d, Math.max(1d, estimateRows(connection, where)) / total);
+        var efSearch = (int) Math.ceil(topK / selectivity * 2);
+        return Math.max(40, Math.min(MAX_EF_SEARCH, efSearch));
+    }
+
+    // 条件に一致する行数の推定値 (プランナの統計情報を利用するため、実際には実行しない)
+    private long estimateRows(Connection connection, Where where) throws SQLException {
+        try (var statement = connection.prepareStatement(
+                "EXPLAIN (FORMAT JSON) SELECT 1 FROM " + tableName + where.sql())) {
+            bind(connection, statement, 1, where.parameters());
+            try (var resultSet = statement.executeQuery()) {
+                if (resultSet.next()) {
+                    var matcher = PLAN_ROWS_PATTERN.matcher(resultSet.getString(1));
+                    if (matcher.find()) {
+                        return (long) Double.parseDouble(matcher.group(1));
+                    }
+                }
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    private long getTableRows(Connection connection) throws SQLException {
+        var now = System.currentTimeMillis();
+        if (tableRows < 0 || now - tableRowsCheckedAt > TABLE_ROWS_CACHE_MILLIS) {
+            try (var statement = connection.prepareStatement(
+                    "SELECT reltuples::bigint FROM pg_class WHERE oid = to_regclass(?)")) {
+                statement.setString(1, tableName);
+                try (var resultSet = statement.executeQuery()) {
+                    tableRows = resultSet.next() ? resultSet.getLong(1) : 0;
+                }
+            }
+            tableRowsCheckedAt = now;
+        }
+        return tableRows;
+    }
+
+    // hnsw.iterative_scan は pgvector 0.8.0 以降で利用可能
+    private boolean isIterativeScanSupported(Connection connection) throws SQLException {
+        if (iterativeScanSupported == null) {
+            try (var statement = connection.createStatement();
+                    var resultSet = statement.executeQuery(
+                            "SELECT extversion FROM pg_extension WHERE extname = 'vector'")) {
+                iterativeScanSupported = resultSet.next() && compareVersion(resultSet.getString(1), "0.8.0") >= 0;
+            }
+        }
+        return iterativeScanSupported;
+    }
+
+    private static int compareVersion(String version, String other) {
+        var a = version.split("\\.");
+        var b = other.split("\\.");
+        for (int i = 0; i < Math.max(a.length, b.length); i++) {
+            var x = i < a.length ? parseVersionPart(a[i]) : 0;
+            var y = i < b.length ? parseVersionPart(b[i]) : 0;
+            if (x != y) {
+                return Integer.compare(x, y);
+            }
+        }
+        return 0;
+    }
+
+    private static int parseVersionPart(String part) {
+        var digits = part.replaceAll("[^0-9].*$", "");
+        return digits.isEmpty() ? 0 : Integer.parseInt(digits);
+    }
+
+    private Where toWhere(SearchFilter filter) {
+        if (filter == null || filter.isEmpty()) {
+            return new Where("", List.of());
+        }
+        var condition = toCondition(filter);
+        if (!nearDuplicates) {
+            return new Where(" WHERE " + condition.sql(), condition.parameters());
+        }
+        // 紐付いたチャンクが条件に一致する正規のチャンクも検索する
+        List<Object> parameters = new ArrayList<>(condition.parameters());
+        parameters.addAll(condition.parameters());
+        return new Where(" WHERE ((" + condition.sql() + ") OR id IN (SELECT canonicalId FROM "
+                + minHashTableName() + " WHERE " + condition.sql() + "))", parameters);
+    }
+
+    // 絞り込み条件 (WHERE を含まない、テーブル名_MINHASH も同じ列名のため共通で利用する)
+    private static Where toCondition(SearchFilter filter) {
+        List<String> conditions = new ArrayList<>();
+        List<Object> parameters = new ArrayList<>();
+        if (!filter.fileNames().isEmpty()) {
+            conditions.add("fileName = ANY(?)");
+            parameters.add(filter.fileNames());
+        }
+        if (filter.collection() != null) {
+            conditions.add("collection = ?");
+            parameters.add(filter.collection());
+        }
+        if (filter.uploadedFrom() != null) {
+            conditions.add("uploadedAt >= ?");
+            parameters.add(filter.uploadedFrom());
+        }
+        if (filter.uploadedTo() != null) {
+            conditions.add("uploadedAt < ?");
+            parameters.add(filter.uploadedTo());
+        }
+        return new Where(String.join(" AND ", conditions), parameters);
+    }
+
+    private String minHashTableName() {
+        return tableName + PgNearDuplicateIndex.MINHASH_SUFFIX;
+    }
+
+    // 絞り込み条件に一致しない正規のチャンクを、条件に一致する紐付いたチャンク (ファイル名・ページ番号・テキスト) に置き換える
+    // (紐付いたチャンクのテキストはテーブル名_MINHASH にあるため、VectorHit.text() に設定する)
+    private List<VectorHit> resolveNearDuplicates(Connection connection, List<VectorHit> hits, SearchFilter filter)
+            throws SQLException {
+        if (!nearDuplicates || filter == null || filter.isEmpty() || hits.isEmpty()) {
+            return hits;
+        }
+        var condition = toCondition(filter);
+        var ids = connection.createArrayOf("uuid", hits.stream().map(VectorHit::id).toArray());
+        var matchedSql = "SELECT id FROM " + tableName + " WHERE id = ANY(?) AND " + condition.sql();
+        Set<UUID> matched = new HashSet<>();
+        try (var statement = connection.prepareStatement(matchedSql)) {
+            statement.setArray(1, ids);
+            bind(connection, statement, 2, condition.parameters());
+            try (var resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    matched.add(UUID.fromString(resultSet.getString("id")));
+                }
+            }
+        }
+        if (matched.size() == hits.size()) {
+            return hits;
+        }
+        var duplicateSql = "SELECT DISTINCT ON (canonicalId) canonicalId, id, fileName, pageNumber, origntext FROM "
+                + minHashTableName() + " WHERE canonicalId = ANY(?) AND " + condition.sql()
+                + " ORDER BY canonicalId, uploadedAt DESC NULLS LAST, id";
+        Map<UUID, VectorHit> duplicates = new HashMap<>();
+        try (var statement = connection.prepareStatement(duplicateSql)) {
+            statement.setArray(1, ids);
+            bind(connection, statement, 2, condition.parameters());
+            try (var resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    duplicates.put(UUID.fromString(resultSet.getString("canonicalId")),
+                            new VectorHit(UUID.fromString(resultSet.getString("id")), null,
+                                    resultSet.getString("origntext"), resultSet.getString("fileName"),
+                                    resultSet.getInt("pageNumber"), 0));
+                }
+            }
+        }
+        List<VectorHit> resolved = new ArrayList<>(hits.size());
+        for (var hit : hits) {
+            var duplicate = duplicates.get(hit.id());
+            if (matched.contains(hit.id())) {
+                resolved.add(hit);
+            } else if (duplicate != null) {
+                resolved.add(new VectorHit(duplicate.id(), hit.embedding(), duplicate.text(), duplicate.fileName(),
+                        duplicate.pageNumber(), hit.distance()));
+            }
+        }
+        return resolved;
+    }
+
+    private static int bind(Connection connection, PreparedStatement statement, int index, List<Object> parameters)
+            throws SQLException {
+        for (var parameter : parameters) {
+            if (parameter instanceof List<?> list) {
+                statement.setArray(index++, connection.createArrayOf("varchar", list.toArray()));
+            } else if (parameter instanceof Instant instant) {
+                statement.setTimestamp(index++, Timestamp.from(instant));
+            } else {
+                statement.setString(index++, (String) parameter);
+            }
+        }
+        return index;
+    }
+
+    @Override
+    public int deleteByFileNames(Collection<String> fileNames) {
+        if (fileNames == null || fileNames.isEmpty()) {
+            return 0;
+        }
+        var deleteSql = "DELETE FROM " + tableName + " WHERE fileName = ANY(?)";
+        var deleteTextSql = "DELETE FROM " + getTextTableName() + " WHERE id IN (SELECT id FROM " + tableName
+                + " WHERE fileName = ANY(?))";
+        try (var connection = connectionFactory.getConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                var array = connection.createArrayOf("varchar", fileNames.toArray());
+                if (layout == Layout.SPLIT) {
+                    try (var statement = connection.prepareStatement(deleteTextSql)) {
+                        statement.setArray(1, array);
+                        statement.executeUpdate();
+                    }
+                }
+                int deleted;
+                try (var statement = connection.prepareStatement(deleteSql)) {
+                    statement.setArray(1, array);
+                    deleted = statement.executeUpdate();
+                }
+                if (parentDocuments) {
+                    try (var statement = connection.prepareStatement(
+                            "DELETE FROM " + parentTableName(tableName) + " WHERE fileName = ANY(?)")) {
+                        statement.setArray(1, array);
+                        statement.executeUpdate();
+                    }
+                }
+                connection.commit();
+                return deleted;
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new VectorStoreException("Delete failure.", e);
+        }
+    }
+
+    private static String onConflictUpdate(boolean inline) {
+        return " ON CONFLICT (id) DO UPDATE SET embedding = EXCLUDED.embedding,"
+                + " fileName = EXCLUDED.fileName, pageNumber = EXCLUDED.pageNumber,"
+                + " collection = EXCLUDED.collection, uploadedAt = EXCLUDED.uploadedAt"
+                + (inline ? ", origntext = EXCLUDED.origntext" : "");
+    }
+
+    // COPY で一時テーブルに取り込んでから、1 回の INSERT で登録する (既に登録されている id は更新する)
+    // 1 件ずつ INSERT するよりも通信とパースの回数が少ないため、スナップショットからの再登録などで利用する
+    public long bulkLoad(Iterable<VectorRecord> records) {
+        var inline = layout == Layout.INLINE;
+        var stageSql = "CREATE TEMP TABLE IF NOT EXISTS vector_store_stage (id uuid, embedding text, origntext text,"
+                + " fileName text, pageNumber integer, collection text, uploadedAt timestamptz) ON COMMIT DELETE ROWS";
+        var copySql = "COPY vector_store_stage (id, embedding, origntext, fileName, pageNumber, collection, uploadedAt)"
+                + " FROM STDIN";
+        var insertSql = "INSERT INTO " + tableName + " (" + VECTOR_COLUMNS + (inline ? ", origntext" : "") + ")"
+                + " SELECT id, embedding::" + vectorType.sqlType() + ", fileName, pageNumber, collection,"
+                + " coalesce(uploadedAt, now())" + (inline ? ", origntext" : "") + " FROM vector_store_stage"
+                + onConflictUpdate(inline);
+        var insertTextSql = "INSERT INTO " + getTextTableName() + " (id, origntext)"
+                + " SELECT id, origntext FROM vector_store_stage"
+                + " ON CONFLICT (id) DO UPDATE SET origntext = EXCLUDED.origntext";
+        try (var connection = connectionFactory.getConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                try (var statement = connection.createStatement()) {
+                    statement.execute(stageSql);
+                }
+                var copyIn = connection.unwrap(PGConnection.class).getCopyAPI().copyIn(copySql);
+                long rows;
+                try {
+                    for (var record : records) {
+                        var row = toCopyRow(record).getBytes(StandardCharsets.UTF_8);
+                        copyIn.writeToCopy(row, 0, row.length);
+                    }
+                    rows = copyIn.endCopy();
+                } finally {
+                    if (copyIn.isActive()) {
+                        copyIn.cancelCopy();
+                    }
+                }
+                try (var statement = connection.createStatement()) {
+                    statement.executeUpdate(insertSql);
+                    if (!inline) {
+                        statement.executeUpdate(insertTextSql);
+                    }
+                }
+                connection.commit();
+                return rows;
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new VectorStoreException("Bulk load failure.", e);
+        }
+    }
+
+    // COPY のテキスト形式の 1 行 (タブ区切り、NULL は \N)
+    private static String toCopyRow(VectorRecord record) {
+        return String.join("\t",
+                record.id().toString(),
+                Vectors.toLiteral(record.embedding()),
+                copyValue(record.text()),
+                copyValue(record.fileName()),
+                Integer.toString(record.pageNumber()),
+                copyValue(record.collection()),
+                record.uploadedAt() == null ? "\\N" : record.uploadedAt().toString()) + "\n";
+    }
+
+    private static String copyValue(String value) {
+        if (value == null) {
+            return "\\N";
+        }
+        return value.replace("\\", "\\\\")
+                .replace("\t", "\\t")
+                .replace("\n", "\\n")
+                .replace("\r", "\\r");
+    }
+
+    @Override
+    public void deleteAll() {
+        try (var connection = connectionFactory.getConnection();
+                var statement = connection.createStatement()) {
+            statement.execute("TRUNCATE TABLE " + tableName
+                    + (layout == Layout.SPLIT ? ", " + getTextTableName() : "")
+                    + (parentDocuments ? ", " + parentTableName(tableName) : ""));
+        } catch (SQLException e) {
+            throw new VectorStoreException("Truncate failure.", e);
+        }
+    }
+
+    @Override
+    public void scan(int fetchSize, Consumer<VectorRecord> consumer) {
+        // PostgreSQL の JDBC ドライバは、AutoCommit が無効の場合のみ fetchSize 件ずつカーソルで取得する
+        try (var connection = connectionFactory.getConnection()) {
+            connection.setAutoCommit(false);
+            try (var statement = connection.prepareStatement(selectRecordsSql())) {
+                statement.setFetchSize(fetchSize);
+                try (var resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        consumer.accept(toRecord(resultSet));
+                    }
+                }
+            } finally {
+                connection.rollback();
+            }
+        } catch (SQLException e) {
+            throw new VectorStoreException("Scan failure.", e);
+        }
+    }
+
+    // id の順に afterId より後の limit 件を取得 (afterId が null の場合は先頭から、キーセットで少しずつ読み進める場合に利用)
+    public List<VectorRecord> readAfter(UUID afterId, int limit) {
+        var readSql = selectRecordsSql() + (afterId == null ? "" : " WHERE v.id > ?") + " ORDER BY v.id LIMIT ?";
+        try (var connection = connectionFactory.getConnection();
+                var statement = connection.prepareStatement(readSql)) {
+            int index = 1;
+            if (afterId != null) {
+                statement.setObject(index++, afterId);
+            }
+            statement.setInt(index, limit);
+            List<VectorRecord> records = new ArrayList<>(limit);
+            try (var resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    records.add(toRecord(resultSet));
+                }
+            }
+            return records;
+        } catch (SQLException e) {
+            throw new VectorStoreException("Read failure.", e);
+        }
+    }
+
+    // id を指定してチャンクを取得
+    public List<VectorRecord> findByIds(Collection<UUID> ids) {
+        if (ids == null || ids.isEmpty()) {
+            return List.of();
+        }
+        try (var connection = connectionFactory.getConnection();
+                var statement = connection.prepareStatement(selectRecordsSql() + " WHERE v.id = ANY(?)")) {
+            statement.setArray(1, connection.createArrayOf("uuid", ids.toArray()));
+            List<VectorRecord> records = new ArrayList<>(ids.size());
+            try (var resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    records.add(toRecord(resultSet));
+                }
+            }
+            return records;
+        } catch (SQLException e) {
+            throw new VectorStoreException("Read failure.", e);
+        }
+    }
+
+    private String selectRecordsSql() {
+        return layout == Layout.SPLIT
+                ? "SELECT v.id, v.embedding, t.origntext, v.fileName, v.pageNumber, v.collection, v.uploadedAt"
+                        + " FROM " + tableName + " v LEFT JOIN " + getTextTableName() + " t ON t.id = v.id"
+                : "SELECT v.id, v.embedding, v.origntext, v.fileName, v.pageNumber, v.collection, v.uploadedAt"
+                        + " FROM " + tableName + " v";
+    }
+
+    private static VectorRecord toRecord(ResultSet resultSet) throws SQLException {
+        var uploadedAt = resultSet.getTimestamp("uploadedAt");
+        return new VectorRecord(UUID.fromString(resultSet.getString("id")),
+                Vectors.parseLiteral(resultSet.getString("embedding")),
+                resultSet.getString("origntext"),
+                resultSet.getString("filename"),
+                resultSet.getInt("pageNumber"),
+                resultSet.getString("collection"),
+                uploadedAt == null ? null : uploadedAt.toInstant());
+    }
+}
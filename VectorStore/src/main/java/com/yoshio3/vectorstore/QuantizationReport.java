@@ -0,0 +1,159 @@
+package com.yoshio3.vectorstore;
+
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+// 量子化の設定毎に、検索結果の再現率 (recall@k) と検索時間 (p50, p99) を表示するツール
+// ・テーブルからランダムに選んだ行の embedding をクエリとして利用する (クエリにした行は検索結果と正解から除く)
+// ・正解は、インデックスを利用せずに全ての距離を計算した topK 件
+// ・全ての検索で 1 つのコネクションを使い回す (検索毎の接続の時間を検索時間に含めないため)
+// ・テーブルのインデックスとそのサイズも表示する (量子化した値のインデックスは README を参照して作成する)
+//
+// 実行方法 :
+//   java -cp VectorStore.jar:postgresql.jar com.yoshio3.vectorstore.QuantizationReport \
+//     --url jdbc:postgresql://HOST:5432/DB --user USER --table DOCUMENT_SEARCH_VECTOR \
+//     [--layout split] [--halfvec] [--queries 100] [--top-k 5]
+//   パスワードは環境変数 PGPASSWORD で指定する
+public class QuantizationReport {
+
+    // 比較する設定 (量子化の方法・TRUNCATED の次元数・oversampling)
+    private record Setting(PgVectorStore.Quantization quantization, int truncatedDimensions, int oversampling) {
+        @Override
+        public String toString() {
+            return switch (quantization) {
+                case NONE -> "none";
+                case BINARY -> "binary x" + oversampling;
+                case TRUNCATED -> "truncated(" + truncatedDimensions + ") x" + oversampling;
+            };
+        }
+    }
+
+    private static final List<Setting> SETTINGS = List.of(
+            new Setting(PgVectorStore.Quantization.NONE, 0, 1),
+            new Setting(PgVectorStore.Quantization.BINARY, 0, 2),
+            new Setting(PgVectorStore.Quantization.BINARY, 0, 4),
+            new Setting(PgVectorStore.Quantization.BINARY, 0, 8),
+            new Setting(PgVectorStore.Quantization.TRUNCATED, 256, 2),
+            new Setting(PgVectorStore.Quantization.TRUNCATED, 256, 4),
+            new Setting(PgVectorStore.Quantization.TRUNCATED, 512, 4));
+
+    public static void main(String[] args) throws SQLException {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("--")) {
+                var hasValue = i + 1 < args.length && !args[i + 1].startsWith("--");
+                options.put(args[i].substring(2), hasValue ? args[++i] : "true");
+            }
+        }
+        if (!options.containsKey("url") || !options.containsKey("table")) {
+            System.err.println("Usage: QuantizationReport --url JDBC_URL --user USER --table TABLE"
+                    + " [--layout inline|split] [--halfvec] [--queries 100] [--top-k 5]");
+            System.exit(1);
+        }
+        var url = options.get("url");
+        var user = options.get("user");
+        var password = System.getenv("PGPASSWORD");
+        var table = options.get("table");
+        var queryCount = Integer.parseInt(options.getOrDefault("queries", "100"));
+        var topK = Integer.parseInt(options.getOrDefault("top-k", "5"));
+
+        try (var connection = DriverManager.getConnection(url, user, password)) {
+            List<UUID> queryIds = new ArrayList<>();
+            List<float[]> queries = new ArrayList<>();
+            try (var statement = connection.prepareStatement(
+                    "SELECT id, embedding::text FROM " + table + " ORDER BY random() LIMIT ?")) {
+                statement.setInt(1, queryCount);
+                try (var resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        queryIds.add(resultSet.getObject(1, UUID.class));
+                        queries.add(Vectors.parseLiteral(resultSet.getString(2)));
+                    }
+                }
+            }
+            System.out.println("Indexes on " + table + ":");
+            try (var statement = connection.prepareStatement(
+                    "SELECT indexname, pg_size_pretty(pg_relation_size(to_regclass(indexname))), indexdef"
+                            + " FROM pg_indexes WHERE tablename = lower(?) ORDER BY indexname")) {
+                statement.setString(1, table);
+                try (var resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        System.out.printf("  %-45s %10s  %s%n", resultSet.getString(1), resultSet.getString(2),
+                                resultSet.getString(3));
+                    }
+                }
+            }
+            if (queries.isEmpty()) {
+                System.err.println("No rows in " + table);
+                return;
+            }
+            report(RetrievalEvaluation.sharedConnection(connection), table, options, queryIds, queries, topK);
+        }
+    }
+
+    private static void report(PgVectorStore.ConnectionFactory connectionFactory, String table,
+            Map<String, String> options, List<UUID> queryIds, List<float[]> queries, int topK) {
+        var store = new PgVectorStore(connectionFactory, table);
+        configure(store, options);
+        List<List<UUID>> truth = new ArrayList<>(queries.size());
+        for (int i = 0; i < queries.size(); i++) {
+            truth.add(withoutQuery(store.searchExact(queries.get(i), topK + 1, SearchFilter.NONE), queryIds.get(i),
+                    topK));
+        }
+
+        System.out.printf("%nqueries: %d, top-k: %d%n", queries.size(), topK);
+        System.out.printf("%-22s %10s %10s %10s%n", "setting", "recall@k", "p50 (ms)", "p99 (ms)");
+        for (var setting : SETTINGS) {
+            var candidate = new PgVectorStore(connectionFactory, table);
+            configure(candidate, options);
+            candidate.setQuantization(setting.quantization());
+            candidate.setTruncatedDimensions(setting.truncatedDimensions());
+            candidate.setOversampling(setting.oversampling());
+            try {
+                // 最初の数件はキャッシュを温めるために実行し、計測しない
+                for (var query : queries.subList(0, Math.min(10, queries.size()))) {
+                    candidate.search(query, topK + 1, SearchFilter.NONE);
+                }
+                List<Long> latencies = new ArrayList<>(queries.size());
+                double recall = 0;
+                for (int i = 0; i < queries.size(); i++) {
+                    var start = System.nanoTime();
+                    var hits = candidate.search(queries.get(i), topK + 1, SearchFilter.NONE);
+                    latencies.add(System.nanoTime() - start);
+                    var expected = new HashSet<>(truth.get(i));
+                    var found = withoutQuery(hits, queryIds.get(i), topK).stream().filter(expected::contains).count();
+                    recall += expected.isEmpty() ? 1 : (double) found / expected.size();
+                }
+                Collections.sort(latencies);
+                System.out.printf("%-22s %10.3f %10.2f %10.2f%n", setting, recall / queries.size(),
+                        percentile(latencies, 0.50) / 1e6, percentile(latencies, 0.99) / 1e6);
+            } catch (VectorStoreException e) {
+                // pgvector のバージョンが古い場合など
+                System.out.printf("%-22s %s%n", setting, e.getCause() != null ? e.getCause().getMessage()
+                        : e.getMessage());
+            }
+        }
+    }
+
+    // クエリにした行を除いた topK 件の id (クエリにした行は距離が 0 になり、必ず正解に含まれるため)
+    private static List<UUID> withoutQuery(List<VectorHit> hits, UUID queryId, int topK) {
+        return hits.stream().map(VectorHit::id).filter(id -> !id.equals(queryId)).limit(topK).toList();
+    }
+
+    private static void configure(PgVectorStore store, Map<String, String> options) {
+        store.setLayout(PgVectorStore.Layout.valueOf(options.getOrDefault("layout", "inline").toUpperCase()));
+        store.setVectorType(options.containsKey("halfvec") ? PgVectorStore.VectorType.HALFVEC
+                : PgVectorStore.VectorType.VECTOR);
+    }
+
+    private static long percentile(List<Long> sorted, double percentile) {
+        var index = (int) Math.ceil(percentile * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(sorted.size() - 1, index)));
+    }
+}
@@ -0,0 +1,441 @@
+package com.yoshio3.vectorstore;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+// 検索の設定毎に、検索結果の品質 (recall@k, MRR) と検索時間 (p50, p99)、インデックスのサイズを比較するツール
+// ・コーパス : スナップショット (.vsnap) のディレクトリ
+//   チャンクの分割方法を比較する場合は、分割方法毎に作成したスナップショットを 名前=ディレクトリ のカンマ区切りで指定する
+// ・正解のクエリ : 1 行 1 クエリのタブ区切りのファイル (Embedding を含むため、Azure OpenAI に接続せずに実行できる)
+//     クエリ ID <TAB> Embedding ([0.1,0.2,...]) <TAB> 正解のページ (ファイル名#ページ番号) <TAB> 正解のページ ...
+//   正解はページ単位のため、チャンクの分割方法が異なるコーパスでも同じファイルを利用できる
+// ・コーパス毎にテーブル (--table-prefix + 連番) を作り直してスナップショットを登録し、
+//   インデックス毎に作成・検索・削除を繰り返す (ef_search, probes などはセッションの設定で切り替える)
+// ・基準として、InMemoryVectorStore (全件の距離を計算) の結果も表示する (overlap はこの結果との一致率)
+// ・--memory-only を指定した場合は、PostgreSQL に接続せずに基準の結果だけを表示する
+//
+// 実行方法 :
+//   java -cp VectorStore.jar:postgresql.jar com.yoshio3.vectorstore.RetrievalEvaluation \
+//     --url jdbc:postgresql://localhost:5432/DB --user USER --corpus chunk500=./snap500,page=./snapshots \
+//     --queries golden-queries.tsv [--top-k 3,5,10] [--distances l2,cosine,inner_product] [--halfvec] \
+//     [--table-prefix RETRIEVAL_EVAL] [--keep-tables] [--json result.json] [--memory-only]
+//   パスワードは環境変数 PGPASSWORD で指定する
+public class RetrievalEvaluation {
+
+    // 正解のクエリ (relevantPages は ファイル名#ページ番号)
+    private record GoldenQuery(String id, float[] embedding, Set<String> relevantPages) {}
+
+    // インデックスを作成せずに検索する設定
+    private static final String NO_INDEX = "";
+
+    // 比較する設定 (index : インデックスの定義 [%1$s はテーブル名、%2$s はインデックス名]、session : 検索前に実行する SET)
+    private record Setting(String name, String index, String session, PgVectorStore.Distance distance,
+            PgVectorStore.Quantization quantization, int truncatedDimensions, int oversampling) {}
+
+    // 1 つの設定・件数の結果
+    private record Result(String corpus, long rows, String setting, String distance, String quantization, int topK,
+            double recall, double mrr, double overlap, double p50Millis, double p99Millis, long indexBytes,
+            long indexBuildMillis) {}
+
+    // 計測の前にキャッシュを温めるために実行するクエリの数
+    private static final int WARMUP_QUERIES = 10;
+
+    public static void main(String[] args) throws IOException, SQLException {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("--")) {
+                var hasValue = i + 1 < args.length && !args[i + 1].startsWith("--");
+                options.put(args[i].substring(2), hasValue ? args[++i] : "true");
+            }
+        }
+        var memoryOnly = options.containsKey("memory-only");
+        if (!options.containsKey("corpus") || !options.containsKey("queries")
+                || (!memoryOnly && !options.containsKey("url"))) {
+            System.err.println("Usage: RetrievalEvaluation --url JDBC_URL --user USER --corpus [NAME=]DIRECTORY,..."
+                    + " --queries FILE [--top-k 3,5,10] [--distances l2,cosine,inner_product] [--halfvec]"
+                    + " [--table-prefix RETRIEVAL_EVAL] [--keep-tables] [--json FILE] [--memory-only]");
+            System.exit(1);
+        }
+        var queries = readQueries(Path.of(options.get("queries")));
+        var topKs = Arrays.stream(options.getOrDefault("top-k", "5").split(","))
+                .map(String::trim)
+                .map(Integer::parseInt)
+                .toList();
+        var distances = Arrays.stream(options.getOrDefault("distances", "l2").split(","))
+                .map(name -> PgVectorStore.Distance.valueOf(name.trim().toUpperCase(Locale.ROOT)))
+                .toList();
+        var vectorType = options.containsKey("halfvec") ? PgVectorStore.VectorType.HALFVEC
+                : PgVectorStore.VectorType.VECTOR;
+        var tablePrefix = options.getOrDefault("table-prefix", "RETRIEVAL_EVAL");
+
+        List<Result> results = new ArrayList<>();
+        int corpusIndex = 0;
+        for (var corpus : parseCorpora(options.get("corpus")).entrySet()) {
+            var records = readCorpus(corpus.getValue());
+            if (records.isEmpty()) {
+                System.err.println("No snapshots in " + corpus.getValue());
+                continue;
+            }
+            var dimensions = records.get(0).embedding().length;
+            if (queries.get(0).embedding().length != dimensions) {
+                System.err.printf("Skipped %s: %d dimensions (queries: %d)%n", corpus.getKey(), dimensions,
+                        queries.get(0).embedding().length);
+                continue;
+            }
+            System.out.printf("%ncorpus: %s (%d chunks, %d dimensions), queries: %d%n", corpus.getKey(),
+                    records.size(), dimensions, queries.size());
+            System.out.printf("%-36s %-14s %4s %8s %8s %8s %10s %10s %10s %10s%n", "setting", "distance", "k",
+                    "recall", "MRR", "overlap", "p50 (ms)", "p99 (ms)", "index", "build (s)");
+
+            // 基準 : 全件の距離を計算した結果 (overlap の正解にも利用する)
+            var memoryStore = new InMemoryVectorStore();
+            memoryStore.upsert(records);
+            Map<Integer, List<List<UUID>>> exact = new HashMap<>();
+            for (var topK : topKs) {
+                var truth = new ArrayList<List<UUID>>(queries.size());
+                var result = evaluate(corpus.getKey(), records.size(), "memory (exact)", "l2", "none", topK,
+                        queries, query -> memoryStore.search(query, topK, SearchFilter.NONE), truth, null, 0, 0);
+                exact.put(topK, truth);
+                results.add(result);
+                print(result);
+            }
+            if (memoryOnly) {
+                continue;
+            }
+
+            var table = tablePrefix + "_" + corpusIndex++;
+            try (var connection = DriverManager.getConnection(options.get("url"), options.get("user"),
+                    System.getenv("PGPASSWORD"))) {
+                createTable(connection, table, vectorType, dimensions);
+                var loader = PgVectorStore.create(options.get("url"), options.get("user"),
+                        System.getenv("PGPASSWORD"), table);
+                loader.setVectorType(vectorType);
+                loader.bulkLoad(records);
+                execute(connection, "ANALYZE " + table);
+                System.out.printf("table: %s (%s)%n", table, querySize(connection, "pg_total_relation_size", table));
+
+                // インデックス毎にまとめ、同じインデックスの設定は作り直さずに検索する
+                Map<String, List<Setting>> settingsByIndex = settings(records.size(), dimensions, vectorType, distances)
+                        .stream()
+                        .collect(Collectors.groupingBy(Setting::index, LinkedHashMap::new, Collectors.toList()));
+                for (var group : settingsByIndex.entrySet()) {
+                    var indexName = table + "_EVAL_IDX";
+                    long indexBytes = 0;
+                    long buildMillis = 0;
+                    try {
+                        if (!group.getKey().equals(NO_INDEX)) {
+                            var start = System.nanoTime();
+                            execute(connection, String.format(group.getKey(), table, indexName));
+                            buildMillis = (System.nanoTime() - start) / 1_000_000;
+                            indexBytes = indexBytes(connection, indexName);
+                        }
+                        for (var setting : group.getValue()) {
+                            var store = new PgVectorStore(sharedConnection(connection), table);
+                            store.setVectorType(vectorType);
+                            store.setDistance(setting.distance());
+                            store.setQuantization(setting.quantization());
+                            store.setDimensions(dimensions);
+                            store.setTruncatedDimensions(setting.truncatedDimensions());
+                            store.setOversampling(setting.oversampling());
+                            execute(connection, "RESET ALL");
+                            if (!setting.session().isEmpty()) {
+                                execute(connection, setting.session());
+                            }
+                            for (var topK : topKs) {
+                                var result = evaluate(corpus.getKey(), records.size(), setting.name(),
+                                        setting.distance().name().toLowerCase(Locale.ROOT),
+                                        setting.quantization().name().toLowerCase(Locale.ROOT), topK, queries,
+                                        query -> store.search(query, topK, SearchFilter.NONE), null,
+                                        exact.get(topK), indexBytes, buildMillis);
+                                results.add(result);
+                                print(result);
+                            }
+                        }
+                    } catch (SQLException | VectorStoreException e) {
+                        // pgvector のバージョンが古い場合など
+                        System.out.printf("%-36s %s%n", group.getValue().get(0).name(),
+                                e.getCause() != null ? e.getCause().getMessage() : e.getMessage());
+                    } finally {
+                        execute(connection, "RESET ALL");
+                        execute(connection, "DROP INDEX IF EXISTS " + indexName);
+                    }
+                }
+                if (!options.containsKey("keep-tables")) {
+                    execute(connection, "DROP TABLE IF EXISTS " + table);
+                }
+            }
+        }
+
+        if (options.containsKey("json")) {
+            Files.writeString(Path.of(options.get("json")), toJson(queries.size(), results), StandardCharsets.UTF_8);
+            System.out.println("\nWrote " + options.get("json"));
+        }
+    }
+
+    @FunctionalInterface
+    private interface Search {
+        List<VectorHit> search(float[] query);
+    }
+
+    // 全てのクエリを検索し、正解のページ・基準の結果と比較する (truthOut を指定した場合は、検索結果の id を追加する)
+    private static Result evaluate(String corpus, long rows, String setting, String distance, String quantization,
+            int topK, List<GoldenQuery> queries, Search search, List<List<UUID>> truthOut, List<List<UUID>> truth,
+            long indexBytes, long indexBuildMillis) {
+        for (var query : queries.subList(0, Math.min(WARMUP_QUERIES, queries.size()))) {
+            search.search(query.embedding());
+        }
+        List<Long> latencies = new ArrayList<>(queries.size());
+        double recall = 0;
+        double reciprocalRank = 0;
+        double overlap = 0;
+        for (int i = 0; i < queries.size(); i++) {
+            var query = queries.get(i);
+            var start = System.nanoTime();
+            var hits = search.search(query.embedding());
+            latencies.add(System.nanoTime() - start);
+
+            Set<String> found = new HashSet<>();
+            for (int rank = 0; rank < hits.size(); rank++) {
+                var page = pageKey(hits.get(rank).fileName(), hits.get(rank).pageNumber());
+                if (query.relevantPages().contains(page)) {
+                    if (found.isEmpty()) {
+                        reciprocalRank += 1d / (rank + 1);
+                    }
+                    found.add(page);
+                }
+            }
+            recall += query.relevantPages().isEmpty() ? 1 : (double) found.size() / query.relevantPages().size();
+
+            var ids = hits.stream().map(VectorHit::id).toList();
+            if (truthOut != null) {
+                truthOut.add(ids);
+            }
+            if (truth != null) {
+                var expected = new HashSet<>(truth.get(i));
+                var matched = ids.stream().filter(expected::contains).count();
+                overlap += expected.isEmpty() ? 1 : (double) matched / expected.size();
+            } else {
+                overlap += 1;
+            }
+        }
+        Collections.sort(latencies);
+        return new Result(corpus, rows, setting, distance, quantization, topK, recall / queries.size(),
+                reciprocalRank / queries.size(), overlap / queries.size(), percentile(latencies, 0.50) / 1e6,
+                percentile(latencies, 0.99) / 1e6, indexBytes, indexBuildMillis);
+    }
+
+    // 比較する設定 (HNSW は ef_search、IVFFlat は probes を変えて検索する)
+    private static List<Setting> settings(int rows, int dimensions, PgVectorStore.VectorType vectorType,
+            List<PgVectorStore.Distance> distances) {
+        var none = PgVectorStore.Quantization.NONE;
+        List<Setting> settings = new ArrayList<>();
+        settings.add(new Setting("no index", NO_INDEX, "", PgVectorStore.Distance.L2, none, 0, 1));
+        for (var distance : distances) {
+            var operatorClass = distance.operatorClass(vectorType);
+            var hnsw = "CREATE INDEX %2$s ON %1$s USING hnsw (embedding " + operatorClass + ")";
+            for (var efSearch : List.of(40, 100, 200)) {
+                settings.add(new Setting("hnsw ef_search=" + efSearch, hnsw, "SET hnsw.ef_search = " + efSearch,
+                        distance, none, 0, 1));
+            }
+            // lists の目安は 行数 / 1000 (pgvector の README)
+            var lists = Math.max(1, rows / 1000);
+            var ivfflat = "CREATE INDEX %2$s ON %1$s USING ivfflat (embedding " + operatorClass + ") WITH (lists = "
+                    + lists + ")";
+            for (var probes : List.of(1, Math.max(1, (int) Math.sqrt(lists)))) {
+                settings.add(new Setting("ivfflat lists=" + lists + " probes=" + probes, ivfflat,
+                        "SET ivfflat.probes = " + probes, distance, none, 0, 1));
+            }
+        }
+        // 量子化した値のインデックス (README の量子化したインデックスと同じ定義)
+        var binary = "CREATE INDEX %2$s ON %1$s USING hnsw ((binary_quantize(embedding)::bit(" + dimensions
+                + ")) bit_hamming_ops)";
+        settings.add(new Setting("hnsw binary x4", binary, "", PgVectorStore.Distance.L2,
+                PgVectorStore.Quantization.BINARY, 0, 4));
+        var truncatedDimensions = Math.min(256, dimensions);
+        var truncated = "CREATE INDEX %2$s ON %1$s USING hnsw ((subvector(embedding, 1, " + truncatedDimensions
+                + ")::" + vectorType.sqlType() + "(" + truncatedDimensions + ")) "
+                + PgVectorStore.Distance.L2.operatorClass(vectorType) + ")";
+        settings.add(new Setting("hnsw truncated(" + truncatedDimensions + ") x4", truncated, "",
+                PgVectorStore.Distance.L2, PgVectorStore.Quantization.TRUNCATED, truncatedDimensions, 4));
+        return settings;
+    }
+
+    // 名前=ディレクトリ のカンマ区切り (名前を省略した場合はディレクトリ名)
+    private static Map<String, Path> parseCorpora(String value) {
+        Map<String, Path> corpora = new LinkedHashMap<>();
+        for (var entry : value.split(",")) {
+            var separator = entry.indexOf('=');
+            var path = Path.of(entry.substring(separator + 1).trim());
+            corpora.put(separator < 0 ? path.getFileName().toString() : entry.substring(0, separator).trim(), path);
+        }
+        return corpora;
+    }
+
+    private static List<VectorRecord> readCorpus(Path directory) throws IOException {
+        List<Path> snapshots;
+        try (var paths = Files.walk(directory)) {
+            snapshots = paths.filter(path -> path.toString().endsWith(EmbeddingSnapshot.FILE_EXTENSION))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        List<VectorRecord> records = new ArrayList<>();
+        for (var path : snapshots) {
+            EmbeddingSnapshot.open(path).forEach(records::add);
+        }
+        return records;
+    }
+
+    private static List<GoldenQuery> readQueries(Path path) throws IOException {
+        List<GoldenQuery> queries = new ArrayList<>();
+        for (var line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+            if (line.isBlank()) {
+                continue;
+            }
+            var columns = line.split("\t");
+            if (columns.length < 2) {
+                throw new IllegalArgumentException("Invalid query line: " + line);
+            }
+            Set<String> relevantPages = new HashSet<>(Arrays.asList(columns).subList(2, columns.length));
+            queries.add(new GoldenQuery(columns[0], Vectors.parseLiteral(columns[1]), relevantPages));
+        }
+        if (queries.isEmpty()) {
+            throw new IllegalArgumentException("No queries in " + path);
+        }
+        return queries;
+    }
+
+    private static String pageKey(String fileName, int pageNumber) {
+        return fileName + "#" + pageNumber;
+    }
+
+    private static void createTable(Connection connection, String table, PgVectorStore.VectorType vectorType,
+            int dimensions) throws SQLException {
+        execute(connection, "DROP TABLE IF EXISTS " + table);
+        execute(connection, "CREATE TABLE " + table + " (id uuid, embedding " + vectorType.sqlType().toUpperCase()
+                + "(" + dimensions + "), origntext varchar(8192), fileName varchar(2048), pageNumber integer,"
+                + " collection varchar(256) NOT NULL DEFAULT 'default',"
+                + " uploadedAt timestamptz NOT NULL DEFAULT now(), PRIMARY KEY (id))");
+    }
+
+    // 検索で毎回接続しないように、1 つの接続を共有する (close() では閉じない)
+    // 1 つのコネクションを使い回す (PgVectorStore が close() してもコネクションを閉じない)
+    static PgVectorStore.ConnectionFactory sharedConnection(Connection connection) {
+        var proxy = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[] { Connection.class }, (instance, method, arguments) -> {
+                    if (method.getName().equals("close")) {
+                        return null;
+                    }
+                    try {
+                        return method.invoke(connection, arguments);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+        return () -> proxy;
+    }
+
+    private static void execute(Connection connection, String sql) throws SQLException {
+        try (var statement = connection.createStatement()) {
+            statement.execute(sql);
+        }
+    }
+
+    private static long indexBytes(Connection connection, String indexName) throws SQLException {
+        try (var statement = connection.prepareStatement("SELECT pg_relation_size(to_regclass(?))")) {
+            statement.setString(1, indexName);
+            try (var resultSet = statement.executeQuery()) {
+                return resultSet.next() ? resultSet.getLong(1) : 0;
+            }
+        }
+    }
+
+    private static String querySize(Connection connection, String function, String relation) throws SQLException {
+        try (var statement = connection.prepareStatement(
+                "SELECT pg_size_pretty(" + function + "(to_regclass(?)))")) {
+            statement.setString(1, relation);
+            try (var resultSet = statement.executeQuery()) {
+                return resultSet.next() ? resultSet.getString(1) : "-";
+            }
+        }
+    }
+
+    private static void print(Result result) {
+        System.out.printf("%-36s %-14s %4d %8.3f %8.3f %8.3f %10.2f %10.2f %10s %10.1f%n", result.setting(),
+                result.distance(), result.topK(), result.recall(), result.mrr(), result.overlap(),
+                result.p50Millis(), result.p99Millis(),
+                result.indexBytes() == 0 ? "-" : String.format("%.1f MB", result.indexBytes() / 1024d / 1024d),
+                result.indexBuildMillis() / 1000d);
+    }
+
+    private static String toJson(int queryCount, List<Result> results) {
+        var json = new StringBuilder();
+        json.append("{\n  \"queries\": ").append(queryCount).append(",\n  \"results\": [");
+        for (int i = 0; i < results.size(); i++) {
+            var result = results.get(i);
+            json.append(i == 0 ? "\n" : ",\n").append("    {")
+                    .append("\"corpus\": ").append(jsonString(result.corpus()))
+                    .append(", \"rows\": ").append(result.rows())
+                    .append(", \"setting\": ").append(jsonString(result.setting()))
+                    .append(", \"distance\": ").append(jsonString(result.distance()))
+                    .append(", \"quantization\": ").append(jsonString(result.quantization()))
+                    .append(", \"topK\": ").append(result.topK())
+                    .append(", \"recallAtK\": ").append(jsonNumber(result.recall()))
+                    .append(", \"mrr\": ").append(jsonNumber(result.mrr()))
+                    .append(", \"exactOverlap\": ").append(jsonNumber(result.overlap()))
+                    .append(", \"p50Millis\": ").append(jsonNumber(result.p50Millis()))
+                    .append(", \"p99Millis\": ").append(jsonNumber(result.p99Millis()))
+                    .append(", \"indexBytes\": ").append(result.indexBytes())
+                    .append(", \"indexBuildMillis\": ").append(result.indexBuildMillis())
+                    .append("}");
+        }
+        return json.append("\n  ]\n}\n").toString();
+    }
+
+    private static String jsonString(String value) {
+        var escaped = new StringBuilder("\"");
+        for (var c : value.toCharArray()) {
+            switch (c) {
+                case '"' -> escaped.append("\\\"");
+                case '\\' -> escaped.append("\\\\");
+                case '\n' -> escaped.append("\\n");
+                case '\t' -> escaped.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        escaped.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        escaped.append(c);
+                    }
+                }
+            }
+        }
+        return escaped.append('"').toString();
+    }
+
+    private static String jsonNumber(double value) {
+        return String.format(Locale.ROOT, "%.4f", value);
+    }
+
+    private static long percentile(List<Long> sorted, double percentile) {
+        var index = (int) Math.ceil(percentile * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(sorted.size() - 1, index)));
+    }
+}
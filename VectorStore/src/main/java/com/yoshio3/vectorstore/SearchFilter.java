@@ -0,0 +1,36 @@
+package com.yoshio3.vectorstore;
+
+import java.time.Instant;
+import java.util.List;
+
+// 検索対象を絞り込む条件 (null・空の条件は絞り込まない)
+// fileNames : いずれかのファイル名に一致
+// collection : コレクション名に一致
+// uploadedFrom, uploadedTo : 登録日時が uploadedFrom 以降、uploadedTo より前
+public record SearchFilter(List<String> fileNames, String collection, Instant uploadedFrom, Instant uploadedTo) {
+
+    public static final SearchFilter NONE = new SearchFilter(null, null, null, null);
+
+    public SearchFilter {
+        fileNames = (fileNames == null) ? List.of() : List.copyOf(fileNames);
+        collection = (collection == null || collection.isBlank()) ? null : collection;
+    }
+
+    public boolean isEmpty() {
+        return fileNames.isEmpty() && collection == null && uploadedFrom == null && uploadedTo == null;
+    }
+
+    public boolean matches(VectorRecord record) {
+        if (!fileNames.isEmpty() && !fileNames.contains(record.fileName())) {
+            return false;
+        }
+        if (collection != null && !collection.equals(record.collection())) {
+            return false;
+        }
+        var uploadedAt = record.uploadedAt();
+        if (uploadedFrom != null && (uploadedAt == null || uploadedAt.isBefore(uploadedFrom))) {
+            return false;
+        }
+        return uploadedTo == null || (uploadedAt != null && uploadedAt.isBefore(uploadedTo));
+    }
+}
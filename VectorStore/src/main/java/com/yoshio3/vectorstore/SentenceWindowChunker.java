@@ -0,0 +1,81 @@
+package com.yoshio3.vectorstore;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// ページのテキストを、連続する数文ずつの小さなチャンク (子チャンク) に分割する
+// ・区切り文字 (。？！など) で文に分割し、maxSentences 文かつ maxLength 文字以内にまとめる
+// ・子チャンクは重複させず、親のテキストの部分文字列になる (検索時に親のテキストの中の位置を探すため)
+// ・maxLength 文字を超える文は、maxLength 文字毎に分割する
+public class SentenceWindowChunker {
+
+    public static final int DEFAULT_MAX_SENTENCES = 3;
+
+    public static final int DEFAULT_MAX_LENGTH = 500;
+
+    private final int maxSentences;
+
+    private final int maxLength;
+
+    public SentenceWindowChunker() {
+        this(DEFAULT_MAX_SENTENCES, DEFAULT_MAX_LENGTH);
+    }
+
+    public SentenceWindowChunker(int maxSentences, int maxLength) {
+        this.maxSentences = maxSentences;
+        this.maxLength = maxLength;
+    }
+
+    public List<String> chunk(String text) {
+        List<String> chunks = new ArrayList<>();
+        if (text == null || text.isBlank()) {
+            return chunks;
+        }
+        var window = new StringBuilder();
+        int sentences = 0;
+        for (var sentence : splitSentences(text)) {
+            if (window.length() > 0 && (sentences >= maxSentences || window.length() + sentence.length() > maxLength)) {
+                addChunk(chunks, window.toString());
+                window.setLength(0);
+                sentences = 0;
+            }
+            while (sentence.length() > maxLength) {
+                addChunk(chunks, sentence.substring(0, maxLength));
+                sentence = sentence.substring(maxLength);
+            }
+            window.append(sentence);
+            sentences++;
+        }
+        if (window.length() > 0) {
+            addChunk(chunks, window.toString());
+        }
+        return chunks;
+    }
+
+    private static void addChunk(List<String> chunks, String chunk) {
+        if (!chunk.isBlank()) {
+            chunks.add(chunk);
+        }
+    }
+
+    // 区切り文字でテキストを文に分割 (区切り文字は文に含める)
+    public static List<String> splitSentences(String text) {
+        List<String> sentences = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (isPunctuation(text.charAt(i))) {
+                sentences.add(text.substring(start, i + 1));
+                start = i + 1;
+            }
+        }
+        if (start < text.length()) {
+            sentences.add(text.substring(start));
+        }
+        return sentences;
+    }
+
+    private static boolean isPunctuation(char c) {
+        return c == '.' || c == '。' || c == ';' || c == '；' || c == '!' || c == '！' || c == '?'
+                || c == '？';
+    }
+}
@@ -0,0 +1,601 @@
+package com.yoshio3.vectorstore;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.BooleanSupplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Embedding のモデルを変更する場合に、登録済みのチャンクを別のテーブル (シャドウ・テーブル) に登録し直し、
+// 登録し終えたのちに、テーブル名を入れ替えて切り替える
+// ・BACKFILL : 元のテーブルを id の順に batchSize 件ずつ読み、新しいモデルの Embedding を登録する
+//              (1 分あたりのバッチ数を制限し、検索や OpenAI の他の呼び出しへの影響を抑える)
+// ・INDEX : シャドウ・テーブルのインデックスを CREATE INDEX CONCURRENTLY で作成する
+//           (HNSW インデックスの演算子クラスは距離の種類から決め、元のテーブルの量子化した値の式インデックスと
+//            部分インデックスも作成する)
+// ・CATCH_UP : BACKFILL の開始後に追加・削除されたチャンクを反映する
+// ・CUTOVER : 残りを反映したのち、元のテーブルへの書き込みを止めて (読み込みは可能) 1 つのトランザクションでテーブル名を入れ替える
+//             (書き込みを止めている間は OpenAI を呼び出さず、その間に追加されたチャンクがあれば書き込みを再開して反映し直す)
+//             (元のテーブルは テーブル名_OLD として残し、進捗テーブルの activeModel を新しいモデルにする)
+// 登録側 (BlobUploadDetector) は readActiveModel で、テーブルのチャンクの Embedding のモデルを取得する
+// 進捗は進捗テーブル (VECTOR_STORE_REEMBEDDING) に保存するため、途中で停止しても再実行すると続きから処理する
+// 複数のアプリケーション (レプリカ) から実行した場合は、アドバイザリ・ロックを取得した 1 つだけが処理する
+public class ShadowTableReembedder {
+
+    public static final String PROGRESS_TABLE = "VECTOR_STORE_REEMBEDDING";
+
+    private static final String SHADOW_SUFFIX = "_SHADOW";
+
+    private static final String OLD_SUFFIX = "_OLD";
+
+    private static final String LOCK_PREFIX = PROGRESS_TABLE + ":";
+
+    // テーブル・列が存在しない場合の SQLSTATE
+    private static final String UNDEFINED_TABLE = "42P01";
+
+    private static final String UNDEFINED_COLUMN = "42703";
+
+    // CUTOVER で書き込みを止めた時点で追加分があった場合に、反映し直す回数
+    private static final int MAX_CUTOVER_ATTEMPTS = 5;
+
+    // 元のテーブルのインデックスの定義 (pg_get_indexdef) のうち、embedding 全体の演算子クラスと binary_quantize の bit 長
+    private static final Pattern EMBEDDING_OPERATOR_CLASS_PATTERN = Pattern
+            .compile("\\(embedding (vector|halfvec)_(l2|cosine|ip)_ops\\)");
+
+    private static final Pattern BINARY_LENGTH_PATTERN = Pattern
+            .compile("(binary_quantize\\(embedding\\)\\)?::bit\\()\\d+\\)");
+
+    public enum Phase {
+        BACKFILL, INDEX, CATCH_UP, CUTOVER, DONE
+    }
+
+    // テキストから新しいモデルの Embedding を取得する (texts と同じ順番で返す)
+    @FunctionalInterface
+    public interface Embedder {
+        List<float[]> embed(List<String> texts) throws Exception;
+    }
+
+    // テーブル名を入れ替える処理の前後に、アプリケーション側の切り替え (検索に利用するモデルの変更など) を行う
+    @FunctionalInterface
+    public interface CutoverHook {
+        void around(Runnable cutover);
+    }
+
+    public record Progress(String tableName, String shadowTableName, String targetModel, Phase phase,
+            long processed, long total, String lastId, Instant startedAt, Instant updatedAt, String error) {}
+
+    private final PgVectorStore.ConnectionFactory connectionFactory;
+
+    private final String tableName;
+
+    private final String shadowTableName;
+
+    private final String targetModel;
+
+    private final PgVectorStore.Layout layout;
+
+    private final PgVectorStore.VectorType vectorType;
+
+    private final int dimensions;
+
+    private PgVectorStore.Distance distance = PgVectorStore.Distance.L2;
+
+    private final PgVectorStore source;
+
+    private final PgVectorStore shadow;
+
+    private int batchSize = 32;
+
+    private int batchesPerMinute = 60;
+
+    // CATCH_UP で反映する件数がこの値以下になったら CUTOVER する
+    private int catchUpThreshold = 100;
+
+    public ShadowTableReembedder(PgVectorStore.ConnectionFactory connectionFactory, String tableName,
+            String targetModel, PgVectorStore.Layout layout, PgVectorStore.VectorType vectorType, int dimensions) {
+        this.connectionFactory = connectionFactory;
+        this.tableName = tableName;
+        this.shadowTableName = tableName + SHADOW_SUFFIX;
+        this.targetModel = targetModel;
+        this.layout = layout;
+        this.vectorType = vectorType;
+        this.dimensions = dimensions;
+        this.source = new PgVectorStore(connectionFactory, tableName);
+        this.source.setLayout(layout);
+        this.source.setVectorType(vectorType);
+        this.shadow = new PgVectorStore(connectionFactory, shadowTableName);
+        this.shadow.setLayout(layout);
+        this.shadow.setVectorType(vectorType);
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public void setBatchesPerMinute(int batchesPerMinute) {
+        this.batchesPerMinute = batchesPerMinute;
+    }
+
+    public void setCatchUpThreshold(int catchUpThreshold) {
+        this.catchUpThreshold = catchUpThreshold;
+    }
+
+    // 検索で利用する距離の種類 (シャドウ・テーブルの HNSW インデックスの演算子クラス)
+    public void setDistance(PgVectorStore.Distance distance) {
+        this.distance = distance;
+    }
+
+    // 進捗テーブルから進捗を取得 (開始していない場合は null)
+    public Progress getProgress() {
+        try (var connection = connectionFactory.getConnection()) {
+            createProgressTable(connection);
+            return readProgress(connection);
+        } catch (SQLException e) {
+            throw new VectorStoreException("Progress read failure.", e);
+        }
+    }
+
+    // targetModel への切り替え (テーブル名の入れ替え) が終わっているか否か
+    // 検索の度に確認するため、進捗テーブルは作成せずに 1 行だけを確認する (進捗テーブルが無い場合は false)
+    public boolean isCutOver() {
+        try (var connection = connectionFactory.getConnection();
+                var statement = connection.prepareStatement("SELECT 1 FROM " + PROGRESS_TABLE
+                        + " WHERE tableName = ? AND targetModel = ? AND phase = ?")) {
+            statement.setString(1, tableName);
+            statement.setString(2, targetModel);
+            statement.setString(3, Phase.DONE.name());
+            try (var resultSet = statement.executeQuery()) {
+                return resultSet.next();
+            }
+        } catch (SQLException e) {
+            if (UNDEFINED_TABLE.equals(e.getSQLState())) {
+                return false;
+            }
+            throw new VectorStoreException("Progress read failure.", e);
+        }
+    }
+
+    // tableName のチャンクの Embedding のモデル (再 Embedding で切り替えていない場合は null)
+    public static String readActiveModel(PgVectorStore.ConnectionFactory connectionFactory, String tableName) {
+        try (var connection = connectionFactory.getConnection();
+                var statement = connection.prepareStatement("SELECT activeModel FROM " + PROGRESS_TABLE
+                        + " WHERE tableName = ?")) {
+            statement.setString(1, tableName);
+            try (var resultSet = statement.executeQuery()) {
+                return resultSet.next() ? resultSet.getString(1) : null;
+            }
+        } catch (SQLException e) {
+            if (UNDEFINED_TABLE.equals(e.getSQLState()) || UNDEFINED_COLUMN.equals(e.getSQLState())) {
+                return null;
+            }
+            throw new VectorStoreException("Progress read failure.", e);
+        }
+    }
+
+    // 前回の続きから CUTOVER まで実行する (stopRequested が true を返した場合はバッチの区切りで中断する)
+    // 他のアプリケーションが実行中 (アドバイザリ・ロックを取得できない) の場合は、何もせずに false を返す
+    public boolean run(Embedder embedder, CutoverHook hook, BooleanSupplier stopRequested) {
+        // ロックはセッション単位のため、処理が終わるまでこのコネクションを保持する (切断した場合も解放される)
+        try (var lockConnection = connectionFactory.getConnection()) {
+            if (!tryLock(lockConnection)) {
+                return false;
+            }
+            try {
+                runLocked(embedder, hook, stopRequested);
+                return true;
+            } finally {
+                unlock(lockConnection);
+            }
+        } catch (SQLException e) {
+            throw new VectorStoreException("Re-embedding lock failure.", e);
+        }
+    }
+
+    private void runLocked(Embedder embedder, CutoverHook hook, BooleanSupplier stopRequested) {
+        try {
+            var progress = start();
+            if (progress.phase() == Phase.DONE) {
+                return;
+            }
+            if (progress.phase() == Phase.BACKFILL) {
+                if (!backfill(embedder, progress, stopRequested)) {
+                    return;
+                }
+                updatePhase(Phase.INDEX);
+            }
+            if (getProgress().phase() == Phase.INDEX) {
+                createIndexes();
+                updatePhase(Phase.CATCH_UP);
+            }
+            if (getProgress().phase() == Phase.CATCH_UP) {
+                // 反映する件数が少なくなるまで繰り返し、CUTOVER で書き込みを止める時間を短くする
+                while (catchUp(embedder) > catchUpThreshold) {
+                    if (stopRequested.getAsBoolean()) {
+                        return;
+                    }
+                }
+                updatePhase(Phase.CUTOVER);
+            }
+            if (getProgress().phase() == Phase.CUTOVER) {
+                cutover(embedder, hook);
+            }
+        } catch (SQLException e) {
+            recordError(e);
+            throw new VectorStoreException("Re-embedding failure.", e);
+        } catch (RuntimeException e) {
+            recordError(e);
+            throw e;
+        }
+    }
+
+    // 進捗が無い場合は、シャドウ・テーブルを作成して BACKFILL から始める
+    private Progress start() throws SQLException {
+        try (var connection = connectionFactory.getConnection()) {
+            createProgressTable(connection);
+            var progress = readProgress(connection);
+            if (progress != null && progress.phase() != Phase.DONE) {
+                if (!targetModel.equals(progress.targetModel())) {
+                    throw new VectorStoreException("Re-embedding to " + progress.targetModel()
+                            + " is in progress. Finish it or delete its row in " + PROGRESS_TABLE);
+                }
+                return progress;
+            }
+            if (progress != null && targetModel.equals(progress.targetModel())) {
+                return progress;
+            }
+            connection.setAutoCommit(false);
+            try (var statement = connection.createStatement()) {
+                // 前回の移行で残ったシャドウ・テーブルは作り直す
+                statement.execute("DROP TABLE IF EXISTS " + shadowTableName);
+                statement.execute("CREATE TABLE " + shadowTableName + " (LIKE " + tableName
+                        + " INCLUDING DEFAULTS INCLUDING CONSTRAINTS)");
+                statement.execute("ALTER TABLE " + shadowTableName + " ALTER COLUMN embedding TYPE "
+                        + vectorType.sqlType() + "(" + dimensions + ")");
+                statement.execute("ALTER TABLE " + shadowTableName + " ADD PRIMARY KEY (id)");
+                if (layout == PgVectorStore.Layout.SPLIT) {
+                    var shadowText = PgVectorStore.textTableName(shadowTableName);
+                    statement.execute("DROP TABLE IF EXISTS " + shadowText);
+                    statement.execute("CREATE TABLE " + shadowText + " (LIKE "
+                            + PgVectorStore.textTableName(tableName) + " INCLUDING ALL)");
+                }
+            }
+            try (var statement = connection.prepareStatement("INSERT INTO " + PROGRESS_TABLE
+                    + " (tableName, shadowTableName, targetModel, phase, processed, total, startedAt, updatedAt)"
+                    + " VALUES (?, ?, ?, ?, 0, (SELECT greatest(reltuples::bigint, 0) FROM pg_class"
+                    + " WHERE oid = to_regclass(?)), now(), now())"
+                    + " ON CONFLICT (tableName) DO UPDATE SET shadowTableName = EXCLUDED.shadowTableName,"
+                    + " targetModel = EXCLUDED.targetModel, phase = EXCLUDED.phase, lastId = NULL, processed = 0,"
+                    + " total = EXCLUDED.total, startedAt = now(), updatedAt = now(), error = NULL")) {
+                statement.setString(1, tableName);
+                statement.setString(2, shadowTableName);
+                statement.setString(3, targetModel);
+                statement.setString(4, Phase.BACKFILL.name());
+                statement.setString(5, tableName);
+                statement.executeUpdate();
+            }
+            connection.commit();
+            return readProgress(connection);
+        }
+    }
+
+    // 最後まで登録した場合は true
+    private boolean backfill(Embedder embedder, Progress progress, BooleanSupplier stopRequested)
+            throws SQLException {
+        var lastId = progress.lastId() == null ? null : UUID.fromString(progress.lastId());
+        var interval = batchesPerMinute > 0 ? 60_000L / batchesPerMinute : 0;
+        while (!stopRequested.getAsBoolean()) {
+            var batchStart = System.currentTimeMillis();
+            var records = source.readAfter(lastId, batchSize);
+            if (records.isEmpty()) {
+                return true;
+            }
+            shadow.upsert(reembed(embedder, records));
+            lastId = records.get(records.size() - 1).id();
+            updateBackfill(lastId, records.size());
+            var wait = interval - (System.currentTimeMillis() - batchStart);
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean tryLock(Connection connection) throws SQLException {
+        try (var statement = connection.prepareStatement("SELECT pg_try_advisory_lock(hashtext(?))")) {
+            statement.setString(1, LOCK_PREFIX + tableName);
+            try (var resultSet = statement.executeQuery()) {
+                return resultSet.next() && resultSet.getBoolean(1);
+            }
+        }
+    }
+
+    private void unlock(Connection connection) throws SQLException {
+        try (var statement = connection.prepareStatement("SELECT pg_advisory_unlock(hashtext(?))")) {
+            statement.setString(1, LOCK_PREFIX + tableName);
+            statement.execute();
+        }
+    }
+
+    private void createIndexes() throws SQLException {
+        // CONCURRENTLY はトランザクションの外で実行する必要がある (インデックス名は実行毎に変える)
+        var suffix = "_" + Instant.now().getEpochSecond();
+        var operatorClass = distance.operatorClass(vectorType);
+        try (var connection = connectionFactory.getConnection();
+                var statement = connection.createStatement()) {
+            connection.setAutoCommit(true);
+            // 量子化した値の式インデックスとコレクション毎の部分インデックスは、元のテーブルの定義から作成する
+            // (切り替え後に、量子化した検索やコレクションで絞り込んだ検索がインデックスを利用できるように)
+            var copied = 0;
+            for (var definition : readAdditionalIndexDefinitions(connection)) {
+                statement.execute(toShadowIndex(definition, shadowTableName + "_IDX" + copied++ + suffix));
+            }
+            statement.execute("CREATE INDEX CONCURRENTLY IF NOT EXISTS " + shadowTableName + "_EMB" + suffix + " ON "
+                    + shadowTableName + " USING hnsw (embedding " + operatorClass + ")");
+            statement.execute("CREATE INDEX CONCURRENTLY IF NOT EXISTS " + shadowTableName + "_FN" + suffix + " ON "
+                    + shadowTableName + " (fileName)");
+            statement.execute("CREATE INDEX CONCURRENTLY IF NOT EXISTS " + shadowTableName + "_COL" + suffix
+                    + " ON " + shadowTableName + " (collection, uploadedAt)");
+            statement.execute("CREATE INDEX CONCURRENTLY IF NOT EXISTS " + shadowTableName + "_UP" + suffix + " ON "
+                    + shadowTableName + " (uploadedAt)");
+            statement.execute("ANALYZE " + shadowTableName);
+        }
+    }
+
+    // 元のテーブルの HNSW インデックスのうち、embedding 全体の部分インデックスと式インデックスの定義
+    // (embedding 全体のインデックスと B-Tree のインデックスは createIndexes で作成する)
+    private List<String> readAdditionalIndexDefinitions(Connection connection) throws SQLException {
+        var readSql = "SELECT pg_get_indexdef(i.indexrelid) FROM pg_index i"
+                + " WHERE i.indrelid = to_regclass(?) AND NOT i.indisprimary"
+                + " AND pg_get_indexdef(i.indexrelid) LIKE '% USING hnsw %'"
+                + " AND (i.indpred IS NOT NULL OR i.indexprs IS NOT NULL)";
+        List<String> definitions = new ArrayList<>();
+        try (var statement = connection.prepareStatement(readSql)) {
+            statement.setString(1, tableName);
+            try (var resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    definitions.add(resultSet.getString(1));
+                }
+            }
+        }
+        return definitions;
+    }
+
+    // 元のテーブルのインデックスの定義を、シャドウ・テーブルのインデックスの定義に変換する
+    // (embedding 全体の演算子クラスは距離の種類に、binary_quantize の bit 長は新しいモデルの次元数に合わせる)
+    String toShadowIndex(String definition, String indexName) {
+        var using = definition.indexOf(" USING ", definition.indexOf(" ON "));
+        var shadow = "CREATE INDEX CONCURRENTLY IF NOT EXISTS " + indexName + " ON " + shadowTableName
+                + definition.substring(using);
+        shadow = EMBEDDING_OPERATOR_CLASS_PATTERN.matcher(shadow)
+                .replaceAll(Matcher.quoteReplacement("(embedding " + distance.operatorClass(vectorType) + ")"));
+        return BINARY_LENGTH_PATTERN.matcher(shadow).replaceAll("$1" + dimensions + ")");
+    }
+
+    // 元のテーブルにだけ存在するチャンクを登録し、元のテーブルから削除されたチャンクを削除する (登録した件数を返す)
+    // (catchUpThreshold 件を超えた場合はその時点で返し、呼び出し元で追加分を確認し直す)
+    private int catchUp(Embedder embedder) throws SQLException {
+        int added = 0;
+        try (var connection = connectionFactory.getConnection()) {
+            while (true) {
+                var ids = findMissingIds(connection, batchSize);
+                if (ids.isEmpty()) {
+                    break;
+                }
+                var records = readByIds(connection, ids);
+                shadow.upsert(reembed(embedder, records));
+                added += records.size();
+                if (added > catchUpThreshold) {
+                    break;
+                }
+            }
+            deleteRemoved(connection);
+        }
+        return added;
+    }
+
+    // 元のテーブルにだけ存在するチャンクの id
+    private List<UUID> findMissingIds(Connection connection, int limit) throws SQLException {
+        List<UUID> ids = new ArrayList<>();
+        try (var statement = connection.createStatement();
+                var resultSet = statement.executeQuery("SELECT s.id FROM " + tableName + " s WHERE NOT EXISTS"
+                        + " (SELECT 1 FROM " + shadowTableName + " t WHERE t.id = s.id) LIMIT " + limit)) {
+            while (resultSet.next()) {
+                ids.add(UUID.fromString(resultSet.getString(1)));
+            }
+        }
+        return ids;
+    }
+
+    private void deleteRemoved(Connection connection) throws SQLException {
+        try (var statement = connection.createStatement()) {
+            if (layout == PgVectorStore.Layout.SPLIT) {
+                statement.executeUpdate("DELETE FROM " + PgVectorStore.textTableName(shadowTableName)
+                        + " t WHERE NOT EXISTS (SELECT 1 FROM " + tableName + " s WHERE s.id = t.id)");
+            }
+            statement.executeUpdate("DELETE FROM " + shadowTableName + " t WHERE NOT EXISTS (SELECT 1 FROM "
+                    + tableName + " s WHERE s.id = t.id)");
+        }
+    }
+
+    // 残りを反映してから書き込みを止めて切り替える (書き込みを止めている間は OpenAI を呼び出さない)
+    private void cutover(Embedder embedder, CutoverHook hook) throws SQLException {
+        for (int attempt = 1; attempt <= MAX_CUTOVER_ATTEMPTS; attempt++) {
+            catchUp(embedder);
+            if (tryCutover(hook)) {
+                return;
+            }
+        }
+        throw new VectorStoreException("Chunks kept arriving during the cutover of " + tableName + ".");
+    }
+
+    // 書き込みを止めた時点で反映していないチャンクがある場合は、入れ替えずに false を返す
+    private boolean tryCutover(CutoverHook hook) throws SQLException {
+        var oldTableName = tableName + OLD_SUFFIX;
+        try (var connection = connectionFactory.getConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                try (var statement = connection.prepareStatement("SELECT to_regclass(?) IS NOT NULL")) {
+                    statement.setString(1, oldTableName);
+                    try (var resultSet = statement.executeQuery()) {
+                        if (resultSet.next() && resultSet.getBoolean(1)) {
+                            throw new VectorStoreException(oldTableName + " already exists. Drop it before the cutover.");
+                        }
+                    }
+                }
+                // 書き込みだけを止める (検索は続けられる)
+                try (var statement = connection.createStatement()) {
+                    statement.execute("LOCK TABLE " + tableName + " IN SHARE ROW EXCLUSIVE MODE");
+                }
+                if (!findMissingIds(connection, 1).isEmpty()) {
+                    connection.rollback();
+                    return false;
+                }
+                deleteRemoved(connection);
+                hook.around(() -> {
+                    try (var statement = connection.createStatement()) {
+                        statement.execute("ALTER TABLE " + tableName + " RENAME TO " + oldTableName);
+                        statement.execute("ALTER TABLE " + shadowTableName + " RENAME TO " + tableName);
+                        if (layout == PgVectorStore.Layout.SPLIT) {
+                            statement.execute("ALTER TABLE " + PgVectorStore.textTableName(tableName) + " RENAME TO "
+                                    + PgVectorStore.textTableName(oldTableName));
+                            statement.execute("ALTER TABLE " + PgVectorStore.textTableName(shadowTableName)
+                                    + " RENAME TO " + PgVectorStore.textTableName(tableName));
+                        }
+                        updatePhase(connection, Phase.DONE);
+                        try (var update = connection.prepareStatement("UPDATE " + PROGRESS_TABLE
+                                + " SET activeModel = targetModel WHERE tableName = ?")) {
+                            update.setString(1, tableName);
+                            update.executeUpdate();
+                        }
+                        connection.commit();
+                    } catch (SQLException e) {
+                        throw new VectorStoreException("Cutover failure.", e);
+                    }
+                });
+                return true;
+            } catch (SQLException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            }
+        }
+    }
+
+    private List<VectorRecord> readByIds(Connection connection, List<UUID> ids) throws SQLException {
+        var readSql = layout == PgVectorStore.Layout.SPLIT
+                ? "SELECT v.id, v.embedding, t.origntext, v.fileName, v.pageNumber, v.collection, v.uploadedAt FROM "
+                        + tableName + " v LEFT JOIN " + PgVectorStore.textTableName(tableName)
+                        + " t ON t.id = v.id WHERE v.id = ANY(?)"
+                : "SELECT id, embedding, origntext, fileName, pageNumber, collection, uploadedAt FROM " + tableName
+                        + " WHERE id = ANY(?)";
+        List<VectorRecord> records = new ArrayList<>(ids.size());
+        try (var statement = connection.prepareStatement(readSql)) {
+            statement.setArray(1, connection.createArrayOf("uuid", ids.toArray()));
+            try (var resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    var uploadedAt = resultSet.getTimestamp("uploadedAt");
+                    records.add(new VectorRecord(UUID.fromString(resultSet.getString("id")), null,
+                            resultSet.getString("origntext"), resultSet.getString("fileName"),
+                            resultSet.getInt("pageNumber"), resultSet.getString("collection"),
+                            uploadedAt == null ? null : uploadedAt.toInstant()));
+                }
+            }
+        }
+        return records;
+    }
+
+    private List<VectorRecord> reembed(Embedder embedder, List<VectorRecord> records) {
+        List<String> texts = records.stream().map(record -> record.text() == null ? "" : record.text()).toList();
+        List<float[]> embeddings;
+        try {
+            embeddings = embedder.embed(texts);
+        } catch (Exception e) {
+            throw new VectorStoreException("Embedding failure.", e);
+        }
+        if (embeddings.size() != records.size()) {
+            throw new VectorStoreException("Embedding count mismatch: " + embeddings.size() + " / " + records.size());
+        }
+        List<VectorRecord> reembedded = new ArrayList<>(records.size());
+        for (int i = 0; i < records.size(); i++) {
+            var record = records.get(i);
+            reembedded.add(new VectorRecord(record.id(), embeddings.get(i), record.text(), record.fileName(),
+                    record.pageNumber(), record.collection(), record.uploadedAt()));
+        }
+        return reembedded;
+    }
+
+    private static void createProgressTable(Connection connection) throws SQLException {
+        try (var statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS " + PROGRESS_TABLE + " (tableName varchar(256),"
+                    + " shadowTableName varchar(256), targetModel varchar(256), phase varchar(32), lastId uuid,"
+                    + " processed bigint, total bigint, startedAt timestamptz, updatedAt timestamptz, error text,"
+                    + " activeModel varchar(256), PRIMARY KEY (tableName))");
+            statement.execute("ALTER TABLE " + PROGRESS_TABLE + " ADD COLUMN IF NOT EXISTS activeModel varchar(256)");
+        }
+    }
+
+    private Progress readProgress(Connection connection) throws SQLException {
+        try (var statement = connection.prepareStatement("SELECT * FROM " + PROGRESS_TABLE + " WHERE tableName = ?")) {
+            statement.setString(1, tableName);
+            try (var resultSet = statement.executeQuery()) {
+                if (!resultSet.next()) {
+                    return null;
+                }
+                var startedAt = resultSet.getTimestamp("startedAt");
+                var updatedAt = resultSet.getTimestamp("updatedAt");
+                return new Progress(resultSet.getString("tableName"), resultSet.getString("shadowTableName"),
+                        resultSet.getString("targetModel"), Phase.valueOf(resultSet.getString("phase")),
+                        resultSet.getLong("processed"), resultSet.getLong("total"), resultSet.getString("lastId"),
+                        startedAt == null ? null : startedAt.toInstant(),
+                        updatedAt == null ? null : updatedAt.toInstant(), resultSet.getString("error"));
+            }
+        }
+    }
+
+    private void updateBackfill(UUID lastId, int count) throws SQLException {
+        try (var connection = connectionFactory.getConnection();
+                var statement = connection.prepareStatement("UPDATE " + PROGRESS_TABLE
+                        + " SET lastId = ?, processed = processed + ?, updatedAt = now(), error = NULL"
+                        + " WHERE tableName = ?")) {
+            statement.setObject(1, lastId);
+            statement.setInt(2, count);
+            statement.setString(3, tableName);
+            statement.executeUpdate();
+        }
+    }
+
+    private void updatePhase(Phase phase) throws SQLException {
+        try (var connection = connectionFactory.getConnection()) {
+            updatePhase(connection, phase);
+        }
+    }
+
+    private void updatePhase(Connection connection, Phase phase) throws SQLException {
+        try (var statement = connection.prepareStatement("UPDATE " + PROGRESS_TABLE
+                + " SET phase = ?, updatedAt = now(), error = NULL WHERE tableName = ?")) {
+            statement.setString(1, phase.name());
+            statement.setString(2, tableName);
+            statement.executeUpdate();
+        }
+    }
+
+    private void recordError(Exception error) {
+        try (var connection = connectionFactory.getConnection();
+                var statement = connection.prepareStatement("UPDATE " + PROGRESS_TABLE
+                        + " SET error = ?, updatedAt = now() WHERE tableName = ?")) {
+            statement.setString(1, String.valueOf(error.getMessage()));
+            statement.setString(2, tableName);
+            statement.executeUpdate();
+        } catch (SQLException e) {
+            // 進捗テーブルに書き込めない場合は、呼び出し元に元の例外を返す
+        }
+    }
+}
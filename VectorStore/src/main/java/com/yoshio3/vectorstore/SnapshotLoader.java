@@ -0,0 +1,73 @@
+package com.yoshio3.vectorstore;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+// スナップショット (.vsnap) を PostgreSQL に再登録するツール
+// ・ディレクトリ配下のスナップショットを 1 ファイルずつメモリ・マップし、COPY で登録する (PgVectorStore#bulkLoad)
+// ・同じ id のチャンクは更新するため、途中で停止しても再実行できる
+// ・--model を指定した場合は、Embedding のモデルが異なるスナップショットを登録しない
+//
+// 実行方法 (スナップショットは azcopy などで Blob Storage の snapshots コンテナからダウンロードする) :
+//   java -cp VectorStore.jar:postgresql.jar com.yoshio3.vectorstore.SnapshotLoader \
+//     --url jdbc:postgresql://HOST:5432/DB --user USER --table DOCUMENT_SEARCH_VECTOR --dir ./snapshots \
+//     [--layout split] [--halfvec] [--model text-embedding-ada-002]
+//   パスワードは環境変数 PGPASSWORD で指定する
+public class SnapshotLoader {
+
+    public static void main(String[] args) throws IOException {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("--")) {
+                var hasValue = i + 1 < args.length && !args[i + 1].startsWith("--");
+                options.put(args[i].substring(2), hasValue ? args[++i] : "true");
+            }
+        }
+        if (!options.containsKey("url") || !options.containsKey("table") || !options.containsKey("dir")) {
+            System.err.println("Usage: SnapshotLoader --url JDBC_URL --user USER --table TABLE --dir DIRECTORY"
+                    + " [--layout inline|split] [--halfvec] [--model MODEL]");
+            System.exit(1);
+        }
+        var store = PgVectorStore.create(options.get("url"), options.get("user"), System.getenv("PGPASSWORD"),
+                options.get("table"));
+        store.setLayout(PgVectorStore.Layout.valueOf(options.getOrDefault("layout", "inline").toUpperCase()));
+        store.setVectorType(options.containsKey("halfvec") ? PgVectorStore.VectorType.HALFVEC
+                : PgVectorStore.VectorType.VECTOR);
+        var model = options.get("model");
+
+        List<Path> snapshots;
+        try (var paths = Files.walk(Path.of(options.get("dir")))) {
+            snapshots = paths.filter(path -> path.toString().endsWith(EmbeddingSnapshot.FILE_EXTENSION))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        long rows = 0;
+        int loaded = 0;
+        int skipped = 0;
+        var start = System.nanoTime();
+        for (var path : snapshots) {
+            try {
+                var snapshot = EmbeddingSnapshot.open(path);
+                if (model != null && !model.equals(snapshot.modelId())) {
+                    System.out.printf("Skipped %s (model: %s)%n", path, snapshot.modelId());
+                    skipped++;
+                    continue;
+                }
+                rows += store.bulkLoad(snapshot);
+                loaded++;
+                System.out.printf("Loaded %s: %d chunks (%s)%n", path, snapshot.size(), snapshot.fileName());
+            } catch (IOException | VectorStoreException e) {
+                System.err.printf("Failed to load %s: %s%n", path, e.getMessage());
+                skipped++;
+            }
+        }
+        var seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d files loaded, %d skipped, %d rows in %.1f s (%.0f rows/s)%n", loaded, skipped, rows,
+                seconds, seconds > 0 ? rows / seconds : 0);
+    }
+}
@@ -0,0 +1,201 @@
+package com.yoshio3.vectorstore;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+
+// INLINE のテーブルを SPLIT のテーブル (検索で参照する列だけのテーブルと、テキストのテーブル) にコピーするツール
+// ・id の順に batch-size 件ずつコピーしてコミットするため、途中で停止しても再実行すると続きからコピーする
+// ・id (UUID) はランダムなため、コピー中に登録された行はコピー済みの id より前に入る場合がある
+//   id の順のコピーが終わった後に、コピー先に無い行をもう一度コピーする (コピー中の削除・更新は反映しないため、
+//   コピーはファイルの登録・削除を止めてから実行する)
+// ・コピーが終わった後に、HNSW インデックス (演算子クラスは --distance に合わせる) と絞り込み用のインデックスを作成する
+// ・元のテーブルは変更しないため、コピー後にアプリケーションの設定 (テーブル名・レイアウト) を切り替える
+//
+// 実行方法 :
+//   java -cp VectorStore.jar:postgresql.jar com.yoshio3.vectorstore.SplitTableMigration \
+//     --url jdbc:postgresql://HOST:5432/DB --user USER --source DOCUMENT_SEARCH_VECTOR \
+//     --target DOCUMENT_SEARCH_VECTOR_SPLIT [--halfvec] [--dimensions 1536] [--batch-size 1000] [--distance l2]
+//   パスワードは環境変数 PGPASSWORD で指定する
+public class SplitTableMigration {
+
+    private final Connection connection;
+
+    private final String source;
+
+    private final String target;
+
+    private final String targetText;
+
+    private final PgVectorStore.VectorType vectorType;
+
+    private final int dimensions;
+
+    private final int batchSize;
+
+    private PgVectorStore.Distance distance = PgVectorStore.Distance.L2;
+
+    public SplitTableMigration(Connection connection, String source, String target,
+            PgVectorStore.VectorType vectorType, int dimensions, int batchSize) {
+        this.connection = connection;
+        this.source = source;
+        this.target = target;
+        this.targetText = PgVectorStore.textTableName(target);
+        this.vectorType = vectorType;
+        this.dimensions = dimensions;
+        this.batchSize = batchSize;
+    }
+
+    public static void main(String[] args) throws SQLException {
+        var options = parseArguments(args);
+        if (!options.containsKey("url") || !options.containsKey("source") || !options.containsKey("target")) {
+            System.err.println("Usage: SplitTableMigration --url JDBC_URL --user USER --source TABLE --target TABLE"
+                    + " [--halfvec] [--dimensions 1536] [--batch-size 1000] [--distance l2|cosine|inner_product]");
+            System.exit(1);
+        }
+        var vectorType = options.containsKey("halfvec") ? PgVectorStore.VectorType.HALFVEC
+                : PgVectorStore.VectorType.VECTOR;
+        try (var connection = DriverManager.getConnection(options.get("url"), options.get("user"),
+                System.getenv("PGPASSWORD"))) {
+            var migration = new SplitTableMigration(connection, options.get("source"), options.get("target"),
+                    vectorType, Integer.parseInt(options.getOrDefault("dimensions", "1536")),
+                    Integer.parseInt(options.getOrDefault("batch-size", "1000")));
+            migration.setDistance(PgVectorStore.Distance.valueOf(
+                    options.getOrDefault("distance", "l2").toUpperCase(Locale.ROOT)));
+            migration.createTables();
+            migration.copy();
+            migration.createIndexes();
+            migration.printSizes();
+        }
+    }
+
+    // HNSW インデックスの演算子クラスを決める距離の種類 (アプリケーションの vector.store.distance と合わせる)
+    public void setDistance(PgVectorStore.Distance distance) {
+        this.distance = distance;
+    }
+
+    public void createTables() throws SQLException {
+        try (var statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS " + target + " (id uuid, embedding "
+                    + vectorType.sqlType() + "(" + dimensions + "), fileName varchar(2048), pageNumber integer,"
+                    + " collection varchar(256), uploadedAt timestamptz, PRIMARY KEY (id))");
+            statement.execute("CREATE TABLE IF NOT EXISTS " + targetText
+                    + " (id uuid, origntext varchar(8192), PRIMARY KEY (id))");
+        }
+    }
+
+    // コピー先の最後の id から続けてコピーし、最後にコピー先に無い行をコピーする
+    public void copy() throws SQLException {
+        var copied = copyBatches("id > ? ORDER BY id", true);
+        // id の順のコピー中に、コピー済みの id より前に登録された行
+        var missed = copyBatches("NOT EXISTS (SELECT 1 FROM " + target + " t WHERE t.id = s.id)", false);
+        System.out.printf("Copied %d rows (%d rows in the catch-up pass)%n", copied + missed, missed);
+    }
+
+    // condition に一致する行を batch-size 件ずつコピーしてコミットする (1 回の INSERT で両方のテーブルに書き込む)
+    // keyset が true の場合は、condition のパラメータにコピー先の最後の id を指定する
+    private long copyBatches(String condition, boolean keyset) throws SQLException {
+        var copySql = "WITH batch AS (SELECT id, embedding, origntext, fileName, pageNumber, collection, uploadedAt"
+                + " FROM " + source + " s WHERE " + condition + " LIMIT ?),"
+                + " vectors AS (INSERT INTO " + target
+                + " (id, embedding, fileName, pageNumber, collection, uploadedAt)"
+                + " SELECT id, embedding::" + vectorType.sqlType() + "(" + dimensions + "), fileName, pageNumber,"
+                + " collection, uploadedAt FROM batch ON CONFLICT (id) DO NOTHING),"
+                + " texts AS (INSERT INTO " + targetText + " (id, origntext)"
+                + " SELECT id, origntext FROM batch ON CONFLICT (id) DO NOTHING)"
+                + " SELECT (SELECT id FROM batch ORDER BY id DESC LIMIT 1), (SELECT count(*) FROM batch)";
+        var lastId = keyset ? lastCopiedId() : null;
+        long copied = 0;
+        var start = System.nanoTime();
+        connection.setAutoCommit(false);
+        try (var statement = connection.prepareStatement(copySql)) {
+            while (true) {
+                var index = 1;
+                if (keyset) {
+                    // 先頭から始める場合は、最小の UUID (00000000-0000-0000-0000-000000000000) を指定する
+                    statement.setObject(index++, lastId == null ? new UUID(0, 0) : lastId);
+                }
+                statement.setInt(index, batchSize);
+                long count;
+                try (var resultSet = statement.executeQuery()) {
+                    resultSet.next();
+                    lastId = resultSet.getObject(1);
+                    count = resultSet.getLong(2);
+                }
+                connection.commit();
+                if (count == 0) {
+                    break;
+                }
+                copied += count;
+                System.out.printf("Copied %d rows (last id: %s, %.1f s)%n", copied, lastId,
+                        (System.nanoTime() - start) / 1e9);
+            }
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+        return copied;
+    }
+
+    private Object lastCopiedId() throws SQLException {
+        try (var statement = connection.createStatement();
+                var resultSet = statement.executeQuery("SELECT id FROM " + target + " ORDER BY id DESC LIMIT 1")) {
+            return resultSet.next() ? resultSet.getObject(1) : null;
+        }
+    }
+
+    public void createIndexes() throws SQLException {
+        var operatorClass = distance.operatorClass(vectorType);
+        try (var statement = connection.createStatement()) {
+            System.out.println("Creating indexes on " + target + " ...");
+            statement.execute("CREATE INDEX IF NOT EXISTS " + target + "_embedding_idx ON " + target
+                    + " USING hnsw (embedding " + operatorClass + ")");
+            statement.execute("CREATE INDEX IF NOT EXISTS " + target + "_filename_idx ON " + target + " (fileName)");
+            statement.execute("CREATE INDEX IF NOT EXISTS " + target + "_collection_idx ON " + target
+                    + " (collection, uploadedAt)");
+            statement.execute("CREATE INDEX IF NOT EXISTS " + target + "_uploadedat_idx ON " + target
+                    + " (uploadedAt)");
+            statement.execute("ANALYZE " + target);
+            statement.execute("ANALYZE " + targetText);
+        }
+    }
+
+    // 元のテーブルとコピー先のテーブル・インデックスのサイズを比較
+    public void printSizes() throws SQLException {
+        var sizeSql = "SELECT pg_size_pretty(pg_table_size(to_regclass(?))),"
+                + " pg_size_pretty(pg_indexes_size(to_regclass(?)))";
+        try (var statement = connection.prepareStatement(sizeSql)) {
+            for (var table : new String[] { source, target, targetText }) {
+                statement.setString(1, table);
+                statement.setString(2, table);
+                try (var resultSet = statement.executeQuery()) {
+                    resultSet.next();
+                    System.out.printf("%-40s table: %10s  indexes: %10s%n", table, resultSet.getString(1),
+                            resultSet.getString(2));
+                }
+            }
+        }
+    }
+
+    private static Map<String, String> parseArguments(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                continue;
+            }
+            var name = args[i].substring(2);
+            if (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+                options.put(name, args[++i]);
+            } else {
+                options.put(name, "true");
+            }
+        }
+        return options;
+    }
+}
@@ -0,0 +1,7 @@
+package com.yoshio3.vectorstore;
+
+import java.util.UUID;
+
+// 検索結果のチャンク (distance はクエリとの距離 [PgVectorStore#setDistance で変更しない場合は L2]、text は取得していない場合は null)
+public record VectorHit(UUID id, float[] embedding, String text, String fileName, int pageNumber,
+        double distance) {}
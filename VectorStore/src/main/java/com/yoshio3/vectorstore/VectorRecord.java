@@ -0,0 +1,8 @@
+package com.yoshio3.vectorstore;
+
+import java.time.Instant;
+import java.util.UUID;
+
+// 登録するチャンク (collection は検索対象を分けるための名前、uploadedAt は登録日時)
+public record VectorRecord(UUID id, float[] embedding, String text, String fileName, int pageNumber,
+        String collection, Instant uploadedAt) {}
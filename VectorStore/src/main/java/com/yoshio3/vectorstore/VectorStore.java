@@ -0,0 +1,38 @@
+package com.yoshio3.vectorstore;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+// チャンク (ページのテキスト) とその Embedding を保存・検索するストア
+// BlobUploadDetector (登録) と PDF-Summarizer (検索・削除) の両方から利用し、
+// 保存形式や検索方法の変更はこのインタフェースの実装だけで行う
+public interface VectorStore {
+
+    // まとめて登録 (同じ ID のチャンクが存在する場合は上書き)
+    void upsert(List<VectorRecord> records);
+
+    // query との距離 (L2、PgVectorStore は setDistance で変更できる) が近い順に topK 件を取得
+    // テキストは取得しない場合がある (VectorHit.text() が null の場合は fetchTexts() で取得する)
+    List<VectorHit> search(float[] query, int topK, SearchFilter filter);
+
+    // チャンクのテキストを取得 (検索結果を絞り込んだ後に、必要な件数だけ取得するため)
+    Map<UUID, String> fetchTexts(Collection<UUID> ids);
+
+    // 子チャンクの親 (ページ全体のテキスト) を登録 (同じファイル名・ページ番号の親が存在する場合は上書き)
+    void upsertParents(List<ParentRecord> parents);
+
+    // 親のテキストを取得 (登録されていない親は含まない)
+    Map<ParentRecord.Key, String> fetchParentTexts(Collection<ParentRecord.Key> keys);
+
+    // 指定したファイルのチャンクを削除し、削除した件数を返す
+    int deleteByFileNames(Collection<String> fileNames);
+
+    // 全てのチャンクを削除
+    void deleteAll();
+
+    // 全てのチャンクを順に読み込む (全件をメモリに載せずに処理するため、fetchSize 件ずつ取得)
+    void scan(int fetchSize, Consumer<VectorRecord> consumer);
+}
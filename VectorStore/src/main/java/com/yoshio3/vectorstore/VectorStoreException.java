@@ -0,0 +1,15 @@
+package com.yoshio3.vectorstore;
+
+// ストアへのアクセスに失敗した場合 (スナップショットを読み込めない場合を含む) の例外
+public class VectorStoreException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public VectorStoreException(String message) {
+        super(message);
+    }
+
+    public VectorStoreException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
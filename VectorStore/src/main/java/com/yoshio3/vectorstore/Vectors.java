@@ -0,0 +1,73 @@
+package com.yoshio3.vectorstore;
+
+import java.util.List;
+
+// Embedding の変換・計算
+public final class Vectors {
+
+    private Vectors() {
+    }
+
+    public static float[] fromList(List<Double> embedding) {
+        var result = new float[embedding.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = embedding.get(i).floatValue();
+        }
+        return result;
+    }
+
+    // pgvector の文字列表現 ("[0.1,0.2,...]") に変換
+    public static String toLiteral(float[] vector) {
+        var builder = new StringBuilder(vector.length * 12).append('[');
+        for (int i = 0; i < vector.length; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(vector[i]);
+        }
+        return builder.append(']').toString();
+    }
+
+    // pgvector の文字列表現 ("[0.1,0.2,...]") を配列に変換
+    public static float[] parseLiteral(String vector) {
+        if (vector == null || vector.length() < 2) {
+            return null;
+        }
+        var body = vector.substring(1, vector.length() - 1);
+        if (body.isEmpty()) {
+            return new float[0];
+        }
+        var values = body.split(",");
+        var result = new float[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = Float.parseFloat(values[i]);
+        }
+        return result;
+    }
+
+    public static double l2Distance(float[] a, float[] b) {
+        int length = Math.min(a.length, b.length);
+        double sum = 0d;
+        for (int i = 0; i < length; i++) {
+            double diff = a[i] - b[i];
+            sum += diff * diff;
+        }
+        return Math.sqrt(sum);
+    }
+
+    public static double cosineSimilarity(float[] a, float[] b) {
+        int length = Math.min(a.length, b.length);
+        double dot = 0d;
+        double normA = 0d;
+        double normB = 0d;
+        for (int i = 0; i < length; i++) {
+            dot += a[i] * b[i];
+            normA += a[i] * a[i];
+            normB += b[i] * b[i];
+        }
+        if (normA == 0d || normB == 0d) {
+            return 0d;
+        }
+        return dot / (Math.sqrt(normA) * Math.sqrt(normB));
+    }
+}
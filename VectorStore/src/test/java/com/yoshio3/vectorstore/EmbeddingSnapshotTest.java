@@ -0,0 +1,98 @@
+package com.yoshio3.vectorstore;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class EmbeddingSnapshotTest {
+
+    private static final Instant UPLOADED_AT = Instant.parse("2024-04-01T12:34:56.789Z");
+
+    private static List<VectorRecord> records() {
+        return List.of(
+                new VectorRecord(UUID.randomUUID(), new float[] { 0.1f, -0.2f, 0.3f }, "最初のチャンク。", "manuals/a.pdf",
+                        1, "manuals", UPLOADED_AT),
+                new VectorRecord(UUID.randomUUID(), new float[] { 1.5f, 2.5f, -3.5f }, "", "manuals/a.pdf", 2,
+                        "manuals", UPLOADED_AT),
+                new VectorRecord(UUID.randomUUID(), new float[] { 0f, 0f, 1f }, "Third chunk.", "manuals/a.pdf", 2,
+                        "manuals", UPLOADED_AT));
+    }
+
+    private static void assertRecords(List<VectorRecord> expected, EmbeddingSnapshot snapshot) {
+        assertEquals(expected.size(), snapshot.size());
+        List<VectorRecord> actual = new ArrayList<>();
+        snapshot.forEach(actual::add);
+        for (int i = 0; i < expected.size(); i++) {
+            var record = expected.get(i);
+            assertEquals(record.id(), actual.get(i).id());
+            assertEquals(record.text(), actual.get(i).text());
+            assertEquals(record.fileName(), actual.get(i).fileName());
+            assertEquals(record.pageNumber(), actual.get(i).pageNumber());
+            assertEquals(record.collection(), actual.get(i).collection());
+            assertEquals(record.uploadedAt(), actual.get(i).uploadedAt());
+            assertArrayEquals(record.embedding(), actual.get(i).embedding());
+        }
+    }
+
+    @Test
+    void roundTripsInMemory() {
+        var records = records();
+        var snapshot = EmbeddingSnapshot.wrap(EmbeddingSnapshot.toBytes("text-embedding-ada-002", records));
+
+        assertEquals("text-embedding-ada-002", snapshot.modelId());
+        assertEquals("manuals/a.pdf", snapshot.fileName());
+        assertEquals("manuals", snapshot.collection());
+        assertEquals(UPLOADED_AT, snapshot.uploadedAt());
+        assertEquals(3, snapshot.dimensions());
+        assertRecords(records, snapshot);
+    }
+
+    @Test
+    void roundTripsThroughFile(@TempDir Path directory) throws Exception {
+        var records = records();
+        var path = directory.resolve("a" + EmbeddingSnapshot.FILE_EXTENSION);
+        Files.write(path, EmbeddingSnapshot.toBytes("model", records));
+
+        assertRecords(records, EmbeddingSnapshot.open(path));
+    }
+
+    @Test
+    void storesContentHash() throws Exception {
+        var records = records();
+        var snapshot = EmbeddingSnapshot.wrap(EmbeddingSnapshot.toBytes("model", records));
+        var expected = MessageDigest.getInstance("SHA-256").digest(records.get(0).text().getBytes(StandardCharsets.UTF_8));
+
+        assertArrayEquals(expected, snapshot.contentHash(0));
+    }
+
+    @Test
+    void keepsMissingUploadedAt() {
+        var record = new VectorRecord(UUID.randomUUID(), new float[] { 1f }, "text", "a.pdf", 1, null, null);
+        var snapshot = EmbeddingSnapshot.wrap(EmbeddingSnapshot.toBytes("model", List.of(record)));
+
+        assertNull(snapshot.uploadedAt());
+    }
+
+    @Test
+    void rejectsInvalidSnapshots() {
+        var bytes = EmbeddingSnapshot.toBytes("model", records());
+
+        assertThrows(VectorStoreException.class, () -> EmbeddingSnapshot.wrap(Arrays.copyOf(bytes, bytes.length - 1)));
+        bytes[0] = 0;
+        assertThrows(VectorStoreException.class, () -> EmbeddingSnapshot.wrap(bytes));
+    }
+}
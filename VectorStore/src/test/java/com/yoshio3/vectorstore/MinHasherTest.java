@@ -0,0 +1,62 @@
+package com.yoshio3.vectorstore;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class MinHasherTest {
+
+    private static final String PAGE = "Azure Functions をデプロイする前に、リソース・グループとストレージ・アカウントを作成してください。"
+            + " 作成したストレージ・アカウントの接続文字列は、アプリケーションの設定に追加します。"
+            + " 設定を変更した場合は、関数アプリを再起動してください。";
+
+    private final MinHasher minHasher = new MinHasher();
+
+    @Test
+    void ignoresWidthCaseAndWhitespace() {
+        var signature = minHasher.signature("Azure  Functions\nSETUP");
+
+        assertArrayEquals(signature, minHasher.signature("ａｚｕｒｅ functions setup"));
+    }
+
+    @Test
+    void nearDuplicatesAreSimilar() {
+        var revised = PAGE.replace("再起動してください", "再起動します");
+
+        var similarity = MinHasher.similarity(minHasher.signature(PAGE), minHasher.signature(revised));
+
+        assertTrue(similarity >= 0.8, "similarity: " + similarity);
+    }
+
+    @Test
+    void differentTextsAreNotSimilar() {
+        var other = "PostgreSQL の pgvector 拡張機能を有効にし、ベクトルのテーブルと HNSW インデックスを作成します。";
+
+        var similarity = MinHasher.similarity(minHasher.signature(PAGE), minHasher.signature(other));
+
+        assertTrue(similarity < 0.2, "similarity: " + similarity);
+    }
+
+    @Test
+    void identicalTextsShareAllBands() {
+        var keys = minHasher.bandKeys(minHasher.signature(PAGE));
+
+        assertEquals(MinHasher.DEFAULT_BANDS, keys.length);
+        assertArrayEquals(keys, minHasher.bandKeys(minHasher.signature(PAGE)));
+    }
+
+    @Test
+    void signatureRoundTripsThroughBytes() {
+        var signature = minHasher.signature(PAGE);
+
+        assertArrayEquals(signature, MinHasher.fromBytes(MinHasher.toBytes(signature)));
+    }
+
+    @Test
+    void rejectsHashesNotDivisibleByBands() {
+        assertThrows(IllegalArgumentException.class, () -> new MinHasher(100, 16, 5));
+    }
+}
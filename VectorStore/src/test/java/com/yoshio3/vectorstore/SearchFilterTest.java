@@ -0,0 +1,65 @@
+package com.yoshio3.vectorstore;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+
+class SearchFilterTest {
+
+    private static final Instant UPLOADED_AT = Instant.parse("2024-04-01T00:00:00Z");
+
+    private static VectorRecord record(String fileName, String collection, Instant uploadedAt) {
+        return new VectorRecord(UUID.randomUUID(), new float[] { 1f }, "text", fileName, 1, collection, uploadedAt);
+    }
+
+    @Test
+    void emptyConditionsMatchEverything() {
+        var filter = new SearchFilter(null, " ", null, null);
+
+        assertTrue(filter.isEmpty());
+        assertTrue(SearchFilter.NONE.isEmpty());
+        assertTrue(filter.matches(record("a.pdf", null, null)));
+    }
+
+    @Test
+    void matchesAnyFileName() {
+        var filter = new SearchFilter(List.of("a.pdf", "b.pdf"), null, null, null);
+
+        assertTrue(filter.matches(record("b.pdf", "manuals", UPLOADED_AT)));
+        assertFalse(filter.matches(record("c.pdf", "manuals", UPLOADED_AT)));
+    }
+
+    @Test
+    void matchesCollection() {
+        var filter = new SearchFilter(null, "manuals", null, null);
+
+        assertTrue(filter.matches(record("a.pdf", "manuals", UPLOADED_AT)));
+        assertFalse(filter.matches(record("a.pdf", "reports", UPLOADED_AT)));
+        assertFalse(filter.matches(record("a.pdf", null, UPLOADED_AT)));
+    }
+
+    @Test
+    void uploadedRangeIncludesFromAndExcludesTo() {
+        var filter = new SearchFilter(null, null, UPLOADED_AT, UPLOADED_AT.plusSeconds(60));
+
+        assertTrue(filter.matches(record("a.pdf", null, UPLOADED_AT)));
+        assertFalse(filter.matches(record("a.pdf", null, UPLOADED_AT.minusSeconds(1))));
+        assertFalse(filter.matches(record("a.pdf", null, UPLOADED_AT.plusSeconds(60))));
+        assertFalse(filter.matches(record("a.pdf", null, null)));
+    }
+
+    @Test
+    void fileNamesAreCopied() {
+        var fileNames = new ArrayList<>(List.of("a.pdf"));
+        var filter = new SearchFilter(fileNames, null, null, null);
+        fileNames.add("b.pdf");
+
+        assertFalse(filter.matches(record("b.pdf", null, null)));
+    }
+}
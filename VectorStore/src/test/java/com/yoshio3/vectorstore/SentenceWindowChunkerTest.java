@@ -0,0 +1,55 @@
+package com.yoshio3.vectorstore;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class SentenceWindowChunkerTest {
+
+    @Test
+    void splitsSentencesKeepingPunctuation() {
+        assertEquals(List.of("今日は晴れ。", "明日は雨？", "Yes.", " 続き"),
+                SentenceWindowChunker.splitSentences("今日は晴れ。明日は雨？Yes. 続き"));
+    }
+
+    @Test
+    void groupsUpToMaxSentences() {
+        var chunker = new SentenceWindowChunker(2, 500);
+
+        assertEquals(List.of("一。二。", "三。四。", "五。"), chunker.chunk("一。二。三。四。五。"));
+    }
+
+    @Test
+    void startsNewChunkWhenMaxLengthExceeded() {
+        var chunker = new SentenceWindowChunker(3, 6);
+
+        assertEquals(List.of("あいう。", "えおか。"), chunker.chunk("あいう。えおか。"));
+    }
+
+    @Test
+    void splitsLongSentenceByMaxLength() {
+        var chunker = new SentenceWindowChunker(3, 4);
+
+        assertEquals(List.of("あいうえ", "おかきく", "け。"), chunker.chunk("あいうえおかきくけ。"));
+    }
+
+    @Test
+    void chunksAreSubstringsOfText() {
+        var text = "This is a test. Another sentence! 日本語の文です。最後の文";
+        var chunks = new SentenceWindowChunker(1, 20).chunk(text);
+
+        assertEquals(text, String.join("", chunks));
+        chunks.forEach(chunk -> assertTrue(text.contains(chunk)));
+    }
+
+    @Test
+    void ignoresBlankText() {
+        var chunker = new SentenceWindowChunker();
+
+        assertTrue(chunker.chunk(null).isEmpty());
+        assertTrue(chunker.chunk("   ").isEmpty());
+    }
+}
@@ -0,0 +1,50 @@
+package com.yoshio3.vectorstore;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+class ShadowTableReembedderTest {
+
+    private static ShadowTableReembedder reembedder(PgVectorStore.VectorType vectorType, int dimensions,
+            PgVectorStore.Distance distance) {
+        var reembedder = new ShadowTableReembedder(() -> {
+            throw new UnsupportedOperationException();
+        }, "DOCS", "new-model", PgVectorStore.Layout.INLINE, vectorType, dimensions);
+        reembedder.setDistance(distance);
+        return reembedder;
+    }
+
+    @Test
+    void partialIndexUsesConfiguredDistance() {
+        var reembedder = reembedder(PgVectorStore.VectorType.VECTOR, 1536, PgVectorStore.Distance.COSINE);
+        var definition = "CREATE INDEX docs_manuals_idx ON public.docs USING hnsw (embedding vector_l2_ops)"
+                + " WHERE ((collection)::text = 'manuals'::text)";
+
+        assertEquals("CREATE INDEX CONCURRENTLY IF NOT EXISTS DOCS_SHADOW_IDX0 ON DOCS_SHADOW"
+                + " USING hnsw (embedding vector_cosine_ops) WHERE ((collection)::text = 'manuals'::text)",
+                reembedder.toShadowIndex(definition, "DOCS_SHADOW_IDX0"));
+    }
+
+    @Test
+    void binaryIndexUsesNewDimensions() {
+        var reembedder = reembedder(PgVectorStore.VectorType.VECTOR, 3072, PgVectorStore.Distance.L2);
+        var definition = "CREATE INDEX docs_binary_idx ON public.docs"
+                + " USING hnsw (((binary_quantize(embedding))::bit(1536)) bit_hamming_ops)";
+
+        assertEquals("CREATE INDEX CONCURRENTLY IF NOT EXISTS DOCS_SHADOW_IDX1 ON DOCS_SHADOW"
+                + " USING hnsw (((binary_quantize(embedding))::bit(3072)) bit_hamming_ops)",
+                reembedder.toShadowIndex(definition, "DOCS_SHADOW_IDX1"));
+    }
+
+    @Test
+    void truncatedIndexKeepsExpression() {
+        var reembedder = reembedder(PgVectorStore.VectorType.HALFVEC, 1536, PgVectorStore.Distance.INNER_PRODUCT);
+        var definition = "CREATE INDEX docs_truncated_idx ON public.docs"
+                + " USING hnsw (((subvector(embedding, 1, 256))::halfvec(256)) halfvec_l2_ops)";
+
+        assertEquals("CREATE INDEX CONCURRENTLY IF NOT EXISTS DOCS_SHADOW_IDX2 ON DOCS_SHADOW"
+                + " USING hnsw (((subvector(embedding, 1, 256))::halfvec(256)) halfvec_l2_ops)",
+                reembedder.toShadowIndex(definition, "DOCS_SHADOW_IDX2"));
+    }
+}
@@ -177,7 +177,36 @@ echo ""
 echo "$POSTGRES_DB_NAME=> CREATE TABLE IF NOT EXISTS $POSTGRES_TABLE_NAME"
 echo "                 (id uuid, embedding VECTOR(1536),"
 echo "                  origntext varchar(8192), fileName varchar(2048),"
-echo "                  pageNumber integer, PRIMARY KEY (id));"
+echo "                  pageNumber integer,"
+echo "                  collection varchar(256) NOT NULL DEFAULT 'default',"
+echo "                  uploadedAt timestamptz NOT NULL DEFAULT now(),"
+echo "                  PRIMARY KEY (id));"
+echo ""
+echo "# テキストを別テーブルに分ける場合 (VectorStoreLayout=split, vector.store.layout=split) は、下記のテーブルも作成してください"
+echo "$POSTGRES_DB_NAME=> CREATE TABLE IF NOT EXISTS ${POSTGRES_TABLE_NAME}_TEXT"
+echo "                 (id uuid, origntext varchar(8192), PRIMARY KEY (id));"
+echo ""
+echo "# ほぼ同じテキストのチャンクを紐付ける場合 (NearDuplicateDetectionEnabled=true) は、下記のテーブルも作成してください"
+echo "$POSTGRES_DB_NAME=> CREATE TABLE IF NOT EXISTS ${POSTGRES_TABLE_NAME}_MINHASH"
+echo "                 (id uuid, fileName varchar(2048), pageNumber integer, collection varchar(256),"
+echo "                  canonicalId uuid, similarity real, origntext varchar(8192), signature bytea NOT NULL, uploadedAt timestamptz,"
+echo "                  PRIMARY KEY (id));"
+echo "$POSTGRES_DB_NAME=> CREATE INDEX ON ${POSTGRES_TABLE_NAME}_MINHASH (canonicalId);"
+echo "$POSTGRES_DB_NAME=> CREATE INDEX ON ${POSTGRES_TABLE_NAME}_MINHASH (fileName);"
+echo "$POSTGRES_DB_NAME=> CREATE TABLE IF NOT EXISTS ${POSTGRES_TABLE_NAME}_LSH"
+echo "                 (band smallint, bucket bigint, id uuid, PRIMARY KEY (band, bucket, id));"
+echo ""
+echo "# 子チャンクに分割して登録する場合 (ChunkingMode=sentence-window, vector.store.parent.documents=true) は、下記のテーブルも作成してください"
+echo "$POSTGRES_DB_NAME=> CREATE TABLE IF NOT EXISTS ${POSTGRES_TABLE_NAME}_PARENT"
+echo "                 (fileName varchar(2048), pageNumber integer, origntext text,"
+echo "                  PRIMARY KEY (fileName, pageNumber));"
+echo ""
+echo "# ページの要約を作成する場合 (PageDigestEnabled=true, search.page.digest.enabled=true) は、下記のテーブルも作成してください"
+echo "$POSTGRES_DB_NAME=> CREATE TABLE IF NOT EXISTS ${POSTGRES_TABLE_NAME}_DIGEST"
+echo "                 (fileName varchar(2048), pageNumber integer, status varchar(16) NOT NULL, sourcetext text,"
+echo "                  digest text, model varchar(256), attempts integer NOT NULL DEFAULT 0,"
+echo "                  updatedAt timestamptz NOT NULL DEFAULT now(), PRIMARY KEY (fileName, pageNumber));"
+echo "$POSTGRES_DB_NAME=> CREATE INDEX ON ${POSTGRES_TABLE_NAME}_DIGEST (updatedAt) WHERE status = 'PENDING';"
 echo "-----------------------------------------------------------------------------"
 
 